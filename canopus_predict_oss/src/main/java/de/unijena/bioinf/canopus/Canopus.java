@@ -291,7 +291,10 @@ public class Canopus {
         return predictFingerprints(formula,fingerprint,EnumSet.of(topredict))[0];
     }
     public ProbabilityFingerprint[] predictFingerprints(MolecularFormula formula, ProbabilityFingerprint fingerprint, EnumSet<Predictable> topredict) {
-        final float[][] values = predictProbabilities(formula, fingerprint, topredict);
+        return toFingerprints(predictProbabilities(formula, fingerprint, topredict), topredict);
+    }
+
+    ProbabilityFingerprint[] toFingerprints(float[][] values, EnumSet<Predictable> topredict) {
         final ProbabilityFingerprint[] fps = new ProbabilityFingerprint[topredict.size()];
         int k=0;
         if (topredict.contains(Predictable.ClassyFire)) {
@@ -0,0 +1,70 @@
+package de.unijena.bioinf.canopus;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import de.unijena.bioinf.jjobs.JJob;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Predicts CANOPUS fingerprints for many (formula, fingerprint) pairs, e.g. all features of a project.
+ * The input is split into one chunk per CPU thread and every chunk is evaluated by its own {@link CanopusBatchPredictor}.
+ * The result contains the predicted fingerprints in the same order as the input, see
+ * {@link CanopusBatchPredictor#predictFingerprints(List, List, EnumSet)}.
+ */
+public class CanopusBatchPredictionJJob extends BasicMasterJJob<ProbabilityFingerprint[][]> {
+
+    private final Canopus canopus;
+    private final EnumSet<Canopus.Predictable> topredict;
+    private final int batchSize;
+    private List<MolecularFormula> formulas;
+    private List<ProbabilityFingerprint> fingerprints;
+
+    public CanopusBatchPredictionJJob(Canopus canopus, List<MolecularFormula> formulas, List<ProbabilityFingerprint> fingerprints, EnumSet<Canopus.Predictable> topredict) {
+        this(canopus, formulas, fingerprints, topredict, CanopusBatchPredictor.DEFAULT_BATCH_SIZE);
+    }
+
+    public CanopusBatchPredictionJJob(Canopus canopus, List<MolecularFormula> formulas, List<ProbabilityFingerprint> fingerprints, EnumSet<Canopus.Predictable> topredict, int batchSize) {
+        super(JobType.CPU);
+        if (formulas.size() != fingerprints.size())
+            throw new IllegalArgumentException("Number of formulas and fingerprints differ: " + formulas.size() + " vs. " + fingerprints.size());
+        this.canopus = canopus;
+        this.formulas = formulas;
+        this.fingerprints = fingerprints;
+        this.topredict = topredict;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    protected ProbabilityFingerprint[][] compute() throws Exception {
+        final ProbabilityFingerprint[][] results = new ProbabilityFingerprint[formulas.size()][];
+        if (formulas.isEmpty()) return results;
+        // chunks are multiples of the batch size, such that every GEMM is as large as possible
+        final int numberOfBatches = (formulas.size() + batchSize - 1) / batchSize;
+        final int numberOfJobs = Math.max(1, Math.min(numberOfBatches, jobManager.getCPUThreads()));
+        final int chunkSize = ((numberOfBatches + numberOfJobs - 1) / numberOfJobs) * batchSize;
+        final List<BasicJJob<Boolean>> jobs = new ArrayList<>(numberOfJobs);
+        for (int start = 0; start < formulas.size(); start += chunkSize) {
+            final int from = start, to = Math.min(formulas.size(), start + chunkSize);
+            final List<MolecularFormula> fs = formulas.subList(from, to);
+            final List<ProbabilityFingerprint> fps = fingerprints.subList(from, to);
+            jobs.add(new BasicJJob<Boolean>(JobType.CPU) {
+                @Override
+                protected Boolean compute() throws Exception {
+                    final ProbabilityFingerprint[][] chunk = new CanopusBatchPredictor(canopus, batchSize).predictFingerprints(fs, fps, topredict);
+                    System.arraycopy(chunk, 0, results, from, chunk.length);
+                    return true;
+                }
+            });
+        }
+        jobs.forEach(this::submitSubJob);
+        jobs.forEach(JJob::takeResult);
+        formulas = null;
+        fingerprints = null;
+        return results;
+    }
+}
@@ -0,0 +1,127 @@
+package de.unijena.bioinf.canopus;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.canopus.dnn.FullyConnectedLayer;
+import org.ejml.data.FMatrixRMaj;
+
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Evaluates the CANOPUS network for many (formula, fingerprint) pairs at once. Each chunk of samples is
+ * evaluated with one matrix-matrix product per layer instead of one matrix-vector product per sample and layer.
+ * All intermediate matrices are reused between chunks, so a predictor is not thread-safe. Use one predictor per
+ * thread (see {@link CanopusBatchPredictionJJob}).
+ */
+public class CanopusBatchPredictor {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final Canopus canopus;
+    private final int batchSize;
+
+    private final FMatrixRMaj formulaInput = new FMatrixRMaj(1, 1), fingerprintInput = new FMatrixRMaj(1, 1),
+            combined = new FMatrixRMaj(1, 1), bufferA = new FMatrixRMaj(1, 1), bufferB = new FMatrixRMaj(1, 1),
+            output = new FMatrixRMaj(1, 1);
+
+    public CanopusBatchPredictor(Canopus canopus) {
+        this(canopus, DEFAULT_BATCH_SIZE);
+    }
+
+    public CanopusBatchPredictor(Canopus canopus, int batchSize) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batch size has to be positive but is " + batchSize);
+        this.canopus = canopus;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Batch version of {@link Canopus#predictProbabilities(MolecularFormula, ProbabilityFingerprint, EnumSet)}.
+     *
+     * @return probabilities for each sample, values[i][k] are the probabilities of sample i for the k-th predictable in topredict
+     */
+    public float[][][] predictProbabilities(List<MolecularFormula> formulas, List<ProbabilityFingerprint> fingerprints, EnumSet<Canopus.Predictable> topredict) {
+        if (formulas.size() != fingerprints.size())
+            throw new IllegalArgumentException("Number of formulas and fingerprints differ: " + formulas.size() + " vs. " + fingerprints.size());
+        if (topredict.contains(Canopus.Predictable.Fingerprint)) {
+            throw new UnsupportedOperationException("Not implemented yet.");
+        }
+        final float[][][] values = new float[formulas.size()][topredict.size()][];
+        for (int from = 0; from < formulas.size(); from += batchSize) {
+            final int to = Math.min(formulas.size(), from + batchSize);
+            predictChunk(formulas, fingerprints, from, to, topredict, values);
+        }
+        return values;
+    }
+
+    /**
+     * Batch version of {@link Canopus#predictFingerprints(MolecularFormula, ProbabilityFingerprint, EnumSet)}.
+     *
+     * @return fingerprints for each sample, fps[i][k] is the fingerprint of sample i for the k-th predictable in topredict
+     */
+    public ProbabilityFingerprint[][] predictFingerprints(List<MolecularFormula> formulas, List<ProbabilityFingerprint> fingerprints, EnumSet<Canopus.Predictable> topredict) {
+        final float[][][] values = predictProbabilities(formulas, fingerprints, topredict);
+        final ProbabilityFingerprint[][] fps = new ProbabilityFingerprint[values.length][];
+        for (int i = 0; i < values.length; ++i) {
+            fps[i] = canopus.toFingerprints(values[i], topredict);
+        }
+        return fps;
+    }
+
+    private void predictChunk(List<MolecularFormula> formulas, List<ProbabilityFingerprint> fingerprints, int from, int to, EnumSet<Canopus.Predictable> topredict, float[][][] values) {
+        final int n = to - from;
+        // fill normalized input matrices, one row per sample
+        final int formulaCols = canopus.formulaCentering.length, fpCols = canopus.plattCentering.length;
+        formulaInput.reshape(n, formulaCols, false);
+        fingerprintInput.reshape(n, fpCols, false);
+        for (int i = 0; i < n; ++i) {
+            final double[] ff = canopus.getNormalizedFormulaVector(formulas.get(from + i));
+            for (int j = 0, offset = i * formulaCols; j < formulaCols; ++j) formulaInput.data[offset + j] = (float) ff[j];
+            final double[] fp = canopus.getNormalizedFingerprintVector(fingerprints.get(from + i));
+            for (int j = 0, offset = i * fpCols; j < fpCols; ++j) fingerprintInput.data[offset + j] = (float) fp[j];
+        }
+
+        // formula and fingerprint branch, results are concatenated row-wise into the combined matrix
+        final FMatrixRMaj formulaOut = evalLayers(canopus.formulaLayers, formulaInput);
+        final int formulaOutCols = formulaOut.numCols;
+        combined.reshape(n, formulaOutCols + lastOutputSize(canopus.fingerprintLayers, fpCols), false);
+        for (int i = 0; i < n; ++i)
+            System.arraycopy(formulaOut.data, i * formulaOutCols, combined.data, i * combined.numCols, formulaOutCols);
+        final FMatrixRMaj fpOut = evalLayers(canopus.fingerprintLayers, fingerprintInput);
+        for (int i = 0; i < n; ++i)
+            System.arraycopy(fpOut.data, i * fpOut.numCols, combined.data, i * combined.numCols + formulaOutCols, fpOut.numCols);
+
+        final FMatrixRMaj latent = evalLayers(canopus.innerLayers, combined);
+        int k = 0;
+        if (topredict.contains(Canopus.Predictable.ClassyFire)) {
+            canopus.plattLayer.eval(canopus.outputLayer.eval(latent, output));
+            copyRows(output, from, k++, values);
+        }
+        if (topredict.contains(Canopus.Predictable.NPC)) {
+            canopus.npcPlattLayer.eval(canopus.npcLayer.eval(latent, output));
+            copyRows(output, from, k++, values);
+        }
+    }
+
+    // evaluates the layers by alternating between the two scratch buffers
+    private FMatrixRMaj evalLayers(FullyConnectedLayer[] layers, FMatrixRMaj input) {
+        FMatrixRMaj current = input;
+        for (FullyConnectedLayer l : layers) {
+            final FMatrixRMaj target = current == bufferA ? bufferB : bufferA;
+            current = l.eval(current, target);
+        }
+        return current;
+    }
+
+    private static int lastOutputSize(FullyConnectedLayer[] layers, int inputSize) {
+        return layers.length == 0 ? inputSize : layers[layers.length - 1].getOutputSize();
+    }
+
+    private static void copyRows(FMatrixRMaj matrix, int from, int k, float[][][] values) {
+        for (int i = 0; i < matrix.numRows; ++i) {
+            final float[] row = new float[matrix.numCols];
+            System.arraycopy(matrix.data, i * matrix.numCols, row, 0, matrix.numCols);
+            values[from + i][k] = row;
+        }
+    }
+}
@@ -22,12 +22,20 @@ package de.unijena.bioinf.canopus.dnn;
 
 public interface ActivationFunction {
 
-    void eval(float[] values);
+    default void eval(float[] values) {
+        eval(values, values.length);
+    }
+
+    /**
+     * applies the activation function on the first length values. Used with reusable buffers that might be
+     * larger than the actual matrix.
+     */
+    void eval(float[] values, int length);
 
     class Identity implements ActivationFunction {
 
         @Override
-        public void eval(float[] values) {
+        public void eval(float[] values, int length) {
 
         }
     }
@@ -36,8 +44,8 @@ public interface ActivationFunction {
         private final static double alpha = 1.6732632423543772848170429916717;
         private final static double lambda = 1.0507009873554804934193349852946;
         @Override
-        public void eval(float[] values) {
-            for (int i=0; i < values.length; ++i) {
+        public void eval(float[] values, int length) {
+            for (int i=0; i < length; ++i) {
                 final double x = values[i];
                 values[i] = (float)((x > 0) ? lambda*x : lambda*(alpha*Math.exp(x) - alpha));
             }
@@ -46,8 +54,8 @@ public interface ActivationFunction {
 
     class Tanh implements ActivationFunction {
         @Override
-        public void eval(float[] values) {
-            for (int i=0; i < values.length; ++i) {
+        public void eval(float[] values, int length) {
+            for (int i=0; i < length; ++i) {
                 values[i] = (float)Math.tanh(values[i]);
             }
         }
@@ -55,8 +63,8 @@ public interface ActivationFunction {
 
     class ReLu implements ActivationFunction {
         @Override
-        public void eval(float[] values) {
-            for (int i=0; i < values.length; ++i) {
+        public void eval(float[] values, int length) {
+            for (int i=0; i < length; ++i) {
                 values[i] = Math.max(0, values[i]);
             }
         }
@@ -85,6 +85,22 @@ public class FullyConnectedLayer {
         return output;
     }
 
+    /**
+     * Evaluates the layer for all rows of the input and writes the result into the given output matrix, which is
+     * reshaped to (input.numRows x outputSize). Reusing the output matrix avoids allocating a new buffer per call.
+     * Input and output must not be the same matrix.
+     */
+    public FMatrixRMaj eval(FMatrixRMaj input, FMatrixRMaj output) {
+        output.reshape(input.numRows, B.length, false);
+        final float[] storage = output.data;
+        for (int i=0, j=0; i < input.numRows; ++i, j += B.length) {
+            System.arraycopy(B, 0, storage, j, B.length);
+        }
+        CommonOps_FDRM.multAdd(input, W, output);
+        activationFunction.eval(storage, input.numRows*B.length);
+        return output;
+    }
+
     public void dump(ObjectOutputStream stream) throws IOException {
         stream.writeInt(activationFunction instanceof ActivationFunction.Identity ? 0 : (activationFunction instanceof ActivationFunction.Tanh ? 1 : (activationFunction instanceof ActivationFunction.ReLu ? 2 : (activationFunction instanceof ActivationFunction.SELU ? 3 : 1000))));
         stream.writeInt(W.numCols);
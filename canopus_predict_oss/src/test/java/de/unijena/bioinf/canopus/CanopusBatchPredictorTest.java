@@ -0,0 +1,169 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.canopus;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.*;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.canopus.dnn.ActivationFunction;
+import de.unijena.bioinf.canopus.dnn.FullyConnectedLayer;
+import de.unijena.bioinf.canopus.dnn.PlattLayer;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CanopusBatchPredictor} and {@link CanopusBatchPredictionJJob} have to predict the same fingerprints as
+ * {@link Canopus#predictFingerprints(MolecularFormula, ProbabilityFingerprint, EnumSet)} for every single sample.
+ * The network is random but has the layout of a real CANOPUS model.
+ */
+public class CanopusBatchPredictorTest {
+
+    private static final EnumSet<Canopus.Predictable> TOPREDICT = EnumSet.of(Canopus.Predictable.ClassyFire, Canopus.Predictable.NPC);
+    private static final int NUMBER_OF_SAMPLES = 23;
+
+    private static Canopus canopus;
+    private static List<MolecularFormula> formulas;
+    private static List<ProbabilityFingerprint> fingerprints;
+
+    @BeforeClass
+    public static void setUp() {
+        final Random random = new Random(4711);
+        final MaskedFingerprintVersion inputVersion = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(0, 40).toMask();
+        final MaskedFingerprintVersion classyFireMask = MaskedFingerprintVersion.allowAll(ClassyFireFingerprintVersion.getDefault());
+        final MaskedFingerprintVersion npcMask = MaskedFingerprintVersion.allowAll(NPCFingerprintVersion.get());
+        final int formulaSize = Canopus.getFormulaFeatures(MolecularFormula.parseOrThrow("C6H12O6")).length;
+
+        canopus = new Canopus(
+                new FullyConnectedLayer[]{layer(random, formulaSize, 16, new ActivationFunction.SELU())},
+                new FullyConnectedLayer[]{layer(random, inputVersion.size(), 32, new ActivationFunction.ReLu()), layer(random, 32, 24, new ActivationFunction.SELU())},
+                new FullyConnectedLayer[]{layer(random, 40, 20, new ActivationFunction.Tanh())},
+                layer(random, 20, classyFireMask.size(), new ActivationFunction.Identity()),
+                platt(random, classyFireMask.size()),
+                gaussian(random, formulaSize, 10), positive(random, formulaSize, 20),
+                uniform(random, inputVersion.size()), positive(random, inputVersion.size(), 1),
+                classyFireMask, null, npcMask,
+                layer(random, 20, npcMask.size(), new ActivationFunction.Identity()),
+                platt(random, npcMask.size())
+        );
+
+        formulas = new ArrayList<>();
+        fingerprints = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_SAMPLES; ++i) {
+            formulas.add(MolecularFormula.parseOrThrow("C" + (5 + random.nextInt(30)) + "H" + (4 + random.nextInt(50)) + "N" + random.nextInt(4) + "O" + random.nextInt(10)));
+            fingerprints.add(new ProbabilityFingerprint(inputVersion, uniform(random, inputVersion.size())));
+        }
+    }
+
+    @Test
+    public void testPredictorMatchesSingleSamplePrediction() {
+        // 23 samples: several full batches and a final partial batch, a single partial batch and one sample per batch
+        for (int batchSize : new int[]{4, 8, 100, 1}) {
+            assertSamePredictions(new CanopusBatchPredictor(canopus, batchSize).predictFingerprints(formulas, fingerprints, TOPREDICT));
+        }
+    }
+
+    @Test
+    public void testPredictorCanBeReused() {
+        final CanopusBatchPredictor predictor = new CanopusBatchPredictor(canopus, 8);
+        assertSamePredictions(predictor.predictFingerprints(formulas, fingerprints, TOPREDICT));
+        // a smaller input after a larger one must not see values of the previous call in the reused buffers
+        final ProbabilityFingerprint[][] fps = predictor.predictFingerprints(formulas.subList(0, 3), fingerprints.subList(0, 3), TOPREDICT);
+        assertEquals(3, fps.length);
+        for (int i = 0; i < fps.length; ++i)
+            assertSamePrediction(i, fps[i]);
+    }
+
+    @Test
+    public void testSingleTarget() {
+        final ProbabilityFingerprint[][] fps = new CanopusBatchPredictor(canopus, 8).predictFingerprints(formulas, fingerprints, EnumSet.of(Canopus.Predictable.NPC));
+        for (int i = 0; i < fps.length; ++i) {
+            assertEquals(1, fps[i].length);
+            assertArrayEquals(canopus.predictFingerprint(formulas.get(i), fingerprints.get(i), Canopus.Predictable.NPC).toProbabilityArray(), fps[i][0].toProbabilityArray(), 1e-6);
+        }
+    }
+
+    @Test
+    public void testBatchPredictionJob() {
+        for (int batchSize : new int[]{4, CanopusBatchPredictor.DEFAULT_BATCH_SIZE}) {
+            assertSamePredictions(SiriusJobs.getGlobalJobManager().submitJob(
+                    new CanopusBatchPredictionJJob(canopus, formulas, fingerprints, TOPREDICT, batchSize)).takeResult());
+        }
+        assertEquals(0, SiriusJobs.getGlobalJobManager().submitJob(
+                new CanopusBatchPredictionJJob(canopus, List.of(), List.of(), TOPREDICT)).takeResult().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDifferentInputSizes() {
+        new CanopusBatchPredictor(canopus).predictFingerprints(formulas, fingerprints.subList(0, 5), TOPREDICT);
+    }
+
+    private static void assertSamePredictions(ProbabilityFingerprint[][] fps) {
+        assertEquals(NUMBER_OF_SAMPLES, fps.length);
+        for (int i = 0; i < fps.length; ++i)
+            assertSamePrediction(i, fps[i]);
+    }
+
+    private static void assertSamePrediction(int sample, ProbabilityFingerprint[] actual) {
+        final ProbabilityFingerprint[] expected = canopus.predictFingerprints(formulas.get(sample), fingerprints.get(sample), TOPREDICT);
+        assertEquals(expected.length, actual.length);
+        for (int k = 0; k < expected.length; ++k) {
+            assertEquals(expected[k].getFingerprintVersion(), actual[k].getFingerprintVersion());
+            assertArrayEquals("sample " + sample, expected[k].toProbabilityArray(), actual[k].toProbabilityArray(), 1e-6);
+        }
+    }
+
+    private static FullyConnectedLayer layer(Random random, int inputSize, int outputSize, ActivationFunction activation) {
+        final float[] w = new float[inputSize * outputSize];
+        for (int i = 0; i < w.length; ++i) w[i] = (float) (random.nextGaussian() / Math.sqrt(inputSize));
+        final float[] b = new float[outputSize];
+        for (int i = 0; i < b.length; ++i) b[i] = (float) (random.nextGaussian() * 0.1);
+        return new FullyConnectedLayer(inputSize, outputSize, w, b, activation);
+    }
+
+    private static PlattLayer platt(Random random, int size) {
+        return new PlattLayer(gaussian(random, size, 2), gaussian(random, size, 1));
+    }
+
+    private static double[] gaussian(Random random, int size, double sd) {
+        final double[] values = new double[size];
+        for (int i = 0; i < size; ++i) values[i] = random.nextGaussian() * sd;
+        return values;
+    }
+
+    private static double[] positive(Random random, int size, double scale) {
+        final double[] values = new double[size];
+        for (int i = 0; i < size; ++i) values[i] = scale * (0.5 + random.nextDouble());
+        return values;
+    }
+
+    private static double[] uniform(Random random, int size) {
+        final double[] values = new double[size];
+        for (int i = 0; i < size; ++i) values[i] = random.nextDouble();
+        return values;
+    }
+}
@@ -51,7 +51,11 @@ import static de.unijena.bioinf.chemdb.ChemDbTags.TAG_FORMAT;
 
 public class ChemicalBlobDatabase<Storage extends BlobStorage> extends AbstractCompressible implements AbstractChemicalDatabase {
     public enum Format {
-        CSV(".csv"), JSON(".json");
+        CSV(".csv"), JSON(".json"),
+        /**
+         * binary columnar format, see {@link CompoundBinaryMapper}
+         */
+        BINARY(".bin");
         public final String ext;
 
         Format(@NotNull String ext) {
@@ -72,6 +76,8 @@ public class ChemicalBlobDatabase<Storage extends BlobStorage> extends AbstractC
                 return CSV;
             if (s.endsWith(JSON.ext()))
                 return JSON;
+            if (s.endsWith(BINARY.ext()))
+                return BINARY;
             return null;
         }
     }
@@ -82,7 +88,7 @@ public class ChemicalBlobDatabase<Storage extends BlobStorage> extends AbstractC
     public static final Set<String> CONFIG_BLOBS = Set.of(BLOB_FORMULAS, BLOB_SETTINGS);
 
     protected final Storage storage;
-    protected Format format; // csv or json
+    protected Format format; // csv, json or binary
     protected final Index index; // formula index
 
     protected final SpectralLibrary spectralLibrary;
@@ -175,7 +181,11 @@ public class ChemicalBlobDatabase<Storage extends BlobStorage> extends AbstractC
             }
         }
 
-        this.reader = format == Format.CSV ? new CSVReader() : new CompoundJsonMapper();
+        this.reader = switch (format) {
+            case CSV -> new CSVReader();
+            case JSON -> new CompoundJsonMapper();
+            case BINARY -> new CompoundBinaryMapper();
+        };
     }
 
     @NotNull
@@ -259,6 +269,28 @@ public class ChemicalBlobDatabase<Storage extends BlobStorage> extends AbstractC
         }
     }
 
+    /**
+     * Decodes the candidates of the bucket one by one while iterating. The bucket stream is closed when the
+     * iterator is exhausted or closed.
+     */
+    @Override
+    public CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        try {
+            final InputStream blobReader = getCompoundStream(formula).orElse(null);
+            if (blobReader == null)
+                return ChemDBs.closeableIterator(Collections.emptyIterator());
+            try {
+                final CloseableIterator<FingerprintCandidate> iter = reader.readFingerprints(version, blobReader);
+                return ChemDBs.closeableIterator(iter, iter, blobReader);
+            } catch (IOException | RuntimeException e) {
+                blobReader.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new ChemicalDatabaseException(e);
+        }
+    }
+
     @Override
     public List<FingerprintCandidate> lookupFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
         throw new UnsupportedOperationException();
@@ -280,6 +312,9 @@ public class ChemicalBlobDatabase<Storage extends BlobStorage> extends AbstractC
             innerMap.put(c.getInchiKey2D(), c);
         }
 
+        if (format == Format.BINARY)
+            return lookupFingerprintsByInchiBinary(formulas2Candidates.keySet(), innerMap, candidates);
+
         for (Map.Entry<MolecularFormula, List<CompoundCandidate>> entry : formulas2Candidates.entrySet()) {
             final MolecularFormula f = entry.getKey();
             final Collection<FingerprintCandidate> pseudoQueue = new AbstractCollection<>() {
@@ -308,6 +343,68 @@ public class ChemicalBlobDatabase<Storage extends BlobStorage> extends AbstractC
         return candidates;
     }
 
+    /**
+     * Only the InChIKey column of a binary bucket is decoded for all compounds, fingerprints only for the requested ones.
+     */
+    private List<FingerprintCandidate> lookupFingerprintsByInchiBinary(Collection<MolecularFormula> formulas, Map<String, CompoundCandidate> innerMap, List<FingerprintCandidate> candidates) throws ChemicalDatabaseException {
+        for (MolecularFormula f : formulas) {
+            try (final InputStream blobReader = getCompoundStream(f).orElse(null)) {
+                if (blobReader == null)
+                    continue;
+                final CompoundBinaryMapper.Bucket bucket = CompoundBinaryMapper.Bucket.read(blobReader);
+                for (int i = 0; i < bucket.size(); ++i) {
+                    final String key = bucket.getInchiKey2D(i);
+                    final CompoundCandidate c = key == null ? null : innerMap.get(key);
+                    if (c != null)
+                        candidates.add(new FingerprintCandidate(c, bucket.getFingerprint(version, i)));
+                }
+            } catch (IOException e) {
+                throw new ChemicalDatabaseException(e);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Writes all formula buckets and the formula index of this database in {@link Format#BINARY} format into the given
+     * storage. The buckets are not compressed as a whole, but each column block with the given compression.
+     *
+     * @param target           storage to write the converted database to
+     * @param blockCompression compression of the column blocks
+     */
+    public void convertToBinary(@NotNull BlobStorage target, @NotNull Compression blockCompression) throws IOException {
+        if (format != Format.JSON)
+            throw new IOException("Only databases in JSON format can be converted. Found format: " + format);
+
+        // config blobs are either stored like the buckets (formula index) or as raw blob without extension (settings)
+        for (String configBlob : CONFIG_BLOBS) {
+            Optional<InputStream> config = getStream(configBlob);
+            if (config.isPresent()) {
+                try (InputStream in = config.get()) {
+                    target.withWriter(Path.of(configBlob + Format.BINARY.ext()), in::transferTo);
+                }
+            } else if (storage.hasBlob(Path.of(configBlob))) {
+                try (InputStream in = storage.reader(Path.of(configBlob))) {
+                    target.withWriter(Path.of(configBlob), in::transferTo);
+                }
+            }
+        }
+
+        for (MolecularFormula formula : index.getFormulas()) {
+            Optional<InputStream> bucket = getCompoundStream(formula);
+            if (bucket.isEmpty())
+                continue;
+            try (InputStream json = bucket.get()) {
+                target.withWriter(Path.of(formula + Format.BINARY.ext()), out -> CompoundBinaryMapper.convertFromJson(version, json, out, blockCompression));
+            }
+        }
+
+        Map<String, String> tags = new HashMap<>(storage.getTags());
+        tags.put(TAG_FORMAT, Format.BINARY.name());
+        tags.put(TAG_COMPRESSION, Compression.NONE.name());
+        target.setTags(tags);
+    }
+
     @Override
     public void annotateCompounds(List<? extends CompoundCandidate> sublist) throws ChemicalDatabaseException {
         // compounds are already annotated
@@ -23,8 +23,12 @@ package de.unijena.bioinf.spectraldb;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.ms.AdditionalFields;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.utils.SimpleSerializers;
 import de.unijena.bioinf.chemdb.ChemicalDatabaseException;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.jjobs.Partition;
 import de.unijena.bioinf.ms.annotations.SpectrumAnnotation;
 import de.unijena.bioinf.spectraldb.entities.MergedReferenceSpectrum;
 import de.unijena.bioinf.spectraldb.entities.Ms2ReferenceSpectrum;
@@ -39,13 +43,19 @@ import de.unijena.bionf.fastcosine.ReferenceLibraryMergedSpectrum;
 import de.unijena.bionf.fastcosine.ReferenceLibrarySpectrum;
 import de.unijena.bionf.spectral_alignment.SpectralMatchingType;
 import de.unijena.bionf.spectral_alignment.SpectralSimilarity;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import lombok.Getter;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 //todo check when data/spectra should be included an when not
 
@@ -54,6 +64,9 @@ public abstract class SpectralNoSQLDatabase<Doctype> implements SpectralLibrary,
 
     final protected Database<Doctype> storage;
 
+    private volatile FragmentIndex fragmentIndex;
+    private volatile boolean fragmentIndexLoaded = false;
+
     public Database<Doctype> getStorage() {
         return storage;
     }
@@ -221,6 +234,7 @@ public abstract class SpectralNoSQLDatabase<Doctype> implements SpectralLibrary,
                  Filter.and(Filter.where("candidateInChiKey").eq(merged.getCandidateInChiKey()), Filter.where("precursorIonType").eq(merged.getPrecursorIonType().toString())),
                  MergedReferenceSpectrum.class).findFirst();
 
+         invalidateFragmentIndex();
          if (first.isPresent()) {
              // replace tree and merged spectrum!
              merged.setUuid(first.get().getUuid());
@@ -288,28 +302,101 @@ public abstract class SpectralNoSQLDatabase<Doctype> implements SpectralLibrary,
 
     @Override
     public Stream<LibraryHit> queryAgainstLibrary(int chargeAndPolarity, SpectralLibrarySearchSettings settings, List<ReferenceLibrarySpectrum> query) throws IOException {
+        // the index can only exclude spectra if at least one shared peak is required
+        final boolean indexable = settings.getTargetType() == SpectrumType.MERGED_SPECTRUM && settings.getMinimumNumberOfPeaks() > 0 && settings.getMinCosine() > 0;
+        final FragmentIndex index = indexable ? getFragmentIndex() : null;
+        if (index != null) {
+            // only score merged spectra that can pass the settings according to the fragment index
+            final long[] candidates = index.candidates(query, chargeAndPolarity, settings, fastCosine.getMaxDeviation());
+            return queryAgainstLibrary(lookupByUuids(candidates, MergedReferenceSpectrum.class, MergedReferenceSpectrum::getUuid, this::fillLibrary).values().stream(), settings, query);
+        }
         return queryAgainstLibrary(storage.findAllStr(MergedReferenceSpectrum.class, "querySpectrum").filter(x->x.getPrecursorIonType().getCharge()==chargeAndPolarity),
                 settings, query);
     }
 
+    /**
+     * @return the fragment index of this library or null if the library has not been indexed yet
+     */
+    public FragmentIndex getFragmentIndex() throws IOException {
+        if (!fragmentIndexLoaded) {
+            synchronized (this) {
+                if (!fragmentIndexLoaded) {
+                    final Path file = fragmentIndexLocation();
+                    fragmentIndex = Files.exists(file) ? FragmentIndex.read(file) : null;
+                    fragmentIndexLoaded = true;
+                }
+            }
+        }
+        return fragmentIndex;
+    }
+
+    @Override
+    public synchronized void updateFragmentIndex() throws IOException {
+        final FragmentIndex index = FragmentIndex.build(storage.findAll(MergedReferenceSpectrum.class, "querySpectrum"));
+        index.write(fragmentIndexLocation());
+        fragmentIndex = index;
+        fragmentIndexLoaded = true;
+    }
+
+    /**
+     * The fragment index is stored next to the library file.
+     */
+    protected Path fragmentIndexLocation() {
+        return storage.location().resolveSibling(storage.location().getFileName() + ".fragments");
+    }
+
+    private void invalidateFragmentIndex() throws IOException {
+        if (fragmentIndexLoaded && fragmentIndex == null) return;
+        Files.deleteIfExists(fragmentIndexLocation());
+        fragmentIndex = null;
+        fragmentIndexLoaded = true;
+    }
+
     private Stream<LibraryHit> queryAgainstLibrary(Stream<MergedReferenceSpectrum> mergedQuery, SpectralLibrarySearchSettings settings, List<ReferenceLibrarySpectrum> query) throws IOException {
         if (settings.getTargetType()==SpectrumType.SPECTRUM) {
             List<MergedReferenceSpectrum> possibleQueries = mergedQuery.filter(x -> x.getIndividualSpectraUIDs().length <= 3 || spectralSimilarityUpperboundExceeded(query, x.getQuerySpectrum(), settings)).toList();
-            List<LibraryHit> hits = new ArrayList<>();
-            for (MergedReferenceSpectrum merged : possibleQueries) {
-                for (long uid : merged.getIndividualSpectraUIDs()) {
-                    for (Ms2ReferenceSpectrum spec : withLibrary(storage.find(Filter.where("uuid").eq(uid), Ms2ReferenceSpectrum.class, "querySpectrum"))) {
-                        hits.addAll(getHits(query, spec, settings));
-                    }
-                }
-            }
-            return hits.stream();
+            final long[] uids = possibleQueries.stream().flatMapToLong(x -> Arrays.stream(x.getIndividualSpectraUIDs())).sorted().distinct().toArray();
+            final Long2ObjectMap<Ms2ReferenceSpectrum> references = lookupByUuids(uids, Ms2ReferenceSpectrum.class, Ms2ReferenceSpectrum::getUuid, this::fillLibrary);
+            if (possibleQueries.isEmpty()) return Stream.empty();
+            // score batches of merged groups as jobs of the global job manager, the encounter order of the hits is kept
+            final List<BasicJJob<List<LibraryHit>>> jobs = Partition.ofNumber(possibleQueries, SiriusJobs.getCPUThreads()).stream()
+                    .map(batch -> SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<List<LibraryHit>>(JJob.JobType.CPU) {
+                        @Override
+                        protected List<LibraryHit> compute() throws Exception {
+                            final List<LibraryHit> hits = new ArrayList<>();
+                            for (MergedReferenceSpectrum merged : batch) {
+                                checkForInterruption();
+                                for (long uid : merged.getIndividualSpectraUIDs()) {
+                                    final Ms2ReferenceSpectrum spec = references.get(uid);
+                                    if (spec != null) hits.addAll(getHits(query, spec, settings));
+                                }
+                            }
+                            return hits;
+                        }
+                    })).toList();
+            return jobs.stream().flatMap(job -> job.takeResult().stream());
         } else {
             // only search in merged spectra
             return mergedQuery.flatMap(mergedSpec->getHits(query, fillLibrary(mergedSpec), settings).stream());
         }
     }
 
+    private final static int UUID_BATCH_SIZE = 1000;
+
+    /**
+     * Resolves the given sorted reference spectrum uuids with one {@code in} query per batch instead of one lookup per
+     * uuid. Only the query spectrum is deserialized as optional field.
+     */
+    private <R extends ReferenceSpectrum> Long2ObjectMap<R> lookupByUuids(long[] sortedUuids, Class<R> clazz, ToLongFunction<R> uuidOf, UnaryOperator<R> fillLibrary) throws IOException {
+        final Long2ObjectMap<R> references = new Long2ObjectLinkedOpenHashMap<>(sortedUuids.length);
+        for (int from = 0; from < sortedUuids.length; from += UUID_BATCH_SIZE) {
+            final Long[] batch = Arrays.stream(sortedUuids, from, Math.min(from + UUID_BATCH_SIZE, sortedUuids.length)).boxed().toArray(Long[]::new);
+            for (R spec : storage.find(Filter.where("uuid").in(batch), clazz, "querySpectrum"))
+                references.put(uuidOf.applyAsLong(spec), fillLibrary.apply(spec));
+        }
+        return references;
+    }
+
     private final static FastCosine fastCosine = new FastCosine();
     private SpectralSimilarity spectralSimilarity(ReferenceLibrarySpectrum left, ReferenceLibrarySpectrum right, SpectralLibrarySearchSettings settings) {
         if (settings.getMatchingType()== SpectralMatchingType.INTENSITY) return fastCosine.fastCosine(left,right);
@@ -0,0 +1,129 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import de.unijena.bioinf.storage.blob.Compressible;
+import de.unijena.bioinf.storage.blob.file.FileBlobStorage;
+import de.unijena.bioinf.storage.blob.memory.InMemoryBlobStorage;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ChemDBFileCacheTest {
+
+    @Test
+    public void testConcurrentLookupsAreLoadedOnce() throws Exception {
+        ChemicalBlobDatabase<?> source = new ChemicalBlobDatabase<>(new FileBlobStorage(Path.of("src/test/resources/test-blob-db").toAbsolutePath()), null);
+        MolecularFormula formula = source.index.getFormulas().iterator().next();
+        List<FingerprintCandidate> expected = source.lookupStructuresAndFingerprintsByFormula(formula);
+
+        AtomicInteger requests = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ChemDBFileCache cache = new ChemDBFileCache(new InMemoryBlobStorage("test"), new SearchStructureByFormula() {
+            @Override
+            public <T extends Collection<FingerprintCandidate>> T lookupStructuresAndFingerprintsByFormula(MolecularFormula f, T candidates) throws ChemicalDatabaseException {
+                requests.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new ChemicalDatabaseException(e);
+                }
+                return source.lookupStructuresAndFingerprintsByFormula(f, candidates);
+            }
+        }, Compressible.Compression.GZIP, 1_000_000);
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<FingerprintCandidate>>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                results.add(executor.submit(() -> cache.lookupStructuresAndFingerprintsByFormula(formula)));
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<List<FingerprintCandidate>> result : results) {
+                List<FingerprintCandidate> candidates = result.get(10, TimeUnit.SECONDS);
+                assertEquals(expected.size(), candidates.size());
+                for (int i = 0; i < expected.size(); i++)
+                    assertEquals(expected.get(i).getInchiKey2D(), candidates.get(i).getInchiKey2D());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals("bucket must be requested only once", 1, requests.get());
+        assertEquals(1, cache.getLoads());
+        assertEquals(threads - 1, cache.getHits() + cache.getCoalescedLoads());
+
+        // answered from memory and returned as copy
+        List<FingerprintCandidate> first = cache.lookupStructuresAndFingerprintsByFormula(formula);
+        List<FingerprintCandidate> second = cache.lookupStructuresAndFingerprintsByFormula(formula);
+        assertNotSame(first.getFirst(), second.getFirst());
+        assertEquals(1, requests.get());
+        assertEquals(expected.size(), cache.getCandidatesInMemory());
+    }
+
+    @Test
+    public void testIterateMatchesLookup() throws Exception {
+        ChemicalBlobDatabase<?> source = new ChemicalBlobDatabase<>(new FileBlobStorage(Path.of("src/test/resources/test-blob-db").toAbsolutePath()), null);
+        ChemDBFileCache cache = new ChemDBFileCache(new InMemoryBlobStorage("test"), source);
+        for (MolecularFormula formula : source.index.getFormulas()) {
+            List<FingerprintCandidate> all = cache.lookupStructuresAndFingerprintsByFormula(formula);
+            for (long filter : new long[]{0L, all.getFirst().getBitset(), DataSource.PUBCHEM.flag()}) {
+                List<String> expected = cache.lookupStructuresAndFingerprintsByFormula(formula, filter).stream().map(CompoundCandidate::getInchiKey2D).toList();
+                List<FingerprintCandidate> actual = new ArrayList<>();
+                try (CloseableIterator<FingerprintCandidate> iter = cache.iterateStructuresAndFingerprintsByFormula(formula, filter)) {
+                    iter.forEachRemaining(actual::add);
+                }
+                assertEquals(expected, actual.stream().map(CompoundCandidate::getInchiKey2D).toList());
+            }
+
+            // iterated candidates are copies of the cached ones
+            try (CloseableIterator<FingerprintCandidate> first = cache.iterateStructuresAndFingerprintsByFormula(formula, 0L);
+                 CloseableIterator<FingerprintCandidate> second = cache.iterateStructuresAndFingerprintsByFormula(formula, 0L)) {
+                assertNotSame(first.next(), second.next());
+            }
+        }
+        assertEquals(source.index.getFormulas().size(), cache.getLoads());
+    }
+
+    @Test
+    public void testEvictionByCandidateCount() throws Exception {
+        ChemicalBlobDatabase<?> source = new ChemicalBlobDatabase<>(new FileBlobStorage(Path.of("src/test/resources/test-blob-db").toAbsolutePath()), null);
+        List<MolecularFormula> formulas = new ArrayList<>(source.index.getFormulas());
+        long budget = source.lookupStructuresAndFingerprintsByFormula(formulas.getFirst()).size();
+
+        ChemDBFileCache cache = new ChemDBFileCache(new InMemoryBlobStorage("test"), source, Compressible.Compression.GZIP, budget);
+        for (MolecularFormula formula : formulas)
+            cache.lookupStructuresAndFingerprintsByFormula(formula);
+
+        assertTrue(cache.getCandidatesInMemory() <= budget);
+        assertTrue(cache.getEvictions() > 0 || formulas.size() == 1);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import de.unijena.bioinf.storage.blob.Compressible;
+import de.unijena.bioinf.storage.blob.file.FileBlobStorage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChemicalBlobDatabaseBinaryTest {
+
+    @Test
+    public void testConvertToBinary() throws IOException {
+        ChemicalBlobDatabase<?> json = new ChemicalBlobDatabase<>(new FileBlobStorage(Path.of("src/test/resources/test-blob-db").toAbsolutePath()), null);
+        for (Compressible.Compression compression : List.of(Compressible.Compression.NONE, Compressible.Compression.LZ4)) {
+            Path target = Files.createTempDirectory("chemDB-binary_");
+            target.toFile().deleteOnExit();
+            json.convertToBinary(new FileBlobStorage(target), compression);
+
+            ChemicalBlobDatabase<?> binary = new ChemicalBlobDatabase<>(new FileBlobStorage(target), null);
+            assertEquals(ChemicalBlobDatabase.Format.BINARY, binary.format);
+            assertEquals(json.index.getFormulas(), binary.index.getFormulas());
+            assertArrayEquals(Files.readAllBytes(Path.of("src/test/resources/test-blob-db", ChemicalBlobDatabase.BLOB_SETTINGS)),
+                    Files.readAllBytes(target.resolve(ChemicalBlobDatabase.BLOB_SETTINGS)));
+
+            List<CompoundCandidate> requested = new ArrayList<>();
+            for (MolecularFormula formula : json.index.getFormulas()) {
+                List<FingerprintCandidate> expected = json.lookupStructuresAndFingerprintsByFormula(formula);
+                List<FingerprintCandidate> actual = binary.lookupStructuresAndFingerprintsByFormula(formula);
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertCompoundEquals(expected.get(i), actual.get(i));
+                    assertArrayEquals(expected.get(i).getFingerprint().toIndizesArray(), actual.get(i).getFingerprint().toIndizesArray());
+                }
+
+                List<CompoundCandidate> compounds = binary.lookupStructuresByFormula(formula);
+                assertEquals(expected.size(), compounds.size());
+                for (int i = 0; i < expected.size(); i++)
+                    assertCompoundEquals(expected.get(i), compounds.get(i));
+                requested.add(compounds.getFirst());
+            }
+
+            List<FingerprintCandidate> expected = new ArrayList<>(json.lookupFingerprintsByInchi(requested));
+            List<FingerprintCandidate> actual = new ArrayList<>(binary.lookupFingerprintsByInchi(requested));
+            expected.sort(Comparator.comparing(CompoundCandidate::getInchiKey2D));
+            actual.sort(Comparator.comparing(CompoundCandidate::getInchiKey2D));
+            assertEquals(requested.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getInchiKey2D(), actual.get(i).getInchiKey2D());
+                assertArrayEquals(expected.get(i).getFingerprint().toIndizesArray(), actual.get(i).getFingerprint().toIndizesArray());
+            }
+        }
+    }
+
+    @Test
+    public void testIterateStructuresAndFingerprintsByFormula() throws IOException {
+        ChemicalBlobDatabase<?> json = new ChemicalBlobDatabase<>(new FileBlobStorage(Path.of("src/test/resources/test-blob-db").toAbsolutePath()), null);
+        Path target = Files.createTempDirectory("chemDB-binary_");
+        target.toFile().deleteOnExit();
+        json.convertToBinary(new FileBlobStorage(target), Compressible.Compression.NONE);
+        ChemicalBlobDatabase<?> binary = new ChemicalBlobDatabase<>(new FileBlobStorage(target), null);
+
+        for (ChemicalBlobDatabase<?> db : List.of(json, binary)) {
+            for (MolecularFormula formula : db.index.getFormulas()) {
+                List<FingerprintCandidate> expected = db.lookupStructuresAndFingerprintsByFormula(formula);
+                List<FingerprintCandidate> actual = new ArrayList<>();
+                try (CloseableIterator<FingerprintCandidate> iter = db.iterateStructuresAndFingerprintsByFormula(formula)) {
+                    iter.forEachRemaining(actual::add);
+                }
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertCompoundEquals(expected.get(i), actual.get(i));
+                    assertArrayEquals(expected.get(i).getFingerprint().toIndizesArray(), actual.get(i).getFingerprint().toIndizesArray());
+                }
+
+                // filtered view iterates the same candidates as the filtered lookup
+                long filter = expected.getFirst().getBitset();
+                FilteredChemicalDB<?> filtered = new FilteredChemicalDB<>(db, filter);
+                List<String> expectedKeys = filtered.lookupStructuresAndFingerprintsByFormula(formula).stream().map(CompoundCandidate::getInchiKey2D).toList();
+                List<String> actualKeys = new ArrayList<>();
+                try (CloseableIterator<FingerprintCandidate> iter = filtered.iterateStructuresAndFingerprintsByFormula(formula)) {
+                    iter.forEachRemaining(c -> actualKeys.add(c.getInchiKey2D()));
+                }
+                assertEquals(expectedKeys, actualKeys);
+            }
+        }
+    }
+
+    private static void assertCompoundEquals(CompoundCandidate expected, CompoundCandidate actual) {
+        assertEquals(expected.getInchiKey2D(), actual.getInchiKey2D());
+        assertEquals(expected.getInchi().in3D, actual.getInchi().in3D);
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getSmiles(), actual.getSmiles());
+        assertEquals(expected.getPLayer(), actual.getPLayer());
+        assertEquals(expected.getQLayer(), actual.getQLayer());
+        assertEquals(expected.getXlogp(), actual.getXlogp(), 0d);
+        assertEquals(expected.bitset, actual.bitset);
+        assertEquals(expected.getLinks(), actual.getLinks());
+        assertEquals(expected.getPubmedIDs() == null, actual.getPubmedIDs() == null);
+        if (expected.getPubmedIDs() != null)
+            assertArrayEquals(expected.getPubmedIDs().getCopyOfPubmedIDs(), actual.getPubmedIDs().getCopyOfPubmedIDs());
+    }
+}
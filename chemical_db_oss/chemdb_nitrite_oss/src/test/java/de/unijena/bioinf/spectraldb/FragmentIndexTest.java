@@ -0,0 +1,257 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.spectraldb;
+
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.spectraldb.entities.MergedReferenceSpectrum;
+import de.unijena.bioinf.spectraldb.entities.ReferenceFragmentationTree;
+import de.unijena.bioinf.spectraldb.nitrite.SpectralNitriteDatabase;
+import de.unijena.bionf.fastcosine.FastCosine;
+import de.unijena.bionf.fastcosine.ReferenceLibrarySpectrum;
+import de.unijena.bionf.spectral_alignment.SpectralMatchingType;
+import de.unijena.bionf.spectral_alignment.SpectralSimilarity;
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The {@link FragmentIndex} must never exclude a merged reference spectrum that passes the search settings. The
+ * library contains references whose peaks are at the limit of the mass deviation and fall into a neighbouring bin.
+ */
+public class FragmentIndexTest {
+
+    private static final FastCosine FAST_COSINE = new FastCosine();
+    private static final Deviation DEVIATION = FAST_COSINE.getMaxDeviation();
+    private static final double BIN_WIDTH = 0.01d;
+    private static final double CH2 = 14.01565d;
+
+    private static final PrecursorIonType PROTONATED = PrecursorIonType.getPrecursorIonType("[M+H]+");
+    private static final PrecursorIonType DEPROTONATED = PrecursorIonType.getPrecursorIonType("[M-H]-");
+
+    private record Reference(double parentMass, double[] mz, double[] intensities, PrecursorIonType ionType) {
+        MergedReferenceSpectrum toMerged(int number) {
+            final MergedReferenceSpectrum merged = new MergedReferenceSpectrum();
+            merged.setCandidateInChiKey("REFERENCE" + number);
+            merged.setPrecursorIonType(ionType);
+            merged.setPrecursorMz(parentMass);
+            merged.setExactMass(ionType.precursorMassToNeutralMass(parentMass));
+            merged.setQuerySpectrum(FAST_COSINE.prepareMergedQuery(List.of(FAST_COSINE.prepareQuery(parentMass, new SimpleSpectrum(mz, intensities)))));
+            return merged;
+        }
+    }
+
+    private static final List<ReferenceLibrarySpectrum> queries = new ArrayList<>();
+    private static final List<Reference> references = new ArrayList<>();
+    private static final List<MergedReferenceSpectrum> library = new ArrayList<>();
+
+    // uuids of the references at the deviation limit of each query
+    private static final List<Long> cosineLimit = new ArrayList<>(), fragmentLimit = new ArrayList<>(), lossLimit = new ArrayList<>();
+
+    @BeforeClass
+    public static void buildLibrary() {
+        final Random random = new Random(4711);
+        for (int i = 0; i < 20; ++i) {
+            final double parentMass = 300d + random.nextDouble() * 300d;
+            final double[] mz = queryMasses(random, parentMass, 12);
+            final double[] intensities = random.doubles(mz.length, 0.1d, 1d).toArray();
+            queries.add(FAST_COSINE.prepareQuery(parentMass, new SimpleSpectrum(mz, intensities)));
+
+            // same precursor, peaks alternately above and below the query peak
+            final double[] shifted = new double[mz.length];
+            for (int k = 0; k < mz.length; ++k)
+                shifted[k] = mz[k] + (k % 3 == 1 ? -0.999d : 0.999d) * DEVIATION.absoluteFor(mz[k]);
+            cosineLimit.add(add(new Reference(parentMass, shifted, intensities, PROTONATED)));
+            // never a candidate for another charge
+            add(new Reference(parentMass, shifted, intensities, DEPROTONATED));
+
+            // smaller precursor: the modified cosine evaluates the deviation at the (larger) reference peak
+            final double[] fragments = new double[mz.length];
+            for (int k = 0; k < mz.length; ++k)
+                fragments[k] = mz[k] * (1d - 1e-12) / (1d - DEVIATION.getPpm() * 1e-6);
+            fragmentLimit.add(add(new Reference(parentMass - CH2, fragments, intensities, PROTONATED)));
+
+            // larger precursor: neutral losses at the limit of the deviation
+            final double[] losses = new double[mz.length];
+            for (int k = 0; k < mz.length; ++k)
+                losses[k] = mz[k] + CH2 + 0.999d * DEVIATION.absoluteFor(parentMass - mz[k]);
+            lossLimit.add(add(new Reference(parentMass + CH2, losses, intensities, PROTONATED)));
+
+            // just outside the deviation
+            final double[] outside = new double[mz.length];
+            for (int k = 0; k < mz.length; ++k)
+                outside[k] = mz[k] + 1.5d * DEVIATION.absoluteFor(mz[k]);
+            add(new Reference(parentMass, outside, intensities, PROTONATED));
+        }
+        for (int i = 0; i < 100; ++i) {
+            final double parentMass = 300d + random.nextDouble() * 300d;
+            final double[] mz = random.doubles(12, 50d, parentMass - 1d).sorted().toArray();
+            add(new Reference(parentMass, mz, random.doubles(mz.length, 0.01d, 1d).toArray(), random.nextInt(4) == 0 ? DEPROTONATED : PROTONATED));
+        }
+    }
+
+    /**
+     * Peaks close to the edges of the index bins. Every third query window ends right before a bin edge.
+     */
+    private static double[] queryMasses(Random random, double parentMass, int n) {
+        final double[] mz = new double[n];
+        final double step = (parentMass - 230d) / n;
+        for (int k = 0; k < n; ++k) {
+            final double edge = Math.ceil((200d + k * step + random.nextDouble() * step / 2d) / BIN_WIDTH) * BIN_WIDTH;
+            mz[k] = switch (k % 3) {
+                case 0 -> edge - DEVIATION.absoluteFor(edge) / 2d;
+                case 1 -> edge + DEVIATION.absoluteFor(edge) / 2d;
+                default -> edge / (1d + DEVIATION.getPpm() * 1e-6) - 1e-9;
+            };
+        }
+        return mz;
+    }
+
+    private static long add(Reference reference) {
+        final MergedReferenceSpectrum merged = reference.toMerged(references.size());
+        merged.setUuid(references.size());
+        references.add(reference);
+        library.add(merged);
+        return merged.getUuid();
+    }
+
+    private static SpectralLibrarySearchSettings settings(SpectralMatchingType type, float minCosine, int minPeaks) {
+        return new SpectralLibrarySearchSettings(type, SpectrumType.MERGED_SPECTRUM, minCosine, minPeaks, new Deviation(10));
+    }
+
+    private static SpectralSimilarity similarity(ReferenceLibrarySpectrum query, MergedReferenceSpectrum reference, SpectralMatchingType type) {
+        return type == SpectralMatchingType.MODIFIED_COSINE
+                ? FAST_COSINE.fastModifiedCosine(query, reference.getQuerySpectrum())
+                : FAST_COSINE.fastCosine(query, reference.getQuerySpectrum());
+    }
+
+    @Test
+    public void testNoFalseNegatives() {
+        final FragmentIndex index = FragmentIndex.build(library);
+        assertEquals(library.size(), index.size());
+        for (SpectralMatchingType type : List.of(SpectralMatchingType.INTENSITY, SpectralMatchingType.MODIFIED_COSINE)) {
+            for (float minCosine : new float[]{0.3f, 0.8f}) {
+                for (int minPeaks : new int[]{1, 4}) {
+                    final SpectralLibrarySearchSettings settings = settings(type, minCosine, minPeaks);
+                    int hits = 0;
+                    for (ReferenceLibrarySpectrum query : queries) {
+                        final long[] candidates = index.candidates(List.of(query), 1, settings, DEVIATION);
+                        for (MergedReferenceSpectrum reference : library) {
+                            if (reference.getPrecursorIonType().getCharge() != 1) {
+                                assertFalse(ArrayUtils.contains(candidates, reference.getUuid()));
+                            } else if (settings.exceeded(similarity(query, reference, type))) {
+                                assertTrue(type + " " + minCosine + " " + minPeaks + ": missing reference " + reference.getUuid(),
+                                        ArrayUtils.contains(candidates, reference.getUuid()));
+                                ++hits;
+                            }
+                        }
+                    }
+                    assertTrue(hits >= queries.size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReferencesAtDeviationLimit() {
+        final FragmentIndex index = FragmentIndex.build(library);
+        final SpectralLibrarySearchSettings cosine = settings(SpectralMatchingType.INTENSITY, 0.8f, 4);
+        final SpectralLibrarySearchSettings modifiedCosine = settings(SpectralMatchingType.MODIFIED_COSINE, 0.8f, 4);
+        for (int i = 0; i < queries.size(); ++i) {
+            final ReferenceLibrarySpectrum query = queries.get(i);
+            assertTrue(cosine.exceeded(similarity(query, library.get(cosineLimit.get(i).intValue()), SpectralMatchingType.INTENSITY)));
+            assertTrue(ArrayUtils.contains(index.candidates(List.of(query), 1, cosine, DEVIATION), cosineLimit.get(i)));
+
+            final long[] candidates = index.candidates(List.of(query), 1, modifiedCosine, DEVIATION);
+            for (long uuid : new long[]{cosineLimit.get(i), fragmentLimit.get(i), lossLimit.get(i)}) {
+                assertTrue(modifiedCosine.exceeded(similarity(query, library.get((int) uuid), SpectralMatchingType.MODIFIED_COSINE)));
+                assertTrue(ArrayUtils.contains(candidates, uuid));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        final FragmentIndex index = FragmentIndex.build(library);
+        final Path dir = Files.createTempDirectory("fragment-index_");
+        final Path file = dir.resolve("library.fragments");
+        try {
+            index.write(file);
+            final FragmentIndex read = FragmentIndex.read(file);
+            assertEquals(index.size(), read.size());
+            for (SpectralMatchingType type : List.of(SpectralMatchingType.INTENSITY, SpectralMatchingType.MODIFIED_COSINE)) {
+                final SpectralLibrarySearchSettings settings = settings(type, 0.3f, 1);
+                for (int charge : new int[]{1, -1}) {
+                    for (ReferenceLibrarySpectrum query : queries)
+                        assertArrayEquals(index.candidates(List.of(query), charge, settings, DEVIATION), read.candidates(List.of(query), charge, settings, DEVIATION));
+                    assertArrayEquals(index.candidates(queries, charge, settings, DEVIATION), read.candidates(queries, charge, settings, DEVIATION));
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testInvalidatedByInsert() throws IOException {
+        final Path dir = Files.createTempDirectory("fragment-index_");
+        final Path location = dir.resolve("library.db");
+        try (SpectralNitriteDatabase db = new SpectralNitriteDatabase(location)) {
+            final int n = 10;
+            for (int i = 0; i < n; ++i)
+                db.insertMergedSpecAndTree(references.get(i).toMerged(i), new ReferenceFragmentationTree());
+            assertNull(db.getFragmentIndex());
+
+            db.updateFragmentIndex();
+            assertEquals(n, db.getFragmentIndex().size());
+            assertTrue(Files.exists(db.fragmentIndexLocation()));
+
+            // a new merged spectrum removes the outdated index, searches fall back to scanning all merged spectra
+            final MergedReferenceSpectrum inserted = references.get(n).toMerged(n);
+            db.insertMergedSpecAndTree(inserted, new ReferenceFragmentationTree());
+            assertNull(db.getFragmentIndex());
+            assertFalse(Files.exists(db.fragmentIndexLocation()));
+
+            db.updateFragmentIndex();
+            final FragmentIndex index = db.getFragmentIndex();
+            assertEquals(n + 1, index.size());
+            final ReferenceLibrarySpectrum query = FAST_COSINE.prepareQuery(references.get(n).parentMass(), new SimpleSpectrum(references.get(n).mz(), references.get(n).intensities()));
+            final long[] candidates = index.candidates(List.of(query), references.get(n).ionType().getCharge(), settings(SpectralMatchingType.INTENSITY, 0.8f, 4), DEVIATION);
+            assertTrue(Arrays.toString(candidates), ArrayUtils.contains(candidates, inserted.getUuid()));
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : files.toList()) Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.spectraldb;
+
+import de.unijena.bioinf.spectraldb.entities.MergedReferenceSpectrum;
+import de.unijena.bioinf.spectraldb.entities.Ms2ReferenceSpectrum;
+import de.unijena.bioinf.spectraldb.nitrite.SpectralNitriteDatabase;
+import de.unijena.bioinf.storage.db.nosql.Filter;
+import de.unijena.bionf.fastcosine.ReferenceLibrarySpectrum;
+import org.apache.commons.lang3.time.StopWatch;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares resolving the individual reference spectra of all merged candidates one uuid at a time with the batched
+ * lookup used by {@link SpectralNoSQLDatabase#queryAgainstLibraryWithPrecursorMass} on a given library, e.g. MassBank.
+ * <p>
+ * Usage: SpectralLibraryQueryBenchmark &lt;library.db&gt; [number of queries]
+ */
+public class SpectralLibraryQueryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final Path location = Path.of(args[0]);
+        final int numberOfQueries = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        final SpectralLibrarySearchSettings settings = SpectralLibrarySearchSettings.conservativeDefaultForCosine();
+
+        try (SpectralNitriteDatabase db = new SpectralNitriteDatabase(location)) {
+            final long total = db.countAllSpectra();
+            final long step = Math.max(1, total / numberOfQueries);
+            final List<Ms2ReferenceSpectrum> queries = new ArrayList<>();
+            final long[] index = {0};
+            db.forEachSpectrum(spec -> {
+                if (index[0]++ % step == 0 && queries.size() < numberOfQueries && spec.getPrecursorIonType() != null)
+                    queries.add(spec);
+            }, true);
+            System.out.println("Library with " + total + " spectra, running " + queries.size() + " queries");
+
+            long perUuidLookups = 0;
+            final StopWatch perUuid = StopWatch.createStarted();
+            for (Ms2ReferenceSpectrum query : queries) {
+                final double abs = settings.getPrecursorDeviation().absoluteFor(query.getPrecursorMz());
+                for (MergedReferenceSpectrum merged : db.getStorage().find(Filter.where("precursorMz").betweenBothInclusive(query.getPrecursorMz() - abs, query.getPrecursorMz() + abs), MergedReferenceSpectrum.class, "querySpectrum")) {
+                    for (long uid : merged.getIndividualSpectraUIDs()) {
+                        db.queryAgainstIndividualSpectrum(uid);
+                        ++perUuidLookups;
+                    }
+                }
+            }
+            perUuid.stop();
+            System.out.println("Per uuid lookup of " + perUuidLookups + " reference spectra (fetch only): " + perUuid);
+
+            long hits = 0;
+            final StopWatch batched = StopWatch.createStarted();
+            for (Ms2ReferenceSpectrum query : queries) {
+                hits += db.queryAgainstLibraryWithPrecursorMass(query.getPrecursorMz(), query.getPrecursorIonType().getCharge(), settings, List.<ReferenceLibrarySpectrum>of(query.getQuerySpectrum())).count();
+            }
+            batched.stop();
+            System.out.println("Batched lookup and parallel scoring with " + hits + " hits: " + batched);
+        }
+    }
+}
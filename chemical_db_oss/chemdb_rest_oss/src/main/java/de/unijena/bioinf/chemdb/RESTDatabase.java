@@ -25,6 +25,7 @@ import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 import de.unijena.bioinf.auth.AuthService;
+import de.unijena.bioinf.babelms.CloseableIterator;
 import de.unijena.bioinf.fingerid.utils.FingerIDProperties;
 import de.unijena.bioinf.jjobs.Partition;
 import de.unijena.bioinf.ms.rest.client.chemdb.ChemDBClient;
@@ -101,6 +102,22 @@ public class RESTDatabase implements FilterableChemicalDatabase {
         });
     }
 
+    /**
+     * Uses the given cache instead of creating a new one, so that a cache (including its in-memory candidates and
+     * the coalescing of concurrent loads) can be shared by many short living RESTDatabase instances.
+     * The structure provider of the cache is responsible for fetching missing formulas from the server.
+     */
+    public RESTDatabase(@NotNull ChemDBFileCache cache, @NotNull StructureSearchClient chemDBClient, @NotNull OkHttpClient client) {
+        this.closeCLient = false;
+        this.chemDBClient = chemDBClient;
+        this.client = client;
+        this.cache = cache;
+    }
+
+    public ChemDBFileCache getCache() {
+        return cache;
+    }
+
     // closes clients
 
     public RESTDatabase(@NotNull AuthService authService) {
@@ -148,6 +165,11 @@ public class RESTDatabase implements FilterableChemicalDatabase {
         return fingerprintCandidates;
     }
 
+    @Override
+    public CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(long filter, MolecularFormula formula) throws ChemicalDatabaseException {
+        return cache.iterateStructuresAndFingerprintsByFormula(formula, filter);
+    }
+
 
     @Override
     public List<FingerprintCandidate> lookupFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
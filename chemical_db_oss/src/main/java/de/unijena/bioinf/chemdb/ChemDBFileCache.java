@@ -29,41 +29,134 @@ import de.unijena.bioinf.storage.blob.BlobStorage;
 import de.unijena.bioinf.storage.blob.Compressible;
 import de.unijena.bioinf.storage.blob.file.FileBlobStorage;
 import de.unijena.bioinf.storage.blob.memory.InMemoryBlobStorage;
+import lombok.Getter;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
  * Class to read-cache any kind of {@link SearchStructureByFormula} using a {@link BlobStorage}.
  * Using a local {@link FileBlobStorage} or an {@link InMemoryBlobStorage} as cache is recommended
  * to ensure that the cache is faster enough to have positive impact on performance compared to the  actual resource.
+ * <p>
+ * In front of the {@link BlobStorage} the most recently used candidate lists are kept in memory, bounded by the total
+ * number of candidates. Concurrent lookups of the same formula are coalesced, so a bucket is loaded only once even if
+ * many jobs of a batch ask for it at the same time.
  */
 public class ChemDBFileCache extends AbstractCompressible {
 
+    public static final long DEFAULT_MAX_CANDIDATES_IN_MEMORY = Math.min(250_000L, Runtime.getRuntime().maxMemory() / (32 * 1024));
+
     protected final BlobStorage cacheStorage;
     protected final SearchStructureByFormula structureProvider;
 
+    @Getter
+    private final long maximumCandidatesInMemory;
+    private long candidatesInMemory;
+    private final LinkedHashMap<MolecularFormula, List<FingerprintCandidate>> memoryCache;
+    private final ConcurrentHashMap<MolecularFormula, CompletableFuture<List<FingerprintCandidate>>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder(), coalesced = new LongAdder(), loads = new LongAdder(), evictions = new LongAdder(), loadTimeNanos = new LongAdder();
+
     public ChemDBFileCache(@NotNull BlobStorage cacheStorage, @NotNull SearchStructureByFormula structureProvider1) {
         this(cacheStorage, structureProvider1, Compression.GZIP);
     }
 
     public ChemDBFileCache(@NotNull BlobStorage cacheStorage, @NotNull SearchStructureByFormula structureProvider1, Compression compression) {
+        this(cacheStorage, structureProvider1, compression, DEFAULT_MAX_CANDIDATES_IN_MEMORY);
+    }
+
+    /**
+     * @param maximumCandidatesInMemory total number of candidates kept in memory. Zero disables the memory cache but
+     *                                  concurrent lookups of the same formula are still coalesced.
+     */
+    public ChemDBFileCache(@NotNull BlobStorage cacheStorage, @NotNull SearchStructureByFormula structureProvider1, Compression compression, long maximumCandidatesInMemory) {
         super(compression);
         this.cacheStorage = cacheStorage;
         this.structureProvider = structureProvider1;
+        this.maximumCandidatesInMemory = maximumCandidatesInMemory;
+        this.memoryCache = new LinkedHashMap<>(256, 0.75f, true);
     }
 
     public List<FingerprintCandidate> lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, long filter) throws ChemicalDatabaseException {
         return lookupStructuresAndFingerprintsByFormula(formula).stream().filter(ChemDBs.inFilter((it) -> it.bitset, filter)).collect(Collectors.toList());
     }
 
+    /**
+     * @return a copy of the unfiltered candidate list of the given formula, so callers may modify the candidates
+     */
     public List<FingerprintCandidate> lookupStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        return copy(getCandidates(formula));
+    }
+
+    /**
+     * Iterates over the candidates of the given formula that match the filter. Candidates are copied one by one
+     * while iterating instead of copying the whole candidate list upfront.
+     */
+    public CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(MolecularFormula formula, long filter) throws ChemicalDatabaseException {
+        return ChemDBs.closeableIterator(getCandidates(formula).stream().filter(ChemDBs.inFilter((it) -> it.bitset, filter)).map(FingerprintCandidate::new).iterator());
+    }
+
+    // shared candidate list, must not be modified
+    private List<FingerprintCandidate> getCandidates(MolecularFormula formula) throws ChemicalDatabaseException {
+        List<FingerprintCandidate> fpcs = getFromMemory(formula);
+        if (fpcs != null) {
+            hits.increment();
+            return fpcs;
+        }
+
+        final CompletableFuture<List<FingerprintCandidate>> flight = new CompletableFuture<>();
+        final CompletableFuture<List<FingerprintCandidate>> running = loading.putIfAbsent(formula, flight);
+        if (running != null) {
+            coalesced.increment();
+            return await(running);
+        }
+
+        try {
+            // a concurrent load might have finished between the memory lookup and registering this one
+            fpcs = getFromMemory(formula);
+            if (fpcs == null) {
+                loads.increment();
+                final long start = System.nanoTime();
+                fpcs = loadFromStorage(formula);
+                loadTimeNanos.add(System.nanoTime() - start);
+                putToMemory(formula, fpcs);
+            } else {
+                hits.increment();
+            }
+            flight.complete(fpcs);
+            return fpcs;
+        } catch (ChemicalDatabaseException | RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(formula, flight);
+        }
+    }
+
+    private static List<FingerprintCandidate> await(CompletableFuture<List<FingerprintCandidate>> running) throws ChemicalDatabaseException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ChemicalDatabaseException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ChemicalDatabaseException cde)
+                throw cde;
+            throw new ChemicalDatabaseException(e.getCause());
+        }
+    }
+
+    private List<FingerprintCandidate> loadFromStorage(MolecularFormula formula) throws ChemicalDatabaseException {
         Path blobKey = Path.of(formula.toString() + ".json.gz");
 
         try {
@@ -99,7 +192,75 @@ public class ChemDBFileCache extends AbstractCompressible {
         SiriusJobs.runInBackgroundIO(() ->
                 cacheStorage.withWriter(relative, w -> Compressible.withCompression(w, getCompression(), cw -> CompoundJsonMapper.toJSONList(fpcs, cw))));
 
-        return fpcs.stream().map(FingerprintCandidate::new).toList(); //we do a copy since writing cache is async and the candidate might get modified after returning it.
+        return fpcs;
+    }
+
+    //we do a copy since writing cache is async and cached candidates must not be modified by the caller.
+    private static List<FingerprintCandidate> copy(List<FingerprintCandidate> fpcs) {
+        return fpcs.stream().map(FingerprintCandidate::new).toList();
+    }
+
+    private synchronized List<FingerprintCandidate> getFromMemory(MolecularFormula formula) {
+        return memoryCache.get(formula);
+    }
+
+    private synchronized void putToMemory(MolecularFormula formula, List<FingerprintCandidate> fpcs) {
+        if (fpcs.size() > maximumCandidatesInMemory)
+            return;
+        final List<FingerprintCandidate> previous = memoryCache.put(formula, fpcs);
+        if (previous != null) candidatesInMemory -= previous.size();
+        candidatesInMemory += fpcs.size();
+        final Iterator<Map.Entry<MolecularFormula, List<FingerprintCandidate>>> iter = memoryCache.entrySet().iterator();
+        while (candidatesInMemory > maximumCandidatesInMemory && iter.hasNext()) {
+            candidatesInMemory -= iter.next().getValue().size();
+            iter.remove();
+            evictions.increment();
+        }
+    }
+
+    public synchronized void clearMemoryCache() {
+        memoryCache.clear();
+        candidatesInMemory = 0;
+    }
+
+    public synchronized long getCandidatesInMemory() {
+        return candidatesInMemory;
+    }
+
+    /**
+     * @return number of lookups answered from memory
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of lookups that waited for a concurrent load of the same formula
+     */
+    public long getCoalescedLoads() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return number of lookups loaded from the blob storage or the structure provider
+     */
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getLoadTimeMillis() {
+        return loadTimeNanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        final long h = getHits(), c = getCoalescedLoads(), l = getLoads();
+        return String.format(Locale.US, "ChemDBFileCache(%d of %d candidates in memory, %d hits, %d coalesced, %d loads in %d ms, %.1f %% hit rate, %d evictions)",
+                getCandidatesInMemory(), maximumCandidatesInMemory, h, c, l, getLoadTimeMillis(), h + c + l == 0 ? 0d : 100d * (h + c) / (h + c + l), getEvictions());
     }
 }
 
@@ -21,9 +21,14 @@
 package de.unijena.bioinf.chemdb;
 
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.babelms.CloseableIterator;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -44,6 +49,76 @@ public class ChemDBs {
         return t -> notInFilter(bitProvider.apply(t),filterBits);
     }
 
+    /**
+     * Wraps the given iterator into a {@link CloseableIterator} that closes the given resources when it is closed
+     * or exhausted. Closing it several times has no effect.
+     */
+    public static <T> CloseableIterator<T> closeableIterator(Iterator<T> iterator, Closeable... resources) {
+        return new CloseableIterator<>() {
+            private boolean closed = false;
+
+            @Override
+            public boolean hasNext() {
+                if (closed)
+                    return false;
+                if (iterator.hasNext())
+                    return true;
+                try {
+                    close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                return false;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return iterator.next();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed)
+                    return;
+                closed = true;
+                for (Closeable resource : resources)
+                    resource.close();
+            }
+        };
+    }
+
+    /**
+     * @return a closeable iterator over the elements of the given iterator that match the predicate
+     */
+    public static <T> CloseableIterator<T> filter(CloseableIterator<T> iterator, Predicate<T> predicate) {
+        return closeableIterator(new Iterator<>() {
+            private T next = fetch();
+
+            private T fetch() {
+                while (iterator.hasNext()) {
+                    final T t = iterator.next();
+                    if (predicate.test(t))
+                        return t;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                final T t = next;
+                next = fetch();
+                return t;
+            }
+        }, iterator);
+    }
+
     public static boolean containsFormula(MolecularFormula[] sortedByMass, MolecularFormula query){
         final int formulaIndex = Arrays.binarySearch(sortedByMass, query, Comparator.comparingDouble(MolecularFormula::getMass));
         if (formulaIndex < 0)
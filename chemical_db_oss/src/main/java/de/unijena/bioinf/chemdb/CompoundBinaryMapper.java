@@ -0,0 +1,438 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.chem.InChIs;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.PackedFingerprint;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import de.unijena.bioinf.storage.blob.Compressible;
+import de.unijena.bioinf.storage.blob.Compressible.Compression;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Binary columnar format for formula buckets of a {@link ChemicalBlobDatabase}.
+ * <p>
+ * A bucket starts with a header (magic number, version, number of compounds) and a column directory that stores
+ * the block compression, stored and raw length of each column. Each {@link Column} is a separate block that can
+ * optionally be compressed with any {@link Compression}. Columns are only located when a bucket is opened and
+ * decoded on first access, so a lookup that does not need e.g. fingerprints or names does not parse them.
+ * <ul>
+ *     <li>InChIKeys are stored with fixed width</li>
+ *     <li>numeric properties (pLayer, qLayer, xlogp, bitset) are stored with fixed width</li>
+ *     <li>fingerprints are stored as packed 64 bit words with a fixed number of words per compound</li>
+ *     <li>InChIs, names, SMILES, links and pubmed ids are stored with an offset table</li>
+ * </ul>
+ * Variable width and fingerprint columns start with a bitmap that marks null values.
+ */
+public class CompoundBinaryMapper extends CompoundReader {
+    private static final int MAGIC = 0x53434442; // SCDB
+    private static final byte VERSION = 1;
+    private static final int PROPERTIES_WIDTH = 24;
+
+    enum Column {
+        INCHIKEY, INCHI, NAME, SMILES, PROPERTIES, LINKS, PUBMED, FINGERPRINT
+    }
+
+    @Override
+    public CloseableIterator<CompoundCandidate> readCompounds(InputStream reader) throws IOException {
+        final Bucket bucket = Bucket.read(reader);
+        return new READ<>(bucket.size(), bucket::getCompound);
+    }
+
+    @Override
+    public CloseableIterator<FingerprintCandidate> readFingerprints(FingerprintVersion version, InputStream reader) throws IOException {
+        final Bucket bucket = Bucket.read(reader);
+        return new READ<>(bucket.size(), i -> bucket.getFingerprintCandidate(version, i));
+    }
+
+    /**
+     * Converts a bucket in {@link ChemicalBlobDatabase.Format#JSON} format into the binary format.
+     *
+     * @param version version of the fingerprints in the JSON bucket
+     */
+    public static void convertFromJson(@NotNull FingerprintVersion version, @NotNull InputStream json, @NotNull OutputStream out, @NotNull Compression blockCompression) throws IOException {
+        final List<FingerprintCandidate> compounds = new ArrayList<>();
+        try (CloseableIterator<FingerprintCandidate> it = new CompoundJsonMapper().readFingerprints(version, json)) {
+            it.forEachRemaining(compounds::add);
+        }
+        write(compounds, out, blockCompression);
+    }
+
+    public static void write(@NotNull List<? extends CompoundCandidate> compounds, @NotNull OutputStream out, @NotNull Compression blockCompression) throws IOException {
+        final int n = compounds.size();
+        final byte[][] columns = new byte[Column.values().length][];
+        columns[Column.INCHIKEY.ordinal()] = fixedWidthColumn(compounds.stream().map(c -> c.getInchi() == null ? null : c.getInchi().key).toList());
+        columns[Column.INCHI.ordinal()] = stringColumn(compounds.stream().map(c -> c.getInchi() == null ? null : c.getInchi().in3D).toList());
+        columns[Column.NAME.ordinal()] = stringColumn(compounds.stream().map(CompoundCandidate::getName).toList());
+        columns[Column.SMILES.ordinal()] = stringColumn(compounds.stream().map(CompoundCandidate::getSmiles).toList());
+
+        final ByteBuffer properties = ByteBuffer.allocate(n * PROPERTIES_WIDTH);
+        for (CompoundCandidate c : compounds)
+            properties.putInt(c.pLayer).putInt(c.qLayer).putDouble(c.xlogp).putLong(c.bitset);
+        columns[Column.PROPERTIES.ordinal()] = properties.array();
+
+        final List<byte[]> links = new ArrayList<>(n), pubmed = new ArrayList<>(n);
+        for (CompoundCandidate c : compounds) {
+            links.add(c.links == null ? null : linksRecord(c.links));
+            pubmed.add(c.pubmedIDs == null ? null : pubmedRecord(c.pubmedIDs.getCopyOfPubmedIDs()));
+        }
+        columns[Column.LINKS.ordinal()] = variableColumn(links);
+        columns[Column.PUBMED.ordinal()] = variableColumn(pubmed);
+        columns[Column.FINGERPRINT.ordinal()] = fingerprintColumn(compounds);
+
+        final DataOutputStream dout = new DataOutputStream(out);
+        final byte[][] stored = new byte[columns.length][];
+        for (int k = 0; k < columns.length; ++k)
+            stored[k] = compress(columns[k], blockCompression);
+
+        dout.writeInt(MAGIC);
+        dout.writeByte(VERSION);
+        dout.writeInt(n);
+        dout.writeInt(columns.length);
+        for (int k = 0; k < columns.length; ++k) {
+            dout.writeByte(k);
+            dout.writeByte(stored[k] == columns[k] ? Compression.NONE.ordinal() : blockCompression.ordinal());
+            dout.writeInt(stored[k].length);
+            dout.writeInt(columns[k].length);
+        }
+        for (byte[] column : stored)
+            dout.write(column);
+        dout.flush();
+    }
+
+    private static byte[] compress(byte[] column, Compression compression) throws IOException {
+        if (compression == Compression.NONE)
+            return column;
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(column.length / 2 + 16);
+        Compressible.withCompression(bout, compression, out -> out.write(column));
+        // keep small or incompressible columns uncompressed
+        return bout.size() < column.length ? bout.toByteArray() : column;
+    }
+
+    private static byte[] fixedWidthColumn(List<String> values) {
+        final int width = values.stream().filter(Objects::nonNull).mapToInt(String::length).max().orElse(0);
+        final ByteBuffer buffer = ByteBuffer.allocate(1 + values.size() * width);
+        buffer.put((byte) width);
+        for (String value : values) {
+            final int start = buffer.position();
+            if (value != null)
+                buffer.put(value.getBytes(StandardCharsets.US_ASCII));
+            buffer.position(start + width);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] stringColumn(List<String> values) {
+        return variableColumn(values.stream().map(s -> s == null ? null : s.getBytes(StandardCharsets.UTF_8)).toList());
+    }
+
+    private static byte[] variableColumn(List<byte[]> records) {
+        final int n = records.size();
+        final int length = records.stream().filter(Objects::nonNull).mapToInt(r -> r.length).sum();
+        final ByteBuffer buffer = ByteBuffer.allocate(bitmapLength(n) + 4 * (n + 1) + length);
+        writeNullBitmap(buffer, n, i -> records.get(i) == null);
+        int offset = 0;
+        buffer.putInt(offset);
+        for (byte[] record : records) {
+            if (record != null)
+                offset += record.length;
+            buffer.putInt(offset);
+        }
+        for (byte[] record : records)
+            if (record != null)
+                buffer.put(record);
+        return buffer.array();
+    }
+
+    private static byte[] fingerprintColumn(List<? extends CompoundCandidate> compounds) {
+        final int n = compounds.size();
+        final short[][] indizes = new short[n][];
+        int words = 0;
+        for (int i = 0; i < n; ++i) {
+            if (compounds.get(i) instanceof FingerprintCandidate fc && fc.getFingerprint() != null) {
+                indizes[i] = fc.getFingerprint().toIndizesArray();
+                for (short index : indizes[i])
+                    words = Math.max(words, (index >>> 6) + 1);
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(bitmapLength(n) + 4 + n * words * 8);
+        writeNullBitmap(buffer, n, i -> indizes[i] == null);
+        buffer.putInt(words);
+        final long[] packed = new long[words];
+        for (short[] fp : indizes) {
+            Arrays.fill(packed, 0L);
+            if (fp != null)
+                for (short index : fp)
+                    packed[index >>> 6] |= 1L << index;
+            for (long word : packed)
+                buffer.putLong(word);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] linksRecord(List<DBLink> links) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bout);
+        out.writeInt(links.size());
+        for (DBLink link : links) {
+            writeNullableUTF(out, link.getName());
+            writeNullableUTF(out, link.getId());
+        }
+        return bout.toByteArray();
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, @Nullable String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static byte[] pubmedRecord(int[] ids) {
+        final ByteBuffer buffer = ByteBuffer.allocate(4 * ids.length);
+        buffer.asIntBuffer().put(ids);
+        return buffer.array();
+    }
+
+    private static int bitmapLength(int n) {
+        return (n + 7) >>> 3;
+    }
+
+    private static void writeNullBitmap(ByteBuffer buffer, int n, IntPredicate isNull) {
+        final byte[] bitmap = new byte[bitmapLength(n)];
+        for (int i = 0; i < n; ++i)
+            if (isNull.test(i))
+                bitmap[i >>> 3] |= (byte) (1 << (i & 7));
+        buffer.put(bitmap);
+    }
+
+    /**
+     * A binary formula bucket. Columns are decoded lazily on first access, instances are not thread-safe.
+     */
+    public static class Bucket {
+        private final byte[] data;
+        private final int size;
+        private final int[] offsets = new int[Column.values().length];
+        private final int[] storedLengths = new int[Column.values().length];
+        private final int[] rawLengths = new int[Column.values().length];
+        private final Compression[] compressions = new Compression[Column.values().length];
+        private final ByteBuffer[] columns = new ByteBuffer[Column.values().length];
+
+        public static Bucket read(@NotNull InputStream in) throws IOException {
+            return new Bucket(in.readAllBytes());
+        }
+
+        public Bucket(byte[] data) throws IOException {
+            this.data = data;
+            final ByteBuffer header = ByteBuffer.wrap(data);
+            if (data.length < 13 || header.getInt() != MAGIC)
+                throw new IOException("Data is not a binary compound bucket.");
+            final byte version = header.get();
+            if (version != VERSION)
+                throw new IOException("Unsupported binary compound bucket version " + version);
+            this.size = header.getInt();
+            final int numberOfColumns = header.getInt();
+
+            Arrays.fill(offsets, -1);
+            int offset = header.position() + numberOfColumns * 10;
+            for (int k = 0; k < numberOfColumns; ++k) {
+                final int column = header.get();
+                final Compression compression = Compression.values()[header.get()];
+                final int stored = header.getInt(), raw = header.getInt();
+                // columns unknown to this version are skipped
+                if (column < offsets.length) {
+                    offsets[column] = offset;
+                    storedLengths[column] = stored;
+                    rawLengths[column] = raw;
+                    compressions[column] = compression;
+                }
+                offset += stored;
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private ByteBuffer column(Column c) throws IOException {
+            final int k = c.ordinal();
+            if (columns[k] == null) {
+                if (offsets[k] < 0)
+                    throw new IOException("Binary compound bucket does not contain column " + c);
+                if (compressions[k] == Compression.NONE) {
+                    columns[k] = ByteBuffer.wrap(data, offsets[k], storedLengths[k]).slice();
+                } else {
+                    try (InputStream in = Compressible.decompressRawStream(new ByteArrayInputStream(data, offsets[k], storedLengths[k]), compressions[k]).orElseThrow()) {
+                        columns[k] = ByteBuffer.wrap(in.readNBytes(rawLengths[k]));
+                    }
+                }
+            }
+            return columns[k];
+        }
+
+        private boolean isNull(ByteBuffer column, int i) {
+            return (column.get(i >>> 3) & (1 << (i & 7))) != 0;
+        }
+
+        @Nullable
+        private byte[] record(Column c, int i) throws IOException {
+            final ByteBuffer column = column(c);
+            if (isNull(column, i))
+                return null;
+            final int table = bitmapLength(size);
+            final int start = column.getInt(table + 4 * i), end = column.getInt(table + 4 * (i + 1));
+            final byte[] record = new byte[end - start];
+            column.get(table + 4 * (size + 1) + start, record);
+            return record;
+        }
+
+        @Nullable
+        private String string(Column c, int i) throws IOException {
+            final byte[] record = record(c, i);
+            return record == null ? null : new String(record, StandardCharsets.UTF_8);
+        }
+
+        @Nullable
+        public String getInchiKey(int i) throws IOException {
+            final ByteBuffer column = column(Column.INCHIKEY);
+            final int width = column.get(0) & 0xff;
+            final int start = 1 + i * width;
+            int length = 0;
+            while (length < width && column.get(start + length) != 0)
+                ++length;
+            if (length == 0)
+                return null;
+            final byte[] key = new byte[length];
+            column.get(start, key);
+            return new String(key, StandardCharsets.US_ASCII);
+        }
+
+        @Nullable
+        public String getInchiKey2D(int i) throws IOException {
+            final String key = getInchiKey(i);
+            return key == null ? null : InChIs.inChIKey2D(key);
+        }
+
+        public CompoundCandidate getCompound(int i) throws IOException {
+            final String key = getInchiKey(i), inchi = string(Column.INCHI, i);
+            final ByteBuffer properties = column(Column.PROPERTIES);
+            final int p = i * PROPERTIES_WIDTH;
+            final byte[] pubmed = record(Column.PUBMED, i);
+            return new CompoundCandidate(
+                    (inchi != null && key != null) ? new InChI(key, inchi) : null,
+                    string(Column.NAME, i), string(Column.SMILES, i),
+                    properties.getInt(p), properties.getInt(p + 4), properties.getDouble(p + 8), properties.getLong(p + 16),
+                    links(i), pubmed == null ? null : new PubmedLinks(readInts(pubmed))
+            );
+        }
+
+        private ArrayList<DBLink> links(int i) throws IOException {
+            final byte[] record = record(Column.LINKS, i);
+            if (record == null)
+                return new ArrayList<>();
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            final int n = in.readInt();
+            final ArrayList<DBLink> links = new ArrayList<>(n);
+            for (int k = 0; k < n; ++k)
+                links.add(new DBLink(readNullableUTF(in), readNullableUTF(in)));
+            return links;
+        }
+
+        @Nullable
+        private static String readNullableUTF(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        private static int[] readInts(byte[] record) {
+            final int[] values = new int[record.length / 4];
+            ByteBuffer.wrap(record).asIntBuffer().get(values);
+            return values;
+        }
+
+        /**
+         * @return the fingerprint of the i-th compound or null if it has none or the version is null
+         */
+        @Nullable
+        public Fingerprint getFingerprint(@Nullable FingerprintVersion version, int i) throws IOException {
+            if (version == null)
+                return null;
+            final ByteBuffer column = column(Column.FINGERPRINT);
+            if (isNull(column, i))
+                return null;
+            final int bitmap = bitmapLength(size);
+            final int words = column.getInt(bitmap);
+            final int start = bitmap + 4 + i * words * 8;
+            // the column already stores the bit words, so the fingerprint is read in its packed form
+            final long[] bits = new long[Math.min(words, PackedFingerprint.numberOfWords(version))];
+            for (int w = 0; w < bits.length; ++w) bits[w] = column.getLong(start + w * 8);
+            return new PackedFingerprint(version, bits);
+        }
+
+        public FingerprintCandidate getFingerprintCandidate(@Nullable FingerprintVersion version, int i) throws IOException {
+            return new FingerprintCandidate(getCompound(i), getFingerprint(version, i));
+        }
+    }
+
+    private static class READ<C extends CompoundCandidate> implements CloseableIterator<C> {
+        private final int size;
+        private final IOIntFunction<C> decode;
+        private int next = 0;
+
+        private READ(int size, IOIntFunction<C> decode) {
+            this.size = size;
+            this.decode = decode;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public C next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            try {
+                return decode.apply(next++);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @FunctionalInterface
+    private interface IOIntFunction<R> {
+        R apply(int value) throws IOException;
+    }
+}
@@ -294,7 +294,7 @@ public class CompoundJsonMapper extends CompoundReader {
                     pubmedIds == null ? null : new PubmedLinks(pubmedIds.toArray())
             );
 
-            return Pair.of(c, (indizes == null || version == null) ? null : new ArrayFingerprint(version, indizes.toArray()));
+            return Pair.of(c, (indizes == null || version == null) ? null : PackedFingerprint.fromIndizes(version, indizes.toArray()));
         }
     }
 
@@ -23,6 +23,7 @@ package de.unijena.bioinf.chemdb;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.babelms.CloseableIterator;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -95,6 +96,19 @@ public interface FilterableChemicalDatabase extends AbstractChemicalDatabase {
         return lookupStructuresAndFingerprintsByFormula(0L, formula, candidates);
     }
 
+    /**
+     * Iterate over the structures and corresponding fingerprints of the given molecular formula that match the filter.
+     * The iterator has to be closed if it is not iterated until the end.
+     */
+    default CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(long filterBits, MolecularFormula formula) throws ChemicalDatabaseException {
+        return ChemDBs.closeableIterator(lookupStructuresAndFingerprintsByFormula(filterBits, formula).iterator());
+    }
+
+    @Override
+    default CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        return iterateStructuresAndFingerprintsByFormula(0L, formula);
+    }
+
     boolean containsFormula(long filterBits, MolecularFormula formula) throws ChemicalDatabaseException;
     default boolean containsFormula(MolecularFormula formula) throws ChemicalDatabaseException{
         return containsFormula(0, formula);
@@ -24,6 +24,7 @@ import de.unijena.bioinf.ChemistryBase.chem.InChI;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.babelms.CloseableIterator;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
@@ -91,6 +92,14 @@ public class FilteredChemicalDB<DB extends AbstractChemicalDatabase> implements
         return fingerprintCandidates;
     }
 
+    @Override
+    public CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        if (wrappedDB instanceof FilterableChemicalDatabase)
+            return ((FilterableChemicalDatabase) wrappedDB).iterateStructuresAndFingerprintsByFormula(filter, formula);
+
+        return ChemDBs.filter(wrappedDB.iterateStructuresAndFingerprintsByFormula(formula), ChemDBs.inFilter((it) -> it.bitset, filter));
+    }
+
     @Override
     public List<FingerprintCandidate> lookupFingerprintsByInchis(Iterable<String> inchi_keys) throws ChemicalDatabaseException {
         return wrappedDB.lookupFingerprintsByInchis(inchi_keys);
@@ -21,6 +21,7 @@
 package de.unijena.bioinf.chemdb;
 
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.babelms.CloseableIterator;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -39,4 +40,14 @@ public interface SearchStructureByFormula {
     default List<FingerprintCandidate> lookupStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
         return lookupStructuresAndFingerprintsByFormula(formula, new ArrayList<>());
     }
+
+    /**
+     * Lookup structures and corresponding fingerprints by the given molecular formula and
+     * iterate over them. Allows consumers to process candidates one by one without keeping their own copy of the
+     * candidate list. Implementations that can decode candidates lazily should override this method.
+     * The iterator has to be closed if it is not iterated until the end.
+     */
+    default CloseableIterator<FingerprintCandidate> iterateStructuresAndFingerprintsByFormula(MolecularFormula formula) throws ChemicalDatabaseException {
+        return ChemDBs.closeableIterator(lookupStructuresAndFingerprintsByFormula(formula).iterator());
+    }
 }
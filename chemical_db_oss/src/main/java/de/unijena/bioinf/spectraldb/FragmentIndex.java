@@ -0,0 +1,220 @@
+package de.unijena.bioinf.spectraldb;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.spectraldb.entities.MergedReferenceSpectrum;
+import de.unijena.bionf.fastcosine.ReferenceLibrarySpectrum;
+import de.unijena.bionf.spectral_alignment.SpectralMatchingType;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Inverted index from fragment m/z and neutral loss (parent mass - fragment m/z) to the merged reference spectra
+ * containing them. It is used to find all merged reference spectra that can reach the minimum number of shared peaks
+ * and the minimum cosine of {@link SpectralLibrarySearchSettings} without scoring the whole library.
+ * <p>
+ * For each reference spectrum the number of query peaks with a matching fragment (or neutral loss for modified cosine)
+ * is an upper bound on the number of shared peaks. The product of the norms of all query and reference peaks that
+ * have such a match is an upper bound on the cosine (Cauchy-Schwarz), as intensities are normalized.
+ */
+public class FragmentIndex {
+
+    private static final int VERSION = 1;
+    private static final double BIN_WIDTH = 0.01d;
+
+    private final long[] uuids;
+    private final int[] charges;
+    private final Postings fragments, losses;
+
+    private FragmentIndex(long[] uuids, int[] charges, Postings fragments, Postings losses) {
+        this.uuids = uuids;
+        this.charges = charges;
+        this.fragments = fragments;
+        this.losses = losses;
+    }
+
+    public int size() {
+        return uuids.length;
+    }
+
+    /**
+     * @return uuids of all merged reference spectra with the given charge that might exceed the given settings
+     */
+    public long[] candidates(List<ReferenceLibrarySpectrum> query, int chargeAndPolarity, SpectralLibrarySearchSettings settings, Deviation deviation) {
+        final boolean useLosses = settings.getMatchingType() == SpectralMatchingType.MODIFIED_COSINE;
+        final boolean[] accepted = new boolean[uuids.length];
+        final int[] sharedPeaks = new int[uuids.length];
+        final double[] querySquares = new double[uuids.length], referenceSquares = new double[uuids.length];
+        final int[] lastPeak = new int[uuids.length];
+        for (ReferenceLibrarySpectrum spec : query) {
+            Arrays.fill(sharedPeaks, 0);
+            Arrays.fill(querySquares, 0d);
+            Arrays.fill(referenceSquares, 0d);
+            Arrays.fill(lastPeak, -1);
+            for (int k = 0; k < spec.size(); ++k) {
+                final double mz = spec.getMzAt(k);
+                final double intensity = spec.getIntensityAt(k);
+                collect(fragments, mz, tolerance(deviation, mz), k, intensity, lastPeak, sharedPeaks, querySquares, referenceSquares);
+                if (useLosses) {
+                    final double loss = spec.getParentMass() - mz;
+                    if (loss > 0)
+                        collect(losses, loss, deviation.absoluteFor(spec.getParentMass()), k, intensity, lastPeak, sharedPeaks, querySquares, referenceSquares);
+                }
+            }
+            for (int r = 0; r < uuids.length; ++r) {
+                if (accepted[r] || charges[r] != chargeAndPolarity || sharedPeaks[r] < settings.getMinimumNumberOfPeaks())
+                    continue;
+                if (Math.sqrt(querySquares[r] * referenceSquares[r]) >= settings.getMinCosine())
+                    accepted[r] = true;
+            }
+        }
+        final LongArrayList result = new LongArrayList();
+        for (int r = 0; r < uuids.length; ++r) {
+            if (accepted[r]) result.add(uuids[r]);
+        }
+        return result.toLongArray();
+    }
+
+    private static void collect(Postings postings, double mass, double dev, int peak, double intensity, int[] lastPeak, int[] sharedPeaks, double[] querySquares, double[] referenceSquares) {
+        final int from = Math.max(0, bin(mass - dev)), to = Math.min(postings.offsets.length - 2, bin(mass + dev));
+        for (int b = from; b <= to; ++b) {
+            for (int p = postings.offsets[b]; p < postings.offsets[b + 1]; ++p) {
+                final int ref = postings.references[p];
+                if (lastPeak[ref] != peak) {
+                    lastPeak[ref] = peak;
+                    ++sharedPeaks[ref];
+                    querySquares[ref] += intensity * intensity;
+                }
+                referenceSquares[ref] += postings.intensities[p] * postings.intensities[p];
+            }
+        }
+    }
+
+    /**
+     * The modified cosine evaluates the deviation at the mass of the spectrum with the smaller precursor, which might be
+     * the reference peak. A reference peak above the query peak is allowed a slightly larger deviation than the query peak.
+     */
+    private static double tolerance(Deviation deviation, double mass) {
+        return deviation.absoluteFor(mass + 2 * deviation.absoluteFor(mass));
+    }
+
+    private static int bin(double mass) {
+        return (int) (mass / BIN_WIDTH);
+    }
+
+    public static FragmentIndex build(Iterable<MergedReferenceSpectrum> spectra) {
+        final LongArrayList uuids = new LongArrayList();
+        final IntArrayList charges = new IntArrayList();
+        final PostingsBuilder fragments = new PostingsBuilder(), losses = new PostingsBuilder();
+        for (MergedReferenceSpectrum merged : spectra) {
+            final ReferenceLibrarySpectrum spec = merged.getQuerySpectrum();
+            if (spec == null || merged.getPrecursorIonType() == null) continue;
+            final int ref = uuids.size();
+            uuids.add(merged.getUuid());
+            charges.add(merged.getPrecursorIonType().getCharge());
+            for (int k = 0; k < spec.size(); ++k) {
+                final float intensity = (float) spec.getIntensityAt(k);
+                fragments.add(bin(spec.getMzAt(k)), ref, intensity);
+                final double loss = spec.getParentMass() - spec.getMzAt(k);
+                if (loss > 0) losses.add(bin(loss), ref, intensity);
+            }
+        }
+        return new FragmentIndex(uuids.toLongArray(), charges.toIntArray(), fragments.done(), losses.done());
+    }
+
+    public void write(Path file) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(uuids.length);
+            for (int r = 0; r < uuids.length; ++r) {
+                out.writeLong(uuids[r]);
+                out.writeInt(charges[r]);
+            }
+            fragments.write(out);
+            losses.write(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static FragmentIndex read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            final int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported fragment index version " + version + " in " + file);
+            final int size = in.readInt();
+            final long[] uuids = new long[size];
+            final int[] charges = new int[size];
+            for (int r = 0; r < size; ++r) {
+                uuids[r] = in.readLong();
+                charges[r] = in.readInt();
+            }
+            return new FragmentIndex(uuids, charges, Postings.read(in), Postings.read(in));
+        }
+    }
+
+    /**
+     * postings of all bins in compressed sparse row layout: the postings of bin b are stored in [offsets[b], offsets[b+1])
+     */
+    private record Postings(int[] offsets, int[] references, float[] intensities) {
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(offsets.length);
+            for (int o : offsets) out.writeInt(o);
+            out.writeInt(references.length);
+            for (int p = 0; p < references.length; ++p) {
+                out.writeInt(references[p]);
+                out.writeFloat(intensities[p]);
+            }
+        }
+
+        static Postings read(DataInputStream in) throws IOException {
+            final int[] offsets = new int[in.readInt()];
+            for (int b = 0; b < offsets.length; ++b) offsets[b] = in.readInt();
+            final int n = in.readInt();
+            final int[] references = new int[n];
+            final float[] intensities = new float[n];
+            for (int p = 0; p < n; ++p) {
+                references[p] = in.readInt();
+                intensities[p] = in.readFloat();
+            }
+            return new Postings(offsets, references, intensities);
+        }
+    }
+
+    private static class PostingsBuilder {
+        private final IntArrayList bins = new IntArrayList(), references = new IntArrayList();
+        private final FloatArrayList intensities = new FloatArrayList();
+        private int maxBin = 0;
+
+        void add(int bin, int reference, float intensity) {
+            bins.add(bin);
+            references.add(reference);
+            intensities.add(intensity);
+            maxBin = Math.max(maxBin, bin);
+        }
+
+        Postings done() {
+            // counting sort by bin
+            final int[] offsets = new int[maxBin + 2];
+            for (int i = 0; i < bins.size(); ++i) ++offsets[bins.getInt(i) + 1];
+            for (int b = 1; b < offsets.length; ++b) offsets[b] += offsets[b - 1];
+            final int[] insert = Arrays.copyOf(offsets, offsets.length);
+            final int[] refs = new int[bins.size()];
+            final float[] intens = new float[bins.size()];
+            for (int i = 0; i < bins.size(); ++i) {
+                final int p = insert[bins.getInt(i)]++;
+                refs[p] = references.getInt(i);
+                intens[p] = intensities.getFloat(i);
+            }
+            return new Postings(offsets, refs, intens);
+        }
+    }
+}
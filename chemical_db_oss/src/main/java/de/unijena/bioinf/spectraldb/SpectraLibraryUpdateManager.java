@@ -79,8 +79,9 @@ public class SpectraLibraryUpdateManager {
 
         @Override
         protected Object compute() throws Exception {
+            final List<JJob<Object>> jobs = new ArrayList<>(toUpdate.length);
             for (Index index : toUpdate) {
-                submitSubJob(new BasicMasterJJob<Object>(JobType.CPU) {
+                jobs.add(submitSubJob(new BasicMasterJJob<Object>(JobType.CPU) {
                     @Override
                     protected Object compute() throws Exception {
                         // 1.) collect all spectra with same index
@@ -123,8 +124,11 @@ public class SpectraLibraryUpdateManager {
                         writer.insertMergedSpecAndTree(merged, refTree);
                         return null;
                     }
-                });
+                }));
             }
+            for (JJob<Object> job : jobs) job.takeResult();
+            // 4.) index fragments and neutral losses of all merged spectra for analog search
+            if (toUpdate.length > 0) writer.updateFragmentIndex();
             return null;
         }
     }
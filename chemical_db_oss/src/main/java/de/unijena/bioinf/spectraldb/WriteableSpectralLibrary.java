@@ -36,4 +36,10 @@ public interface WriteableSpectralLibrary {
 
     void insertMergedSpecAndTree(MergedReferenceSpectrum merged, ReferenceFragmentationTree refTree) throws IOException;
 
+    /**
+     * Rebuilds search indices over the merged spectra (e.g. a {@link FragmentIndex}) after merged spectra were inserted.
+     */
+    default void updateFragmentIndex() throws IOException {
+    }
+
 }
@@ -53,6 +53,11 @@ public class ArrayFingerprint extends Fingerprint {
         return this;
     }
 
+    @Override
+    public PackedFingerprint asPacked() {
+        return PackedFingerprint.fromIndizes(fingerprintVersion, indizes);
+    }
+
     @Override
     public BooleanFingerprint asBooleans() {
         final boolean[] values = new boolean[fingerprintVersion.size()];
@@ -87,12 +92,14 @@ public class ArrayFingerprint extends Fingerprint {
     @Override
     public double tanimoto(Fingerprint other) {
         if (other instanceof ArrayFingerprint) return tanimoto((ArrayFingerprint)other);
+        else if (other instanceof PackedFingerprint) return ((PackedFingerprint) other).tanimoto(this);
         else return super.tanimoto(other);
     }
 
     @Override
     public double dotProduct(Fingerprint other) {
         if (other instanceof ArrayFingerprint) return dotProduct((ArrayFingerprint)other);
+        else if (other instanceof PackedFingerprint) return ((PackedFingerprint) other).numberOfCommonBits(this);
         else return super.dotProduct(other);
     }
 
@@ -253,6 +260,8 @@ public class ArrayFingerprint extends Fingerprint {
         enforceCompatibility(fp);
         if (fp instanceof  ArrayFingerprint)
             return new PairwiseUnionIterator(this, (ArrayFingerprint)fp, -1,0,0);
+        else if (fp instanceof PackedFingerprint)
+            return new PairwiseUnionIterator(this, ((PackedFingerprint) fp).asArray(), -1,0,0);
         else throw new IllegalArgumentException("Pairwise iterators are only supported for same type fingerprints;");
         // We cannot express this in javas type system -_- In theory somebody could just implement a pairwise iterator
         // for mixed types
@@ -263,6 +272,8 @@ public class ArrayFingerprint extends Fingerprint {
         enforceCompatibility(fp);
         if (fp instanceof  ArrayFingerprint)
             return new PairwiseIntersectionIterator(this, (ArrayFingerprint)fp, -1,0,0);
+        else if (fp instanceof PackedFingerprint)
+            return new PairwiseIntersectionIterator(this, ((PackedFingerprint) fp).asArray(), -1,0,0);
         else throw new IllegalArgumentException("Pairwise iterators are only supported for same type fingerprints;");
         // We cannot express this in javas type system -_- In theory somebody could just implement a pairwise iterator
         // for mixed types
@@ -273,6 +284,8 @@ public class ArrayFingerprint extends Fingerprint {
         enforceCompatibility(fp);
         if (fp instanceof  ArrayFingerprint)
             return new PairwiseIterator(this, (ArrayFingerprint)fp, -1,0,0);
+        else if (fp instanceof PackedFingerprint)
+            return new PairwiseIterator(this, ((PackedFingerprint) fp).asArray(), -1,0,0);
         else return super.foreachPair(fp);
         // We cannot express this in javas type system -_- In theory somebody could just implement a pairwise iterator
         // for mixed types
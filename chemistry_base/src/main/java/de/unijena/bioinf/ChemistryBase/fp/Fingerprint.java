@@ -31,6 +31,10 @@ public abstract class Fingerprint extends AbstractFingerprint {
     public abstract ArrayFingerprint asArray();
     public abstract BooleanFingerprint asBooleans();
 
+    public PackedFingerprint asPacked() {
+        return PackedFingerprint.fromIndizes(fingerprintVersion, toIndizesArray());
+    }
+
     public abstract String toOneZeroString();
 
     public abstract boolean[] toBooleanArray();
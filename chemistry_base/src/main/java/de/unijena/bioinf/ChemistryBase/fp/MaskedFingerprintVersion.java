@@ -32,6 +32,8 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
     private BitSet mask;
     private int[] allowedIndizes;
     private TShortShortHashMap mapping;
+    // mask as 64 bit words over absolute indizes, used for masking PackedFingerprints
+    private long[] wordMask;
 
     public static MaskedFingerprintVersion fromString(String s) {
         MaskedFingerprintVersion.Builder b = buildMaskFor(CdkFingerprintVersion.getDefault());
@@ -60,6 +62,20 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
         return allowedIndizes.clone();
     }
 
+    /**
+     * @return the mask as 64 bit words over absolute indizes, such that bit i is set if absolute index i is allowed
+     */
+    public long[] getWordMask() {
+        return wordMask.clone();
+    }
+
+    /**
+     * @return a masking view for scoring loops that masks packed fingerprints without allocation, see {@link PackedFingerprint.MaskingView}
+     */
+    public PackedFingerprint.MaskingView newMaskingView() {
+        return new PackedFingerprint.MaskingView(this, wordMask);
+    }
+
     public ArrayFingerprint mask(short[] values) {
         return mask(new ArrayFingerprint(innerVersion, values));
     }
@@ -90,7 +106,9 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
             for (int i=0; i < allowedIndizes.length; ++i) xs[i] = ys[allowedIndizes[i]];
             return (T)new ProbabilityFingerprint(this, xs);
         } else if (fingerprint instanceof Fingerprint) {
-            if (fingerprint instanceof ArrayFingerprint) {
+            if (fingerprint instanceof PackedFingerprint) {
+                return (T) ((PackedFingerprint) fingerprint).withMask(this, wordMask);
+            } else if (fingerprint instanceof ArrayFingerprint) {
                 int i=0, j=0;
                 final TShortArrayList list = new TShortArrayList(Math.min(fingerprint.cardinality(), allowedIndizes.length));
                 final short[] indizes = ((ArrayFingerprint) fingerprint).indizes;
@@ -119,7 +137,9 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
      * has the same set of molecular properties, just without the masking.
      */
     protected Fingerprint unmask(Fingerprint fp) {
-        if (fp instanceof ArrayFingerprint) {
+        if (fp instanceof PackedFingerprint) {
+            return new PackedFingerprint(getMaskedFingerprintVersion(), ((PackedFingerprint) fp).toWords(), null);
+        } else if (fp instanceof ArrayFingerprint) {
             return new ArrayFingerprint(getMaskedFingerprintVersion(), ((ArrayFingerprint) fp).indizes);
         } else {
             return new ArrayFingerprint(getMaskedFingerprintVersion(), fp.toIndizesArray());
@@ -185,6 +205,7 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
         for (int allowedIndex : allowedIndizes) {
             mapping.put((short)allowedIndex, (short)k++);
         }
+        this.wordMask = mask.toLongArray();
     }
 
     public boolean isNotFiltering() {
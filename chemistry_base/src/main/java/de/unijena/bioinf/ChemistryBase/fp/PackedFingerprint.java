@@ -0,0 +1,404 @@
+package de.unijena.bioinf.ChemistryBase.fp;
+
+import java.util.Arrays;
+
+/**
+ * Dense fingerprint representation. Bit i of the word array corresponds to the absolute index i of the
+ * fingerprint version. As absolute indizes are identical for a fingerprint version and all its masked versions,
+ * masking a packed fingerprint is just a bitwise AND with the word mask of the {@link MaskedFingerprintVersion}.
+ * Masked fingerprints share the word array of their unmasked fingerprint, so masking does not copy any bits.
+ */
+public class PackedFingerprint extends Fingerprint {
+
+    // only re-pointed by a MaskingView, otherwise never changed after construction
+    protected long[] words;
+    // word mask of the MaskedFingerprintVersion or null, if all bits of words are valid
+    protected final long[] wordMask;
+    private int cardinality;
+
+    public PackedFingerprint(FingerprintVersion fingerprintVersion, long[] words) {
+        this(fingerprintVersion, words.clone(), null);
+        if (words.length > numberOfWords(fingerprintVersion))
+            throw new IllegalArgumentException("Fingerprintversion is not compatible to fingerprint: version needs " + numberOfWords(fingerprintVersion) + " words, but fingerprint has " + words.length);
+    }
+
+    PackedFingerprint(FingerprintVersion fingerprintVersion, long[] words, long[] wordMask) {
+        super(fingerprintVersion);
+        this.wordMask = wordMask;
+        repoint(words);
+    }
+
+    private void repoint(long[] words) {
+        this.words = words;
+        int count = 0;
+        for (int i = 0; i < words.length; ++i) count += Long.bitCount(word(i));
+        this.cardinality = count;
+    }
+
+    public static PackedFingerprint fromIndizes(FingerprintVersion fingerprintVersion, short[] indizes) {
+        final long[] words = new long[numberOfWords(fingerprintVersion)];
+        for (short index : indizes) words[index >>> 6] |= 1L << index;
+        return new PackedFingerprint(fingerprintVersion, words, null);
+    }
+
+    /**
+     * @return number of 64 bit words necessary to store all absolute indizes of the given fingerprint version
+     */
+    public static int numberOfWords(FingerprintVersion fingerprintVersion) {
+        if (fingerprintVersion.size() == 0) return 0;
+        return (fingerprintVersion.getAbsoluteIndexOf(fingerprintVersion.size() - 1) >>> 6) + 1;
+    }
+
+    protected final long word(int i) {
+        return wordMask == null ? words[i] : (i < wordMask.length ? words[i] & wordMask[i] : 0L);
+    }
+
+    /**
+     * @return a copy of the (masked) bit words of this fingerprint
+     */
+    public long[] toWords() {
+        final long[] copy = new long[words.length];
+        for (int i = 0; i < copy.length; ++i) copy[i] = word(i);
+        return copy;
+    }
+
+    /**
+     * returns this fingerprint as masked view. Does not copy the underlying words.
+     */
+    PackedFingerprint withMask(MaskedFingerprintVersion version, long[] mask) {
+        if (wordMask != null)
+            return new PackedFingerprint(version, toWords(), mask);
+        return new PackedFingerprint(version, words, mask);
+    }
+
+    @Override
+    public PackedFingerprint asPacked() {
+        return this;
+    }
+
+    @Override
+    public ArrayFingerprint asArray() {
+        return new ArrayFingerprint(fingerprintVersion, toIndizesArray());
+    }
+
+    @Override
+    public BooleanFingerprint asBooleans() {
+        return new BooleanFingerprint(fingerprintVersion, toBooleanArray());
+    }
+
+    @Override
+    public String toOneZeroString() {
+        final char[] buffer = new char[fingerprintVersion.size()];
+        for (int k = 0; k < buffer.length; ++k) {
+            buffer[k] = isSet(fingerprintVersion.getAbsoluteIndexOf(k)) ? '1' : '0';
+        }
+        return new String(buffer);
+    }
+
+    @Override
+    public boolean[] toBooleanArray() {
+        final boolean[] buffer = new boolean[fingerprintVersion.size()];
+        for (int index = nextSetBit(0); index >= 0; index = nextSetBit(index + 1)) {
+            buffer[fingerprintVersion.getRelativeIndexOf(index)] = true;
+        }
+        return buffer;
+    }
+
+    @Override
+    public short[] toIndizesArray() {
+        final short[] indizes = new short[cardinality];
+        int k = 0;
+        for (int index = nextSetBit(0); index >= 0; index = nextSetBit(index + 1)) {
+            indizes[k++] = (short) index;
+        }
+        return indizes;
+    }
+
+    /**
+     * @return the smallest set absolute index which is not smaller than fromIndex or -1 if there is no such index
+     */
+    public int nextSetBit(int fromIndex) {
+        int w = fromIndex >>> 6;
+        if (w >= words.length) return -1;
+        long word = word(w) & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w >= words.length) return -1;
+            word = word(w);
+        }
+    }
+
+    @Override
+    public double tanimoto(Fingerprint other) {
+        if (other instanceof PackedFingerprint) return tanimoto((PackedFingerprint) other);
+        else if (other instanceof ArrayFingerprint) return tanimoto((ArrayFingerprint) other);
+        else return super.tanimoto(other);
+    }
+
+    @Override
+    public double dotProduct(Fingerprint other) {
+        if (other instanceof PackedFingerprint) return numberOfCommonBits((PackedFingerprint) other);
+        else if (other instanceof ArrayFingerprint) return numberOfCommonBits((ArrayFingerprint) other);
+        else return super.dotProduct(other);
+    }
+
+    @Override
+    public double plusMinusdotProduct(Fingerprint other) {
+        if (other instanceof PackedFingerprint) return plusMinusdotProduct((PackedFingerprint) other);
+        else return super.plusMinusdotProduct(other);
+    }
+
+    public int numberOfCommonBits(PackedFingerprint other) {
+        enforceCompatibility(other);
+        final int n = Math.min(words.length, other.words.length);
+        int intersection = 0;
+        for (int i = 0; i < n; ++i) intersection += Long.bitCount(word(i) & other.word(i));
+        return intersection;
+    }
+
+    public int numberOfCommonBits(ArrayFingerprint other) {
+        enforceCompatibility(other);
+        int intersection = 0;
+        for (short index : other.indizes) {
+            if (isSet(index)) ++intersection;
+        }
+        return intersection;
+    }
+
+    public double tanimoto(ArrayFingerprint other) {
+        final int intersection = numberOfCommonBits(other);
+        final int union = cardinality + other.cardinality() - intersection;
+        if (union == 0) return 0d;
+        return ((double) intersection) / union;
+    }
+
+    public double plusMinusdotProduct(PackedFingerprint other) {
+        final int length = fingerprintVersion.size();
+        final int intersection = numberOfCommonBits(other);
+        final int union = cardinality + other.cardinality - intersection;
+        // dot product is intersection + (length-union) - (union - intersection)
+        return intersection + (length - union) - (union - intersection);
+    }
+
+    public double tanimoto(PackedFingerprint other) {
+        final int intersection = numberOfCommonBits(other);
+        // |A u B| = (|A| + |B|) - |A n B|
+        final int union = cardinality + other.cardinality - intersection;
+        if (union == 0) return 0d;
+        return ((double) intersection) / union;
+    }
+
+    @Override
+    public Fingerprint asDeterministic() {
+        return this;
+    }
+
+    @Override
+    public ProbabilityFingerprint asProbabilistic() {
+        return new ProbabilityFingerprint(fingerprintVersion, toProbabilityArray());
+    }
+
+    @Override
+    public String toCommaSeparatedString() {
+        return asArray().toCommaSeparatedString();
+    }
+
+    @Override
+    public String toTabSeparatedString() {
+        return asArray().toTabSeparatedString();
+    }
+
+    @Override
+    public double[] toProbabilityArray() {
+        final double[] ary = new double[fingerprintVersion.size()];
+        for (int index = nextSetBit(0); index >= 0; index = nextSetBit(index + 1)) {
+            ary[fingerprintVersion.getRelativeIndexOf(index)] = 1d;
+        }
+        return ary;
+    }
+
+    @Override
+    public boolean isSet(int index) {
+        final int w = index >>> 6;
+        return w < words.length && (word(w) & (1L << index)) != 0;
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public FPIter iterator() {
+        return new PackedIterator(-1);
+    }
+
+    @Override
+    public FPIter presentFingerprints() {
+        return new OnlySetIterator(-1, nextSetBit(0));
+    }
+
+    // pairwise iterators of mixed deterministic fingerprints are delegated to the merge join of ArrayFingerprint
+
+    @Override
+    public FPIter2 foreachUnion(AbstractFingerprint fp) {
+        enforceCompatibility(fp);
+        if (fp instanceof Fingerprint)
+            return asArray().foreachUnion(((Fingerprint) fp).asArray());
+        else throw new IllegalArgumentException("Pairwise iterators are only supported for deterministic fingerprints;");
+    }
+
+    @Override
+    public FPIter2 foreachIntersection(AbstractFingerprint fp) {
+        enforceCompatibility(fp);
+        if (fp instanceof Fingerprint)
+            return asArray().foreachIntersection(((Fingerprint) fp).asArray());
+        else throw new IllegalArgumentException("Pairwise iterators are only supported for deterministic fingerprints;");
+    }
+
+    @Override
+    public FPIter2 foreachPair(AbstractFingerprint fp) {
+        enforceCompatibility(fp);
+        if (fp instanceof PackedFingerprint || fp instanceof ArrayFingerprint)
+            return asArray().foreachPair(((Fingerprint) fp).asArray());
+        else return super.foreachPair(fp);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PackedFingerprint)) return false;
+        final PackedFingerprint that = (PackedFingerprint) o;
+        return fingerprintVersion.identical(that.fingerprintVersion) && Arrays.equals(toWords(), that.toWords());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toWords());
+    }
+
+    /**
+     * Masks packed fingerprints without allocating anything: a single view object is re-pointed to the words
+     * of each fingerprint to mask. The returned fingerprint is only valid until the next call of
+     * {@link #mask(Fingerprint)}, so it must neither be stored nor shared between threads.
+     * All other fingerprints are masked via {@link MaskedFingerprintVersion#mask(AbstractFingerprint)}.
+     */
+    public static final class MaskingView {
+
+        private final MaskedFingerprintVersion version;
+        private final PackedFingerprint view;
+
+        MaskingView(MaskedFingerprintVersion version, long[] wordMask) {
+            this.version = version;
+            this.view = new PackedFingerprint(version, new long[0], wordMask);
+        }
+
+        public Fingerprint mask(Fingerprint fingerprint) {
+            if (fingerprint.fingerprintVersion == version) return fingerprint;
+            if (fingerprint instanceof PackedFingerprint && ((PackedFingerprint) fingerprint).wordMask == null
+                    && version.getMaskedFingerprintVersion().compatible(fingerprint.fingerprintVersion)) {
+                view.repoint(((PackedFingerprint) fingerprint).words);
+                return view;
+            }
+            return version.mask(fingerprint);
+        }
+    }
+
+    private final class OnlySetIterator extends FPIter {
+
+        private int current, next;
+
+        private OnlySetIterator(int current, int next) {
+            this.current = current;
+            this.next = next;
+        }
+
+        @Override
+        public boolean isSet() {
+            return true;
+        }
+
+        @Override
+        public int getIndex() {
+            return current;
+        }
+
+        @Override
+        public MolecularProperty getMolecularProperty() {
+            return fingerprintVersion.getMolecularProperty(current);
+        }
+
+        @Override
+        public FPIter jumpTo(int index) {
+            return new OnlySetIterator(-1, nextSetBit(index));
+        }
+
+        @Override
+        public FPIter clone() {
+            return new OnlySetIterator(current, next);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        @Override
+        public FPIter next() {
+            current = next;
+            next = nextSetBit(current + 1);
+            return this;
+        }
+    }
+
+    private final class PackedIterator extends FPIter {
+
+        private int relative;
+
+        private PackedIterator(int relative) {
+            this.relative = relative;
+        }
+
+        @Override
+        public boolean isSet() {
+            return PackedFingerprint.this.isSet(fingerprintVersion.getAbsoluteIndexOf(relative));
+        }
+
+        @Override
+        public int getIndex() {
+            return fingerprintVersion.getAbsoluteIndexOf(relative);
+        }
+
+        @Override
+        public MolecularProperty getMolecularProperty() {
+            return fingerprintVersion.getMolecularProperty(getIndex());
+        }
+
+        @Override
+        public FPIter jumpTo(int index) {
+            int r = fingerprintVersion.getClosestRelativeIndexTo(index);
+            if (r < 0) r = -r - 1;
+            return new PackedIterator(r);
+        }
+
+        @Override
+        public FPIter clone() {
+            return new PackedIterator(relative);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return relative + 1 < fingerprintVersion.size();
+        }
+
+        public String toString() {
+            return isSet() ? "1" : "0";
+        }
+
+        @Override
+        public FPIter next() {
+            ++relative;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ChemistryBase.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of array-heavy objects as a sequence of length-prefixed primitive blocks.
+ * <p>
+ * {@link Serializer} and {@link Deserializer} store such an object as a JSON object with its plain (e.g. indexed)
+ * fields and a single binary field {@link #FIELD} containing all blocks. Registered for a class (e.g. via
+ * {@code Metadata.addSerialization}) this replaces large nested arrays of numbers in document databases.
+ * The {@link Deserializer} still accepts the plain JSON fields, so documents written before remain readable.
+ */
+public final class BinaryBlocks {
+
+    public static final String FIELD = "binary";
+
+    private static final byte VERSION = 1;
+    private static final int NULL = -1;
+
+    private BinaryBlocks() {
+    }
+
+    public static class Writer {
+        private ByteBuffer buffer;
+
+        public Writer() {
+            this(256);
+        }
+
+        public Writer(int initialCapacity) {
+            this.buffer = ByteBuffer.allocate(Math.max(16, initialCapacity));
+            buffer.put(VERSION);
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+
+        private boolean writeLength(@Nullable Object array, int length) {
+            ensure(4);
+            if (array == null) {
+                buffer.putInt(NULL);
+                return false;
+            }
+            buffer.putInt(length);
+            return true;
+        }
+
+        public Writer writeBoolean(boolean value) {
+            ensure(1);
+            buffer.put((byte) (value ? 1 : 0));
+            return this;
+        }
+
+        public Writer writeInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        public Writer writeLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        public Writer writeDouble(double value) {
+            ensure(8);
+            buffer.putDouble(value);
+            return this;
+        }
+
+        public Writer writeString(@Nullable String value) {
+            return writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public Writer writeBytes(@Nullable byte[] values) {
+            if (writeLength(values, values == null ? 0 : values.length)) {
+                ensure(values.length);
+                buffer.put(values);
+            }
+            return this;
+        }
+
+        public Writer writeInts(@Nullable int[] values) {
+            if (writeLength(values, values == null ? 0 : values.length)) {
+                ensure(values.length * 4);
+                buffer.asIntBuffer().put(values);
+                buffer.position(buffer.position() + values.length * 4);
+            }
+            return this;
+        }
+
+        public Writer writeLongs(@Nullable long[] values) {
+            if (writeLength(values, values == null ? 0 : values.length)) {
+                ensure(values.length * 8);
+                buffer.asLongBuffer().put(values);
+                buffer.position(buffer.position() + values.length * 8);
+            }
+            return this;
+        }
+
+        public Writer writeFloats(@Nullable float[] values) {
+            if (writeLength(values, values == null ? 0 : values.length)) {
+                ensure(values.length * 4);
+                buffer.asFloatBuffer().put(values);
+                buffer.position(buffer.position() + values.length * 4);
+            }
+            return this;
+        }
+
+        public Writer writeDoubles(@Nullable double[] values) {
+            if (writeLength(values, values == null ? 0 : values.length)) {
+                ensure(values.length * 8);
+                buffer.asDoubleBuffer().put(values);
+                buffer.position(buffer.position() + values.length * 8);
+            }
+            return this;
+        }
+
+        public Writer writeIntMatrix(@Nullable int[][] values) {
+            if (writeLength(values, values == null ? 0 : values.length)) {
+                for (int[] row : values)
+                    writeInts(row);
+            }
+            return this;
+        }
+
+        /**
+         * writes masses and intensities of the given spectrum as two blocks
+         */
+        public Writer writeSpectrum(@Nullable Spectrum<?> spectrum) {
+            if (writeLength(spectrum, spectrum == null ? 0 : spectrum.size())) {
+                final int n = spectrum.size();
+                ensure(n * 16);
+                for (int i = 0; i < n; ++i)
+                    buffer.putDouble(spectrum.getMzAt(i));
+                for (int i = 0; i < n; ++i)
+                    buffer.putDouble(spectrum.getIntensityAt(i));
+            }
+            return this;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+
+    public static class Reader {
+        private final ByteBuffer buffer;
+
+        public Reader(byte[] data) throws IOException {
+            this.buffer = ByteBuffer.wrap(data);
+            final byte version = buffer.get();
+            if (version != VERSION)
+                throw new IOException("Unsupported binary block version " + version);
+        }
+
+        public boolean hasRemaining() {
+            return buffer.hasRemaining();
+        }
+
+        public boolean readBoolean() {
+            return buffer.get() != 0;
+        }
+
+        public int readInt() {
+            return buffer.getInt();
+        }
+
+        public long readLong() {
+            return buffer.getLong();
+        }
+
+        public double readDouble() {
+            return buffer.getDouble();
+        }
+
+        @Nullable
+        public String readString() {
+            final byte[] bytes = readBytes();
+            return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Nullable
+        public byte[] readBytes() {
+            final int n = buffer.getInt();
+            if (n == NULL) return null;
+            final byte[] values = new byte[n];
+            buffer.get(values);
+            return values;
+        }
+
+        @Nullable
+        public int[] readInts() {
+            final int n = buffer.getInt();
+            if (n == NULL) return null;
+            final int[] values = new int[n];
+            buffer.asIntBuffer().get(values);
+            buffer.position(buffer.position() + n * 4);
+            return values;
+        }
+
+        @Nullable
+        public long[] readLongs() {
+            final int n = buffer.getInt();
+            if (n == NULL) return null;
+            final long[] values = new long[n];
+            buffer.asLongBuffer().get(values);
+            buffer.position(buffer.position() + n * 8);
+            return values;
+        }
+
+        @Nullable
+        public float[] readFloats() {
+            final int n = buffer.getInt();
+            if (n == NULL) return null;
+            final float[] values = new float[n];
+            buffer.asFloatBuffer().get(values);
+            buffer.position(buffer.position() + n * 4);
+            return values;
+        }
+
+        @Nullable
+        public double[] readDoubles() {
+            final int n = buffer.getInt();
+            if (n == NULL) return null;
+            final double[] values = new double[n];
+            buffer.asDoubleBuffer().get(values);
+            buffer.position(buffer.position() + n * 8);
+            return values;
+        }
+
+        @Nullable
+        public int[][] readIntMatrix() {
+            final int n = buffer.getInt();
+            if (n == NULL) return null;
+            final int[][] values = new int[n][];
+            for (int i = 0; i < n; ++i)
+                values[i] = readInts();
+            return values;
+        }
+
+        /**
+         * @return masses and intensities written by {@link Writer#writeSpectrum(Spectrum)} or null
+         */
+        @Nullable
+        public double[][] readSpectrumArrays() {
+            final int n = buffer.getInt();
+            if (n == NULL) return null;
+            final double[] masses = new double[n], intensities = new double[n];
+            buffer.asDoubleBuffer().get(masses).get(intensities);
+            buffer.position(buffer.position() + n * 16);
+            return new double[][]{masses, intensities};
+        }
+
+        @Nullable
+        public SimpleSpectrum readSpectrum() {
+            final double[][] peaks = readSpectrumArrays();
+            return peaks == null ? null : new SimpleSpectrum(peaks[0], peaks[1]);
+        }
+
+        /**
+         * skips the next array block without decoding it
+         */
+        public void skipArray(int bytesPerElement) {
+            final int n = buffer.getInt();
+            if (n != NULL)
+                buffer.position(buffer.position() + n * bytesPerElement);
+        }
+    }
+
+    /**
+     * Writes the plain fields of an object followed by all blocks in the binary field {@link #FIELD}.
+     */
+    public static abstract class Serializer<T> extends JsonSerializer<T> {
+
+        @Override
+        public void serialize(T value, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+            gen.writeStartObject();
+            writeFields(value, gen);
+            final Writer blocks = new Writer();
+            writeBlocks(value, blocks);
+            gen.writeBinaryField(FIELD, blocks.toByteArray());
+            gen.writeEndObject();
+        }
+
+        protected abstract void writeFields(T value, JsonGenerator gen) throws IOException;
+
+        protected abstract void writeBlocks(T value, Writer blocks) throws IOException;
+    }
+
+    /**
+     * Reads objects written by {@link Serializer}. The object is assembled in a mutable builder {@code B}, which can
+     * be the object itself.
+     */
+    public static abstract class Deserializer<T, B> extends JsonDeserializer<T> {
+
+        @Override
+        public T deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            final B builder = newBuilder();
+            JsonToken token = p.currentToken() == JsonToken.START_OBJECT ? p.nextToken() : p.currentToken();
+            for (; token != null && token != JsonToken.END_OBJECT; token = p.nextToken()) {
+                if (token != JsonToken.FIELD_NAME)
+                    continue;
+                final String name = p.currentName();
+                token = p.nextToken();
+                if (FIELD.equals(name)) {
+                    if (token != JsonToken.VALUE_NULL)
+                        readBlocks(builder, new Reader(p.getBinaryValue()));
+                } else if (token == JsonToken.VALUE_NULL || !readField(builder, name, p, ctxt)) {
+                    p.skipChildren();
+                }
+            }
+            return build(builder);
+        }
+
+        protected abstract B newBuilder();
+
+        /**
+         * reads the value of the given plain field, the parser is positioned at the first token of the value.
+         *
+         * @return false if the field is unknown and should be skipped
+         */
+        protected abstract boolean readField(B builder, String name, JsonParser p, DeserializationContext ctxt) throws IOException;
+
+        protected abstract void readBlocks(B builder, Reader blocks) throws IOException;
+
+        protected abstract T build(B builder) throws IOException;
+    }
+}
@@ -3,7 +3,12 @@ package de.unijena.bioinf.ChemistryBase.chem;
 import de.unijena.bioinf.ChemistryBase.fp.*;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class TanimotoTest {
 
@@ -22,6 +27,84 @@ public class TanimotoTest {
 
     }
 
+    @Test
+    public void testPackedFingerprint() {
+        final short[] indizes1 = new short[]{ 5, 10, 15, 20, 25, 30, 64, 130  };
+        final short[] indizes2 = new short[]{ 5, 8,  15, 19, 22, 30, 64, 131 };
+        // intersection: 4, union: 12, tanimoto: 1/3
+
+        final ArrayFingerprint fp1 = new ArrayFingerprint(CdkFingerprintVersion.getDefault(), indizes1);
+        final ArrayFingerprint fp2 = new ArrayFingerprint(CdkFingerprintVersion.getDefault(), indizes2);
+        final PackedFingerprint p1 = fp1.asPacked(), p2 = fp2.asPacked();
+
+        assertEquals(1d/3d, p1.tanimoto(p2), 1e-6);
+        assertEquals(1d/3d, p1.tanimoto(fp2), 1e-6);
+        assertEquals(1d/3d, fp1.tanimoto(p2), 1e-6);
+        assertEquals(4, p1.numberOfCommonBits(p2));
+        assertArrayEquals(indizes1, p1.toIndizesArray());
+
+        // masking is a bitwise AND with the word mask
+        final MaskedFingerprintVersion M = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(0,100).toMask();
+        final PackedFingerprint m1 = M.mask(p1), m2 = M.mask(p2);
+        assertEquals(M, m1.getFingerprintVersion());
+        assertEquals(7, m1.cardinality());
+        assertEquals(4d/10d, m1.tanimoto(m2), 1e-6);
+        assertEquals(M.mask(fp1).tanimoto(M.mask(fp2)), m1.tanimoto(m2), 1e-6);
+        assertArrayEquals(M.mask(fp1).toIndizesArray(), m1.toIndizesArray());
+        assertEquals(M.mask(fp1).toOneZeroString(), m1.toOneZeroString());
+    }
+
+    @Test
+    public void testMixedArrayAndPackedFingerprints() {
+        final short[] indizes1 = new short[]{ 5, 10, 15, 20, 25, 30, 64, 130  };
+        final short[] indizes2 = new short[]{ 5, 8,  15, 19, 22, 30, 64, 131 };
+        final ArrayFingerprint a1 = new ArrayFingerprint(CdkFingerprintVersion.getDefault(), indizes1);
+        final ArrayFingerprint a2 = new ArrayFingerprint(CdkFingerprintVersion.getDefault(), indizes2);
+        final PackedFingerprint p1 = a1.asPacked(), p2 = a2.asPacked();
+
+        final Fingerprint[][] combinations = new Fingerprint[][]{{a1, p2}, {p1, a2}, {p1, p2}};
+        for (Fingerprint[] pair : combinations) {
+            assertEquals(pairs(a1.foreachUnion(a2)), pairs(pair[0].foreachUnion(pair[1])));
+            assertEquals(pairs(a1.foreachIntersection(a2)), pairs(pair[0].foreachIntersection(pair[1])));
+            assertEquals(pairs(a1.foreachPair(a2)), pairs(pair[0].foreachPair(pair[1])));
+            assertEquals(a1.tanimoto(a2), pair[0].tanimoto(pair[1]), 1e-9);
+            assertEquals(a1.dotProduct(a2), pair[0].dotProduct(pair[1]), 1e-9);
+            assertEquals(a1.plusMinusdotProduct(a2), pair[0].plusMinusdotProduct(pair[1]), 1e-9);
+        }
+
+        final MaskedFingerprintVersion M = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(0,100).toMask();
+        assertEquals(pairs(M.mask(a1).foreachPair(M.mask(a2))), pairs(M.mask(p1).foreachPair(M.mask(a2))));
+        assertEquals(pairs(M.mask(a1).foreachUnion(M.mask(a2))), pairs(M.mask(a1).foreachUnion(M.mask(p2))));
+    }
+
+    @Test
+    public void testMaskingView() {
+        final MaskedFingerprintVersion M = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(0,100).toMask();
+        final PackedFingerprint.MaskingView view = M.newMaskingView();
+        final PackedFingerprint p1 = new ArrayFingerprint(CdkFingerprintVersion.getDefault(), new short[]{ 5, 10, 15, 20, 25, 30, 64, 130 }).asPacked();
+        final PackedFingerprint p2 = new ArrayFingerprint(CdkFingerprintVersion.getDefault(), new short[]{ 5, 8, 130, 131 }).asPacked();
+
+        final Fingerprint v1 = view.mask(p1);
+        assertEquals(M, v1.getFingerprintVersion());
+        assertEquals(M.mask(p1), v1);
+        assertEquals(7, v1.cardinality());
+        // the view is reused for the next fingerprint
+        final Fingerprint v2 = view.mask(p2);
+        assertSame(v1, v2);
+        assertEquals(M.mask(p2), v2);
+        assertEquals(2, v2.cardinality());
+        assertArrayEquals(new short[]{ 5, 10, 15, 20, 25, 30, 64, 130 }, p1.toIndizesArray());
+        // other fingerprints are masked as usual
+        final ArrayFingerprint a = p1.asArray();
+        assertArrayEquals(M.mask(a).toIndizesArray(), view.mask(a).toIndizesArray());
+    }
+
+    private static List<String> pairs(FPIter2 iter) {
+        final List<String> pairs = new ArrayList<>();
+        for (FPIter2 pair : iter) pairs.add(pair.getIndex() + ":" + pair.isLeftSet() + "," + pair.isRightSet());
+        return pairs;
+    }
+
     @Test
     public void testProbabilisticFingerprint() {
         final MaskedFingerprintVersion M = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(0,100).toMask();
@@ -20,24 +20,25 @@
 
 package de.unijena.bioinf.storage.db.nosql;
 
+import de.unijena.bioinf.storage.db.nosql.utils.FieldAccessors;
 import org.apache.commons.io.function.IORunnable;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.*;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
-import static de.unijena.bioinf.storage.db.nosql.utils.ExtFieldUtils.getAllField;
-import static de.unijena.bioinf.storage.db.nosql.utils.ExtFieldUtils.getAllFieldValue;
 
 public interface Database<DocType> extends Closeable, AutoCloseable {
+    /**
+     * Maximum number of values in a single {@code in} filter of bulk fetches and joins.
+     */
+    int BULK_FETCH_SIZE = 1000;
+
     void disableIndices(Class<?> clazz, Index... keep);
 
     void enableIndices(Class<?> clazz);
@@ -147,61 +148,54 @@ public interface Database<DocType> extends Closeable, AutoCloseable {
     }
 
     default <P, C> P fetchChild(final P parent, String localField, String foreignField, String targetField, Class<C> childClass, String... withOptionalChildFields) throws IOException {
-        try {
-            Object matchingValue = getAllFieldValue(parent, localField);
-            Field target = getAllField(parent.getClass(), targetField);
-
-            List<C> targetChildren =
-                    findStr(Filter.where(foreignField).eq(matchingValue), childClass, withOptionalChildFields)
-                            .toList();
-
-            if (targetChildren.isEmpty())
-                target.set(parent, null);
-            else if (targetChildren.size() == 1)
-                target.set(parent, targetChildren.get(0));
-            else
+        FieldAccessors accessors = FieldAccessors.of(parent.getClass());
+        Object matchingValue = accessors.get(parent, localField);
+
+        List<C> targetChildren =
+                findStr(Filter.where(foreignField).eq(matchingValue), childClass, withOptionalChildFields)
+                        .toList();
+
+        if (targetChildren.isEmpty())
+            accessors.set(parent, targetField, null);
+        else if (targetChildren.size() == 1)
+            accessors.set(parent, targetField, targetChildren.get(0));
+        else
+            throw new IllegalStateException("Multiple matching children objects found but single candidate expected");
+        return parent;
+    }
+
+    /**
+     * Same as {@link #fetchChild(Object, String, String, String, Class, String...)} for many parents, but the
+     * children are queried with one {@code in} filter per {@link #BULK_FETCH_SIZE} distinct values of the local field.
+     * The foreign field must be a field of the child class.
+     */
+    default <P, C> Collection<P> fetchChildForAll(final Collection<P> parents, String localField, String foreignField, String targetField, Class<C> childClass, String... withOptionalChildFields) throws IOException {
+        Object[] matchingValues = getAllFieldValues(parents, localField);
+        Map<Object, List<C>> children = findChildrenByForeignField(matchingValues, foreignField, childClass, withOptionalChildFields);
+        int i = 0;
+        for (P parent : parents) {
+            List<C> targetChildren = matchingValues[i] == null ? List.of() : children.getOrDefault(joinKey(matchingValues[i]), List.of());
+            i++;
+            if (targetChildren.size() > 1)
                 throw new IllegalStateException("Multiple matching children objects found but single candidate expected");
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
+            FieldAccessors.of(parent.getClass()).set(parent, targetField, targetChildren.isEmpty() ? null : targetChildren.get(0));
         }
-        return parent;
+        return parents;
     }
 
+    @SuppressWarnings("unchecked")
     private static <P, C> P fetchChildren(final P parent, String targetField, Collection<? extends C> targetChildren) throws IOException {
-        try {
-            //todo @MEL can we call join here. This might be duplicated code with the Joining interator.
-            final Field field = getAllField(parent.getClass(), targetField);
-
-            if (!targetChildren.isEmpty()) {
-                Collection<C> collection = (Collection<C>) field.get(parent);
-                if (collection == null) {
-                    if (field.getType() == List.class) {
-                        collection = new ArrayList<>(targetChildren);
-                    } else if (field.getType() == BlockingDeque.class) {
-                        collection = new LinkedBlockingDeque<>(targetChildren);
-                    } else if (field.getType() == BlockingQueue.class) {
-                        collection = new LinkedBlockingQueue<>(targetChildren);
-                    } else if (field.getType() == Deque.class || field.getType() == Queue.class) {
-                        collection = new ArrayDeque<>(targetChildren);
-                    } else if (field.getType() == Set.class) {
-                        collection = new HashSet<>(targetChildren);
-                    } else if (field.getType() == SortedSet.class) {
-                        collection = new TreeSet<>(targetChildren);
-                    } else if (field.getType() == TransferQueue.class) {
-                        collection = new LinkedTransferQueue<>(targetChildren);
-                    } else {
-                        collection = (Collection<C>) field.getType().getDeclaredConstructor().newInstance();
-                        collection.addAll(targetChildren);
-                    }
-                }
-                field.set(parent, collection);
+        //todo @MEL can we call join here. This might be duplicated code with the Joining interator.
+        if (!targetChildren.isEmpty()) {
+            FieldAccessors accessors = FieldAccessors.of(parent.getClass());
+            Collection<C> collection = (Collection<C>) accessors.get(parent, targetField);
+            if (collection == null) {
+                collection = FieldAccessors.newCollection(accessors.getType(targetField));
+                collection.addAll(targetChildren);
             }
-            return parent;
-        } catch (IllegalAccessException | InstantiationException | InvocationTargetException |
-                 NoSuchMethodException e) {
-            throw new RuntimeException(e);
+            accessors.set(parent, targetField, collection);
         }
-
+        return parent;
     }
 
 
@@ -216,20 +210,62 @@ public interface Database<DocType> extends Closeable, AutoCloseable {
     }
 
     default <P, C> P fetchAllChildren(final P parent, String localField, String foreignField, String targetField, Class<C> childClass, String... withOptionalChildFields) throws IOException {
-        try {
-            Object matchingValue = getAllFieldValue(parent, localField);
+        Object matchingValue = FieldAccessors.of(parent.getClass()).get(parent, localField);
 
-            List<C> targetChildren =
-                    findStr(Filter.where(foreignField).eq(matchingValue), childClass, withOptionalChildFields)
-                            .toList();
+        List<C> targetChildren =
+                findStr(Filter.where(foreignField).eq(matchingValue), childClass, withOptionalChildFields)
+                        .toList();
 
-            fetchChildren(parent, targetField, targetChildren);
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
+        fetchChildren(parent, targetField, targetChildren);
         return parent;
     }
 
+    /**
+     * Same as {@link #fetchAllChildren(Object, String, String, String, Class, String...)} for many parents, but the
+     * children are queried with one {@code in} filter per {@link #BULK_FETCH_SIZE} distinct values of the local field.
+     * The foreign field must be a field of the child class.
+     */
+    default <P, C> Collection<P> fetchAllChildrenForAll(final Collection<P> parents, String localField, String foreignField, String targetField, Class<C> childClass, String... withOptionalChildFields) throws IOException {
+        Object[] matchingValues = getAllFieldValues(parents, localField);
+        Map<Object, List<C>> children = findChildrenByForeignField(matchingValues, foreignField, childClass, withOptionalChildFields);
+        int i = 0;
+        for (P parent : parents) {
+            if (matchingValues[i] != null)
+                fetchChildren(parent, targetField, children.getOrDefault(joinKey(matchingValues[i]), List.of()));
+            i++;
+        }
+        return parents;
+    }
+
+    private static Object[] getAllFieldValues(Collection<?> objects, String field) {
+        Object[] values = new Object[objects.size()];
+        int i = 0;
+        for (Object object : objects)
+            values[i++] = FieldAccessors.of(object.getClass()).get(object, field);
+        return values;
+    }
+
+    private <C> Map<Object, List<C>> findChildrenByForeignField(Object[] matchingValues, String foreignField, Class<C> childClass, String... withOptionalChildFields) throws IOException {
+        Comparable<?>[] keys = Arrays.stream(matchingValues).filter(Objects::nonNull).distinct().toArray(Comparable[]::new);
+        Map<Object, List<C>> children = new HashMap<>(keys.length);
+        for (int from = 0; from < keys.length; from += BULK_FETCH_SIZE) {
+            Comparable<?>[] batch = Arrays.copyOfRange(keys, from, Math.min(from + BULK_FETCH_SIZE, keys.length));
+            for (C child : find(Filter.where(foreignField).in(batch), childClass, withOptionalChildFields))
+                children.computeIfAbsent(joinKey(FieldAccessors.of(child.getClass()).get(child, foreignField)), k -> new ArrayList<>()).add(child);
+        }
+        return children;
+    }
+
+    /**
+     * Normalizes integral numbers to long. Queries match numbers of different types (e.g. int and long), so children
+     * fetched in bulk have to be grouped by the normalized value of their foreign field as well.
+     */
+    static Object joinKey(Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+            return ((Number) value).longValue();
+        return value;
+    }
+
     <T> boolean containsPrimaryKey(Object primaryKey, Class<T> clazz) throws IOException;
 
     <T> long count(Filter filter, Class<T> clazz) throws IOException;
@@ -22,6 +22,7 @@ package de.unijena.bioinf.storage.db.nosql;
 
 import com.fasterxml.jackson.databind.JsonDeserializer;
 import com.fasterxml.jackson.databind.JsonSerializer;
+import de.unijena.bioinf.storage.db.nosql.utils.FieldAccessors;
 import lombok.Getter;
 import org.apache.commons.lang3.reflect.FieldUtils;
 import org.jetbrains.annotations.NotNull;
@@ -38,6 +39,11 @@ public class Metadata {
     @Getter
     private int schemaVersion = 1;
 
+    /**
+     * older schema versions whose data can be read with the current schema without any changes
+     */
+    final public Set<Integer> readableSchemaVersions = new HashSet<>();
+
     final public Map<Class<?>, JsonSerializer<?>> serializers = new HashMap<>();
 
     final public Map<Class<?>, JsonDeserializer<?>> deserializers = new HashMap<>();
@@ -71,12 +77,19 @@ public class Metadata {
         return this;
     }
 
+    public Metadata readableSchemaVersions(int... schemaVersions){
+        for (int version : schemaVersions) this.readableSchemaVersions.add(version);
+        return this;
+    }
+
     public <T> Metadata addRepository(
             Class<T> clazz,
             Index... indices
     ) throws IOException {
         Field pkField = findAndValidatePrimaryKeyField(clazz);
         this.pkFields.put(clazz, pkField);
+        // resolve field accessors once, so that joins and fetches do not pay for reflection lookups
+        FieldAccessors.of(clazz);
         Set<Index> ind = new LinkedHashSet<>(List.of(indices));
         ind.add(new Index(IndexType.UNIQUE, pkField.getName()));
         this.repoIndices.put(clazz, ind.toArray(Index[]::new));
@@ -90,6 +103,7 @@ public class Metadata {
     ) throws IOException {
         Field pkField = findAndValidatePrimaryKeyFieldByName(clazz, pkFieldName);
         this.pkFields.put(clazz, pkField);
+        FieldAccessors.of(clazz);
         Set<Index> ind = new LinkedHashSet<>(List.of(indices));
         ind.add(new Index(IndexType.UNIQUE, pkFieldName));
         this.repoIndices.put(clazz, ind.toArray(Index[]::new));
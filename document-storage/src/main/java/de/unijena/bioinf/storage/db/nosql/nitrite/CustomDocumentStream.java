@@ -61,8 +61,8 @@ public class CustomDocumentStream extends DocumentStream {
         return new InjectedDocumentStream(this.recordStream, this.processorChain, injectedFields, collection);
     }
 
-    public RecordStream<Document> join(Function<Object, Iterable<Document>> children, String localField, String targetField) {
-        return new JoinedDocumentStream(this.recordStream, this.processorChain, children, localField, targetField);
+    public RecordStream<Document> join(Function<Comparable<?>[], Iterable<Document>> children, String localField, String foreignField, String targetField) {
+        return new JoinedDocumentStream(this.recordStream, this.processorChain, children, localField, foreignField, targetField);
     }
 
     @SuppressWarnings("unchecked")
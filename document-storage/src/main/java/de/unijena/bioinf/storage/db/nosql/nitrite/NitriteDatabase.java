@@ -35,10 +35,12 @@ import io.hypersistence.tsid.TSID;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.compress.utils.Lists;
+import org.apache.commons.io.function.IOFunction;
 import org.apache.commons.lang3.ClassUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 import org.dizitart.no2.Nitrite;
+import org.dizitart.no2.NitriteBuilder;
 import org.dizitart.no2.collection.*;
 import org.dizitart.no2.collection.events.CollectionEventListener;
 import org.dizitart.no2.collection.events.EventType;
@@ -49,10 +51,13 @@ import org.dizitart.no2.common.mapper.JacksonMapperModule;
 import org.dizitart.no2.common.mapper.NitriteMapper;
 import org.dizitart.no2.common.module.NitriteModule;
 import org.dizitart.no2.common.processors.ProcessorChain;
+import org.dizitart.no2.exceptions.MigrationException;
 import org.dizitart.no2.filters.FluentFilter;
 import org.dizitart.no2.filters.NitriteFilter;
 import org.dizitart.no2.index.IndexDescriptor;
 import org.dizitart.no2.index.IndexOptions;
+import org.dizitart.no2.migration.InstructionSet;
+import org.dizitart.no2.migration.Migration;
 import org.dizitart.no2.mvstore.MVStoreModule;
 import org.dizitart.no2.repository.ObjectRepository;
 import org.jetbrains.annotations.Nullable;
@@ -66,6 +71,8 @@ import java.math.BigInteger;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -86,24 +93,31 @@ public class NitriteDatabase implements Database<Document> {
     @Getter
     private final NitriteMapper nitriteMapper;
 
-    private final Map<Class<?>, ObjectRepository<?>> repositories = Collections.synchronizedMap(new HashMap<>());
+    private final Map<Class<?>, ObjectRepository<?>> repositories = new ConcurrentHashMap<>();
 
-    private final Map<Class<?>, Set<String>> optionalRepoFields = Collections.synchronizedMap(new HashMap<>());
+    private final Map<Class<?>, Set<String>> optionalRepoFields = new ConcurrentHashMap<>();
 
-    private final Map<Class<?>, Field> primaryKeyFields = Collections.synchronizedMap(new HashMap<>());
+    private final Map<Class<?>, Field> primaryKeyFields = new ConcurrentHashMap<>();
 
-    private final Map<Class<?>, Supplier<?>> primaryKeySuppliers = Collections.synchronizedMap(new HashMap<>());
+    private final Map<Class<?>, Supplier<?>> primaryKeySuppliers = new ConcurrentHashMap<>();
 
-    private final Map<String, NitriteCollection> collections = Collections.synchronizedMap(new HashMap<>());
+    private final Map<String, NitriteCollection> collections = new ConcurrentHashMap<>();
 
-    private final Map<String, Set<String>> optionalCollectionFields = Collections.synchronizedMap(new HashMap<>());
+    private final Map<String, Set<String>> optionalCollectionFields = new ConcurrentHashMap<>();
 
-    private final Map<Long, CollectionEventListener> listeners = Collections.synchronizedMap(new HashMap<>());
+    private final Map<Long, CollectionEventListener> listeners = new ConcurrentHashMap<>();
 
     // LOCKS
     private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     private final ReentrantReadWriteLock.WriteLock writeLock = readWriteLock.writeLock();
     private final ReentrantReadWriteLock.ReadLock readLock = readWriteLock.readLock();
+    /**
+     * Write locks per repository class and per collection name. Writes to different repositories only share the read
+     * lock of {@link #readWriteLock} and run in parallel, while {@link #write(Callable)} still excludes everything.
+     * Nitrite itself synchronizes concurrent access to a single collection, these locks make the primary key
+     * assignment and the check-then-write of upserts atomic.
+     */
+    private final Map<Object, ReentrantLock> repositoryLocks = new ConcurrentHashMap<>();
     private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
     private final ReentrantReadWriteLock.WriteLock stateWriteLock = stateLock.writeLock();
     private final ReentrantReadWriteLock.ReadLock stateReadLock = stateLock.readLock();
@@ -123,7 +137,7 @@ public class NitriteDatabase implements Database<Document> {
         this.nitriteMapper = this.db.getConfig().nitriteMapper();
     }
 
-    private Nitrite initDB(Path file, Metadata meta, MVStoreCompression compress, int cacheSizeMiB, int commitBufferByte) {
+    private Nitrite initDB(Path file, Metadata meta, MVStoreCompression compress, int cacheSizeMiB, int commitBufferByte) throws IOException {
         SimpleModule module = new SimpleModule("sirius-nitrite", Version.unknownVersion());
         for (Map.Entry<Class<?>, JsonSerializer<?>> entry : meta.serializers.entrySet()) {
             addSerializer(module, entry.getKey(), entry.getValue());
@@ -139,10 +153,30 @@ public class NitriteDatabase implements Database<Document> {
                 .build();
 //        NitriteModule storeModule = RocksDBModule.withConfig().filePath(file.toFile()).build();
 
-        return Nitrite.builder().loadModule(storeModule)
+        NitriteBuilder builder = Nitrite.builder().loadModule(storeModule)
                 .loadModule(new JacksonMapperModule(module))
-                .schemaVersion(meta.getSchemaVersion())
-                .openOrCreate();
+                .schemaVersion(meta.getSchemaVersion());
+        // older schema versions that are still readable are upgraded without changing any data
+        for (int version : meta.readableSchemaVersions) {
+            if (version < meta.getSchemaVersion())
+                builder.addMigrations(new Migration(version, meta.getSchemaVersion()) {
+                    @Override
+                    public void migrate(InstructionSet instructionSet) {
+                    }
+                });
+        }
+        try {
+            return builder.openOrCreate();
+        } catch (MigrationException e) {
+            throw new IOException("Database '" + file + "' has an incompatible schema version. Supported version is " + meta.getSchemaVersion() + ". It might have been created by a newer version of this software.", e);
+        }
+    }
+
+    /**
+     * @return schema version stored in the database file
+     */
+    public int getStoredSchemaVersion() {
+        return db.getDatabaseMetaData().getSchemaVersion();
     }
 
     private void initCollections(Metadata meta) {
@@ -381,6 +415,10 @@ public class NitriteDatabase implements Database<Document> {
         });
     }
 
+    /**
+     * Runs the given callable exclusively, e.g. to modify several repositories atomically.
+     * Must not be called from within a write to a single repository, since the global lock cannot be upgraded.
+     */
     public <T> T write(Callable<T> callable) throws IOException {
         return this.callIfOpen(() -> {
             writeLock.lock();
@@ -392,6 +430,27 @@ public class NitriteDatabase implements Database<Document> {
         });
     }
 
+    /**
+     * Runs the given callable exclusively for the repository or collection identified by the given key, but in
+     * parallel to reads and to writes of other repositories.
+     */
+    private <T> T write(Object repositoryKey, Callable<T> callable) throws IOException {
+        return this.callIfOpen(() -> {
+            readLock.lock();
+            try {
+                ReentrantLock lock = repositoryLocks.computeIfAbsent(repositoryKey, k -> new ReentrantLock());
+                lock.lock();
+                try {
+                    return callable.call();
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                readLock.unlock();
+            }
+        });
+    }
+
     @Override
     public Set<Class<?>> getAllRegisteredClasses() {
         return this.repositories.keySet();
@@ -525,7 +584,7 @@ public class NitriteDatabase implements Database<Document> {
     @Override
     @SuppressWarnings("unchecked")
     public <T> int insert(T object) throws IOException {
-        return this.write(() -> {
+        return this.write(object.getClass(), () -> {
             ObjectRepository<T> repo = this.getRepository(object);
             Class<T> clazz = (Class<T>) object.getClass();
             Field pkField = primaryKeyFields.get(clazz);
@@ -542,11 +601,13 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public <T> int insertAll(Iterable<T> objects) throws IOException {
-        return this.write(() -> {
-            Triple<T[], ObjectRepository<T>, Class<T>> triple = this.getRepository(objects);
-            if (triple == null) {
-                return 0;
-            }
+        Triple<T[], ObjectRepository<T>, Class<T>> triple = this.getRepository(objects);
+        if (triple == null) {
+            return 0;
+        }
+        return this.write(triple.getRight(), () -> {
+            // look up the repository under the lock, it might have been replaced by clearRepository
+            ObjectRepository<T> repo = this.getRepository(triple.getRight());
             Field pkField = primaryKeyFields.get(triple.getRight());
             Supplier<?> primaryKeySupplier = this.primaryKeySuppliers.get(triple.getRight());
             for (T object : triple.getLeft()) {
@@ -557,13 +618,13 @@ public class NitriteDatabase implements Database<Document> {
                     pkField.set(object, primaryKeySupplier.get());
                 }
             }
-            return triple.getMiddle().insert(triple.getLeft()).getAffectedCount();
+            return repo.insert(triple.getLeft()).getAffectedCount();
         });
     }
 
     @Override
     public int insert(String collectionName, Document document) throws IOException {
-        return this.write(() -> {
+        return this.write(collectionName, () -> {
             NitriteCollection collection = this.getCollection(collectionName);
             WriteResult result = collection.insert(document);
             if (result.iterator().hasNext()) {
@@ -575,7 +636,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public int insertAll(String collectionName, Iterable<Document> documents) throws IOException {
-        return this.write(() -> {
+        return this.write(collectionName, () -> {
             NitriteCollection collection = this.getCollection(collectionName);
             Document[] docs = StreamSupport.stream(documents.spliterator(),false).toArray(Document[]::new);
             WriteResult result = collection.insert(docs);
@@ -591,7 +652,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public <T> int upsert(T object) throws IOException {
-        return this.write(() -> {
+        return this.write(object.getClass(), () -> {
             ObjectRepository<T> repo = this.getRepository(object);
             Pair<Object, NitriteFilter> filter = createUniqueFilter(object, primaryKeyFields.get(object.getClass()));
             if (filter.getLeft() != null) {
@@ -604,17 +665,18 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public <T> int upsertAll(Iterable<T> objects) throws IOException {
-        return this.write(() -> {
-            Triple<T[], ObjectRepository<T>, Class<T>> triple = this.getRepository(objects);
-            if (triple == null) {
-                return 0;
-            }
+        Triple<T[], ObjectRepository<T>, Class<T>> triple = this.getRepository(objects);
+        if (triple == null) {
+            return 0;
+        }
+        return this.write(triple.getRight(), () -> {
+            ObjectRepository<T> repo = this.getRepository(triple.getRight());
             int count = 0;
             List<T> toInsert = new ArrayList<>();
             for (T o : triple.getLeft()) {
                 Pair<Object, NitriteFilter> filter = createUniqueFilter(o, primaryKeyFields.get(o.getClass()));
                 if (filter.getLeft() != null) {
-                    count += triple.getMiddle().update(filter.getRight(), o, UpdateOptions.updateOptions(true)).getAffectedCount();
+                    count += repo.update(filter.getRight(), o, UpdateOptions.updateOptions(true)).getAffectedCount();
                 } else {
                     toInsert.add(o);
                 }
@@ -628,7 +690,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public int upsert(String collectionName, Document document) throws IOException {
-        return this.write(() -> {
+        return this.write(collectionName, () -> {
             NitriteCollection collection = this.getCollection(collectionName);
             return collection.update(document, true).getAffectedCount();
         });
@@ -636,7 +698,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public int upsertAll(String collectionName, Iterable<Document> documents) throws IOException {
-        return this.write(() -> {
+        return this.write(collectionName, () -> {
             NitriteCollection collection = this.getCollection(collectionName);
             int count = 0;
             for (Document doc : documents) {
@@ -797,82 +859,87 @@ public class NitriteDatabase implements Database<Document> {
         return CustomDocumentStream.of(documents).inject(new HashSet<>(Arrays.asList(optionalFields)), getCollection(collectionName));
     }
 
-    private <P, C> Iterable<P> join(Class<C> childClass, Iterable<P> parents, Function<Object, Iterable<Document>> children, String localField, String targetField) throws IOException {
+    private <P, C> Iterable<P> join(Class<C> childClass, Iterable<P> parents, Function<Comparable<?>[], Iterable<Document>> children, String localField, String foreignField, String targetField) throws IOException {
         if (parents instanceof CustomObjectCursor<P> cursor) {
             RecordStream<Document> parentDocuments = cursor.getRecordStream();
             return new CustomObjectCursor<>(nitriteMapper,
                     CustomDocumentStream.of(parentDocuments).join(
                             children,
                             localField,
+                            foreignField,
                             targetField),
                     cursor.getFindPlan(),
                     cursor.getType());
         } else {
-            return new JoinedReflectionIterable<>(childClass, parents, children, localField, targetField, nitriteMapper);
+            return new JoinedReflectionIterable<>(childClass, parents, children, localField, foreignField, targetField, nitriteMapper);
         }
     }
 
+    /**
+     * Combines the given child filter with the {@code in} filter of a join batch. The child filter is reused for
+     * every batch, so its parent is reset after the query has been created.
+     */
+    private static Iterable<Document> findJoinBatch(Filter childFilter, String foreignField, Comparable<?>[] localObjects, IOFunction<Filter, Iterable<Document>> find) throws IOException {
+        Filter.FilterNode root = (childFilter instanceof Filter.FilterClause) ? (Filter.FilterNode) childFilter : childFilter.getParent();
+        while (root.getParent() != null)
+            root = root.getParent();
+        Iterable<Document> result = find.apply(Filter.and(childFilter, Filter.where(foreignField).in(localObjects)));
+        root.setParent(null);
+        return result;
+    }
+
     @Override
     public <P, C> Iterable<P> joinAllChildren(Class<C> childClass, Iterable<P> parents, String localField, String foreignField, String targetField, String... withOptionalChildFields) throws IOException {
-        return join(childClass, parents, (localObject) -> {
+        return join(childClass, parents, (localObjects) -> {
             try {
-                return maybeProjectWithoutConvert(childClass, Filter.where(foreignField).eq(localObject), null, withOptionalChildFields);
+                return maybeProjectWithoutConvert(childClass, Filter.where(foreignField).in(localObjects), null, withOptionalChildFields);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-        }, localField, targetField);
+        }, localField, foreignField, targetField);
     }
 
     @Override
     public <P, C> Iterable<P> joinChildren(Class<C> childClass, Filter childFilter, Iterable<P> parents, String localField, String foreignField, String targetField, String... withOptionalChildFields) throws IOException {
-        return join(childClass, parents, (localObject) -> {
+        return join(childClass, parents, (localObjects) -> {
             try {
-                Filter.FilterNode root = (childFilter instanceof Filter.FilterClause) ? (Filter.FilterNode) childFilter : childFilter.getParent();
-                while (root.getParent() != null)
-                    root = root.getParent();
-                Iterable<Document> result = maybeProjectWithoutConvert(childClass, Filter.and(childFilter, Filter.where(foreignField).eq(localObject)), null, withOptionalChildFields);
-                root.setParent(null);
-                return result;
+                return findJoinBatch(childFilter, foreignField, localObjects, filter -> maybeProjectWithoutConvert(childClass, filter, null, withOptionalChildFields));
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-        }, localField, targetField);
+        }, localField, foreignField, targetField);
     }
 
     @Override
     public Iterable<Document> joinAllChildren(String childCollectionName, Iterable<Document> parents, String localField, String foreignField, String targetField, String... withOptionalChildFields) throws IOException {
         return CustomDocumentStream.of(parents).join(
-                (localObject) -> {
+                (localObjects) -> {
                     try {
-                        return find(childCollectionName, Filter.where(foreignField).eq(localObject), withOptionalChildFields);
+                        return find(childCollectionName, Filter.where(foreignField).in(localObjects), withOptionalChildFields);
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
                 },
                 localField,
+                foreignField,
                 targetField);
     }
 
     @Override
     public Iterable<Document> joinChildren(String childCollectionName, Filter childFilter, Iterable<Document> parents, String localField, String foreignField, String targetField, String... withOptionalChildFields) throws IOException {
         return CustomDocumentStream.of(parents).join(
-                (localObject) -> {
+                (localObjects) -> {
                     try {
-                        Filter.FilterNode root = (childFilter instanceof Filter.FilterClause) ? (Filter.FilterNode) childFilter : childFilter.getParent();
-                        while (root.getParent() != null)
-                            root = root.getParent();
-                        Iterable<Document> c = find(childCollectionName, Filter.and(childFilter, Filter.where(foreignField).eq(localObject)), withOptionalChildFields);
-                        root.setParent(null);
-                        return c;
+                        return findJoinBatch(childFilter, foreignField, localObjects, filter -> find(childCollectionName, filter, withOptionalChildFields));
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
                 },
                 localField,
+                foreignField,
                 targetField);
     }
 
-
     @Override
     public <T> boolean containsPrimaryKey(Object primaryKey, Class<T> clazz) throws IOException {
         return count(Filter.where(this.primaryKeyFields.get(clazz).getName()).eq(primaryKey), clazz) > 0;
@@ -931,7 +998,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public <T> int remove(T object) throws IOException {
-        return this.write(() -> {
+        return this.write(object.getClass(), () -> {
             ObjectRepository<T> repo = this.getRepository(object);
             Pair<Object, NitriteFilter> pair = createUniqueFilter(object, primaryKeyFields.get(object.getClass()));
             return repo.remove(pair.getRight()).getAffectedCount();
@@ -940,15 +1007,16 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public <T> int removeAll(Iterable<T> objects) throws IOException {
-        return this.write(() -> {
-            Triple<T[], ObjectRepository<T>, Class<T>> triple = this.getRepository(objects);
-            if (triple == null) {
-                return 0;
-            }
+        Triple<T[], ObjectRepository<T>, Class<T>> triple = this.getRepository(objects);
+        if (triple == null) {
+            return 0;
+        }
+        return this.write(triple.getRight(), () -> {
+            ObjectRepository<T> repo = this.getRepository(triple.getRight());
             int count = 0;
             for (T o : triple.getLeft()) {
                 Pair<Object, NitriteFilter> pair = createUniqueFilter(o, primaryKeyFields.get(o.getClass()));
-                count += triple.getMiddle().remove(pair.getRight()).getAffectedCount();
+                count += repo.remove(pair.getRight()).getAffectedCount();
             }
             return count;
         });
@@ -956,7 +1024,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public <T> int removeAll(Filter filter, Class<T> clazz) throws IOException {
-        return this.write(() -> {
+        return this.write(clazz, () -> {
             ObjectRepository<T> repo = this.getRepository(clazz);
             NitriteFilter f = getFilter(filter);
             return repo.remove(f).getAffectedCount();
@@ -965,7 +1033,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public <T> boolean removeOne(Filter filter, Class<T> clazz) throws IOException {
-        return this.write(() -> {
+        return this.write(clazz, () -> {
             ObjectRepository<T> repo = this.getRepository(clazz);
             NitriteFilter f = getFilter(filter);
             return repo.remove(f, true).getAffectedCount() > 0;
@@ -979,7 +1047,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public int remove(String collectionName, Document document) throws IOException {
-        return this.write(() -> {
+        return this.write(collectionName, () -> {
             NitriteCollection collection = this.getCollection(collectionName);
             return collection.remove(document).getAffectedCount();
         });
@@ -987,7 +1055,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public int removeAll(String collectionName, Iterable<Document> documents) throws IOException {
-        return this.write(() -> {
+        return this.write(collectionName, () -> {
             NitriteCollection collection = this.getCollection(collectionName);
             int count = 0;
             for (Document doc : documents) {
@@ -999,7 +1067,7 @@ public class NitriteDatabase implements Database<Document> {
 
     @Override
     public int removeAll(String collectionName, Filter filter) throws IOException {
-        return this.write(() -> {
+        return this.write(collectionName, () -> {
             NitriteCollection collection = this.getCollection(collectionName);
             NitriteFilter f = getFilter(filter);
             return collection.remove(f).getAffectedCount();
@@ -17,9 +17,9 @@
  *  You should have received a copy of the GNU General Public License along with SIRIUS.
  *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
  */
-
 package de.unijena.bioinf.storage.db.nosql.nitrite.joining;
 
+import de.unijena.bioinf.storage.db.nosql.Database;
 import org.dizitart.no2.collection.Document;
 import org.dizitart.no2.collection.NitriteId;
 import org.dizitart.no2.common.RecordStream;
@@ -28,28 +28,32 @@ import org.dizitart.no2.common.tuples.Pair;
 import org.dizitart.no2.exceptions.InvalidOperationException;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
 import java.util.function.Function;
 
+/**
+ * Joins the children of parent documents. Parents are read in batches of {@link Database#BULK_FETCH_SIZE}, so
+ * that the children of a whole batch are fetched with a single query for all distinct values of the local field.
+ */
 public class JoinedDocumentStream implements RecordStream<Document> {
 
     private final RecordStream<Pair<NitriteId, Document>> recordStream;
     private final ProcessorChain processorChain;
 
-    private final Function<Object, Iterable<Document>> children;
+    private final Function<Comparable<?>[], Iterable<Document>> children;
 
     private final String localField;
 
+    private final String foreignField;
+
     private final String targetField;
 
-    public JoinedDocumentStream(RecordStream<Pair<NitriteId, Document>> recordStream, ProcessorChain processorChain, Function<Object, Iterable<Document>> children, String localField, String targetField) {
+    public JoinedDocumentStream(RecordStream<Pair<NitriteId, Document>> recordStream, ProcessorChain processorChain, Function<Comparable<?>[], Iterable<Document>> children, String localField, String foreignField, String targetField) {
         this.recordStream = recordStream;
         this.processorChain = processorChain;
         this.children = children;
         this.localField = localField;
+        this.foreignField = foreignField;
         this.targetField = targetField;
     }
 
@@ -58,75 +62,91 @@ public class JoinedDocumentStream implements RecordStream<Document> {
     @Override
     public Iterator<Document> iterator() {
         Iterator<Pair<NitriteId, Document>> iterator = this.recordStream == null ? Collections.emptyIterator() : this.recordStream.iterator();
-        return new JoinedDocumentStream.JoinedDocumentIterator(iterator, this.processorChain, this.children, this.localField, this.targetField);
+        return new JoinedDocumentStream.JoinedDocumentIterator(iterator, this.processorChain, this.children, this.localField, this.foreignField, this.targetField);
+    }
+
+    /**
+     * @return all children of the given parent values grouped by the {@link Database#joinKey(Object)} of their foreign field
+     */
+    static Map<Object, List<Document>> fetchChildren(Function<Comparable<?>[], Iterable<Document>> children, Collection<Object> localValues, String foreignField) {
+        Comparable<?>[] keys = localValues.stream().filter(Objects::nonNull).distinct().toArray(Comparable[]::new);
+        if (keys.length == 0)
+            return Map.of();
+
+        Map<Object, List<Document>> grouped = new HashMap<>(keys.length);
+        for (Document child : children.apply(keys)) {
+            Object key = child.get(foreignField);
+            if (key != null)
+                grouped.computeIfAbsent(Database.joinKey(key), k -> new ArrayList<>()).add(child);
+        }
+        return grouped;
     }
 
     private static class JoinedDocumentIterator implements Iterator<Document> {
 
         private final Iterator<Pair<NitriteId, Document>> iterator;
         private final ProcessorChain processorChain;
-        private Document nextElement = null;
+        private final Deque<Document> batch = new ArrayDeque<>();
 
-        private final Function<Object, Iterable<Document>> children;
+        private final Function<Comparable<?>[], Iterable<Document>> children;
 
         private final String localField;
 
+        private final String foreignField;
+
         private final String targetField;
 
-        JoinedDocumentIterator(Iterator<Pair<NitriteId, Document>> iterator, ProcessorChain processorChain, Function<Object, Iterable<Document>> children, String localField, String targetField) {
+        JoinedDocumentIterator(Iterator<Pair<NitriteId, Document>> iterator, ProcessorChain processorChain, Function<Comparable<?>[], Iterable<Document>> children, String localField, String foreignField, String targetField) {
             this.iterator = iterator;
             this.processorChain = processorChain;
             this.children = children;
             this.localField = localField;
+            this.foreignField = foreignField;
             this.targetField = targetField;
-            this.nextMatch();
         }
 
         public boolean hasNext() {
-            return this.nextElement != null;
+            if (batch.isEmpty())
+                nextBatch();
+            return !batch.isEmpty();
         }
 
         public Document next() {
-            Document returnValue = this.nextElement.clone();
-            this.nextMatch();
-            return returnValue;
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return batch.poll().clone();
         }
 
-        private void nextMatch() {
-            while(true) {
-                if (this.iterator.hasNext()) {
-                    Pair<NitriteId, Document> next = this.iterator.next();
-                    Document document = next.getSecond();
-                    if (document == null) {
-                        continue;
-                    }
-
-                    Document targetDoc = Document.createDocument();
-                    for (Pair<String, Object> pair : document) {
-                        targetDoc.put(pair.getFirst(), pair.getSecond());
-                    }
-                    Object localObject = targetDoc.get(localField);
-                    if (localObject == null) {
-                        this.nextElement = targetDoc;
-                        return;
-                    }
-
-                    List<Document> target = new ArrayList<>();
-                    for (Document foreignDoc : children.apply(localObject)) {
-                        target.add(foreignDoc);
-                    }
-                    if (!target.isEmpty()) {
-                        targetDoc.put(targetField, target);
-                    }
-
-                    targetDoc = processorChain.processAfterRead(targetDoc);
-
-                    this.nextElement = targetDoc;
-                    return;
-                }
+        private void nextBatch() {
+            List<Document> parents = new ArrayList<>();
+            while (iterator.hasNext() && parents.size() < Database.BULK_FETCH_SIZE) {
+                Document document = iterator.next().getSecond();
+                if (document == null)
+                    continue;
 
-                this.nextElement = null;
+                Document targetDoc = Document.createDocument();
+                for (Pair<String, Object> pair : document) {
+                    targetDoc.put(pair.getFirst(), pair.getSecond());
+                }
+                parents.add(targetDoc);
+            }
+            if (parents.isEmpty())
                 return;
+
+            Map<Object, List<Document>> childrenByKey = fetchChildren(children, parents.stream().map(p -> p.get(localField)).toList(), foreignField);
+            for (Document targetDoc : parents) {
+                Object localObject = targetDoc.get(localField);
+                if (localObject == null) {
+                    batch.add(targetDoc);
+                    continue;
+                }
+
+                List<Document> target = childrenByKey.get(Database.joinKey(localObject));
+                if (target != null && !target.isEmpty()) {
+                    targetDoc.put(targetField, new ArrayList<>(target));
+                }
+
+                batch.add(processorChain.processAfterRead(targetDoc));
             }
         }
 
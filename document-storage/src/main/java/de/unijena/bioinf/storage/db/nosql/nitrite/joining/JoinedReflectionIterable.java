@@ -17,21 +17,16 @@
  *  You should have received a copy of the GNU General Public License along with SIRIUS.
  *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
  */
-
 package de.unijena.bioinf.storage.db.nosql.nitrite.joining;
 
-import de.unijena.bioinf.storage.db.nosql.utils.ExtFieldUtils;
-import org.apache.commons.lang3.ClassUtils;
-import org.apache.commons.lang3.reflect.FieldUtils;
+import de.unijena.bioinf.storage.db.nosql.Database;
+import de.unijena.bioinf.storage.db.nosql.utils.FieldAccessors;
 import org.dizitart.no2.collection.Document;
 import org.dizitart.no2.common.mapper.NitriteMapper;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.util.*;
-import java.util.concurrent.*;
 import java.util.function.Function;
 
 public class JoinedReflectionIterable<P, C> implements Iterable<P> {
@@ -40,23 +35,22 @@ public class JoinedReflectionIterable<P, C> implements Iterable<P> {
 
     private final Iterable<P> parents;
 
-    private final Class<P> parentClass;
-
-    private final Function<Object, Iterable<Document>> children;
+    private final Function<Comparable<?>[], Iterable<Document>> children;
 
     private final String localField;
 
+    private final String foreignField;
+
     private final String targetField;
 
     private final NitriteMapper mapper;
 
-    @SuppressWarnings("unchecked")
-    public JoinedReflectionIterable(Class<C> childClass, Iterable<P> parents, Function<Object, Iterable<Document>> children, String localField, String targetField, NitriteMapper mapper) {
+    public JoinedReflectionIterable(Class<C> childClass, Iterable<P> parents, Function<Comparable<?>[], Iterable<Document>> children, String localField, String foreignField, String targetField, NitriteMapper mapper) {
         this.childClass = childClass;
         this.parents = parents;
-        this.parentClass = (parents.iterator().hasNext()) ? (Class<P>) parents.iterator().next().getClass() : null;
         this.children = children;
         this.localField = localField;
+        this.foreignField = foreignField;
         this.targetField = targetField;
         this.mapper = mapper;
     }
@@ -64,11 +58,7 @@ public class JoinedReflectionIterable<P, C> implements Iterable<P> {
     @NotNull
     @Override
     public Iterator<P> iterator() {
-        try {
-            return new JoinedReflectionIterator<>(parentClass, childClass, parents, children, localField, targetField, mapper);
-        } catch (NoSuchFieldException | IOException e) {
-            throw new RuntimeException(e);
-        }
+        return new JoinedReflectionIterator<>(childClass, parents, children, localField, foreignField, targetField, mapper);
     }
 
     static class JoinedReflectionIterator<P, C> implements Iterator<P> {
@@ -77,80 +67,75 @@ public class JoinedReflectionIterable<P, C> implements Iterable<P> {
 
         private final Iterator<P> parentIterator;
 
-        private final Function<Object, Iterable<Document>> children;
+        private final Deque<P> batch = new ArrayDeque<>();
+
+        private final Function<Comparable<?>[], Iterable<Document>> children;
 
         private final String localField;
 
-        private final Field targetField;
+        private final String foreignField;
+
+        private final String targetField;
 
         private final NitriteMapper mapper;
 
-        JoinedReflectionIterator(Class<P> parentClass, Class<C> childClass, Iterable<P> parents, Function<Object, Iterable<Document>> children, String localField, String targetField, NitriteMapper mapper) throws NoSuchFieldException, IOException {
+        JoinedReflectionIterator(Class<C> childClass, Iterable<P> parents, Function<Comparable<?>[], Iterable<Document>> children, String localField, String foreignField, String targetField, NitriteMapper mapper) {
             this.childClass = childClass;
             this.parentIterator = parents.iterator();
             this.children = children;
             this.localField = localField;
+            this.foreignField = foreignField;
+            this.targetField = targetField;
             this.mapper = mapper;
-            this.targetField = ExtFieldUtils.getAllField(parentClass, targetField);
-            if (!ClassUtils.getAllInterfaces(this.targetField.getType()).contains(Collection.class)) {
-                throw new IOException("targetField must be a collection.");
-            }
-            this.targetField.setAccessible(true);
         }
 
         @Override
         public boolean hasNext() {
-            return parentIterator.hasNext();
+            if (batch.isEmpty())
+                nextBatch();
+            return !batch.isEmpty();
         }
 
         @Override
-        @SuppressWarnings("unchecked")
         public P next() {
-            try {
-                P target = parentIterator.next();
-                Field localF = null;
-                for (Field field : FieldUtils.getAllFields(target.getClass())) {
-                    if (field.getName().equals(localField)) {
-                        localF = field;
-                        break;
-                    }
-                }
-                if (localF == null) {
-                    throw new NoSuchFieldException(localField);
-                }
-                localF.setAccessible(true);
-                Object localObject = localF.get(target);
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return batch.poll();
+        }
 
-                Set<C> targetChildren = new HashSet<>();
-                for (Document foreignDoc : children.apply(localObject)) {
-                    targetChildren.add((C) mapper.tryConvert(foreignDoc, childClass));
-                }
-                if (!targetChildren.isEmpty()) {
-                    Collection<C> collection = (Collection<C>) targetField.get(target);
-                    if (collection == null) {
-                        if (targetField.getType() == List.class) {
-                            collection = new ArrayList<>();
-                        } else if (targetField.getType() == BlockingDeque.class) {
-                            collection = new LinkedBlockingDeque<>();
-                        } else if (targetField.getType() == BlockingQueue.class) {
-                            collection = new LinkedBlockingQueue<>();
-                        } else if (targetField.getType() == Deque.class || targetField.getType() == Queue.class) {
-                            collection = new ArrayDeque<>();
-                        } else if (targetField.getType() == Set.class) {
-                            collection = new HashSet<>();
-                        } else if (targetField.getType() == TransferQueue.class) {
-                            collection = new LinkedTransferQueue<>();
-                        } else {
-                            collection = (Collection<C>) targetField.getType().getDeclaredConstructor().newInstance();
-                        }
+        @SuppressWarnings("unchecked")
+        private void nextBatch() {
+            List<P> parents = new ArrayList<>();
+            List<Object> localObjects = new ArrayList<>();
+            while (parentIterator.hasNext() && parents.size() < Database.BULK_FETCH_SIZE) {
+                P target = parentIterator.next();
+                parents.add(target);
+                localObjects.add(FieldAccessors.of(target.getClass()).get(target, localField));
+            }
+            if (parents.isEmpty())
+                return;
+
+            Map<Object, List<Document>> childrenByKey = JoinedDocumentStream.fetchChildren(children, localObjects, foreignField);
+            for (int i = 0; i < parents.size(); i++) {
+                P target = parents.get(i);
+                List<Document> foreignDocs = localObjects.get(i) == null ? null : childrenByKey.get(Database.joinKey(localObjects.get(i)));
+                if (foreignDocs != null && !foreignDocs.isEmpty()) {
+                    FieldAccessors accessors = FieldAccessors.of(target.getClass());
+                    Class<?> targetType = accessors.getType(targetField);
+                    if (!Collection.class.isAssignableFrom(targetType))
+                        throw new RuntimeException(new IOException("targetField must be a collection."));
+
+                    Set<C> targetChildren = new HashSet<>();
+                    for (Document foreignDoc : foreignDocs) {
+                        targetChildren.add((C) mapper.tryConvert(foreignDoc, childClass));
                     }
+                    Collection<C> collection = (Collection<C>) accessors.get(target, targetField);
+                    if (collection == null)
+                        collection = FieldAccessors.newCollection(targetType);
                     collection.addAll(targetChildren);
-                    targetField.set(target, collection);
+                    accessors.set(target, targetField, collection);
                 }
-                return target;
-            } catch (IllegalAccessException | NoSuchFieldException | NoSuchMethodException | InstantiationException |
-                     InvocationTargetException e) {
-                throw new RuntimeException(e);
+                batch.add(target);
             }
         }
 
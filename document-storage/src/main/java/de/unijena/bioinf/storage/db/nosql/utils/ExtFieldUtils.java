@@ -23,25 +23,13 @@ package de.unijena.bioinf.storage.db.nosql.utils;
 import org.apache.commons.lang3.reflect.FieldUtils;
 
 import java.lang.reflect.Field;
-import java.util.Objects;
 
 public class ExtFieldUtils extends FieldUtils {
     public static <T> Field getAllField(Class<T> clz, String name) {
-        Field field = null;
-        for (Field tmpfield : FieldUtils.getAllFields(clz)) {
-            if (tmpfield.getName().equals(name)) {
-                field = tmpfield;
-                break;
-            }
-        }
-        Objects.requireNonNull(field, "Field with name '" + name + "' could not be found in class '" + clz.getName() + '.');
-        field.setAccessible(true);
-
-        return field;
+        return FieldAccessors.of(clz).getField(name);
     }
 
     public static <T> Object getAllFieldValue(T object, String name) throws IllegalAccessException {
-        Field field = getAllField(object.getClass(), name);
-        return field.get(object);
+        return FieldAccessors.of(object.getClass()).get(object, name);
     }
 }
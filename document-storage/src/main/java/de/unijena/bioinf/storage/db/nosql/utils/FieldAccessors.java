@@ -0,0 +1,143 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.storage.db.nosql.utils;
+
+import org.apache.commons.lang3.reflect.FieldUtils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Cached field access for entity classes. All fields of a class (including inherited ones) are resolved once to
+ * {@link VarHandle}s, which avoids the field lookup and access checks of {@link Field} reflection for every object.
+ * Fields that cannot be written via a {@link VarHandle} (static and final ones) fall back to {@link Field} access.
+ */
+public final class FieldAccessors {
+
+    private static final Map<Class<?>, FieldAccessors> REGISTRY = new ConcurrentHashMap<>();
+
+    public static FieldAccessors of(Class<?> clazz) {
+        return REGISTRY.computeIfAbsent(clazz, FieldAccessors::new);
+    }
+
+    private final Class<?> clazz;
+
+    private final Map<String, Accessor> accessors;
+
+    private FieldAccessors(Class<?> clazz) {
+        this.clazz = clazz;
+        Map<String, Accessor> accessors = new HashMap<>();
+        // fields of subclasses come first and shadow fields of superclasses with the same name
+        for (Field field : FieldUtils.getAllFields(clazz))
+            accessors.putIfAbsent(field.getName(), new Accessor(field, varHandle(field)));
+        this.accessors = Collections.unmodifiableMap(accessors);
+    }
+
+    private static VarHandle varHandle(Field field) {
+        field.trySetAccessible();
+        if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers()))
+            return null;
+        try {
+            return MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup()).unreflectVarHandle(field);
+        } catch (IllegalAccessException | SecurityException e) {
+            return null;
+        }
+    }
+
+    private Accessor accessor(String name) {
+        return Objects.requireNonNull(accessors.get(name), "Field with name '" + name + "' could not be found in class '" + clazz.getName() + '.');
+    }
+
+    public boolean hasField(String name) {
+        return accessors.containsKey(name);
+    }
+
+    public Field getField(String name) {
+        return accessor(name).field;
+    }
+
+    public Class<?> getType(String name) {
+        return accessor(name).field.getType();
+    }
+
+    public Object get(Object target, String name) {
+        return accessor(name).get(target);
+    }
+
+    public void set(Object target, String name, Object value) {
+        accessor(name).set(target, value);
+    }
+
+    /**
+     * @return a new empty collection that can be assigned to a field of the given collection type
+     */
+    @SuppressWarnings("unchecked")
+    public static <C> Collection<C> newCollection(Class<?> collectionType) {
+        if (collectionType == List.class || collectionType == Collection.class) {
+            return new ArrayList<>();
+        } else if (collectionType == BlockingDeque.class) {
+            return new LinkedBlockingDeque<>();
+        } else if (collectionType == BlockingQueue.class) {
+            return new LinkedBlockingQueue<>();
+        } else if (collectionType == Deque.class || collectionType == Queue.class) {
+            return new ArrayDeque<>();
+        } else if (collectionType == Set.class) {
+            return new HashSet<>();
+        } else if (collectionType == SortedSet.class) {
+            return new TreeSet<>();
+        } else if (collectionType == TransferQueue.class) {
+            return new LinkedTransferQueue<>();
+        }
+        try {
+            return (Collection<C>) collectionType.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot instantiate collection of type " + collectionType.getName(), e);
+        }
+    }
+
+    private record Accessor(Field field, VarHandle handle) {
+        Object get(Object target) {
+            if (handle != null)
+                return handle.get(target);
+            try {
+                return field.get(target);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void set(Object target, Object value) {
+            if (handle != null) {
+                handle.set(target, value);
+                return;
+            }
+            try {
+                field.set(target, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.storage.db.nosql.nitrite;
+
+import de.unijena.bioinf.storage.db.nosql.Index;
+import de.unijena.bioinf.storage.db.nosql.Metadata;
+import jakarta.persistence.Id;
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import org.apache.commons.lang3.time.StopWatch;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-threaded insert/upsert throughput of {@link NitriteDatabase}. Every thread writes to its own repository,
+ * similar to instance jobs writing formula candidates, fingerprints and CANOPUS results in parallel.
+ * With per-repository locks the throughput should grow with the number of threads.
+ * <p>
+ * Usage: NitriteConcurrencyBenchmark [objects per thread] [batch size]
+ */
+public class NitriteConcurrencyBenchmark {
+
+    @NoArgsConstructor @AllArgsConstructor public static class EntryA { @Id public long id; public long parentId; public double[] values; }
+    @NoArgsConstructor @AllArgsConstructor public static class EntryB { @Id public long id; public long parentId; public double[] values; }
+    @NoArgsConstructor @AllArgsConstructor public static class EntryC { @Id public long id; public long parentId; public double[] values; }
+    @NoArgsConstructor @AllArgsConstructor public static class EntryD { @Id public long id; public long parentId; public double[] values; }
+    @NoArgsConstructor @AllArgsConstructor public static class EntryE { @Id public long id; public long parentId; public double[] values; }
+    @NoArgsConstructor @AllArgsConstructor public static class EntryF { @Id public long id; public long parentId; public double[] values; }
+    @NoArgsConstructor @AllArgsConstructor public static class EntryG { @Id public long id; public long parentId; public double[] values; }
+    @NoArgsConstructor @AllArgsConstructor public static class EntryH { @Id public long id; public long parentId; public double[] values; }
+
+    private static final Class<?>[] CLASSES = {EntryA.class, EntryB.class, EntryC.class, EntryD.class, EntryE.class, EntryF.class, EntryG.class, EntryH.class};
+
+    public static void main(String[] args) throws Exception {
+        final int objectsPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        for (int threads = 1; threads <= CLASSES.length; threads *= 2) {
+            final Path file = Files.createTempFile("nitrite-benchmark", "");
+            Files.deleteIfExists(file);
+            final Metadata meta = Metadata.build();
+            for (Class<?> clazz : CLASSES)
+                meta.addRepository(clazz, Index.nonUnique("parentId"));
+
+            try (NitriteDatabase db = new NitriteDatabase(file, meta);
+                 ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+                final StopWatch watch = StopWatch.createStarted();
+                final List<Future<Integer>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; ++t) {
+                    final Class<?> clazz = CLASSES[t];
+                    futures.add(executor.submit(() -> write(db, clazz, objectsPerThread, batchSize)));
+                }
+                long written = 0;
+                for (Future<Integer> f : futures)
+                    written += f.get();
+                watch.stop();
+                System.out.printf("%d threads: %d inserts + upserts in %s (%.0f objects/s)%n",
+                        threads, written, watch, written / (watch.getTime() / 1000d));
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static int write(NitriteDatabase db, Class<?> clazz, int objects, int batchSize) throws Exception {
+        int count = 0;
+        final List<Object> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < objects; ++i) {
+            batch.add(create(clazz, i));
+            if (batch.size() == batchSize || i == objects - 1) {
+                count += db.insertAll(batch);
+                // update the same objects again, as done when results are recomputed
+                count += db.upsertAll(batch);
+                batch.clear();
+            }
+        }
+        return count;
+    }
+
+    private static Object create(Class<?> clazz, int i) throws Exception {
+        final double[] values = new double[32];
+        for (int k = 0; k < values.length; ++k) values[k] = i * k;
+        return clazz.getConstructor(long.class, long.class, double[].class).newInstance(0L, (long) (i / 10), values);
+    }
+}
@@ -243,6 +243,22 @@ public class NitriteDatabaseTest {
 
     }
 
+    @Test
+    public void testSchemaVersions() throws IOException {
+        Path file = Files.createTempFile("nitrite-test", "");
+        file.toFile().deleteOnExit();
+        try (NitriteDatabase db = new NitriteDatabase(file, Metadata.build().schemaVersion(1))) {
+            assertEquals(1, db.getStoredSchemaVersion());
+        }
+        try (NitriteDatabase db = new NitriteDatabase(file, Metadata.build().schemaVersion(2).readableSchemaVersions(1))) {
+            assertEquals(2, db.getStoredSchemaVersion());
+        }
+        // readers of an older schema refuse the database
+        assertThrows(IOException.class, () -> new NitriteDatabase(file, Metadata.build().schemaVersion(1)).close());
+        // as do readers of a newer schema that cannot read it
+        assertThrows(IOException.class, () -> new NitriteDatabase(file, Metadata.build().schemaVersion(3)).close());
+    }
+
     @Test
     public void testFilters() throws IOException {
 
@@ -680,6 +696,67 @@ public class NitriteDatabaseTest {
 
     }
 
+    @Test
+    public void testFetchAndJoinManyParents() throws IOException {
+
+        Path file = Files.createTempFile("nitrite-test", "");
+        file.toFile().deleteOnExit();
+
+        try (NitriteDatabase db = new NitriteDatabase(file, Metadata.build()
+                .addRepository(NitriteFamilyTestEntry.class, Index.unique("name"))
+                .addRepository(NitriteChildTestEntry.class, Index.nonUnique("parentKey")
+                ))) {
+
+            // more parents than fit into a single bulk query
+            int numberOfParents = Database.BULK_FETCH_SIZE + 250;
+            List<NitriteFamilyTestEntry> parents = IntStream.range(0, numberOfParents)
+                    .mapToObj(i -> NitriteFamilyTestEntry.builder().name("parent" + i).build()).toList();
+            db.insertAll(parents);
+
+            // every second parent has no children
+            List<NitriteChildTestEntry> children = new ArrayList<>();
+            for (int i = 0; i < numberOfParents; i += 2) {
+                children.add(NitriteChildTestEntry.builder().name("A" + i).parentKey(parents.get(i).primaryKey).build());
+                children.add(NitriteChildTestEntry.builder().name("B" + i).parentKey(parents.get(i).primaryKey).build());
+            }
+            db.insertAll(children);
+
+            List<NitriteFamilyTestEntry> fetched = db.findAllStr(NitriteFamilyTestEntry.class).toList();
+            db.fetchAllChildrenForAll(fetched, "primaryKey", "parentKey", "children", NitriteChildTestEntry.class);
+            assertChildren(fetched);
+
+            assertChildren(db.joinAllChildrenStr(NitriteChildTestEntry.class, new ArrayList<>(db.findAllStr(NitriteFamilyTestEntry.class).toList()),
+                    "primaryKey", "parentKey", "children").toList());
+            assertChildren(db.joinAllChildrenStr(NitriteChildTestEntry.class, db.findAll(NitriteFamilyTestEntry.class),
+                    "primaryKey", "parentKey", "children").toList());
+
+            List<NitriteFamilyTestEntry> filtered = db.joinChildrenStr(NitriteChildTestEntry.class, Filter.where("name").regex("^A.*"),
+                    db.findAll(NitriteFamilyTestEntry.class), "primaryKey", "parentKey", "children").toList();
+            assertEquals("all joined filtered parents", numberOfParents, filtered.size());
+            for (NitriteFamilyTestEntry parent : filtered) {
+                int i = Integer.parseInt(parent.name.substring("parent".length()));
+                if (i % 2 == 0)
+                    assertEquals("joined filtered children okay", List.of("A" + i), parent.children.stream().map(c -> c.name).toList());
+                else
+                    assertNull("no children", parent.children);
+            }
+        }
+
+    }
+
+    private static void assertChildren(List<NitriteFamilyTestEntry> parents) {
+        assertEquals("all parents", Database.BULK_FETCH_SIZE + 250, parents.size());
+        for (NitriteFamilyTestEntry parent : parents) {
+            int i = Integer.parseInt(parent.name.substring("parent".length()));
+            if (i % 2 == 0) {
+                assertEquals("children okay", Set.of("A" + i, "B" + i), parent.children.stream().map(c -> c.name).collect(Collectors.toSet()));
+                assertTrue("children of parent", parent.children.stream().allMatch(c -> c.parentKey == parent.primaryKey));
+            } else {
+                assertNull("no children", parent.children);
+            }
+        }
+    }
+
     @Test
     public void testConcurrency() throws IOException {
 
@@ -709,6 +786,57 @@ public class NitriteDatabaseTest {
         }
     }
 
+    @Test
+    public void testConcurrencyMultipleRepositories() throws IOException {
+
+        Path file = Files.createTempFile("nitrite-test", "");
+        file.toFile().deleteOnExit();
+
+        try (NitriteDatabase db = new NitriteDatabase(file, Metadata.build()
+                .addRepository(NitriteChildTestEntry.class, Index.nonUnique("parentKey"))
+                .addRepository(NitriteEntryWithDoubleKey.class))) {
+            List<Callable<Void>> jobs = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                final int num = i;
+                jobs.add(() -> {
+                    assertEquals("insert child", 1, db.insert(NitriteChildTestEntry.builder().name(Integer.toString(num)).parentKey(num % 10).build()));
+                    return null;
+                });
+                jobs.add(() -> {
+                    NitriteEntryWithDoubleKey entry = new NitriteEntryWithDoubleKey(0, num, "v1");
+                    assertEquals("insert", 1, db.insert(entry));
+                    entry.setSomeProperty("v2");
+                    assertEquals("upsert", 1, db.upsert(entry));
+                    return null;
+                });
+                if (num % 10 == 0) {
+                    // global writes have to exclude the repository writes
+                    jobs.add(() -> {
+                        db.write(() -> {
+                            long before = db.countAll(NitriteChildTestEntry.class);
+                            Thread.sleep(1);
+                            assertEquals("exclusive write", before, db.countAll(NitriteChildTestEntry.class));
+                            return null;
+                        });
+                        return null;
+                    });
+                }
+            }
+
+            try (ExecutorService executorService = Executors.newFixedThreadPool(10)) {
+                for (Future<Void> future : executorService.invokeAll(jobs)) {
+                    future.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+
+            assertEquals("children", 100, db.countAll(NitriteChildTestEntry.class));
+            assertEquals("entries", 100, db.countAll(NitriteEntryWithDoubleKey.class));
+            assertEquals("upserted", 100, db.count(Filter.where("someProperty").eq("v2"), NitriteEntryWithDoubleKey.class));
+        }
+    }
+
     @Test
     public void testOptionals() throws IOException {
         Path file = Files.createTempFile("nitrite-test", "");
@@ -24,7 +24,9 @@ import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
 import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.PackedFingerprint;
 import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.babelms.CloseableIterator;
 import de.unijena.bioinf.chemdb.ChemicalDatabaseException;
 import de.unijena.bioinf.chemdb.FingerprintCandidate;
 import de.unijena.bioinf.chemdb.SearchStructureByFormula;
@@ -35,14 +37,18 @@ import de.unijena.bioinf.ms.properties.PropertyManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class Fingerblast<P> {
 
+    private static final int TOPK_CHUNK_SIZE = 256;
+
     private SearchStructureByFormula searchEngine;
     private FingerblastScoringMethod<? extends FingerblastScoring<P>> scoringMethod;
 
@@ -80,18 +86,104 @@ public class Fingerblast<P> {
     }
 
     public static <P> List<Scored<FingerprintCandidate>> score(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final List<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint) {
-        final ArrayList<Scored<FingerprintCandidate>> results = new ArrayList<>();
-        MaskedFingerprintVersion mask = null;
-        if (fingerprint.getFingerprintVersion() instanceof MaskedFingerprintVersion)
-            mask = (MaskedFingerprintVersion) fingerprint.getFingerprintVersion();
+        final ArrayList<Scored<FingerprintCandidate>> results = new ArrayList<>(candidates.size());
+        final MaskedFingerprintVersion mask = maskOf(fingerprint);
+        final PackedFingerprint.MaskingView view = mask == null ? null : mask.newMaskingView();
         for (FingerprintCandidate fp : candidates) {
-            final Fingerprint fpm = (mask == null || fp.getFingerprint().getFingerprintVersion().equals(mask)) ? fp.getFingerprint() : mask.mask(fp.getFingerprint());
-            results.add(new Scored<>(new FingerprintCandidate(fp, fpm), preparedScorer.score(fingerprint, fpm)));
+            final double score = preparedScorer.score(fingerprint, maskForScoring(view, mask, fp.getFingerprint()));
+            results.add(new Scored<>(withMaskedFingerprint(fp, mask), score));
         }
         results.sort(Comparator.reverseOrder());
         return results;
     }
 
+    @Nullable
+    private static MaskedFingerprintVersion maskOf(ProbabilityFingerprint fingerprint) {
+        return fingerprint.getFingerprintVersion() instanceof MaskedFingerprintVersion ? (MaskedFingerprintVersion) fingerprint.getFingerprintVersion() : null;
+    }
+
+    // packed candidates (as read from the databases) are masked into the reused view without any allocation
+    private static Fingerprint maskForScoring(@Nullable PackedFingerprint.MaskingView view, @Nullable MaskedFingerprintVersion mask, Fingerprint fp) {
+        return (mask == null || fp.getFingerprintVersion().equals(mask)) ? fp : view.mask(fp);
+    }
+
+    /**
+     * @return the candidate with its fingerprint masked like the query fingerprint, as used for the scored results
+     */
+    static FingerprintCandidate withMaskedFingerprint(FingerprintCandidate fp, @Nullable MaskedFingerprintVersion mask) {
+        return (mask == null || fp.getFingerprint().getFingerprintVersion().equals(mask)) ? fp : new FingerprintCandidate(fp, mask.mask(fp.getFingerprint()));
+    }
+
+
+    /**
+     * Streaming search: candidates are consumed one by one from the search engine and only the top k candidates
+     * are kept, together with summary statistics over all scores.
+     */
+    public TopKScoredCandidates searchTopK(@NotNull MolecularFormula formula, @NotNull ProbabilityFingerprint fingerprint, @Nullable P parameter, int k) throws ChemicalDatabaseException {
+        final FingerblastScoring<P> scorer = scoringMethod.getScoring();
+        scorer.prepare(parameter);
+        try (CloseableIterator<FingerprintCandidate> candidates = searchEngine.iterateStructuresAndFingerprintsByFormula(formula)) {
+            return scoreTopK(scorer, candidates, fingerprint, k);
+        } catch (IOException e) {
+            throw e instanceof ChemicalDatabaseException cde ? cde : new ChemicalDatabaseException(e);
+        }
+    }
+
+    public static <P> TopKScoredCandidates scoreTopK(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final Iterator<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint, int k) {
+        final TopKScoredCandidates topK = new TopKScoredCandidates(k);
+        scoreInto(preparedScorer, candidates, fingerprint, topK);
+        return topK;
+    }
+
+    private static <P> void scoreInto(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final Iterator<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint, @NotNull TopKScoredCandidates topK) {
+        final MaskedFingerprintVersion mask = maskOf(fingerprint);
+        final PackedFingerprint.MaskingView view = mask == null ? null : mask.newMaskingView();
+        while (candidates.hasNext()) {
+            final FingerprintCandidate fp = candidates.next();
+            topK.offer(fp, mask, preparedScorer.score(fingerprint, maskForScoring(view, mask, fp.getFingerprint())));
+        }
+    }
+
+    /**
+     * Creates one job per thread. All jobs pull chunks of candidates from the given (shared) iterator and keep
+     * their own top k. Use {@link #mergeTopK(List)} to combine the job results.
+     */
+    public static <P> List<JJob<TopKScoredCandidates>> makeTopKScoringJobs(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final Iterator<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint, int k) {
+        final int numberOfJobs = Math.max(1, PropertyManager.getNumberOfThreads());
+        final List<JJob<TopKScoredCandidates>> jobs = new ArrayList<>(numberOfJobs);
+        for (int i = 0; i < numberOfJobs; ++i) {
+            jobs.add(new BasicJJob<TopKScoredCandidates>(JJob.JobType.CPU) {
+                @Override
+                protected TopKScoredCandidates compute() throws Exception {
+                    final List<FingerprintCandidate> chunk = new ArrayList<>(TOPK_CHUNK_SIZE);
+                    final TopKScoredCandidates topK = new TopKScoredCandidates(k);
+                    while (true) {
+                        checkForInterruption();
+                        chunk.clear();
+                        synchronized (candidates) {
+                            while (chunk.size() < TOPK_CHUNK_SIZE && candidates.hasNext()) chunk.add(candidates.next());
+                        }
+                        if (chunk.isEmpty()) return topK;
+                        scoreInto(preparedScorer, chunk.iterator(), fingerprint, topK);
+                    }
+                }
+            });
+        }
+        return jobs;
+    }
+
+    /**
+     * Merges the results of the given top k jobs. Does not sort anything but the k best candidates.
+     */
+    public static TopKScoredCandidates mergeTopK(@NotNull List<JJob<TopKScoredCandidates>> jobs) {
+        TopKScoredCandidates merged = null;
+        for (JJob<TopKScoredCandidates> job : jobs) {
+            final TopKScoredCandidates r = job.takeResult();
+            if (merged == null) merged = r;
+            else merged.merge(r);
+        }
+        return merged;
+    }
 
     public static <P> List<JJob<List<Scored<FingerprintCandidate>>>> makeScoringJobs(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final Collection<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint) {
         final List<List<FingerprintCandidate>> inputs = Partition.ofNumber(candidates, PropertyManager.getNumberOfThreads());
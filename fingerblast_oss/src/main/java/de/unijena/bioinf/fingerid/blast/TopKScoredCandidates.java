@@ -0,0 +1,104 @@
+package de.unijena.bioinf.fingerid.blast;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
+import de.unijena.bioinf.chemdb.FingerprintCandidate;
+import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Bounded collection of the k best scoring candidates together with summary statistics over the scores of
+ * all candidates that have been offered, so that score distribution based features (e.g. for confidence) can be
+ * computed without keeping all candidates.
+ * Candidates are only wrapped into {@link Scored} objects when they enter the top k.
+ * Not thread-safe: use one instance per thread and {@link #merge(TopKScoredCandidates)} the results.
+ */
+public class TopKScoredCandidates {
+
+    // same order as used for the candidate lists everywhere else: descending score, then ascending 2D InChIKey
+    public static final Comparator<Scored<FingerprintCandidate>> BEST_FIRST = Comparator.<Scored<FingerprintCandidate>>reverseOrder()
+            .thenComparing((Scored<FingerprintCandidate> s) -> s.getCandidate().getInchiKey2D());
+
+    @Getter
+    private final int k;
+    // min-heap, head is the worst candidate within the top k
+    private final PriorityQueue<Scored<FingerprintCandidate>> heap;
+
+    @Getter
+    private int numberOfCandidates = 0;
+    @Getter
+    private double maxScore = Double.NEGATIVE_INFINITY;
+    @Getter
+    private double minScore = Double.POSITIVE_INFINITY;
+    private double sumOfScores = 0d, sumOfSquaredScores = 0d;
+
+    public TopKScoredCandidates(int k) {
+        if (k <= 0) throw new IllegalArgumentException("k has to be positive but is " + k);
+        this.k = k;
+        this.heap = new PriorityQueue<>(Math.min(k, 1024) + 1, BEST_FIRST.reversed());
+    }
+
+    /**
+     * Adds the score to the summary statistics and keeps the candidate if it is within the top k.
+     *
+     * @param candidate candidate as returned by the database
+     * @param mask      mask of the query fingerprint or null. Only candidates entering the top k get a masked copy
+     * @return true if the candidate entered the top k
+     */
+    public boolean offer(FingerprintCandidate candidate, @Nullable MaskedFingerprintVersion mask, double score) {
+        ++numberOfCandidates;
+        sumOfScores += score;
+        sumOfSquaredScores += score * score;
+        maxScore = Math.max(maxScore, score);
+        minScore = Math.min(minScore, score);
+        if (heap.size() >= k) {
+            final Scored<FingerprintCandidate> worst = heap.peek();
+            if (score < worst.getScore()) return false;
+            if (score == worst.getScore() && candidate.getInchiKey2D().compareTo(worst.getCandidate().getInchiKey2D()) >= 0)
+                return false;
+        }
+        heap.add(new Scored<>(Fingerblast.withMaskedFingerprint(candidate, mask), score));
+        if (heap.size() > k) heap.poll();
+        return true;
+    }
+
+    /**
+     * Merges the candidates and statistics of the other collection into this one.
+     */
+    public TopKScoredCandidates merge(TopKScoredCandidates other) {
+        numberOfCandidates += other.numberOfCandidates;
+        sumOfScores += other.sumOfScores;
+        sumOfSquaredScores += other.sumOfSquaredScores;
+        maxScore = Math.max(maxScore, other.maxScore);
+        minScore = Math.min(minScore, other.minScore);
+        for (Scored<FingerprintCandidate> c : other.heap) {
+            heap.add(c);
+            if (heap.size() > k) heap.poll();
+        }
+        return this;
+    }
+
+    public double getMeanScore() {
+        return numberOfCandidates == 0 ? Double.NaN : sumOfScores / numberOfCandidates;
+    }
+
+    public double getScoreVariance() {
+        if (numberOfCandidates == 0) return Double.NaN;
+        final double mean = getMeanScore();
+        return Math.max(0d, sumOfSquaredScores / numberOfCandidates - mean * mean);
+    }
+
+    /**
+     * @return the top k candidates, best candidate first. Only sorts the k kept candidates.
+     */
+    public List<Scored<FingerprintCandidate>> toSortedList() {
+        final List<Scored<FingerprintCandidate>> list = new ArrayList<>(heap);
+        list.sort(BEST_FIRST);
+        return list;
+    }
+}
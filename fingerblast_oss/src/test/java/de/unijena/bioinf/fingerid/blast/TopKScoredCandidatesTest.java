@@ -0,0 +1,170 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.fingerid.blast;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.fp.*;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.chemdb.FingerprintCandidate;
+import de.unijena.bioinf.fingerid.blast.parameters.ParameterStore;
+import de.unijena.bioinf.jjobs.JJob;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TopKScoredCandidatesTest {
+
+    private static final int NUMBER_OF_CANDIDATES = 500;
+
+    private final MaskedFingerprintVersion mask = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(0, 120).toMask();
+    private final List<FingerprintCandidate> candidates = new ArrayList<>();
+    private final ProbabilityFingerprint query;
+
+    public TopKScoredCandidatesTest() {
+        final Random r = new Random(42);
+        final FingerprintVersion version = CdkFingerprintVersion.getDefault();
+        for (int i = 0; i < NUMBER_OF_CANDIDATES; i++) {
+            final short[] indizes = new short[160];
+            int n = 0;
+            for (short index = 0; index < indizes.length; index++)
+                if (r.nextDouble() < 0.3) indizes[n++] = index;
+            final ArrayFingerprint fp = new ArrayFingerprint(version, Arrays.copyOf(indizes, n));
+            // mix packed and array fingerprints, like candidates of different databases
+            candidates.add(new FingerprintCandidate(new InChI(randomKey(r), null), i % 3 == 0 ? fp : fp.asPacked()));
+        }
+        final double[] probabilities = new double[mask.size()];
+        for (int i = 0; i < probabilities.length; i++)
+            probabilities[i] = r.nextDouble();
+        query = new ProbabilityFingerprint(mask, probabilities);
+    }
+
+    @Test
+    public void testTopKMatchesSortedList() {
+        final List<Scored<FingerprintCandidate>> expected = sortedList();
+        for (int k : new int[]{1, 7, 100, NUMBER_OF_CANDIDATES, NUMBER_OF_CANDIDATES + 10}) {
+            final TopKScoredCandidates topK = Fingerblast.scoreTopK(new AgreementScoring(), candidates.iterator(), query, k);
+            assertSameRanking(expected.subList(0, Math.min(k, expected.size())), topK.toSortedList());
+            assertSameStatistics(expected, topK);
+        }
+    }
+
+    @Test
+    public void testParallelTopKMatchesSortedList() {
+        final List<Scored<FingerprintCandidate>> expected = sortedList();
+        for (int k : new int[]{1, 25, NUMBER_OF_CANDIDATES}) {
+            final List<JJob<TopKScoredCandidates>> jobs = Fingerblast.makeTopKScoringJobs(new AgreementScoring(), candidates.iterator(), query, k);
+            jobs.forEach(SiriusJobs.getGlobalJobManager()::submitJob);
+            final TopKScoredCandidates topK = Fingerblast.mergeTopK(jobs);
+            assertSameRanking(expected.subList(0, Math.min(k, expected.size())), topK.toSortedList());
+            assertSameStatistics(expected, topK);
+        }
+    }
+
+    private List<Scored<FingerprintCandidate>> sortedList() {
+        final List<Scored<FingerprintCandidate>> list = new ArrayList<>(Fingerblast.score(new AgreementScoring(), candidates, query));
+        list.sort(TopKScoredCandidates.BEST_FIRST);
+        return list;
+    }
+
+    private void assertSameRanking(List<Scored<FingerprintCandidate>> expected, List<Scored<FingerprintCandidate>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getCandidate().getInchiKey2D(), actual.get(i).getCandidate().getInchiKey2D());
+            assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 0d);
+            // kept candidates carry their own masked fingerprint, not the reused masking view
+            assertEquals(mask, actual.get(i).getCandidate().getFingerprint().getFingerprintVersion());
+            assertArrayEquals(expected.get(i).getCandidate().getFingerprint().toIndizesArray(), actual.get(i).getCandidate().getFingerprint().toIndizesArray());
+        }
+    }
+
+    private static void assertSameStatistics(List<Scored<FingerprintCandidate>> all, TopKScoredCandidates topK) {
+        double sum = 0d, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (Scored<FingerprintCandidate> s : all) {
+            sum += s.getScore();
+            min = Math.min(min, s.getScore());
+            max = Math.max(max, s.getScore());
+        }
+        final double mean = sum / all.size();
+        double variance = 0d;
+        for (Scored<FingerprintCandidate> s : all)
+            variance += (s.getScore() - mean) * (s.getScore() - mean);
+        variance /= all.size();
+
+        assertEquals(all.size(), topK.getNumberOfCandidates());
+        assertEquals(mean, topK.getMeanScore(), 1e-9);
+        assertEquals(variance, topK.getScoreVariance(), 1e-6);
+        assertEquals(min, topK.getMinScore(), 0d);
+        assertEquals(max, topK.getMaxScore(), 0d);
+    }
+
+    private static String randomKey(Random r) {
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < 14; i++)
+            key.append((char) ('A' + r.nextInt(3)));
+        return key.append("-UHFFFAOYSA-N").toString();
+    }
+
+    /**
+     * Counts the properties on which candidate and rounded prediction agree. Integer scores enforce many ties.
+     */
+    private static class AgreementScoring implements FingerblastScoring<Object> {
+        @Override
+        public Object extractParameters(ParameterStore store) {
+            return null;
+        }
+
+        @Override
+        public void prepare(Object genericInputParameter) {
+        }
+
+        @Override
+        public double score(ProbabilityFingerprint fingerprint, Fingerprint databaseEntry) {
+            int agreements = 0;
+            for (FPIter2 pair : fingerprint.foreachPair(databaseEntry))
+                if ((pair.getLeftProbability() >= 0.5) == pair.isRightSet()) ++agreements;
+            return agreements;
+        }
+
+        @Override
+        public double getThreshold() {
+            return 0;
+        }
+
+        @Override
+        public void setThreshold(double threshold) {
+        }
+
+        @Override
+        public double getMinSamples() {
+            return 0;
+        }
+
+        @Override
+        public void setMinSamples(double minSamples) {
+        }
+    }
+}
@@ -50,8 +50,10 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeComputationInstance.FinalResult> {
@@ -72,6 +74,8 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
 
     protected long startTimeMillis;
     protected long millisPerTree;
+    protected int numberOfPrunedCandidates;
+    protected boolean candidatePruning = false;
     protected long secsPerTree;
     //    protected volatile int restTime;
 //    protected int secondsPerInstance, secondsPerTree;
@@ -96,6 +100,15 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         withTimeLimit(timeout.getNumberOfSecondsPerInstance() * 1000L);
     }
 
+    /**
+     * If enabled, trees of candidates whose score upper bound cannot reach the top results are not computed. Disabled by default.
+     * A candidate is only pruned if its upper bound is at least ln(1e6) below the best tree computed so far, such that
+     * it would contribute less than 1e-6 of the best tree to the normalized score. This does not change the returned trees.
+     */
+    public void setCandidatePruning(boolean candidatePruning) {
+        this.candidatePruning = candidatePruning;
+    }
+
     private FasterTreeComputationInstance(FragmentationPatternAnalysis analyzer, ProcessedInput input, FTree tree) {
         this(analyzer, input);
         this.pinput = input;
@@ -184,7 +197,7 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         }
 
         final List<FTree> trees = Arrays.stream(results.results).map(r -> r.tree).collect(Collectors.toList());
-        return new FinalResult(trees, results.maxTreeWeight, results.remainingCandidatesTreeWeightExpSumEstimate);
+        return new FinalResult(trees, results.maxTreeWeight, results.remainingCandidatesTreeWeightExpSumEstimate, numberOfPrunedCandidates);
     }
 
     protected void recalculateScore(ProcessedInput input, FTree tree, String prefix) {
@@ -226,6 +239,8 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         double treeSize = treeSizeBonus == null ? 0d : treeSizeBonus.score;
         final double originalTreeSize = treeSize;
         final List<ExactResult> results = new ArrayList<>(decompositions.size());
+        int numberOfPrunedCandidates = 0;
+        final LipidSpecies lipidSpecies = pinput.getAnnotationOrNull(LipidSpecies.class);
         checkForInterruption();
 
         // TREE SIZE
@@ -233,8 +248,13 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
             configureProgress(2, useHeuristic ? 50 : 90, decompositions.size());
             if (tss != null) tss.fastReplace(pinput, new TreeSizeScorer.TreeSizeBonus(treeSize));
             results.clear();
+            numberOfPrunedCandidates = 0;
             final TreeBuilder builder = useHeuristic ? getHeuristicTreeBuilder() : analyzer.getTreeBuilder();
-            final List<TreeComputationJob> jobs = decompositions.stream().filter(d -> !Double.isInfinite(d.getScore())).map(d -> (TreeComputationJob) new TreeComputationJob(builder, null, d).withEndTime(getEndTime()).withTimeLimit(millisPerTree)).collect(Collectors.toList());
+            // candidates with high root score are computed first, so the pruning threshold rises early
+            final List<Decomposition> candidates = decompositions.stream().filter(d -> !Double.isInfinite(d.getScore())).sorted(Comparator.comparingDouble(Decomposition::getScore).reversed()).collect(Collectors.toList());
+            final CandidatePruning pruning = !candidatePruning || candidates.size() <= numberOfResultsToKeep + 10L ? null : new CandidatePruning(numberOfResultsToKeep + 10, numberOfResultsToKeepPerIonization <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, numberOfResultsToKeepPerIonization + 5L),
+                    d -> enforcedMeasuredFormulas.contains(d.getCandidate()) || (lipidSpecies != null && isLipidCandidate(d, lipidSpecies)));
+            final List<TreeComputationJob> jobs = candidates.stream().map(d -> (TreeComputationJob) new TreeComputationJob(builder, null, d, pruning).withEndTime(getEndTime()).withTimeLimit(millisPerTree)).collect(Collectors.toList());
             checkForInterruption();
             submitSubJobsInBatches(jobs, SiriusJobs.getCPUThreads() * 4).forEach(JJob::takeResult);
 
@@ -249,7 +269,9 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
 
 //            int counter = 0;
             for (TreeComputationJob job : jobs) {
-                results.add(job.awaitResult());
+                final ExactResult r = job.awaitResult();
+                if (r != null) results.add(r);
+                else ++numberOfPrunedCandidates;
                 checkForInterruption();
                 /*if (++counter % 100 == 0) {
                     checkForInterruption();
@@ -268,6 +290,9 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
             inc -= TREE_SIZE_INCREASE;
             treeSize -= TREE_SIZE_INCREASE;
         }
+        this.numberOfPrunedCandidates = numberOfPrunedCandidates;
+        if (numberOfPrunedCandidates > 0)
+            logDebug("Skipped " + numberOfPrunedCandidates + " of " + (numberOfPrunedCandidates + results.size()) + " tree computations whose score upper bound cannot reach the top candidates.");
 
         final int numberOfResultsToKeep = Math.min(results.size(), this.numberOfResultsToKeep);
         final int numberOfResultsToKeepPerIonization = Math.min(this.numberOfResultsToKeepPerIonization, results.size());
@@ -413,7 +438,7 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         //make sure that annotated lipid MFs from ElGordo are always part of the list
         if (results.stream().anyMatch(r -> r.tree.hasAnnotation(LipidSpecies.class))) { //annotation should be on each tree. But for future fail-safety, we check all
             //in principle, this should only be a single tree possible
-            List<ExactResult> lipids = results.stream().filter(r->r.tree.getAnnotation(LipidSpecies.class).map(ls -> ls.getHypotheticalMolecularFormula().map(mf->pinput.getAnnotation(PossibleAdducts.class, PossibleAdducts::empty).getAdducts(r.decomposition.getIon()).stream().anyMatch(it -> it.measuredNeutralMoleculeToNeutralMolecule(r.decomposition.getCandidate()).equals(mf))).orElse(false)).orElse(false)).collect(Collectors.toList());
+            List<ExactResult> lipids = results.stream().filter(r->r.tree.getAnnotation(LipidSpecies.class).map(ls -> isLipidCandidate(r.decomposition, ls)).orElse(false)).collect(Collectors.toList());
 
             resultsSet.addAll(lipids);
         }
@@ -431,11 +456,19 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         return returnList;
     }
 
+    private boolean isLipidCandidate(Decomposition decomposition, LipidSpecies species) {
+        return species.getHypotheticalMolecularFormula().map(mf -> pinput.getAnnotation(PossibleAdducts.class, PossibleAdducts::empty).getAdducts(decomposition.getIon()).stream().anyMatch(it -> it.measuredNeutralMoleculeToNeutralMolecule(decomposition.getCandidate()).equals(mf))).orElse(false);
+    }
+
     /**
      * calculates the parameters for the normalized SIRIUS score
      * @param finalResults the final array of ExactResult after recalibration, beautification and selection
      * @param extendedResults the slightly bigger list with results used in the previous step before the final trees were calculated
      * @param allResults results for all decompositions. Many results have been calculated using the heuristic.
+     *                   Decompositions whose tree computation was pruned are not part of it and hence do not contribute to
+     *                   the sum: their tree weight is unknown and their upper bound would be a non-deterministic overestimate,
+     *                   as it depends on the order in which the parallel tree computations raised the pruning threshold.
+     *                   Their contribution is negligible, since each pruned tree is more than ln(1e6) below the best tree.
      * @return
      */
     private ExactResultsWithMetaInfo calculateRemainingCandidatesScoreSum(ExactResult[] finalResults, List<ExactResult> extendedResults,  List<ExactResult> allResults) {
@@ -522,21 +555,40 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         private TreeBuilder treeBuilder;
         private DoubleEndWeightedQueue2<ExactResult> graphCache;
         private Decomposition decomposition;
+        private CandidatePruning pruning;
 
         public TreeComputationJob(TreeBuilder treeBuilder, DoubleEndWeightedQueue2<ExactResult> graphCache, Decomposition decomposition) {
+            this(treeBuilder, graphCache, decomposition, null);
+        }
+
+        /**
+         * @param pruning if not null, the tree is only computed if its upper bound can reach the top results. Otherwise,
+         *                the job returns null.
+         */
+        public TreeComputationJob(TreeBuilder treeBuilder, DoubleEndWeightedQueue2<ExactResult> graphCache, Decomposition decomposition, CandidatePruning pruning) {
             this.treeBuilder = treeBuilder;
             this.graphCache = graphCache;
             this.decomposition = decomposition;
+            this.pruning = pruning;
         }
 
 
         @Override
         protected ExactResult compute() throws Exception {
-            final FGraph graph = treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder ? analyzer.buildGraphWithoutReduction(pinput, decomposition) : analyzer.buildGraph(pinput, decomposition);
+            FGraph graph = analyzer.buildGraphWithoutReduction(pinput, decomposition);
             checkForInterruption();
+            if (pruning != null) {
+                if (pruning.canBePruned(decomposition, treeWeightUpperBound(graph))) {
+                    tick();
+                    return null;
+                }
+            }
+            if (!(treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder))
+                graph = analyzer.performGraphReduction(graph, 0d);
 //            System.err.println(Objects.toString(treeBuilder));
             final FTree tree = treeBuilder.computeTree().withTimeLimit(Math.min(restTimeSec(), secsPerTree)).solve(pinput, graph).tree;
             checkForInterruption();
+            if (pruning != null) pruning.add(decomposition, tree.getTreeWeight());
             final ExactResult er = new ExactResult(decomposition, null, tree, tree.getTreeWeight());
             if (graphCache != null) {
                 double score = graphCache.getWeightLowerbound();
@@ -560,6 +612,7 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
             this.treeBuilder = null;
             this.graphCache = null;
             this.decomposition = null;
+            this.pruning = null;
         }
 
         @Override
@@ -570,6 +623,86 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
 
 
 
+    /**
+     * Upper bound on the weight of any colorful tree in the given graph: the score of the root edge plus, for each
+     * color, the best positive weight of an edge into this color. Edges with infinite weight are ignored as they are
+     * removed by the graph reduction anyway.
+     */
+    protected static double treeWeightUpperBound(FGraph graph) {
+        final Fragment pseudoRoot = graph.getRoot();
+        final double[] bestIncoming = new double[graph.maxColor() + 1];
+        double rootScore = Double.NEGATIVE_INFINITY;
+        for (Loss l : graph.losses()) {
+            final double w = l.getWeight();
+            if (!Double.isFinite(w)) continue;
+            if (l.getSource() == pseudoRoot) rootScore = Math.max(rootScore, w);
+            else bestIncoming[l.getTarget().getColor()] = Math.max(bestIncoming[l.getTarget().getColor()], w);
+        }
+        if (rootScore == Double.NEGATIVE_INFINITY) return Double.POSITIVE_INFINITY;
+        double bound = rootScore;
+        for (double w : bestIncoming) bound += w;
+        return bound;
+    }
+
+    /**
+     * Keeps track of the k-th best tree weight over all candidates and per ionization, while trees are computed in
+     * parallel. A candidate can be pruned if its upper bound is below both thresholds, because then at least k better
+     * trees are already known. Candidates that have to be kept anyways (e.g. enforced formulas) are never pruned.
+     */
+    protected static class CandidatePruning {
+        /**
+         * pruned candidates must be that far below the best tree, so their share of the normalized score is below 1e-6
+         */
+        protected static final double NEGLIGIBLE_SCORE_DIFFERENCE = Math.log(1e6);
+        private final TopKThreshold best;
+        private final TopKThreshold overall;
+        private final int numberPerIonization;
+        private final Map<Ionization, TopKThreshold> perIonization;
+        private final Predicate<Decomposition> keep;
+
+        protected CandidatePruning(int numberOfResultsToKeep, int numberOfResultsToKeepPerIonization, Predicate<Decomposition> keep) {
+            this.best = new TopKThreshold(1);
+            this.overall = new TopKThreshold(numberOfResultsToKeep);
+            this.numberPerIonization = numberOfResultsToKeepPerIonization;
+            this.perIonization = new ConcurrentHashMap<>();
+            this.keep = keep;
+        }
+
+        protected boolean canBePruned(Decomposition decomposition, double upperBound) {
+            if (upperBound >= overall.threshold || upperBound >= best.threshold - NEGLIGIBLE_SCORE_DIFFERENCE || keep.test(decomposition))
+                return false;
+            if (numberPerIonization <= 0) return true;
+            final TopKThreshold ionThreshold = perIonization.get(decomposition.getIon());
+            return ionThreshold != null && upperBound < ionThreshold.threshold;
+        }
+
+        protected void add(Decomposition decomposition, double treeWeight) {
+            best.add(treeWeight);
+            overall.add(treeWeight);
+            if (numberPerIonization > 0)
+                perIonization.computeIfAbsent(decomposition.getIon(), x -> new TopKThreshold(numberPerIonization)).add(treeWeight);
+        }
+    }
+
+    private static class TopKThreshold {
+        private final int k;
+        private final PriorityQueue<Double> best;
+        // read without locking by the pruning check
+        private volatile double threshold = Double.NEGATIVE_INFINITY;
+
+        private TopKThreshold(int k) {
+            this.k = k;
+            this.best = new PriorityQueue<>(Math.min(k, 64) + 1);
+        }
+
+        private synchronized void add(double treeWeight) {
+            if (best.size() >= k && treeWeight <= threshold) return;
+            best.add(treeWeight);
+            if (best.size() > k) best.poll();
+            if (best.size() >= k) threshold = best.peek();
+        }
+    }
+
     /*private void checkTimeout() {
         final long time = System.currentTimeMillis();
         final int elapsedTime = (int) ((time - startTime) / 1000);
@@ -674,17 +807,30 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         protected final List<FTree> results;
         public final double remainingCandidatesTreeWeightExpSumEstimate;
         public final double maxTreeWeight;
+        /*
+        number of candidates whose tree was not computed because its upper bound could not reach the top results
+         */
+        public final int numberOfPrunedCandidates;
 
         public FinalResult(List<FTree> results, double maxTreeWeight, double remainingCandidatesTreeWeightExpSumEstimate) {
+            this(results, maxTreeWeight, remainingCandidatesTreeWeightExpSumEstimate, 0);
+        }
+
+        public FinalResult(List<FTree> results, double maxTreeWeight, double remainingCandidatesTreeWeightExpSumEstimate, int numberOfPrunedCandidates) {
             this.canceledDueToLowScore = false;
             this.results = results;
             this.remainingCandidatesTreeWeightExpSumEstimate = remainingCandidatesTreeWeightExpSumEstimate;
             this.maxTreeWeight = maxTreeWeight;
+            this.numberOfPrunedCandidates = numberOfPrunedCandidates;
         }
 
         public List<FTree> getResults() {
             return results;
         }
+
+        public int getNumberOfPrunedCandidates() {
+            return numberOfPrunedCandidates;
+        }
     }
 
 
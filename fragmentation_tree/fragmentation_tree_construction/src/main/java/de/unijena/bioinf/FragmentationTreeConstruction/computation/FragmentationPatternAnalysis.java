@@ -255,17 +255,36 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
 
         final SpectralRecalibration recalibration = input.getAnnotation(SpectralRecalibration.class,SpectralRecalibration::none);
 
+        // decompose all fragment peaks of an ion mode in one batch. The peaks are sorted by mass, so overlapping
+        // mass windows of neighbouring peaks share the decomposition
+        final List<ProcessedPeak> fragmentPeaks = processedPeaks.subList(0, processedPeaks.size() - 1);
+        final double[] fragmentMzs = new double[fragmentPeaks.size()];
+        final double[] fragmentTolerances = new double[fragmentPeaks.size()];
+        for (int i = 0; i < fragmentMzs.length; ++i) {
+            fragmentMzs[i] = recalibration.recalibrate(fragmentPeaks.get(i));
+            fragmentTolerances[i] = fragmentDeviation.absoluteFor(fragmentPeaks.get(i).getMass());
+        }
+        final Map<Ionization, List<List<List<MolecularFormula>>>> fragmentFormulas = new HashMap<>();
+        for (Ionization ion : ionModeSet) {
+            final List<List<List<MolecularFormula>>> perDecomposer = new ArrayList<>(decomposers.size());
+            for (int D=0; D < decomposers.size(); ++D) {
+                perDecomposer.add(decomposers.get(D).decomposeToFormulas(fragmentMzs, ion, fragmentTolerances, constraintList.get(D)));
+            }
+            fragmentFormulas.put(ion, perDecomposer);
+        }
+
         int j = 0;
-        for (ProcessedPeak peak : processedPeaks.subList(0, processedPeaks.size() - 1)) {
+        for (ProcessedPeak peak : fragmentPeaks) {
+            final int peakIndex = j;
             peak.setIndex(j++);
             final List<Decomposition> decompositions = new ArrayList<>();
-            final double mz = recalibration.recalibrate(peak);
+            final double mz = fragmentMzs[peakIndex];
             for (Ionization ion : ionModeSet) {
                 final double mass = ion.subtractFromMass(mz);
                 if (mass > 0) {
                     final HashSet<MolecularFormula> formulas = new HashSet<>();
-                    for (int D=0; D < decomposers.size(); ++D) {
-                        formulas.addAll(decomposers.get(D).decomposeToFormulas(mz, ion, fragmentDeviation.absoluteFor(peak.getMass()), constraintList.get(D)));
+                    for (List<List<MolecularFormula>> formulasPerPeak : fragmentFormulas.get(ion)) {
+                        formulas.addAll(formulasPerPeak.get(peakIndex));
                     }
                     for (MolecularFormula f : formulas){
                         decompositions.add(new Decomposition(f, ion, 0d));
@@ -424,6 +443,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         }
         // set peak indizes
         for (int i = 0; i < processedPeaks.size(); ++i) processedPeaks.get(i).setIndex(i);
+        // decompositions are shared by all candidate graphs of this input
+        input.setAnnotation(FragmentDecompositionTable.class, FragmentDecompositionTable.build(input));
 
         return input;
     }
@@ -0,0 +1,186 @@
+
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.TableSelection;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.Decomposition;
+import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import de.unijena.bioinf.sirius.PeakAnnotation;
+import de.unijena.bioinf.sirius.ProcessedInput;
+import de.unijena.bioinf.sirius.ProcessedPeak;
+import de.unijena.bioinf.sirius.annotations.DecompositionList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * All scored decompositions of all peaks of a {@link ProcessedInput} as one flat table, ordered by decreasing peak
+ * mass. The table does not depend on the candidate root, so it is computed once per input and every candidate graph
+ * just selects the sub formulas of its root. Element amounts are stored as primitive rows, such that sub formula
+ * checks between fragments do not need {@link MolecularFormula} objects.
+ */
+public final class FragmentDecompositionTable implements DataAnnotation {
+
+    private final DecompositionList[] sources;
+    private final Decomposition[] decompositions;
+    private final int[] peakIndices;
+    private final double[] masses;
+    private final boolean[] empty;
+    // element amounts, one row of width columns per decomposition. Null if formulas use different table selections
+    private final TableSelection selection;
+    private final short[] amounts;
+    private final int width;
+
+    private FragmentDecompositionTable(DecompositionList[] sources, List<Decomposition> decompositions, TIntArrayList peakIndices) {
+        this.sources = sources;
+        this.decompositions = decompositions.toArray(Decomposition[]::new);
+        this.peakIndices = peakIndices.toArray();
+        final int n = this.decompositions.length;
+        this.masses = new double[n];
+        this.empty = new boolean[n];
+        TableSelection sel = n == 0 ? null : this.decompositions[0].getCandidate().getTableSelection();
+        for (int i = 0; i < n; ++i) {
+            final MolecularFormula f = this.decompositions[i].getCandidate();
+            masses[i] = f.getMass();
+            empty[i] = f.isEmpty();
+            if (f.getTableSelection() != sel) sel = null;
+        }
+        this.selection = sel;
+        if (sel != null) {
+            this.width = sel.size();
+            this.amounts = new short[n * width];
+            for (int i = 0; i < n; ++i)
+                this.decompositions[i].getCandidate().copyToBuffer(amounts, i * width);
+        } else {
+            this.width = 0;
+            this.amounts = null;
+        }
+    }
+
+    /**
+     * @return the table stored in the input if it still corresponds to its decompositions, otherwise a new table
+     * which is stored in the input for subsequent calls
+     */
+    public static FragmentDecompositionTable of(ProcessedInput input) {
+        final FragmentDecompositionTable table = input.getAnnotationOrNull(FragmentDecompositionTable.class);
+        if (table != null && table.isValidFor(input)) return table;
+        final FragmentDecompositionTable rebuilt = build(input);
+        input.setAnnotation(FragmentDecompositionTable.class, rebuilt);
+        return rebuilt;
+    }
+
+    public static FragmentDecompositionTable build(ProcessedInput input) {
+        final PeakAnnotation<DecompositionList> decompList = input.getPeakAnnotationOrThrow(DecompositionList.class);
+        final List<ProcessedPeak> mergedPeaks = input.getMergedPeaks();
+        final DecompositionList[] sources = new DecompositionList[mergedPeaks.size()];
+        for (int k = 0; k < sources.length; ++k) sources[k] = decompList.get(mergedPeaks.get(k));
+
+        final ArrayList<ProcessedPeak> peaks = new ArrayList<>(mergedPeaks);
+        Collections.sort(peaks, new ProcessedPeak.MassComparator());
+        final ArrayList<Decomposition> decompositions = new ArrayList<>();
+        final TIntArrayList peakIndices = new TIntArrayList();
+        for (int i = peaks.size() - 1; i >= 0; --i) {
+            final DecompositionList list = sources[peaks.get(i).getIndex()];
+            if (list == null) continue;
+            for (Decomposition d : list.getDecompositions()) {
+                decompositions.add(d);
+                peakIndices.add(peaks.get(i).getIndex());
+            }
+        }
+        return new FragmentDecompositionTable(sources, decompositions, peakIndices);
+    }
+
+    public boolean isValidFor(ProcessedInput input) {
+        final List<ProcessedPeak> mergedPeaks = input.getMergedPeaks();
+        if (mergedPeaks.size() != sources.length) return false;
+        final PeakAnnotation<DecompositionList> decompList = input.getPeakAnnotationOrThrow(DecompositionList.class);
+        for (int k = 0; k < sources.length; ++k) {
+            if (decompList.get(mergedPeaks.get(k)) != sources[k]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return indices of all decompositions with allowed ionization which are proper sub formulas of the given formula.
+     * Indices are in table order, so fragments of heavier peaks come first.
+     */
+    public int[] select(MolecularFormula root, Set<Ionization> allowedIonModes) {
+        final double rootMass = root.getMass();
+        final short[] rootAmounts = root.getTableSelection() == selection ? paddedAmounts(root) : null;
+        final TIntArrayList selected = new TIntArrayList();
+        for (int i = 0; i < decompositions.length; ++i) {
+            if (masses[i] >= rootMass || !allowedIonModes.contains(decompositions[i].getIon())) continue;
+            if (rootAmounts != null ? isSubtractable(rootAmounts, 0, i) : root.isSubtractable(decompositions[i].getCandidate()))
+                selected.add(i);
+        }
+        return selected.toArray();
+    }
+
+    /**
+     * @return true if the formula of decomposition j can be subtracted from the formula of decomposition i
+     */
+    public boolean isSubtractable(int i, int j) {
+        if (masses[i] < masses[j]) return false;
+        if (amounts == null) return decompositions[i].getCandidate().isSubtractable(decompositions[j].getCandidate());
+        return isSubtractable(amounts, i * width, j);
+    }
+
+    private boolean isSubtractable(short[] from, int offset, int j) {
+        final int jOffset = j * width;
+        for (int k = 0; k < width; ++k) {
+            if (from[offset + k] < amounts[jOffset + k]) return false;
+        }
+        return true;
+    }
+
+    private short[] paddedAmounts(MolecularFormula formula) {
+        final short[] buffer = formula.copyToBuffer();
+        if (buffer.length > width) {
+            for (int k = width; k < buffer.length; ++k)
+                if (buffer[k] != 0) return null;
+        }
+        final short[] padded = new short[width];
+        System.arraycopy(buffer, 0, padded, 0, Math.min(width, buffer.length));
+        return padded;
+    }
+
+    public int size() {
+        return decompositions.length;
+    }
+
+    public Decomposition getDecomposition(int i) {
+        return decompositions[i];
+    }
+
+    public int getPeakIndex(int i) {
+        return peakIndices[i];
+    }
+
+    public boolean isEmptyFormula(int i) {
+        return empty[i];
+    }
+}
@@ -29,14 +29,11 @@ import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
 import de.unijena.bioinf.ChemistryBase.ms.ft.model.Decomposition;
-import de.unijena.bioinf.sirius.PeakAnnotation;
 import de.unijena.bioinf.sirius.ProcessedInput;
 import de.unijena.bioinf.sirius.ProcessedPeak;
-import de.unijena.bioinf.sirius.annotations.DecompositionList;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -77,50 +74,46 @@ public class SubFormulaGraphBuilder implements GraphBuilder {
         //final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
         //final ScoredFormulaMap scoring = graph.getAnnotationOrThrow(ScoredFormulaMap.class);
         final FragmentAnnotation<Decomposition> decomposition = graph.getOrCreateFragmentAnnotation(Decomposition.class);
-        final PeakAnnotation<DecompositionList> decompList = input.getPeakAnnotationOrThrow(DecompositionList.class);
+        final FragmentDecompositionTable table = FragmentDecompositionTable.of(input);
 
         final FragmentAnnotation<Peak> peakAno = graph.getOrCreateFragmentAnnotation(Peak.class);
 
         // TODO: funktioniert nicht mit verschiedenen IonModes....
-        MolecularFormula pmd;
-        {
-            final Iterator<Fragment> roots = graph.getFragmentsWithoutRoot().iterator();
-            pmd = roots.next().getFormula();
-            while (roots.hasNext()) {
-                pmd = pmd.union(roots.next().getFormula());
-            }
-        }
-
-        final ArrayList<ProcessedPeak> peaks = new ArrayList<ProcessedPeak>(input.getMergedPeaks());
-        Collections.sort(peaks, new ProcessedPeak.MassComparator());
-        for (int i = peaks.size() - 1; i >= 0; --i) {
-            final ProcessedPeak peak = peaks.get(i);
-            final int pi = peak.getIndex();
-            for (Decomposition decomp : decompList.get(peak).getDecompositions()) {
-                if (!allowedIonModes.contains(decomp.getIon()))
-                    continue;
-                final MolecularFormula formula = decomp.getCandidate();
-                final boolean hasEdge = formula.getMass() < pmd.getMass() && pmd.isSubtractable(formula);
-                if (hasEdge) {
-                    Fragment newFragment = null;
-                    for (Fragment f : graph) {
-//                        if (f.isRoot() || peakAno.get(f).getIndex() == pi || !ion.get(f).equals(decomposition.getIon())) continue;
-                        if (f.isRoot() || f.getColor() == pi) continue;
-                        final MolecularFormula fragmentFormula = f.getFormula();
-                        assert (peaks.get(f.getColor()).getMass() > peak.getMass());
-                        if (!fragmentFormula.isEmpty() && fragmentFormula.isSubtractable(formula)) {
-                            if (newFragment == null) {
-                                newFragment = graph.addFragment(decomp.getCandidate(), decomp.getIon());
-                                peakAno.set(newFragment, peak);
-                                newFragment.setColor(peak.getIndex());
-                                newFragment.setPeakId(peak.getIndex());
-                                decomposition.set(newFragment, decomp);
-                            }
-                            if (!validator.isForbidden(input, graph, f, newFragment))
-                                graph.addLoss(f, newFragment);
-                        }
-                    }
+        final List<Fragment> roots = new ArrayList<>(graph.getFragmentsWithoutRoot());
+        MolecularFormula pmd = roots.get(0).getFormula();
+        for (int k = 1; k < roots.size(); ++k) pmd = pmd.union(roots.get(k).getFormula());
+
+        // decompositions of heavier peaks come first, so all possible parents of a fragment are already in the graph
+        final List<ProcessedPeak> peaks = input.getMergedPeaks();
+        final int[] selected = table.select(pmd, allowedIonModes);
+        final Fragment[] fragments = new Fragment[selected.length];
+        for (int a = 0; a < selected.length; ++a) {
+            final int j = selected[a];
+            final int pi = table.getPeakIndex(j);
+            final Decomposition decomp = table.getDecomposition(j);
+            final MolecularFormula formula = decomp.getCandidate();
+            Fragment newFragment = null;
+            for (int b = -roots.size(); b < a; ++b) {
+                final Fragment f;
+                if (b < 0) {
+                    f = roots.get(b + roots.size());
+                    if (f.getColor() == pi || f.getFormula().isEmpty() || !f.getFormula().isSubtractable(formula)) continue;
+                } else {
+                    f = fragments[b];
+                    final int i = selected[b];
+                    if (f == null || f.getColor() == pi || table.isEmptyFormula(i) || !table.isSubtractable(i, j)) continue;
+                }
+                assert (peaks.get(f.getColor()).getMass() > peaks.get(pi).getMass());
+                if (newFragment == null) {
+                    newFragment = graph.addFragment(formula, decomp.getIon());
+                    peakAno.set(newFragment, peaks.get(pi));
+                    newFragment.setColor(pi);
+                    newFragment.setPeakId(pi);
+                    decomposition.set(newFragment, decomp);
+                    fragments[a] = newFragment;
                 }
+                if (!validator.isForbidden(input, graph, f, newFragment))
+                    graph.addLoss(f, newFragment);
             }
         }
         return graph;
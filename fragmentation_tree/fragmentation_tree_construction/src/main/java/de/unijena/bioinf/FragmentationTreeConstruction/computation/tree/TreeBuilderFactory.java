@@ -22,6 +22,7 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree;
 
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.AbstractSolver;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.AbstractTreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.BranchAndBoundSolver;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.ILPSolverException;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.IlpFactory;
 import de.unijena.bioinf.ms.properties.PropertyManager;
@@ -56,8 +57,11 @@ public final class TreeBuilderFactory {
 
     private static TreeBuilderFactory INSTANCE = null;
 
+    /**
+     * ILP solvers which need native libraries and BNB, a pure Java branch-and-bound solver
+     */
     @Schema(name = "Solver")
-    public enum DefaultBuilder {GUROBI, CPLEX, GLPK, CLP}
+    public enum DefaultBuilder {GUROBI, CPLEX, GLPK, CLP, BNB}
 
     private TreeBuilderFactory() {
     }
@@ -142,6 +146,9 @@ public final class TreeBuilderFactory {
             case CLP:
                 factory = getTreeBuilderFromClass("de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.CLPSolver", warn);
                 break;
+            case BNB:
+                factory = BranchAndBoundSolver.Factory;
+                break;
             default:
                 LoggerFactory.getLogger(this.getClass()).warn("TreeBuilder " + builder.toString() + " is Unknown, supported are: " + Arrays.toString(DefaultBuilder.values()), new IllegalArgumentException("Unknown BuilderType!"));
                 return null;
@@ -167,7 +174,7 @@ public final class TreeBuilderFactory {
             if (b != null)
                 return b;
         }
-        LoggerFactory.getLogger(TreeBuilderFactory.class).error("Your system does not ship with any instantiatable ILP solver. Please install either CLP,  Gurobi or CPLEX to use SIRIUS.");
+        LoggerFactory.getLogger(TreeBuilderFactory.class).error("Your system does not ship with any instantiatable ILP solver. Please install either CLP, Gurobi or CPLEX or add the built-in solver BNB to 'de.unijena.bioinf.sirius.treebuilder.solvers' to use SIRIUS.");
         return null;
     }
 
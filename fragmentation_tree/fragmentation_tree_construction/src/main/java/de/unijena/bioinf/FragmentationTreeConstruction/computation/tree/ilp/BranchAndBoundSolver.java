@@ -0,0 +1,573 @@
+
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.IsotopicMarker;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.CriticalPathInsertionHeuristic;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.CriticalPathInsertionWithIsotopePeaksHeuristic;
+import de.unijena.bioinf.sirius.ProcessedInput;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+
+/**
+ * Exact solver for the maximum colorful subtree problem written in pure Java, so it does not need any native ILP library.
+ * <p>
+ * Branch-and-bound: upper bounds come from a Lagrangian relaxation of the color constraints. The relaxed problem
+ * allows a fragment to be used several times (the graph is unfolded into a tree) but at most one child per color, and
+ * is solved by dynamic programming over the topologically ordered graph. The multipliers are optimized by subgradient steps. Colors which are still
+ * used more than once are resolved by branching on the fragments of the color or on the incoming edges of a fragment.
+ * Every relaxed solution is greedily turned into a colorful tree, which gives the lower bounds.
+ */
+public class BranchAndBoundSolver extends AbstractSolver {
+
+    public final static IlpFactory<BranchAndBoundSolver> Factory = new IlpFactory<>() {
+        @Override
+        public BranchAndBoundSolver create(ProcessedInput input, FGraph graph, TreeBuilder.FluentInterface options) {
+            return new BranchAndBoundSolver(graph, input, options);
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        public String name() {
+            return "Branch-and-Bound";
+        }
+
+        @Override
+        public void checkSolver() throws ILPSolverException {
+            // pure Java, nothing to load
+        }
+    };
+
+    private static final double EPSILON = 1e-6;
+    private static final int ROOT_ITERATIONS = 200, NODE_ITERATIONS = 30, ITERATIONS_WITHOUT_IMPROVEMENT = 5;
+    private static final double MAX_MULTIPLICITY = 1e9;
+
+    // graph as flat arrays, edge k is losses.get(k)
+    private int pseudoRoot, numberOfColors;
+    private int[] source, target, colors;
+    private double[] weight;
+    private int[] inOffset, outOffset;
+    private int[] outEdges; // outgoing edges of each vertex, grouped by the color of their target
+    private int[] order; // topological order, parents before children
+    private int[] colorOffset, colorVertices;
+
+    // state of the last relaxation
+    private double[] value, multiplicity, colorCount;
+    private boolean[] usedEdges;
+    private int rootEdge;
+
+    // scratch arrays of the greedy lower bound
+    private int[] parentEdge, preorder, stack;
+    private double[] subtreeScore;
+    private boolean[] colorUsed, kept;
+
+    private boolean[] bestAssignment;
+    private double bestScore = Double.NEGATIVE_INFINITY;
+    private double minimalScore = Double.NEGATIVE_INFINITY;
+    private long deadline = Long.MAX_VALUE;
+    private long numberOfNodes;
+
+    protected BranchAndBoundSolver(FGraph graph, ProcessedInput input, TreeBuilder.FluentInterface options) {
+        super(graph, input, options);
+    }
+
+    @Override
+    protected void setTimeLimitInSeconds(double timeLimitsInSeconds) throws Exception {
+        deadline = System.nanoTime() + (long) (timeLimitsInSeconds * 1e9);
+    }
+
+    @Override
+    protected void setNumberOfCpus(int numberOfCPUS) throws Exception {
+        // single threaded, trees of different candidates are computed in parallel instead
+    }
+
+    @Override
+    protected void initializeModel() throws Exception {
+    }
+
+    @Override
+    protected void defineVariables() throws Exception {
+        final int n = graph.numberOfVertices(), m = losses.size();
+        pseudoRoot = graph.getRoot().getVertexId();
+        numberOfColors = graph.maxColor() + 1;
+
+        source = new int[m];
+        target = new int[m];
+        weight = new double[m];
+        for (int k = 0; k < m; ++k) {
+            source[k] = losses.get(k).getSource().getVertexId();
+            target[k] = losses.get(k).getTarget().getVertexId();
+            weight[k] = losses.get(k).getWeight();
+        }
+
+        colors = new int[n];
+        inOffset = new int[n + 1];
+        outOffset = new int[n + 1];
+        final int[] colorSizes = new int[numberOfColors + 1];
+        for (int v = 0; v < n; ++v) {
+            colors[v] = graph.getFragmentAt(v).getColor();
+            inOffset[v + 1] = inOffset[v] + graph.getFragmentAt(v).getInDegree();
+            outOffset[v] = edgeOffsets[v];
+            if (v != pseudoRoot) ++colorSizes[colors[v] + 1];
+        }
+        outOffset[n] = m;
+
+        colorOffset = new int[numberOfColors + 1];
+        for (int c = 0; c < numberOfColors; ++c)
+            colorOffset[c + 1] = colorOffset[c] + colorSizes[c + 1];
+        colorVertices = new int[colorOffset[numberOfColors]];
+        final int[] fill = Arrays.copyOf(colorOffset, numberOfColors);
+        for (int v = 0; v < n; ++v)
+            if (v != pseudoRoot) colorVertices[fill[colors[v]]++] = v;
+
+        outEdges = new int[m];
+        for (int v = 0; v < n; ++v) {
+            final int from = outOffset[v], to = outOffset[v + 1];
+            final Integer[] sorted = new Integer[to - from];
+            for (int k = from; k < to; ++k) sorted[k - from] = edgeIds[k];
+            Arrays.sort(sorted, Comparator.comparingInt(e -> colors[target[e]]));
+            for (int k = from; k < to; ++k) outEdges[k] = sorted[k - from];
+        }
+
+        // Kahn's algorithm
+        order = new int[n];
+        final int[] indegree = new int[n];
+        for (int k = 0; k < m; ++k) ++indegree[target[k]];
+        int head = 0, tail = 0;
+        for (int v = 0; v < n; ++v)
+            if (indegree[v] == 0) order[tail++] = v;
+        while (head < tail) {
+            final int v = order[head++];
+            for (int k = outOffset[v]; k < outOffset[v + 1]; ++k)
+                if (--indegree[target[outEdges[k]]] == 0) order[tail++] = target[outEdges[k]];
+        }
+        if (tail != n) throw new IllegalArgumentException("Fragmentation graph is not acyclic.");
+
+        value = new double[n];
+        multiplicity = new double[n];
+        colorCount = new double[numberOfColors];
+        usedEdges = new boolean[m];
+        parentEdge = new int[n];
+        preorder = new int[n];
+        stack = new int[n];
+        subtreeScore = new double[n];
+        colorUsed = new boolean[numberOfColors];
+        kept = new boolean[n];
+    }
+
+    @Override
+    protected void setVariableStartValues(int[] usedEdgeIds) throws Exception {
+        // only accept start values which are a feasible colorful tree
+        final boolean[] used = new boolean[losses.size()];
+        final boolean[] hasParent = new boolean[graph.numberOfVertices()];
+        final boolean[] usedColors = new boolean[numberOfColors];
+        int roots = 0;
+        double score = 0d;
+        for (int e : usedEdgeIds) {
+            final int v = target[e];
+            if (hasParent[v] || usedColors[colors[v]]) return;
+            hasParent[v] = true;
+            usedColors[colors[v]] = true;
+            used[e] = true;
+            score += weight[e];
+            if (source[e] == pseudoRoot) ++roots;
+        }
+        if (roots != 1) return;
+        for (int e : usedEdgeIds)
+            if (source[e] != pseudoRoot && !hasParent[source[e]]) return;
+        if (score > bestScore) {
+            bestScore = score;
+            bestAssignment = used;
+        }
+    }
+
+    @Override
+    protected void setMinimalScoreConstraints(double minimalScore) throws Exception {
+        this.minimalScore = minimalScore;
+    }
+
+    // tree, color and tree size constraints are guaranteed by the search itself
+
+    @Override
+    protected void setTreeConstraint() throws Exception {
+    }
+
+    @Override
+    protected void setColorConstraint() throws Exception {
+    }
+
+    @Override
+    protected void setMinimalTreeSizeConstraint() throws Exception {
+    }
+
+    @Override
+    protected void setObjective() throws Exception {
+    }
+
+    @Override
+    protected TreeBuilder.AbortReason solveMIP() throws Exception {
+        // the heuristic supports only graphs with a single root
+        if (options.getTemplate() == null && graph.getRoot().getOutDegree() == 1) {
+            final CriticalPathInsertionHeuristic heuristic = graph.getFragmentAnnotationOrNull(IsotopicMarker.class) != null
+                    ? new CriticalPathInsertionWithIsotopePeaksHeuristic(graph) : new CriticalPathInsertionHeuristic(graph);
+            final FTree start = heuristic.solve();
+            if (start != null)
+                setVariableStartValues(start);
+        }
+
+        final Callable<Boolean> interruptionCheck = options.getInterruptionCheck();
+        final ArrayDeque<Node> open = new ArrayDeque<>();
+        open.push(new Node(new boolean[losses.size()], new double[numberOfColors], Double.POSITIVE_INFINITY, ROOT_ITERATIONS));
+        while (!open.isEmpty()) {
+            final Node node = open.pop();
+            if (canBePruned(node.bound))
+                continue;
+            if (System.nanoTime() > deadline || (interruptionCheck != null && interruptionCheck.call()))
+                return TreeBuilder.AbortReason.TIMEOUT;
+            ++numberOfNodes;
+            if (!process(node, open))
+                return TreeBuilder.AbortReason.TIMEOUT;
+        }
+        LoggerFactory.getLogger(BranchAndBoundSolver.class).debug("Solved graph with " + graph.numberOfVertices() + " vertices and " + losses.size() + " edges in " + numberOfNodes + " branch-and-bound nodes.");
+
+        if (bestAssignment == null || bestScore < minimalScore)
+            return TreeBuilder.AbortReason.NO_SOLUTION;
+        return TreeBuilder.AbortReason.COMPUTATION_CORRECT;
+    }
+
+    private boolean canBePruned(double upperBound) {
+        return upperBound <= bestScore + EPSILON || upperBound < minimalScore;
+    }
+
+    /**
+     * optimizes the multipliers of the given node and pushes its children, if it cannot be pruned
+     *
+     * @return false if the time limit is exceeded
+     */
+    private boolean process(Node node, ArrayDeque<Node> open) {
+        final boolean[] dead = node.deadEdges;
+        final double[] lambda = node.lambda;
+        double bound = node.bound;
+        while (true) {
+            double step = 2d;
+            int withoutImprovement = 0;
+            for (int iteration = 0; ; ++iteration) {
+                if (System.nanoTime() > deadline)
+                    return false;
+                final double upperBound = relax(dead, lambda);
+                if (upperBound == Double.NEGATIVE_INFINITY)
+                    return true; // no root left
+                if (upperBound < bound - EPSILON) {
+                    bound = upperBound;
+                    withoutImprovement = 0;
+                } else if (++withoutImprovement >= ITERATIONS_WITHOUT_IMPROVEMENT) {
+                    step /= 2;
+                    withoutImprovement = 0;
+                }
+                extractColorfulTree();
+                if (canBePruned(bound))
+                    return true;
+                countColors();
+                if (iteration >= node.iterations || step < 1e-3)
+                    break;
+
+                // projected subgradient step
+                double norm = 0d;
+                for (int c = 0; c < numberOfColors; ++c) {
+                    final double g = 1d - colorCount[c];
+                    if (lambda[c] > 0 || g < 0) norm += g * g;
+                }
+                if (norm == 0)
+                    break;
+                final double lowerBound = bestScore == Double.NEGATIVE_INFINITY ? upperBound - 1d : bestScore;
+                final double t = step * Math.max(upperBound - lowerBound, EPSILON) / norm;
+                for (int c = 0; c < numberOfColors; ++c)
+                    lambda[c] = Math.max(0d, lambda[c] - t * (1d - colorCount[c]));
+            }
+            if (branchOnViolation(dead, lambda, bound, open) || branchOnUnusedColor(dead, lambda, bound, open))
+                return true;
+            // all remaining multipliers belonged to colors that cannot be used twice and were reset
+        }
+    }
+
+    private double gain(int e, double[] lambda) {
+        final int u = target[e];
+        return weight[e] - lambda[colors[u]] + value[u];
+    }
+
+    /**
+     * Solves the relaxed problem by dynamic programming and marks the edges of its solution
+     *
+     * @return upper bound or negative infinity if there is no root edge left
+     */
+    private double relax(boolean[] dead, double[] lambda) {
+        for (int i = order.length - 1; i >= 0; --i) {
+            final int v = order[i];
+            if (v == pseudoRoot) continue;
+            double sum = 0d;
+            for (int k = outOffset[v], end = outOffset[v + 1]; k < end; ) {
+                // best child of each color
+                final int c = colors[target[outEdges[k]]];
+                int best = -1;
+                double bestGain = 0d;
+                for (; k < end && colors[target[outEdges[k]]] == c; ++k) {
+                    final int e = outEdges[k];
+                    usedEdges[e] = false;
+                    if (dead[e] || c == colors[v]) continue;
+                    final double g = gain(e, lambda);
+                    if (g > bestGain) {
+                        bestGain = g;
+                        best = e;
+                    }
+                }
+                if (best >= 0) {
+                    usedEdges[best] = true;
+                    sum += bestGain;
+                }
+            }
+            value[v] = sum;
+        }
+        rootEdge = -1;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int k = outOffset[pseudoRoot]; k < outOffset[pseudoRoot + 1]; ++k) {
+            final int e = outEdges[k];
+            usedEdges[e] = false;
+            if (dead[e]) continue;
+            final double g = gain(e, lambda);
+            if (g > best) {
+                best = g;
+                rootEdge = e;
+            }
+        }
+        if (rootEdge < 0)
+            return Double.NEGATIVE_INFINITY;
+        usedEdges[rootEdge] = true;
+        for (double l : lambda) best += l;
+        return best;
+    }
+
+    /**
+     * counts how often each fragment and each color is used in the last relaxed solution
+     */
+    private void countColors() {
+        Arrays.fill(multiplicity, 0d);
+        Arrays.fill(colorCount, 0d);
+        multiplicity[target[rootEdge]] = 1d;
+        for (int v : order) {
+            if (v == pseudoRoot || multiplicity[v] == 0) continue;
+            colorCount[colors[v]] += multiplicity[v];
+            for (int k = outOffset[v]; k < outOffset[v + 1]; ++k) {
+                final int e = outEdges[k];
+                if (usedEdges[e])
+                    multiplicity[target[e]] = Math.min(MAX_MULTIPLICITY, multiplicity[target[e]] + multiplicity[v]);
+            }
+        }
+    }
+
+    /**
+     * Turns the last relaxed solution into a colorful tree by skipping every fragment whose color is already used
+     * and updates the incumbent.
+     */
+    private void extractColorfulTree() {
+        Arrays.fill(colorUsed, false);
+        final int root = target[rootEdge];
+        colorUsed[colors[root]] = true;
+        parentEdge[root] = rootEdge;
+        int size = 0, top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            final int v = stack[--top];
+            preorder[size++] = v;
+            subtreeScore[v] = weight[parentEdge[v]];
+            for (int k = outOffset[v]; k < outOffset[v + 1]; ++k) {
+                final int e = outEdges[k];
+                final int u = target[e];
+                if (!usedEdges[e] || colorUsed[colors[u]]) continue;
+                colorUsed[colors[u]] = true;
+                parentEdge[u] = e;
+                stack[top++] = u;
+            }
+        }
+        // remove subtrees with negative score
+        for (int i = size - 1; i > 0; --i) {
+            final int v = preorder[i];
+            if (subtreeScore[v] > 0) subtreeScore[source[parentEdge[v]]] += subtreeScore[v];
+        }
+        final double score = subtreeScore[root];
+        if (score <= bestScore)
+            return;
+        final boolean[] assignment = new boolean[losses.size()];
+        kept[root] = true;
+        assignment[rootEdge] = true;
+        for (int i = 1; i < size; ++i) {
+            final int v = preorder[i];
+            kept[v] = subtreeScore[v] > 0 && kept[source[parentEdge[v]]];
+            if (kept[v]) assignment[parentEdge[v]] = true;
+        }
+        bestScore = score;
+        bestAssignment = assignment;
+    }
+
+    /**
+     * branches on the first fragment used multiple times or on a color used by multiple fragments
+     */
+    private boolean branchOnViolation(boolean[] dead, double[] lambda, double bound, ArrayDeque<Node> open) {
+        for (int v : order) {
+            if (multiplicity[v] < 1.5) continue;
+            // all parents are used at most once, so v has at least two used incoming edges
+            int best = -1;
+            for (int e = inOffset[v]; e < inOffset[v + 1]; ++e)
+                if (usedEdges[e] && multiplicity[source[e]] > 0 && (best < 0 || weight[e] > weight[best]))
+                    best = e;
+            branchOnEdge(v, best, dead, lambda, bound, open);
+            return true;
+        }
+        int color = -1;
+        for (int c = 0; c < numberOfColors; ++c)
+            if (colorCount[c] > 1.5 && (color < 0 || colorCount[c] > colorCount[color]))
+                color = c;
+        if (color < 0)
+            return false;
+        int vertex = -1;
+        for (int i = colorOffset[color]; i < colorOffset[color + 1]; ++i) {
+            final int v = colorVertices[i];
+            if (multiplicity[v] > 0 && (vertex < 0 || value[v] > value[vertex]))
+                vertex = v;
+        }
+        branchOnFragment(color, vertex, dead, lambda, bound, open);
+        return true;
+    }
+
+    /**
+     * The relaxed solution is colorful, the remaining gap comes from multipliers of unused colors. Branches on such a
+     * color or, if the color can never be used twice, resets its multiplier.
+     */
+    private boolean branchOnUnusedColor(boolean[] dead, double[] lambda, double bound, ArrayDeque<Node> open) {
+        for (int c = 0; c < numberOfColors; ++c) {
+            if (lambda[c] <= 0 || colorCount[c] > 0.5) continue;
+            int alive = 0, vertex = -1;
+            for (int i = colorOffset[c]; i < colorOffset[c + 1]; ++i) {
+                final int v = colorVertices[i];
+                if (hasIncomingEdge(v, dead)) {
+                    ++alive;
+                    if (vertex < 0 || value[v] > value[vertex]) vertex = v;
+                }
+            }
+            if (alive >= 2) {
+                branchOnFragment(c, vertex, dead, lambda, bound, open);
+                return true;
+            }
+            // a single fragment can only be used twice if one of its ancestors has a choice of incoming edges
+            for (int v = vertex; v >= 0 && v != pseudoRoot; ) {
+                int incoming = 0, best = -1;
+                for (int e = inOffset[v]; e < inOffset[v + 1]; ++e) {
+                    if (dead[e]) continue;
+                    ++incoming;
+                    if (best < 0 || weight[e] > weight[best]) best = e;
+                }
+                if (incoming >= 2) {
+                    branchOnEdge(v, best, dead, lambda, bound, open);
+                    return true;
+                }
+                v = incoming == 0 ? -1 : source[best];
+            }
+            lambda[c] = 0d;
+        }
+        return false;
+    }
+
+    private boolean hasIncomingEdge(int v, boolean[] dead) {
+        for (int e = inOffset[v]; e < inOffset[v + 1]; ++e)
+            if (!dead[e]) return true;
+        return false;
+    }
+
+    /**
+     * first child: the given fragment is the only one of its color, second child: the fragment is removed
+     */
+    private void branchOnFragment(int c, int vertex, boolean[] dead, double[] lambda, double bound, ArrayDeque<Node> open) {
+        final Node removed = new Node(dead.clone(), lambda.clone(), bound, NODE_ITERATIONS);
+        for (int e = inOffset[vertex]; e < inOffset[vertex + 1]; ++e)
+            removed.deadEdges[e] = true;
+        final Node selected = new Node(dead.clone(), lambda.clone(), bound, NODE_ITERATIONS);
+        for (int i = colorOffset[c]; i < colorOffset[c + 1]; ++i) {
+            final int v = colorVertices[i];
+            if (v == vertex) continue;
+            for (int e = inOffset[v]; e < inOffset[v + 1]; ++e)
+                selected.deadEdges[e] = true;
+        }
+        open.push(removed);
+        open.push(selected);
+    }
+
+    /**
+     * first child: the given edge is the only incoming edge of its target, second child: the edge is removed
+     */
+    private void branchOnEdge(int vertex, int edge, boolean[] dead, double[] lambda, double bound, ArrayDeque<Node> open) {
+        final Node removed = new Node(dead.clone(), lambda.clone(), bound, NODE_ITERATIONS);
+        removed.deadEdges[edge] = true;
+        final Node selected = new Node(dead.clone(), lambda.clone(), bound, NODE_ITERATIONS);
+        for (int e = inOffset[vertex]; e < inOffset[vertex + 1]; ++e)
+            if (e != edge) selected.deadEdges[e] = true;
+        open.push(removed);
+        open.push(selected);
+    }
+
+    @Override
+    protected void pastBuildSolution() throws Exception {
+    }
+
+    @Override
+    protected boolean[] getVariableAssignment() throws Exception {
+        return bestAssignment;
+    }
+
+    @Override
+    protected double getSolverScore() throws Exception {
+        return bestScore;
+    }
+
+    private static class Node {
+        private final boolean[] deadEdges;
+        private final double[] lambda;
+        private final double bound;
+        private final int iterations;
+
+        private Node(boolean[] deadEdges, double[] lambda, double bound, int iterations) {
+            this.deadEdges = deadEdges;
+            this.lambda = lambda;
+            this.bound = bound;
+            this.iterations = iterations;
+        }
+    }
+}
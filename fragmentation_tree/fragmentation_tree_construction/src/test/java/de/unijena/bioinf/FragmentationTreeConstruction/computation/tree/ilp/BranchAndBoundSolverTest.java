@@ -0,0 +1,113 @@
+
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilderFactory;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BranchAndBoundSolverTest {
+
+    @Test
+    public void testMatchesExhaustiveSearch() {
+        final TreeBuilder builder = TreeBuilderFactory.getInstance().getTreeBuilder(TreeBuilderFactory.DefaultBuilder.BNB);
+        assertNotNull(builder);
+        final Random r = new Random(42);
+        for (int k = 0; k < 300; ++k) {
+            final FGraph graph = randomGraph(r, 6 + r.nextInt(5), 1 + r.nextInt(2));
+            final TreeBuilder.Result result = builder.computeTree().solve(null, graph);
+            assertEquals(TreeBuilder.AbortReason.COMPUTATION_CORRECT, result.error);
+            assertTrue(result.isOptimal);
+            assertEquals(exhaustiveSearch(graph), result.tree.getTreeWeight(), 1e-9, "graph " + k);
+        }
+    }
+
+    /**
+     * fragments are ordered by color like in graphs built by SIRIUS, several fragments share a color and have up to
+     * three incoming edges
+     */
+    private static FGraph randomGraph(Random r, int size, int numberOfRoots) {
+        final Ionization ion = PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization();
+        final FGraph graph = new FGraph();
+        final Fragment[] fragments = new Fragment[size];
+        int color = 1;
+        for (int i = 0; i < size; ++i) {
+            final MolecularFormula formula = MolecularFormula.parseOrThrow("C" + (40 - i) + "H" + (60 - i));
+            if (i < numberOfRoots) {
+                fragments[i] = graph.addRootVertex(formula, ion);
+                fragments[i].setColor(color);
+                fragments[i].getIncomingEdge().setWeight(r.nextGaussian());
+            } else {
+                if (i == numberOfRoots || r.nextBoolean()) ++color;
+                fragments[i] = graph.addFragment(formula, ion);
+                fragments[i].setColor(color);
+                for (int j = 0; j < i && fragments[i].getInDegree() < 3; ++j) {
+                    if (r.nextDouble() < 0.5) {
+                        final Loss l = graph.addLoss(fragments[j], fragments[i]);
+                        l.setWeight(r.nextGaussian() + 0.3);
+                    }
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * tries every choice of at most one incoming edge per fragment
+     */
+    private static double exhaustiveSearch(FGraph graph) {
+        final List<Fragment> fragments = graph.getFragments();
+        final int[] choice = new int[fragments.size()];
+        double best = Double.NEGATIVE_INFINITY;
+        while (true) {
+            boolean feasible = true;
+            int roots = 0;
+            double score = 0d;
+            final boolean[] colors = new boolean[graph.maxColor() + 1];
+            for (Fragment f : fragments) {
+                if (f == graph.getRoot() || choice[f.getVertexId()] == 0) continue;
+                final Loss l = f.getIncomingEdge(choice[f.getVertexId()] - 1);
+                if (l.getSource() == graph.getRoot()) ++roots;
+                else if (choice[l.getSource().getVertexId()] == 0) feasible = false;
+                if (colors[f.getColor()]) feasible = false;
+                colors[f.getColor()] = true;
+                score += l.getWeight();
+            }
+            if (feasible && roots == 1) best = Math.max(best, score);
+
+            int i = 0;
+            while (i < choice.length && ++choice[i] > fragments.get(i).getInDegree()) choice[i++] = 0;
+            if (i == choice.length) return best;
+        }
+    }
+}
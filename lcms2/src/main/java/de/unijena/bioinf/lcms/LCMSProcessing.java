@@ -5,6 +5,8 @@ import de.unijena.bioinf.ChemistryBase.math.Statistics;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.jjobs.JobManager;
 import de.unijena.bioinf.lcms.align.*;
 import de.unijena.bioinf.lcms.features.IsotopePatternExtractionStrategy;
 import de.unijena.bioinf.lcms.features.MergedApexIsotopePatternExtractor;
@@ -18,9 +20,11 @@ import de.unijena.bioinf.lcms.merge.ScanPointInterpolator;
 import de.unijena.bioinf.lcms.msms.*;
 import de.unijena.bioinf.lcms.projectspace.PickFeaturesAndImportToSirius;
 import de.unijena.bioinf.lcms.projectspace.ProjectSpaceImporter;
+import de.unijena.bioinf.lcms.projectspace.RecordingDatabaseAdapter;
 import de.unijena.bioinf.lcms.projectspace.SiriusDatabaseAdapter;
 import de.unijena.bioinf.lcms.quality.CheckMs2Quality;
 import de.unijena.bioinf.lcms.spectrum.Ms2SpectrumHeader;
+import de.unijena.bioinf.lcms.spectrum.ScanCache;
 import de.unijena.bioinf.lcms.statistics.*;
 import de.unijena.bioinf.lcms.trace.ProcessedSample;
 import de.unijena.bioinf.lcms.trace.*;
@@ -30,7 +34,6 @@ import de.unijena.bioinf.lcms.trace.segmentation.TraceSegmentationStrategy;
 import de.unijena.bioinf.lcms.traceextractor.*;
 import de.unijena.bioinf.lcms.utils.TrackFeatureToFile;
 import de.unijena.bioinf.lcms.utils.Tracker;
-import de.unijena.bioinf.ms.persistence.model.core.feature.AlignedFeatures;
 import de.unijena.bioinf.ms.persistence.model.core.run.Chromatography;
 import de.unijena.bioinf.ms.persistence.model.core.run.MergedLCMSRun;
 import de.unijena.bioinf.ms.persistence.model.core.run.RetentionTimeAxis;
@@ -38,6 +41,9 @@ import de.unijena.bioinf.ms.persistence.model.core.run.SampleStatistics;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
 import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.longs.LongList;
 import lombok.Getter;
@@ -52,6 +58,8 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 
 public class LCMSProcessing {
 
@@ -83,6 +91,12 @@ public class LCMSProcessing {
 
     @Getter @Setter private TraceSegmentationStrategy segmentationStrategy = new PersistentHomology();
 
+    /**
+     * pick traces of a sample concurrently in m/z stripes (see {@link StripedTracePicking}). The picked traces are
+     * independent of the number of threads and the same as for sequential trace picking.
+     */
+    @Getter @Setter private boolean concurrentTracePicking = false;
+
     @Getter @Setter private MassOfInterestConfidenceEstimatorStrategy confidenceEstimatorStrategy = new MassOfInterestCombinedStrategy(
             new IsotopesAndAdductsAreConfidentStrategy(),
             new PrecursorsWithMsMsAreConfidentStrategy(),
@@ -111,8 +125,29 @@ public class LCMSProcessing {
 
     @Getter @Setter private IsotopePatternExtractionStrategy isotopePatternExtractionStrategy = new MergedApexIsotopePatternExtractor();
 
+    /**
+     * Maximum number of samples that are processed at the same time by {@link #processSamples(List, boolean, Chromatography, Consumer)}.
+     * Every sample in flight keeps its storage cache in memory, finished samples are moved into low memory mode.
+     * Values smaller than 1 mean: use the number of CPU threads.
+     */
+    @Getter @Setter private int samplesInFlight = -1;
+
+    /**
+     * Fraction of the maximum heap size above which we consider the JVM to be under memory pressure. Under memory
+     * pressure, samples in flight flush their storage caches between the processing stages and no new sample
+     * is started before all samples in flight are finished.
+     */
+    @Getter @Setter private double memoryPressureThreshold = 0.75;
+
     protected List<ProcessedSample> samples = new ArrayList<>();
     private HashMap<Integer, ProcessedSample> sampleByIdx = new HashMap<>();
+    private int nextSampleUid = 0;
+
+    /**
+     * merged sample and feature ids of the previous alignment, if restored by {@link #restoreWorkspace()}
+     */
+    @Getter @Nullable private ProcessedSample restoredMerged;
+    @Nullable private BackboneRecord restoredBackboneRecord;
 
     private final boolean saveFeatureIds;
 
@@ -124,7 +159,7 @@ public class LCMSProcessing {
             new Tracker.NOOP();
 
     public LCMSProcessing(SiriusDatabaseAdapter siriusDatabaseAdapter, boolean saveFeatureIds) {
-        this(siriusDatabaseAdapter, saveFeatureIds, null);
+        this(siriusDatabaseAdapter, saveFeatureIds, (Path) null);
     }
 
     public LCMSProcessing(SiriusDatabaseAdapter siriusDatabaseAdapter, boolean saveFeatureIds, @Nullable Path tmpDir) {
@@ -133,6 +168,15 @@ public class LCMSProcessing {
         this.storageFactory = LCMSStorage.temporaryStorage(tmpDir == null ? null : tmpDir.toFile());
     }
 
+    /**
+     * @param storageFactory creates the storages of the samples, e.g. {@link LCMSStorage#temporaryColumnarStorage(java.io.File)}
+     */
+    public LCMSProcessing(SiriusDatabaseAdapter siriusDatabaseAdapter, boolean saveFeatureIds, LCMSStorageFactory storageFactory) {
+        this.siriusDatabaseAdapter = siriusDatabaseAdapter;
+        this.saveFeatureIds = saveFeatureIds;
+        this.storageFactory = storageFactory;
+    }
+
     /**
      * parses an MZML file and stores the processed sample. Note: we should add possibility to parse from input
      * stream later
@@ -173,29 +217,120 @@ public class LCMSProcessing {
         return sample;
     }
 
-    private void processSample(ProcessedSample sample) throws IOException {
-        sample.setUid(this.samples.size());
+    /**
+     * Processes all files with at most {@link #getSamplesInFlight()} samples at the same time. Each sample is moved
+     * into low memory mode as soon as it is processed, such that the memory consumption does not grow with the
+     * number of files.
+     *
+     * @param onSampleProcessed called from the worker thread after a sample is processed and before it is moved into
+     *                          low memory mode. Has to be thread-safe.
+     * @return processed samples in the order of the given files
+     */
+    public List<ProcessedSample> processSamples(
+            List<Path> files,
+            boolean saveRawScans,
+            Chromatography chromatography,
+            @Nullable Consumer<ProcessedSample> onSampleProcessed
+    ) throws IOException {
+        final JobManager jobManager = SiriusJobs.getGlobalJobManager();
+        final int inFlight = samplesInFlight > 0 ? samplesInFlight : Math.max(1, jobManager.getCPUThreads());
+        final Semaphore slots = new Semaphore(inFlight);
+        final List<BasicJJob<ProcessedSample>> jobs = new ArrayList<>(files.size());
+        try {
+            for (Path file : files) {
+                if (isUnderMemoryPressure()) {
+                    // wait until all samples in flight are finished and moved into low memory mode
+                    slots.acquire(inFlight);
+                    slots.release(inFlight - 1);
+                } else {
+                    slots.acquire();
+                }
+                jobs.add(jobManager.submitJob(new BasicJJob<ProcessedSample>(JJob.JobType.CPU) {
+                    @Override
+                    protected ProcessedSample compute() throws Exception {
+                        try {
+                            ProcessedSample sample = processSample(file, saveRawScans, chromatography);
+                            if (onSampleProcessed != null) onSampleProcessed.accept(sample);
+                            sample.inactive();
+                            return sample;
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                }));
+            }
+        } catch (InterruptedException e) {
+            jobs.forEach(j -> j.cancel(true));
+            throw new IOException("Interrupted while processing samples.", e);
+        }
+        final List<ProcessedSample> processed = new ArrayList<>(jobs.size());
+        for (BasicJJob<ProcessedSample> job : jobs) {
+            try {
+                processed.add(job.awaitResult());
+            } catch (Exception e) {
+                throw new IOException("Error while processing sample.", e);
+            }
+        }
+        return processed;
+    }
+
+    private synchronized void registerSample(ProcessedSample sample) {
+        sample.setUid(nextSampleUid++);
         this.samples.add(sample);
         this.sampleByIdx.put(sample.getUid(), sample);
+    }
+
+    private synchronized void registerRestoredSample(ProcessedSample sample) {
+        nextSampleUid = Math.max(nextSampleUid, sample.getUid() + 1);
+        this.samples.add(sample);
+        this.sampleByIdx.put(sample.getUid(), sample);
+    }
+
+    private synchronized int reserveSampleUid() {
+        return nextSampleUid++;
+    }
+
+    private void processSample(ProcessedSample sample) throws IOException {
+        registerSample(sample);
         sample.active();
         collectStatistics(sample);
+        releaseMemoryIfNecessary(sample);
         extractTraces(sample);
+        releaseMemoryIfNecessary(sample);
         assignMs2Trace(sample);
         sample.setNormalizer(normalizationStrategy.computeNormalization(sample));
+        releaseMemoryIfNecessary(sample);
         extractMoIsForAlignment(sample);
         collectStatisticsBeforeAlignment(sample);
         importScanPointMapping(sample, sample.getRun().getRunId());
         sample.getStorage().commit();
     }
 
+    private boolean isUnderMemoryPressure() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() > memoryPressureThreshold * runtime.maxMemory();
+    }
+
+    /**
+     * flushes the storage cache of the sample by switching it into low memory mode and back, if the JVM is under
+     * memory pressure. Must only be called between processing stages.
+     */
+    private void releaseMemoryIfNecessary(ProcessedSample sample) {
+        if (isUnderMemoryPressure()) {
+            sample.getStorage().commit();
+            sample.inactive();
+            sample.active();
+        }
+    }
+
     public AlignmentBackbone align() throws IOException {
-        LCMSStorage mergedStorage = storageFactory.createNewStorage();
+        LCMSStorage mergedStorage = storageFactory.createMergedStorage();
         AlignmentBackbone alignmentBackbone = alignmentStrategy.makeAlignmentBackbone(mergedStorage.getAlignmentStorage(), samples, alignmentAlgorithm, alignmentScorerBackbone);
         ProcessedSample merged = new ProcessedSample(
                 alignmentBackbone.getScanPointMapping(),
                 mergedStorage,
                 samples.get(0).getPolarity(),
-                samples.size() // TODO: better use sample idx 0?
+                reserveSampleUid()
         );
         makeMergeStatistics(merged, alignmentBackbone.getSamples());
         samples.add(merged);
@@ -262,24 +397,12 @@ public class LCMSProcessing {
             if (sample!=merged) importer.importRun(siriusDatabaseAdapter, obj, sample);
             else importer.importMergedRun(siriusDatabaseAdapter, obj, sample);
         }
+        final List<Rect> rects = new ArrayList<>();
+        for (final Rect r : merged.getStorage().getMergeStorage().getRectangleMap()) rects.add(r);
+        final Int2ObjectMap<BackboneRecord.ImportedIds> importedIdsPerRect = importMergedTraces(merged, rects, importer, obj, null);
         int featureCount = 0;
-        List<BasicJJob<long[]>> jobs = new ArrayList<>();
-        for (final Rect r : merged.getStorage().getMergeStorage().getRectangleMap()) {
-            jobs.add(SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<long[]>() {
-                @Override
-                protected long[] compute() throws Exception {
-                    MergedTrace mergedTrace = collectMergedTrace(merged, r.id);
-                    if (mergedTrace!=null && isSuitableForImport(mergedTrace)) {
-                        return Arrays.stream(importer.importMergedTrace(mergedTraceSegmentationStrategy, siriusDatabaseAdapter, obj,merged, mergedTrace, tracker)).mapToLong(AlignedFeatures::getAlignedFeatureId).toArray();
-                    } else {
-                        tracker.rejectedForFeatureExtraction(r, mergedTrace);
-                    }
-                    return new long[0];
-                }
-            }));
-        }
-        for (BasicJJob<long[]> job : jobs) {
-            long[] ids = job.takeResult();
+        for (Rect r : rects) {
+            final long[] ids = importedIdsPerRect.getOrDefault(r.id, BackboneRecord.ImportedIds.EMPTY).featureIds();
             if (saveFeatureIds) {
                 for (long id : ids) {
                     importedFeatureIds.add(id);
@@ -291,6 +414,7 @@ public class LCMSProcessing {
         if (featureCount > 0) {
             mergedRun.setSampleStats(collectFinalStatistics(merged, backbone));
             siriusDatabaseAdapter.updateMergedRun(mergedRun);
+            if (storageFactory instanceof AlignmentWorkspace) saveWorkspace(merged, backbone, importedIdsPerRect);
         } else {
             siriusDatabaseAdapter.removeMergedRun(mergedRun);
         }
@@ -298,6 +422,175 @@ public class LCMSProcessing {
         return featureCount;
     }
 
+    /**
+     * segmentation, isotope pattern extraction and import of the merged traces are done in one job per thread,
+     * each working on a contiguous slice of the rectangles
+     * @param previousFeatures removed features whose ids should be reused by the imported features
+     * @return ids of the imported features and traces for each rectangle
+     */
+    private Int2ObjectMap<BackboneRecord.ImportedIds> importMergedTraces(ProcessedSample merged, List<Rect> rects, ProjectSpaceImporter<Object> importer, Object obj, @Nullable RecordingDatabaseAdapter.PreviousFeatures previousFeatures) {
+        final int numberOfJobs = Math.max(1, Math.min(rects.size(), SiriusJobs.getGlobalJobManager().getCPUThreads()));
+        final int sliceSize = (rects.size() + numberOfJobs - 1) / numberOfJobs;
+        List<BasicJJob<Int2ObjectMap<BackboneRecord.ImportedIds>>> jobs = new ArrayList<>();
+        for (int start = 0; start < rects.size(); start += sliceSize) {
+            final int from = start, to = Math.min(rects.size(), start + sliceSize);
+            jobs.add(SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<Int2ObjectMap<BackboneRecord.ImportedIds>>(JJob.JobType.CPU) {
+                @Override
+                protected Int2ObjectMap<BackboneRecord.ImportedIds> compute() throws Exception {
+                    final Int2ObjectMap<BackboneRecord.ImportedIds> ids = new Int2ObjectOpenHashMap<>();
+                    for (int i = from; i < to; ++i) {
+                        checkForInterruption();
+                        final Rect r = rects.get(i);
+                        MergedTrace mergedTrace = collectMergedTrace(merged, r.id);
+                        if (mergedTrace != null && isSuitableForImport(mergedTrace)) {
+                            final RecordingDatabaseAdapter adapter = new RecordingDatabaseAdapter(siriusDatabaseAdapter, previousFeatures);
+                            importer.importMergedTrace(mergedTraceSegmentationStrategy, adapter, obj, merged, mergedTrace, tracker);
+                            ids.put(r.id, adapter.getImportedIds());
+                        } else {
+                            tracker.rejectedForFeatureExtraction(r, mergedTrace);
+                        }
+                    }
+                    return ids;
+                }
+            }));
+        }
+        final Int2ObjectMap<BackboneRecord.ImportedIds> importedIdsPerRect = new Int2ObjectOpenHashMap<>();
+        for (BasicJJob<Int2ObjectMap<BackboneRecord.ImportedIds>> job : jobs) {
+            importedIdsPerRect.putAll(job.takeResult());
+        }
+        return importedIdsPerRect;
+    }
+
+    /**
+     * stores everything we need to add new samples to this alignment later on into the storages of the workspace
+     */
+    private void saveWorkspace(ProcessedSample merged, AlignmentBackbone backbone, Int2ObjectMap<BackboneRecord.ImportedIds> importedIdsPerRect) {
+        for (ProcessedSample sample : backbone.getSamples()) {
+            SampleRecord.store(sample);
+            sample.getStorage().commit();
+        }
+        SampleRecord.store(merged);
+        merged.getStorage().setMetadata(BackboneRecord.KEY, new BackboneRecord(backbone, merged, importedIdsPerRect));
+        merged.getStorage().commit();
+    }
+
+    /**
+     * Restores the samples and the merged sample of the last alignment stored in the workspace. Has to be called
+     * before any new sample is processed. Sample storages that do not belong to the alignment are removed.
+     * New samples can then be processed as usual and added to the alignment with
+     * {@link #updateAlignmentIncrementally(AlignmentBackbone)}.
+     * @return backbone of the last alignment or empty if the workspace does not contain an alignment
+     */
+    public Optional<AlignmentBackbone> restoreWorkspace() throws IOException {
+        if (!(storageFactory instanceof AlignmentWorkspace workspace))
+            throw new UnsupportedOperationException("Restoring an alignment requires an AlignmentWorkspace as storage.");
+        if (!samples.isEmpty())
+            throw new IllegalStateException("Workspace has to be restored before any sample is processed.");
+        final Optional<LCMSStorage> mergedStorage = workspace.openMergedStorage();
+        final Optional<BackboneRecord> record = mergedStorage.flatMap(s -> s.getMetadata(BackboneRecord.KEY, BackboneRecord.class));
+        final Optional<ProcessedSample> merged = mergedStorage.flatMap(SampleRecord::restore);
+        final Set<Integer> sampleUids = new HashSet<>();
+        record.ifPresent(r -> Arrays.stream(r.getSampleUids()).forEach(sampleUids::add));
+        final List<ProcessedSample> restored = new ArrayList<>();
+        for (LCMSStorage storage : workspace.openSampleStorages()) {
+            final Optional<ProcessedSample> sample = SampleRecord.restore(storage).filter(s -> sampleUids.contains(s.getUid()));
+            if (sample.isPresent()) {
+                restored.add(sample.get());
+            } else {
+                workspace.discard(storage);
+            }
+        }
+        if (record.isEmpty() || merged.isEmpty() || restored.size() != sampleUids.size()) {
+            for (ProcessedSample s : restored) workspace.discard(s.getStorage());
+            if (mergedStorage.isPresent()) workspace.discard(mergedStorage.get());
+            return Optional.empty();
+        }
+        for (ProcessedSample sample : restored) {
+            registerRestoredSample(sample);
+            sample.setScanPointInterpolator(new ScanPointInterpolator(merged.get().getMapping(), sample.getMapping(), sample.getRtRecalibration()));
+            sample.inactive();
+        }
+        registerRestoredSample(merged.get());
+        this.restoredMerged = merged.get();
+        this.restoredBackboneRecord = record.get();
+        return Optional.of(AlignmentBackbone.builder()
+                .samples(restored.toArray(ProcessedSample[]::new))
+                .scanPointMapping(merged.get().getMapping())
+                .statistics(record.get().toStatistics())
+                .build());
+    }
+
+    /**
+     * Aligns all samples processed since {@link #restoreWorkspace()} into the restored alignment. Only the merged
+     * traces (rectangles) that contain the new samples or are united with them are merged again, their features and
+     * traces are removed from the project and imported again. A feature that is found again keeps its id (see
+     * {@link RecordingDatabaseAdapter.PreviousFeatures}). All other features of the project stay untouched.
+     * @param previous the backbone returned by {@link #restoreWorkspace()}
+     * @return backbone containing the previous and the new samples
+     */
+    public AlignmentBackbone updateAlignmentIncrementally(AlignmentBackbone previous) throws IOException {
+        if (restoredMerged == null || restoredBackboneRecord == null)
+            throw new IllegalStateException("No alignment was restored from the workspace.");
+        final ProcessedSample merged = restoredMerged;
+        final Set<Integer> previousUids = new HashSet<>();
+        for (ProcessedSample s : previous.getSamples()) previousUids.add(s.getUid());
+        final List<ProcessedSample> newSamples = new ArrayList<>();
+        for (ProcessedSample s : samples) {
+            if (s != merged && !previousUids.contains(s.getUid())) newSamples.add(s);
+        }
+        if (newSamples.isEmpty()) return previous;
+
+        merged.active();
+        final AlignmentBackbone backbone = alignmentStrategy.alignIncremental(merged, previous, newSamples, alignmentAlgorithm, alignmentScorerFull, tracker);
+        for (ProcessedSample sample : newSamples) {
+            sample.setScanPointInterpolator(new ScanPointInterpolator(merged.getMapping(), sample.getMapping(), sample.getRtRecalibration()));
+            updateRetentionTimeAxis(sample);
+        }
+        merged.getStorage().getAlignmentStorage().setStatistics(backbone.getStatistics());
+        final IntSet touched = mergeStrategy.mergeIncremental(merged, backbone, newSamples, tracker);
+        merged.getStorage().commit();
+
+        // features of all touched rectangles are replaced
+        final MergedLCMSRun mergedRun = (MergedLCMSRun) merged.getRun();
+        mergedRun.setRunIds(Arrays.stream(backbone.getSamples()).mapToLong(x -> x.getRun().getRunId()).toArray());
+        final LongArrayList outdatedFeatures = new LongArrayList(), outdatedMergedTraces = new LongArrayList(), outdatedSourceTraces = new LongArrayList();
+        for (int id : touched) {
+            final BackboneRecord.ImportedIds ids = restoredBackboneRecord.getImportedIdsOf(id);
+            outdatedFeatures.addElements(outdatedFeatures.size(), ids.featureIds());
+            outdatedMergedTraces.addElements(outdatedMergedTraces.size(), ids.mergedTraceIds());
+            outdatedSourceTraces.addElements(outdatedSourceTraces.size(), ids.sourceTraceIds());
+        }
+        final RecordingDatabaseAdapter.PreviousFeatures previousFeatures = new RecordingDatabaseAdapter.PreviousFeatures(
+                siriusDatabaseAdapter.getAlignedFeatures(outdatedFeatures.toLongArray()), backbone.getStatistics().getExpectedMassDeviationBetweenSamples());
+        siriusDatabaseAdapter.removeAlignedFeatures(outdatedFeatures.toLongArray());
+        for (long id : outdatedMergedTraces) siriusDatabaseAdapter.removeMergedTrace(id);
+        for (long id : outdatedSourceTraces) siriusDatabaseAdapter.removeSourceTrace(id);
+        importScanPointMapping(merged, mergedRun.getRunId(), true);
+
+        ProjectSpaceImporter<Object> importer = (ProjectSpaceImporter<Object>) this.importer;
+        Object obj = importer.initializeImport(siriusDatabaseAdapter);
+        for (ProcessedSample sample : backbone.getSamples()) importer.importRun(siriusDatabaseAdapter, obj, sample);
+        importer.importMergedRun(siriusDatabaseAdapter, obj, merged);
+        final List<Rect> rects = new ArrayList<>();
+        for (int id : touched) merged.getStorage().getMergeStorage().getRectangleMap().getRect(id).ifPresent(rects::add);
+        final Int2ObjectMap<BackboneRecord.ImportedIds> imported = importMergedTraces(merged, rects, importer, obj, previousFeatures);
+
+        final Int2ObjectMap<BackboneRecord.ImportedIds> importedIdsPerRect = new Int2ObjectOpenHashMap<>();
+        for (Rect r : merged.getStorage().getMergeStorage().getRectangleMap()) {
+            importedIdsPerRect.put(r.id, touched.contains(r.id) ? imported.getOrDefault(r.id, BackboneRecord.ImportedIds.EMPTY) : restoredBackboneRecord.getImportedIdsOf(r.id));
+        }
+        if (saveFeatureIds) {
+            for (Rect r : rects) {
+                for (long id : imported.getOrDefault(r.id, BackboneRecord.ImportedIds.EMPTY).featureIds()) importedFeatureIds.add(id);
+            }
+        }
+        mergedRun.setSampleStats(collectFinalStatistics(merged, backbone));
+        siriusDatabaseAdapter.updateMergedRun(mergedRun);
+        saveWorkspace(merged, backbone, importedIdsPerRect);
+        this.restoredBackboneRecord = merged.getStorage().getMetadata(BackboneRecord.KEY, BackboneRecord.class).orElseThrow();
+        return backbone;
+    }
+
     private SampleStatistics collectFinalStatistics(ProcessedSample merged, AlignmentBackbone alignmentBackbone) throws IOException {
         /*
          * this code relies on lazy evaluation of streams. If that is not the case we might have a huge memory peak here :/
@@ -335,12 +628,16 @@ public class LCMSProcessing {
     }
 
     protected void importScanPointMapping(ProcessedSample sample, long sampleId) throws IOException {
+        importScanPointMapping(sample, sampleId, false);
+    }
+
+    private void importScanPointMapping(ProcessedSample sample, long sampleId, boolean update) throws IOException {
         RetentionTimeAxis axis = RetentionTimeAxis.builder()
                 .runId(sampleId)
                 .scanIndizes(sample.getMapping().scanIndizes)
                 .retentionTimes(sample.getMapping().retentionTimes)
                 .noiseLevelPerScan(sample.getStorage().getStatistics().getNoiseLevelPerScan()).build();
-        siriusDatabaseAdapter.importRetentionTimeAxis(axis, false);
+        siriusDatabaseAdapter.importRetentionTimeAxis(axis, update);
     }
     private void updateRetentionTimeAxis(ProcessedSample sample) throws IOException {
         RecalibrationFunction recalibrationFunction = sample.getRtRecalibration();
@@ -374,6 +671,12 @@ public class LCMSProcessing {
     }
 
     private void extractTraces(ProcessedSample sample) {
+        if (concurrentTracePicking) {
+            new StripedTracePicking(sample, traceCachingStrategy, segmentationStrategy, sample.getStorage().getStatistics().getMs1MassDeviationWithinTraces())
+                    .pickTraces(traceDetectionStrategy, p -> tracker.tracePicked(p.averagedMz(), sample.getMapping().getRetentionTimeAt(p.apex()), sample, p));
+            sample.getStorage().commit();
+            return;
+        }
         final TracePicker tracePicker = new TracePicker(sample, traceCachingStrategy, segmentationStrategy);
         tracePicker.setAllowedMassDeviation(sample.getStorage().getStatistics().getMs1MassDeviationWithinTraces());
         traceDetectionStrategy.findPeaksForExtraction(sample, (sample1, spectrumIdx, peakIdx, spectrum) -> {
@@ -458,6 +761,7 @@ public class LCMSProcessing {
     }
 
     public void closeStorages(){
+        LoggerFactory.getLogger(LCMSProcessing.class).debug(ScanCache.global().toString());
         storageFactory.close();
     }
 
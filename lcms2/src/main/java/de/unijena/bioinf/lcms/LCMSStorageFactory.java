@@ -8,6 +8,13 @@ public interface LCMSStorageFactory extends AutoCloseable {
 
     LCMSStorage createNewStorage() throws IOException;
 
+    /**
+     * creates the storage for the merged sample of an alignment
+     */
+    default LCMSStorage createMergedStorage() throws IOException {
+        return createNewStorage();
+    }
+
     @Override
     default void close(){}
 }
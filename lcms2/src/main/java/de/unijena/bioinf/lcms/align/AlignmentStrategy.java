@@ -15,4 +15,15 @@ public interface AlignmentStrategy {
      */
     public AlignmentBackbone align(ProcessedSample merge, AlignmentBackbone backbone, List<ProcessedSample> samples, AlignmentAlgorithm algorithm, AlignmentScorer scorer, Tracker tracker);
 
+    /**
+     * Align the MoIs of new samples into an existing alignment. The merge storage still contains the aligned MoIs
+     * of the previous alignment, which are not realigned. Recalibration functions of the new samples are
+     * computed against the existing backbone.
+     * @param backbone the backbone of the previous alignment
+     * @return backbone containing the previous and the new samples
+     */
+    public default AlignmentBackbone alignIncremental(ProcessedSample merge, AlignmentBackbone backbone, List<ProcessedSample> newSamples, AlignmentAlgorithm algorithm, AlignmentScorer scorer, Tracker tracker) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support incremental alignment.");
+    }
+
 }
@@ -0,0 +1,92 @@
+package de.unijena.bioinf.lcms.align;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.lcms.trace.ProcessedSample;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Persistent part of an {@link AlignmentBackbone}: the samples it consists of, its statistics and the ids of the
+ * aligned features and traces that were imported for each merged trace (rectangle). It is stored in the storage of the merged
+ * sample, such that new samples can later be aligned against the backbone without realigning the old ones.
+ * The scan point mapping of the backbone is the mapping of the merged sample and stored in its {@link de.unijena.bioinf.lcms.trace.SampleRecord}.
+ */
+public class BackboneRecord implements Serializable {
+
+    public static final String KEY = "backbone";
+
+    @Getter private final int[] sampleUids;
+    @Getter private final int mergedUid;
+
+    private final double ppmDeviation, absoluteDeviation;
+    private final double expectedRetentionTimeDeviation;
+    private final double minRt, maxRt, minMz, maxMz;
+    private final int[] mappingLengths;
+    private final float[] stepSizes;
+    private final float averageNumberOfAlignments, medianNumberOfAlignments;
+
+    /**
+     * rectangle id -> ids of the aligned features and traces imported from this rectangle
+     */
+    private final HashMap<Integer, ImportedIds> importedIdsPerRect;
+
+    public BackboneRecord(AlignmentBackbone backbone, ProcessedSample merged, Int2ObjectMap<ImportedIds> importedIdsPerRect) {
+        this.sampleUids = new int[backbone.getSamples().length];
+        for (int k = 0; k < sampleUids.length; ++k) sampleUids[k] = backbone.getSamples()[k].getUid();
+        this.mergedUid = merged.getUid();
+        final AlignmentStatistics stats = backbone.getStatistics();
+        this.ppmDeviation = stats.expectedMassDeviationBetweenSamples.getPpm();
+        this.absoluteDeviation = stats.expectedMassDeviationBetweenSamples.getAbsolute();
+        this.expectedRetentionTimeDeviation = stats.expectedRetentionTimeDeviation;
+        this.minRt = stats.minRt;
+        this.maxRt = stats.maxRt;
+        this.minMz = stats.minMz;
+        this.maxMz = stats.maxMz;
+        this.mappingLengths = stats.mappingLengths == null ? new int[0] : stats.mappingLengths.toIntArray();
+        this.stepSizes = stats.stepSizes == null ? new float[0] : stats.stepSizes.toFloatArray();
+        this.averageNumberOfAlignments = stats.averageNumberOfAlignments;
+        this.medianNumberOfAlignments = stats.medianNumberOfAlignments;
+        this.importedIdsPerRect = new HashMap<>(importedIdsPerRect);
+    }
+
+    public AlignmentStatistics toStatistics() {
+        final AlignmentStatistics stats = new AlignmentStatistics();
+        stats.expectedMassDeviationBetweenSamples = new Deviation(ppmDeviation, absoluteDeviation);
+        stats.expectedRetentionTimeDeviation = expectedRetentionTimeDeviation;
+        stats.minRt = minRt;
+        stats.maxRt = maxRt;
+        stats.minMz = minMz;
+        stats.maxMz = maxMz;
+        stats.mappingLengths = new IntArrayList(mappingLengths);
+        stats.stepSizes = new FloatArrayList(stepSizes);
+        stats.averageNumberOfAlignments = averageNumberOfAlignments;
+        stats.medianNumberOfAlignments = medianNumberOfAlignments;
+        return stats;
+    }
+
+    /**
+     * @return ids of the aligned features and traces that were imported for the given rectangle
+     */
+    public ImportedIds getImportedIdsOf(int rectId) {
+        return importedIdsPerRect.getOrDefault(rectId, ImportedIds.EMPTY);
+    }
+
+    /**
+     * @return ids of the aligned features that were imported for the given rectangle
+     */
+    public long[] getFeatureIdsOf(int rectId) {
+        return getImportedIdsOf(rectId).featureIds();
+    }
+
+    /**
+     * ids of the aligned features, merged traces and source traces that were imported into the project for one rectangle
+     */
+    public record ImportedIds(long[] featureIds, long[] mergedTraceIds, long[] sourceTraceIds) implements Serializable {
+        public static final ImportedIds EMPTY = new ImportedIds(new long[0], new long[0], new long[0]);
+    }
+}
@@ -454,6 +454,161 @@ public class GreedyTwoStageAlignmentStrategy implements AlignmentStrategy{
         return AlignmentBackbone.builder().statistics(stats).samples(samples.toArray(ProcessedSample[]::new)).build();
     }
 
+    /**
+     * Aligns new samples into an existing alignment. In the first stage, the confident MoIs of each new sample are
+     * aligned against the backbone MoIs (aligned in at least two samples) to compute a linear retention time
+     * recalibration. In the second stage, all MoIs of the new samples are aligned into the merge storage as in
+     * {@link #align(ProcessedSample, AlignmentBackbone, List, AlignmentAlgorithm, AlignmentScorer, Tracker)}.
+     * The MoIs and recalibrations of the previous samples are not changed.
+     */
+    @Override
+    public AlignmentBackbone alignIncremental(ProcessedSample merge, AlignmentBackbone backbone, List<ProcessedSample> newSamples, AlignmentAlgorithm algorithm, AlignmentScorer scorer, Tracker tracker) {
+        final AlignmentStorage storage = merge.getStorage().getAlignmentStorage();
+        final AlignmentStatistics stats = backbone.getStatistics();
+        newSamples.sort(Comparator.comparingInt((ProcessedSample x)->x.getTraceStats().getNumberOfHighQualityTraces()).reversed());
+        {
+            // new samples might extend the mass and retention time range
+            final AlignmentStatistics newStats = collectStatistics(newSamples);
+            stats.minMz = Math.min(stats.minMz, newStats.minMz);
+            stats.maxMz = Math.max(stats.maxMz, newStats.maxMz);
+            stats.minRt = Math.min(stats.minRt, newStats.minRt);
+            stats.maxRt = Math.max(stats.maxRt, newStats.maxRt);
+            stats.mappingLengths.addAll(newStats.mappingLengths);
+            stats.stepSizes.addAll(newStats.stepSizes);
+        }
+        final double[] bins = makeBins(stats.minMz, stats.maxMz);
+        final List<ProcessedSample> allSamples = new ArrayList<>(Arrays.asList(backbone.getSamples()));
+        allSamples.addAll(newSamples);
+
+        // Stage 1: retention time recalibration of the new samples against the backbone
+        final AlignmentStatistics preAlignmentStats = new AlignmentStatistics();
+        preAlignmentStats.expectedMassDeviationBetweenSamples = stats.expectedMassDeviationBetweenSamples;
+        preAlignmentStats.expectedRetentionTimeDeviation = (stats.maxRt - stats.minRt) / 20d;
+        for (ProcessedSample S : newSamples) {
+            S.active();
+            recalibrateAgainstBackbone(S, storage, bins, algorithm, scorer, preAlignmentStats);
+            S.inactive();
+        }
+        final AlignmentBackbone fullBackbone = AlignmentBackbone.builder().scanPointMapping(backbone.getScanPointMapping())
+                .samples(allSamples.toArray(ProcessedSample[]::new)).statistics(stats).build();
+
+        // Stage 2: align all MoIs of the new samples into the existing alignment
+        final IntOpenHashSet newUids = new IntOpenHashSet();
+        for (ProcessedSample S : newSamples) newUids.add(S.getUid());
+        JobManager globalJobManager = SiriusJobs.getGlobalJobManager();
+        List<BasicJJob<Object>> todo = new ArrayList<>();
+        for (ProcessedSample S : newSamples) {
+            S.active();
+            for (int i=0; i < (bins.length-1); ++i) {
+                final double from = bins[i];
+                final double to = bins[i+1];
+                todo.add(globalJobManager.submitJob(new BasicJJob<Object>() {
+                    @Override
+                    protected Object compute() throws Exception {
+                        final MoI[] leftSet = storage.getMoIWithin(from, to).toArray(MoI[]::new);
+                        final MoI[] rightSet = S.getStorage().getAlignmentStorage().getMoIWithin(from, to).toArray(MoI[]::new);
+                        if (leftSet.length>0 && rightSet.length > 0) {
+                            algorithm.align(stats, scorer, fullBackbone, leftSet, rightSet,
+                                    (al, left, right, leftIndex, rightIndex) -> {
+                                        storage.mergeMoIs(al, left[leftIndex], right[rightIndex]);
+                                        tracker.alignMois(S, left[leftIndex], right[rightIndex]);
+                                    },
+                                    (al, right, rightIndex) -> {
+                                        storage.addMoI(AlignedMoI.merge(al, right[rightIndex]));
+                                        tracker.unalignedMoI(S, right[rightIndex]);
+                                    }
+                            );
+                        } else {
+                            for (MoI m : rightSet) {
+                                storage.addMoI(AlignedMoI.merge(fullBackbone, m));
+                                tracker.unalignedMoI(S, m);
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            todo.forEach(JJob::takeResult);
+            todo.clear();
+            S.inactive();
+        }
+        final long[] backboneMois;
+        {
+            final LongArrayList backboneMoisList = new LongArrayList();
+            final LongArrayList deleteList = new LongArrayList();
+            for (MoI m : storage) {
+                if (m instanceof AlignedMoI) {
+                    if (((AlignedMoI) m).getAligned().length >= 2) {
+                        if (Arrays.stream(((AlignedMoI) m).getAligned()).anyMatch(x -> newUids.contains(x.getSampleIdx()))) {
+                            storage.addMoI(((AlignedMoI) m).finishMerging());
+                        }
+                        backboneMoisList.add(m.getUid());
+                    }
+                } else if (m.getConfidence() < MassOfInterestConfidenceEstimatorStrategy.KEEP_FOR_ALIGNMENT){
+                    deleteList.add(m.getUid());
+                }
+            }
+            backboneMois = backboneMoisList.toLongArray();
+            deleteList.forEach(storage::removeMoI);
+        }
+        // refine recalibration of the new samples using the full alignment
+        HashMap<Integer, int[]> counts = getNumberOfSamplePointsPerRegions(storage, merge.getMapping(), allSamples, backboneMois);
+        final List<BasicJJob<double[]>> recalJobs = new ArrayList<>();
+        for (ProcessedSample S : newSamples) {
+            recalJobs.add(SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<double[]>() {
+                @Override
+                protected double[] compute() throws Exception {
+                    return recalibrateByAlignmentWithMzRecal(S, storage, backboneMois, counts);
+                }
+            }));
+        }
+        recalJobs.forEach(JJob::takeResult);
+        cleanupOldMoIs(merge, newSamples, newSamples.size(), 0, tracker);
+
+        return AlignmentBackbone.builder().scanPointMapping(backbone.getScanPointMapping()).statistics(stats).samples(allSamples.toArray(ProcessedSample[]::new)).build();
+    }
+
+    private void recalibrateAgainstBackbone(ProcessedSample sample, AlignmentStorage storage, double[] bins, AlignmentAlgorithm algorithm, AlignmentScorer scorer, AlignmentStatistics stats) {
+        final List<BasicJJob<double[][]>> jobs = new ArrayList<>();
+        for (int i=0; i < (bins.length-1); ++i) {
+            final double from = bins[i];
+            final double to = bins[i+1];
+            jobs.add(SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<double[][]>() {
+                @Override
+                protected double[][] compute() throws Exception {
+                    final MoI[] leftSet = storage.getMoIWithin(from, to).stream().filter(x->x instanceof AlignedMoI && ((AlignedMoI) x).getAligned().length >= 2).toArray(MoI[]::new);
+                    final MoI[] rightSet = sample.getStorage().getAlignmentStorage().getMoIWithin(from, to).stream().
+                            filter(x->x.getConfidence()>=MassOfInterestConfidenceEstimatorStrategy.CONFIDENT && x.isSingleApex()).toArray(MoI[]::new);
+                    if (leftSet.length==0 || rightSet.length==0) return new double[2][0];
+                    final DoubleArrayList xs = new DoubleArrayList(), ys = new DoubleArrayList();
+                    algorithm.align(stats, scorer, AlignWithRecalibration.noRecalibration(), leftSet, rightSet,
+                            (al, left, right, leftIndex, rightIndex) -> {
+                                xs.add(right[rightIndex].getRetentionTime());
+                                ys.add(left[leftIndex].getRetentionTime());
+                            },
+                            (al, right, rightIndex) -> {}
+                    );
+                    return new double[][]{xs.toDoubleArray(), ys.toDoubleArray()};
+                }
+            }));
+        }
+        final DoubleArrayList xs = new DoubleArrayList(), ys = new DoubleArrayList();
+        for (BasicJJob<double[][]> job : jobs) {
+            final double[][] pairs = job.takeResult();
+            xs.addElements(xs.size(), pairs[0]);
+            ys.addElements(ys.size(), pairs[1]);
+        }
+        if (xs.size() < 10) {
+            LoggerFactory.getLogger(GreedyTwoStageAlignmentStrategy.class).warn("Too few MoIs of " + sample.getRun().getName() + " align with the backbone, retention times are not recalibrated.");
+            sample.setRtRecalibration(RecalibrationFunction.identity());
+            return;
+        }
+        final PolynomialFunction recalibration = xs.size() < 500
+                ? MzRecalibration.getMedianLinearRecalibration(xs.toDoubleArray(), ys.toDoubleArray())
+                : MzRecalibration.getLinearRecalibration(xs.toDoubleArray(), ys.toDoubleArray());
+        sample.setRtRecalibration(RecalibrationFunction.linear(recalibration));
+    }
+
 
     /**
      * we only do recalibration for samples for which we have enough data points distributed across the complete retention time
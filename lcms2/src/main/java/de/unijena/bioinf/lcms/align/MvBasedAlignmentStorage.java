@@ -24,8 +24,11 @@ public class MvBasedAlignmentStorage implements AlignmentStorage {
 
     public MvBasedAlignmentStorage(MVStore store) {
         this.store = store;
-        this.ids = new AtomicInteger();
         this.mois = store.openMap("mois", new MVMap.Builder<Long,MoI>().valueType(new MoI.DataType()));
+        // continue with the ids of an existing map, e.g. when a persistent storage is reopened
+        int maxId = 0;
+        for (Long key : mois.keySet()) maxId = Math.max(maxId, (int)(key & ((1L<<30)-1)));
+        this.ids = new AtomicInteger(maxId);
         this.statistics = null;
     }
 
@@ -5,6 +5,7 @@ import org.apache.commons.math3.analysis.UnivariateFunction;
 import org.apache.commons.math3.analysis.function.Identity;
 import org.apache.commons.math3.analysis.polynomials.PolynomialFunction;
 import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
+import org.jetbrains.annotations.Nullable;
 
 public class RecalibrationFunction implements UnivariateFunction {
     private final Range<Double> loessDomain;
@@ -23,6 +24,20 @@ public class RecalibrationFunction implements UnivariateFunction {
         return new RecalibrationFunction(loess, linearBackup);
     }
 
+    /**
+     * restores a recalibration from the values returned by {@link #getPolynomialCoefficients()},
+     * {@link #getLoessKnots()} and {@link #getLoessCoefficients()}
+     */
+    public static RecalibrationFunction fromCoefficients(@Nullable double[] polynomial, @Nullable double[] loessKnots, @Nullable double[][] loessCoefficients) {
+        final UnivariateFunction backup = polynomial == null ? new Identity() : new PolynomialFunction(polynomial);
+        if (loessKnots == null || loessCoefficients == null) {
+            return polynomial == null ? IDENTITY : new RecalibrationFunction(null, backup);
+        }
+        final PolynomialFunction[] polynomials = new PolynomialFunction[loessCoefficients.length];
+        for (int i = 0; i < polynomials.length; ++i) polynomials[i] = new PolynomialFunction(loessCoefficients[i]);
+        return new RecalibrationFunction(new PolynomialSplineFunction(loessKnots, polynomials), backup);
+    }
+
     private RecalibrationFunction(PolynomialSplineFunction loessFunction, UnivariateFunction linearBackup) {
         this.loessFunction = loessFunction;
         this.linearBackup = linearBackup;
@@ -34,6 +49,34 @@ public class RecalibrationFunction implements UnivariateFunction {
         } else loessDomain=null;
     }
 
+    /**
+     * @return coefficients of the recalibration polynomial, or null if it is not a polynomial. For a loess
+     * recalibration, this is the polynomial used outside of the loess domain.
+     */
+    public double[] getPolynomialCoefficients() {
+        if (linearBackup instanceof PolynomialFunction) return ((PolynomialFunction) linearBackup).getCoefficients();
+        if (linearBackup instanceof Identity) return new double[]{0d, 1d};
+        return null;
+    }
+
+    /**
+     * @return knots of the loess spline, or null if this is no loess recalibration
+     */
+    public double[] getLoessKnots() {
+        return loessFunction == null ? null : loessFunction.getKnots();
+    }
+
+    /**
+     * @return coefficients of each polynomial of the loess spline, or null if this is no loess recalibration
+     */
+    public double[][] getLoessCoefficients() {
+        if (loessFunction == null) return null;
+        final PolynomialFunction[] polynomials = loessFunction.getPolynomials();
+        final double[][] coefficients = new double[polynomials.length][];
+        for (int i = 0; i < polynomials.length; ++i) coefficients[i] = polynomials[i].getCoefficients();
+        return coefficients;
+    }
+
     public double value(double x) {
         if (loessDomain==null || !loessDomain.contains(x) ) {
             return linearBackup.value(x);
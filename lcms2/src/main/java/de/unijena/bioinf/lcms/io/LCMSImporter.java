@@ -25,6 +25,8 @@ import de.unijena.bioinf.lcms.projectspace.SiriusDatabaseAdapter;
 import de.unijena.bioinf.lcms.trace.ProcessedSample;
 import de.unijena.bioinf.ms.persistence.model.core.run.Chromatography;
 import de.unijena.bioinf.ms.persistence.model.core.run.LCMSRun;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.URI;
@@ -32,16 +34,66 @@ import java.nio.file.Path;
 
 public class LCMSImporter {
 
+    /**
+     * Parser implementation used for mzML files.
+     */
+    public enum MzMLReader {
+        /**
+         * object tree based parser using jmzml, supports all mzML features
+         */
+        JMZML,
+        /**
+         * pull based parser that decodes binary arrays directly into primitive arrays, see {@link MzMLStaxParser}
+         */
+        STREAMING,
+        /**
+         * like {@link #STREAMING} but binary arrays are decoded in parallel
+         */
+        STREAMING_PARALLEL;
+
+        private LCMSParser newParser() {
+            return switch (this) {
+                case JMZML -> new MzMLParser();
+                case STREAMING -> new MzMLStaxParser(false);
+                case STREAMING_PARALLEL -> new MzMLStaxParser(true);
+            };
+        }
+    }
+
+    /**
+     * mzML parser used if none is specified, can be set via the property {@code de.unijena.bioinf.lcms.mzml.reader}
+     */
+    public static MzMLReader getDefaultMzMLReader() {
+        final String value = PropertyManager.getProperty("de.unijena.bioinf.lcms.mzml.reader", null, MzMLReader.JMZML.name());
+        try {
+            return MzMLReader.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LoggerFactory.getLogger(LCMSImporter.class).warn("Unknown mzML reader '{}'. Using {} instead.", value, MzMLReader.JMZML);
+            return MzMLReader.JMZML;
+        }
+    }
+
     public static ProcessedSample importToProject(
             Path file,
             LCMSStorageFactory storageFactory,
             SiriusDatabaseAdapter siriusDatabaseAdapter,
             boolean saveRawScans,
             Chromatography chromatography
+    ) throws IOException {
+        return importToProject(file, storageFactory, siriusDatabaseAdapter, saveRawScans, chromatography, getDefaultMzMLReader());
+    }
+
+    public static ProcessedSample importToProject(
+            Path file,
+            LCMSStorageFactory storageFactory,
+            SiriusDatabaseAdapter siriusDatabaseAdapter,
+            boolean saveRawScans,
+            Chromatography chromatography,
+            MzMLReader mzMLReader
     ) throws IOException {
         LCMSParser parser;
         if (file.toString().toLowerCase().endsWith(".mzml")) {
-            parser = new MzMLParser();
+            parser = mzMLReader.newParser();
         } else if (file.toString().toLowerCase().endsWith(".mzxml")) {
             parser = new MzXMLParser();
         } else {
@@ -61,10 +113,21 @@ public class LCMSImporter {
             SiriusDatabaseAdapter siriusDatabaseAdapter,
             boolean saveRawScans,
             Chromatography chromatography
+    ) throws IOException {
+        return importToProject(source, storageFactory, siriusDatabaseAdapter, saveRawScans, chromatography, getDefaultMzMLReader());
+    }
+
+    public static ProcessedSample importToProject(
+            URI source,
+            LCMSStorageFactory storageFactory,
+            SiriusDatabaseAdapter siriusDatabaseAdapter,
+            boolean saveRawScans,
+            Chromatography chromatography,
+            MzMLReader mzMLReader
     ) throws IOException {
         LCMSParser parser;
         if (source.getPath().toLowerCase().endsWith(".mzml")) {
-            parser = new MzMLParser();
+            parser = mzMLReader.newParser();
         } else if (source.getPath().toLowerCase().endsWith(".mzxml")) {
             parser = new MzXMLParser();
         } else {
@@ -434,8 +434,8 @@ public class MzMLParser implements LCMSParser {
         return false;
     }
 
-    private static Pattern SCAN_PATTERN = Pattern.compile("scan=(\\d+)"), ALT_PATTERN = Pattern.compile("\\S+=(\\d+)");
-    private int parseScanNumber(String sid, Integer index) {
+    private static final Pattern SCAN_PATTERN = Pattern.compile("scan=(\\d+)"), ALT_PATTERN = Pattern.compile("\\S+=(\\d+)");
+    static int parseScanNumber(String sid, Integer index) {
         if (sid == null || sid.isEmpty())
             return index;
 
@@ -0,0 +1,780 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.lcms.io;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.IsolationWindow;
+import de.unijena.bioinf.ChemistryBase.ms.lcms.MsDataSourceReference;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.lcms.LCMSStorageFactory;
+import de.unijena.bioinf.lcms.ScanPointMapping;
+import de.unijena.bioinf.lcms.spectrum.Ms1SpectrumHeader;
+import de.unijena.bioinf.lcms.spectrum.Ms2SpectrumHeader;
+import de.unijena.bioinf.lcms.trace.LCMSStorage;
+import de.unijena.bioinf.lcms.trace.ProcessedSample;
+import de.unijena.bioinf.ms.persistence.model.core.run.Fragmentation;
+import de.unijena.bioinf.ms.persistence.model.core.run.Ionization;
+import de.unijena.bioinf.ms.persistence.model.core.run.LCMSRun;
+import de.unijena.bioinf.ms.persistence.model.core.run.MassAnalyzer;
+import de.unijena.bioinf.ms.persistence.model.core.scan.MSMSScan;
+import de.unijena.bioinf.ms.persistence.model.core.scan.Scan;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Pull based mzML parser. In contrast to {@link MzMLParser} it does not build an object tree per spectrum but reads
+ * the XML stream once and decodes the base64/zlib encoded binary arrays directly into primitive arrays. It reads from
+ * any {@link Path} or {@link InputStream}, so files on non-default file systems are not copied into a temporary file.
+ * Optionally, the binary arrays are decoded in parallel while the next spectra are read. Spectra are always stored in
+ * the order of the file.
+ * Numpress compressed arrays are not supported, use {@link MzMLParser} for such files.
+ * <p>
+ * MS/MS headers are built exactly as in {@link MzMLParser}:
+ * <ul>
+ *     <li>The parent of an MS/MS spectrum is found via the scan number of its precursor {@code spectrumRef}. It is -1
+ *     if the reference is missing or does not point to an MS1 spectrum read before.</li>
+ *     <li>Precursor and targeted m/z are both set to the isolation window target m/z, or to the selected ion m/z if no
+ *     target is given.</li>
+ * </ul>
+ */
+@Slf4j
+public class MzMLStaxParser implements LCMSParser {
+
+    private static final Pattern SUFFIX = Pattern.compile("\\.mzml$", Pattern.CASE_INSENSITIVE);
+
+    private static final ThreadLocal<BinaryDecoder> DECODERS = ThreadLocal.withInitial(BinaryDecoder::new);
+
+    private final boolean parallelDecoding;
+
+    public MzMLStaxParser() {
+        this(false);
+    }
+
+    /**
+     * @param parallelDecoding decode binary arrays in jobs of the global job manager. This is only useful when
+     *                         importing few large files, otherwise it is preferable to import files in parallel.
+     */
+    public MzMLStaxParser(boolean parallelDecoding) {
+        this.parallelDecoding = parallelDecoding;
+    }
+
+    @Override
+    public ProcessedSample parse(
+            Path input,
+            LCMSStorageFactory storageFactory,
+            LCMSParser.IOThrowingConsumer<LCMSRun> runConsumer,
+            LCMSParser.IOThrowingConsumer<LCMSRun> runUpdateConsumer,
+            @Nullable LCMSParser.IOThrowingConsumer<Scan> scanConsumer,
+            @Nullable LCMSParser.IOThrowingConsumer<MSMSScan> msmsScanConsumer,
+            LCMSRun run
+    ) throws IOException {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(input), 1 << 16)) {
+            return parse(stream, input.toAbsolutePath().getParent().toUri(), input.getFileName().toString(), storageFactory, runConsumer, runUpdateConsumer, scanConsumer, msmsScanConsumer, run);
+        }
+    }
+
+    /**
+     * Parse an mzML file from the given stream. The stream is not closed.
+     *
+     * @param parent   location of the source file, used for the {@link MsDataSourceReference} of the run
+     * @param fileName name of the source file
+     */
+    public ProcessedSample parse(
+            InputStream input,
+            URI parent,
+            String fileName,
+            LCMSStorageFactory storageFactory,
+            LCMSParser.IOThrowingConsumer<LCMSRun> runConsumer,
+            LCMSParser.IOThrowingConsumer<LCMSRun> runUpdateConsumer,
+            @Nullable LCMSParser.IOThrowingConsumer<Scan> scanConsumer,
+            @Nullable LCMSParser.IOThrowingConsumer<MSMSScan> msmsScanConsumer,
+            LCMSRun run
+    ) throws IOException {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        XMLStreamReader reader = null;
+        try {
+            reader = factory.createXMLStreamReader(input);
+            return new MzMLReader(parent, fileName, storageFactory.createNewStorage(), runConsumer, runUpdateConsumer, scanConsumer, msmsScanConsumer, run).read(reader);
+        } catch (XMLStreamException | RuntimeException e) {
+            log.error("Cannot parse input file {}.", parent.resolve(fileName), e);
+            throw new IOException("Cannot parse input file " + parent.resolve(fileName), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    log.warn("Error closing XML reader for file {}.", fileName, e);
+                }
+            }
+        }
+    }
+
+    private record Param(boolean userParam, String accession, String name, String value, String unitAccession, String unitName) {
+    }
+
+    private enum ArrayType {UNKNOWN, MZ_VALUES, INTENSITY}
+
+    private enum NumberType {
+        FLOAT32(4), FLOAT64(8), INT32(4), INT64(8);
+
+        private final int bytes;
+
+        NumberType(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * base64 encoded binary array as read from the file
+     */
+    private static class EncodedArray {
+        private ArrayType type = ArrayType.UNKNOWN;
+        private NumberType numberType = NumberType.FLOAT64;
+        private boolean zlib = false;
+        private String unsupportedCompression = null;
+        private final int arrayLength;
+        private byte[] base64;
+        private int base64Length = 0;
+
+        private EncodedArray(int arrayLength, int encodedLength) {
+            this.arrayLength = arrayLength;
+            this.base64 = new byte[Math.max(16, encodedLength)];
+        }
+
+        private void append(char[] chars, int offset, int length) {
+            if (base64Length + length > base64.length)
+                base64 = Arrays.copyOf(base64, Math.max(base64.length * 2, base64Length + length));
+            for (int i = 0; i < length; ++i) base64[base64Length++] = (byte) chars[offset + i];
+        }
+    }
+
+    /**
+     * all information of a single spectrum element. The binary arrays are decoded by {@link #decode(BinaryDecoder)}.
+     */
+    private static class RawSpectrum {
+        private final String id;
+        private final int index;
+        private final int defaultArrayLength;
+        private Polarity polarity = Polarity.UNKNOWN;
+        private byte msLevel = 0;
+        private double ccs = Double.NaN;
+        private boolean centroided = true;
+        private List<String> skipList = null;
+        private double rt = 0d;
+        private boolean hasPrecursor = false;
+        private String precursorRef;
+        private boolean hasIsolationWindow = false;
+        private double targetMz = Double.NaN, lowerOffset = 0, upperOffset = 0;
+        private double selectedIonMz = Double.NaN, selectedIonIntensity = Double.NaN;
+        private int chargeState = 0;
+        private final List<Param> activation = new ArrayList<>();
+        private EncodedArray mzArray, intensityArray;
+        private double[] mzValues, intensityValues;
+
+        private RawSpectrum(String id, int index, int defaultArrayLength) {
+            this.id = id;
+            this.index = index;
+            this.defaultArrayLength = defaultArrayLength;
+        }
+
+        private RawSpectrum decode(BinaryDecoder decoder) throws IOException {
+            if (mzArray != null) mzValues = decoder.decode(mzArray);
+            if (intensityArray != null) intensityValues = decoder.decode(intensityArray);
+            // release the encoded data as early as possible
+            mzArray = null;
+            intensityArray = null;
+            return this;
+        }
+    }
+
+    /**
+     * Decodes base64 encoded (and optionally zlib compressed) little endian arrays. Buffers are reused between calls,
+     * so a decoder must not be shared between threads.
+     */
+    private static class BinaryDecoder {
+        private static final byte[] BASE64 = new byte[128];
+
+        static {
+            Arrays.fill(BASE64, (byte) -1);
+            final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+            for (int i = 0; i < alphabet.length(); ++i) BASE64[alphabet.charAt(i)] = (byte) i;
+        }
+
+        private final Inflater inflater = new Inflater();
+        private byte[] decoded = new byte[1024], inflated = new byte[1024];
+
+        private double[] decode(EncodedArray array) throws IOException {
+            if (array.unsupportedCompression != null)
+                throw new IOException("Compression '" + array.unsupportedCompression + "' is not supported by the streaming mzML parser.");
+            if (decoded.length < array.base64Length / 4 * 3 + 3)
+                decoded = new byte[array.base64Length / 4 * 3 + 3];
+            int length = decodeBase64(array.base64, array.base64Length, decoded);
+            byte[] bytes = decoded;
+            if (array.zlib) {
+                length = inflate(decoded, length, array.arrayLength * array.numberType.bytes);
+                bytes = inflated;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+            final double[] values = new double[length / array.numberType.bytes];
+            switch (array.numberType) {
+                case FLOAT32 -> {
+                    for (int i = 0; i < values.length; ++i) values[i] = buffer.getFloat(i << 2);
+                }
+                case FLOAT64 -> {
+                    for (int i = 0; i < values.length; ++i) values[i] = buffer.getDouble(i << 3);
+                }
+                case INT32 -> {
+                    for (int i = 0; i < values.length; ++i) values[i] = buffer.getInt(i << 2);
+                }
+                case INT64 -> {
+                    for (int i = 0; i < values.length; ++i) values[i] = buffer.getLong(i << 3);
+                }
+            }
+            return values;
+        }
+
+        private static int decodeBase64(byte[] src, int length, byte[] dst) {
+            int bits = 0, numberOfBits = 0, out = 0;
+            for (int i = 0; i < length; ++i) {
+                final int c = src[i];
+                if (c == '=') break;
+                final int value = (c >= 0) ? BASE64[c] : -1;
+                if (value < 0) continue; // whitespace and line breaks
+                bits = (bits << 6) | value;
+                numberOfBits += 6;
+                if (numberOfBits >= 8) {
+                    numberOfBits -= 8;
+                    dst[out++] = (byte) (bits >> numberOfBits);
+                }
+            }
+            return out;
+        }
+
+        private int inflate(byte[] src, int length, int expectedLength) throws IOException {
+            if (inflated.length < expectedLength) inflated = new byte[expectedLength];
+            inflater.reset();
+            inflater.setInput(src, 0, length);
+            int written = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (written == inflated.length) inflated = Arrays.copyOf(inflated, inflated.length * 2);
+                    final int n = inflater.inflate(inflated, written, inflated.length - written);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    written += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid zlib compressed binary array.", e);
+            }
+            return written;
+        }
+    }
+
+    private class MzMLReader {
+        private final URI parent;
+        private final String fileName;
+        private final LCMSStorage storage;
+        private final LCMSParser.IOThrowingConsumer<LCMSRun> runConsumer, runUpdateConsumer;
+        private final LCMSParser.IOThrowingConsumer<Scan> scanConsumer;
+        private final LCMSParser.IOThrowingConsumer<MSMSScan> msmsScanConsumer;
+        private final LCMSRun run;
+
+        private final ArrayDeque<String> elements = new ArrayDeque<>();
+        private final Map<String, List<Param>> referenceableParamGroups = new HashMap<>();
+        private List<Param> currentParamGroup;
+
+        private String mzMlId;
+        private Ionization ionization = null;
+        private boolean ionizationOfConfigurationFound = false;
+        private MassAnalyzer analyzerFromCvParam, analyzerFromUserParam;
+        private final List<MassAnalyzer> massAnalyzers = new ArrayList<>();
+        private Fragmentation fragmentation = null;
+
+        private RawSpectrum spectrum;
+        private EncodedArray array;
+        private int scanCount, precursorCount, selectedIonCount;
+
+        private final ArrayDeque<BasicJJob<RawSpectrum>> pending = new ArrayDeque<>();
+        private final int maximumPending = 4 * Math.max(1, SiriusJobs.getGlobalJobManager().getCPUThreads());
+
+        private int samplePolarity = 0;
+        private final DoubleArrayList retentionTimes = new DoubleArrayList();
+        private final IntArrayList scanids = new IntArrayList();
+        private final ArrayList<String> scanIdentifiers = new ArrayList<>();
+        private final Int2IntMap idmap = new Int2IntOpenHashMap();
+        private final Object2IntMap<String> ms1Indizes = new Object2IntOpenHashMap<>();
+
+        private MzMLReader(URI parent, String fileName, LCMSStorage storage, LCMSParser.IOThrowingConsumer<LCMSRun> runConsumer, LCMSParser.IOThrowingConsumer<LCMSRun> runUpdateConsumer, LCMSParser.IOThrowingConsumer<Scan> scanConsumer, LCMSParser.IOThrowingConsumer<MSMSScan> msmsScanConsumer, LCMSRun run) {
+            this.parent = parent;
+            this.fileName = fileName;
+            this.storage = storage;
+            this.runConsumer = runConsumer;
+            this.runUpdateConsumer = runUpdateConsumer;
+            this.scanConsumer = scanConsumer;
+            this.msmsScanConsumer = msmsScanConsumer;
+            this.run = run;
+            this.ms1Indizes.defaultReturnValue(-1);
+        }
+
+        private ProcessedSample read(XMLStreamReader reader) throws XMLStreamException, IOException {
+            try {
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        final String name = reader.getLocalName();
+                        switch (name) {
+                            case "cvParam" -> param(new Param(false, attribute(reader, "accession"), attribute(reader, "name"), attribute(reader, "value"), attribute(reader, "unitAccession"), attribute(reader, "unitName")));
+                            case "userParam" -> param(new Param(true, null, attribute(reader, "name"), attribute(reader, "value"), attribute(reader, "unitAccession"), attribute(reader, "unitName")));
+                            case "referenceableParamGroupRef" -> {
+                                for (Param p : referenceableParamGroups.getOrDefault(attribute(reader, "ref"), List.of()))
+                                    param(p);
+                            }
+                            case "binary" -> {
+                                readBinary(reader);
+                                continue; // end element is consumed by readBinary
+                            }
+                            default -> enterElement(name, reader);
+                        }
+                        elements.push(name);
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        elements.pop();
+                        leaveElement(reader.getLocalName());
+                    }
+                }
+                while (!pending.isEmpty()) store(pending.poll().takeResult());
+            } finally {
+                pending.forEach(job -> job.cancel(true));
+            }
+            return finish();
+        }
+
+        private void enterElement(String name, XMLStreamReader reader) throws IOException {
+            switch (name) {
+                case "mzML" -> mzMlId = attribute(reader, "id");
+                case "referenceableParamGroup" -> {
+                    currentParamGroup = new ArrayList<>();
+                    referenceableParamGroups.put(attribute(reader, "id"), currentParamGroup);
+                }
+                case "instrumentConfiguration" -> ionizationOfConfigurationFound = false;
+                case "analyzer" -> {
+                    analyzerFromCvParam = null;
+                    analyzerFromUserParam = null;
+                }
+                case "run" -> startRun(attribute(reader, "id"));
+                case "spectrum" -> {
+                    spectrum = new RawSpectrum(attribute(reader, "id"), parseInt(attribute(reader, "index"), -1), parseInt(attribute(reader, "defaultArrayLength"), 0));
+                    scanCount = 0;
+                    precursorCount = 0;
+                    selectedIonCount = 0;
+                }
+                case "scan" -> ++scanCount;
+                case "precursor" -> {
+                    if (spectrum != null && ++precursorCount == 1) {
+                        spectrum.hasPrecursor = true;
+                        spectrum.precursorRef = attribute(reader, "spectrumRef");
+                    }
+                }
+                case "isolationWindow" -> {
+                    if (spectrum != null && precursorCount == 1) spectrum.hasIsolationWindow = true;
+                }
+                case "selectedIon" -> ++selectedIonCount;
+                case "binaryDataArray" -> {
+                    if (spectrum != null)
+                        array = new EncodedArray(parseInt(attribute(reader, "arrayLength"), spectrum.defaultArrayLength), parseInt(attribute(reader, "encodedLength"), 0));
+                }
+            }
+        }
+
+        private void leaveElement(String name) throws IOException {
+            switch (name) {
+                case "referenceableParamGroup" -> currentParamGroup = null;
+                case "analyzer" -> {
+                    if (analyzerFromCvParam != null) massAnalyzers.add(analyzerFromCvParam);
+                    else if (analyzerFromUserParam != null) massAnalyzers.add(analyzerFromUserParam);
+                }
+                case "binaryDataArray" -> {
+                    if (array != null && spectrum != null) {
+                        if (array.type == ArrayType.MZ_VALUES) spectrum.mzArray = array;
+                        else if (array.type == ArrayType.INTENSITY) spectrum.intensityArray = array;
+                    }
+                    array = null;
+                }
+                case "spectrum" -> {
+                    if (spectrum != null) finishSpectrum(spectrum);
+                    spectrum = null;
+                }
+            }
+        }
+
+        private void param(Param p) {
+            final String parentElement = elements.peek();
+            if (parentElement == null) return;
+            switch (parentElement) {
+                case "referenceableParamGroup" -> {
+                    if (currentParamGroup != null) currentParamGroup.add(p);
+                }
+                case "source" -> sourceParam(p);
+                case "analyzer" -> analyzerParam(p);
+                case "spectrum" -> spectrumParam(p);
+                case "scan" -> {
+                    if (scanCount == 1) scanParam(p);
+                }
+                case "isolationWindow" -> {
+                    if (precursorCount == 1) isolationWindowParam(p);
+                }
+                case "selectedIon" -> {
+                    if (precursorCount == 1 && selectedIonCount == 1) selectedIonParam(p);
+                }
+                case "activation" -> {
+                    if (spectrum != null && precursorCount == 1) spectrum.activation.add(p);
+                }
+                case "binaryDataArray" -> binaryDataArrayParam(p);
+            }
+        }
+
+        private void sourceParam(Param p) {
+            if (ionizationOfConfigurationFound) return;
+            final Optional<Ionization> optType;
+            if (!p.userParam()) {
+                optType = (p.accession() != null ? Ionization.byHupoId(p.accession()) : Optional.<Ionization>empty())
+                        .or(() -> p.name() != null ? Ionization.byValue(p.name()) : Optional.empty());
+            } else {
+                if (ionization != null || isParamValueNull(p)) return;
+                optType = Ionization.byValue(p.value());
+            }
+            if (optType.isPresent()) {
+                ionization = optType.get();
+                ionizationOfConfigurationFound = true;
+            }
+        }
+
+        private void analyzerParam(Param p) {
+            if (!p.userParam()) {
+                if (analyzerFromCvParam == null)
+                    analyzerFromCvParam = (p.accession() != null ? MassAnalyzer.byHupoId(p.accession()) : Optional.<MassAnalyzer>empty())
+                            .or(() -> p.name() != null ? MassAnalyzer.byValue(p.name()) : Optional.empty()).orElse(null);
+            } else if (analyzerFromUserParam == null && !isParamValueNull(p)) {
+                analyzerFromUserParam = MassAnalyzer.byValue(p.value()).orElse(null);
+            }
+        }
+
+        private void spectrumParam(Param p) {
+            if (spectrum == null || p.userParam() || p.accession() == null) return;
+            switch (p.accession()) {
+                case "MS:1000129", "MS:1000076" -> spectrum.polarity = Polarity.NEGATIVE;
+                case "MS:1000130", "MS:1000077" -> spectrum.polarity = Polarity.POSITIVE;
+                case "MS:1000511" -> spectrum.msLevel = Byte.parseByte(p.value());
+                case "MS:1002954" -> spectrum.ccs = Double.parseDouble(p.value());
+                case "MS:1000128" -> spectrum.centroided = false;
+                // skip this scan
+                case "MS:1000804" -> {
+                    if (spectrum.skipList == null) spectrum.skipList = new ArrayList<>();
+                    spectrum.skipList.add(p.accession());
+                }
+            }
+        }
+
+        private void scanParam(Param p) {
+            if (spectrum == null || p.userParam() || p.accession() == null) return;
+            switch (p.accession()) {
+                case "MS:1000016" -> spectrum.rt = CVUtils.getTimeInSeconds(p.value(), p.unitAccession(), p.unitName());
+                case "MS:1002954" -> spectrum.ccs = Double.parseDouble(p.value());
+            }
+        }
+
+        private void isolationWindowParam(Param p) {
+            if (spectrum == null || p.userParam() || p.accession() == null) return;
+            switch (p.accession()) {
+                case "MS:1000827" -> spectrum.targetMz = Double.parseDouble(p.value()); // isolation window target m/z
+                case "MS:1000828" -> spectrum.lowerOffset = Double.parseDouble(p.value());
+                case "MS:1000829" -> spectrum.upperOffset = Double.parseDouble(p.value());
+            }
+        }
+
+        private void selectedIonParam(Param p) {
+            if (spectrum == null || p.userParam() || p.accession() == null) return;
+            switch (p.accession()) {
+                case "MS:1000744" -> spectrum.selectedIonMz = Double.parseDouble(p.value()); // selected ion m/z
+                case "MS:1000042" -> spectrum.selectedIonIntensity = Double.parseDouble(p.value()); // intensity
+                case "MS:1000041" -> spectrum.chargeState = Integer.parseInt(p.value()); // charge state
+            }
+        }
+
+        private void binaryDataArrayParam(Param p) {
+            if (array == null || p.userParam() || p.accession() == null) return;
+            switch (p.accession()) {
+                case "MS:1000514" -> array.type = ArrayType.MZ_VALUES;
+                case "MS:1000515" -> array.type = ArrayType.INTENSITY;
+                case "MS:1000521" -> array.numberType = NumberType.FLOAT32;
+                case "MS:1000523" -> array.numberType = NumberType.FLOAT64;
+                case "MS:1000519" -> array.numberType = NumberType.INT32;
+                case "MS:1000522" -> array.numberType = NumberType.INT64;
+                case "MS:1000574" -> array.zlib = true;
+                case "MS:1000576" -> array.zlib = false;
+                // numpress (with and without zlib)
+                case "MS:1002312", "MS:1002313", "MS:1002314", "MS:1002746", "MS:1002747", "MS:1002748" ->
+                        array.unsupportedCompression = p.name() != null ? p.name() : p.accession();
+            }
+        }
+
+        private void readBinary(XMLStreamReader reader) throws XMLStreamException {
+            // arrays other than m/z and intensities are skipped without copying their content
+            final boolean keep = array != null && array.type != ArrayType.UNKNOWN;
+            while (true) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) return;
+                if (keep && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE))
+                    array.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            }
+        }
+
+        private void startRun(String runId) throws IOException {
+            final MsDataSourceReference reference = new MsDataSourceReference(parent, fileName, runId, mzMlId);
+            if (runId != null && !runId.isBlank()) {
+                run.setName(runId);
+            } else if (mzMlId != null && !mzMlId.isBlank()) {
+                run.setName(mzMlId);
+            } else {
+                Matcher matcher = SUFFIX.matcher(fileName);
+                run.setName(matcher.replaceAll(""));
+            }
+            run.setSourceReference(reference);
+            run.setIonization(ionization);
+            run.setMassAnalyzers(!massAnalyzers.isEmpty() ? massAnalyzers : null);
+            runConsumer.consume(run);
+        }
+
+        private void finishSpectrum(RawSpectrum spec) throws IOException {
+            // checks that do not need the peaks are done before decoding
+            if (!spec.centroided) {
+                log.error("Spectrum with ID '" + spec.id + "' is not centroided. Skipping!");
+                return;
+            }
+            if (spec.skipList != null) {
+                log.error("Spectrum with ID '" + spec.id + "' contains parameters that indicate non Mass Spectrometry data (e.g. EMR spectra). Skipping! Parameters: " + String.join(", ", spec.skipList));
+                return;
+            }
+            if (spec.msLevel < 1 && spec.polarity == Polarity.UNKNOWN) {
+                log.error("Spectrum with ID '" + spec.id + "' does neither contain mslevel nor polarity information. Spectrum is likely to not be an Mass Spectrum. Skipping this entry.");
+                return;
+            }
+            if (!parallelDecoding) {
+                store(spec.decode(DECODERS.get()));
+                return;
+            }
+            pending.add(SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<RawSpectrum>(JJob.JobType.CPU) {
+                @Override
+                protected RawSpectrum compute() throws Exception {
+                    return spec.decode(DECODERS.get());
+                }
+            }));
+            while (pending.size() > maximumPending) store(pending.poll().takeResult());
+        }
+
+        private void store(RawSpectrum spec) throws IOException {
+            final String sid = spec.id;
+            final byte msLevel = (byte) Math.max(1, spec.msLevel);
+            final Polarity polarity = spec.polarity;
+            final double[] mzArray = spec.mzValues, intArray = spec.intensityValues;
+            if (mzArray == null || intArray == null || mzArray.length != intArray.length || mzArray.length == 0) {
+                log.debug("No spectrum data found in Spectrum with id: " + sid + " Skipping!");
+                return;
+            }
+
+            final SimpleSpectrum peaks = Spectrums.getBaselined(Spectrums.wrap(mzArray, intArray), 0);
+            spec.mzValues = null;
+            spec.intensityValues = null;
+            if (samplePolarity == 0) {
+                samplePolarity = polarity.charge;
+            } else if (polarity.charge != 0 && (polarity.charge > 0) != (samplePolarity > 0)) {
+                throw new RuntimeException("Preprocessing does not support LCMS runs with different polarities.");
+            }
+
+            if (peaks.isEmpty()) {
+                log.error("No valid spectrum data found Spectrum with id: " + sid + " Skipping!");
+                return;
+            }
+            if (msLevel == 1) {
+                if (scanConsumer != null) {
+                    Scan scan = Scan.builder()
+                            .runId(run.getRunId())
+                            .sourceScanId(sid)
+                            .scanTime(spec.rt)
+                            .peaks(peaks)
+                            .ccs(spec.ccs)
+                            .build();
+                    scanConsumer.consume(scan);
+                }
+
+                final Ms1SpectrumHeader header = new Ms1SpectrumHeader(scanids.size(), MzMLParser.parseScanNumber(sid, spec.index), sid, polarity.charge, true);
+                retentionTimes.add(spec.rt);
+                idmap.put(header.getScanId(), scanids.size());
+                scanids.add(header.getScanId());
+                ms1Indizes.put(sid, spec.index);
+                if (sid.startsWith("scan=")) {
+                    scanIdentifiers.add(null);
+                } else scanIdentifiers.add(sid);
+                storage.getSpectrumStorage().addSpectrum(header, peaks);
+
+            } else {
+                if (!spec.hasPrecursor) {
+                    log.error("No precursor information given for MS/MS spectrum with id: " + sid + " Skipping!");
+                    return;
+                }
+                double collisionEnergy = Double.NaN;
+                for (Param p : spec.activation) {
+                    if (!p.userParam() && "MS:1000045".equals(p.accession())) {
+                        collisionEnergy = Double.parseDouble(p.value());
+                        break;
+                    }
+                }
+                if (fragmentation == null) fragmentation = findFragmentation(spec.activation);
+
+                final Precursor prec = makePrecursor(spec);
+
+                if (msmsScanConsumer != null) {
+                    MSMSScan.MSMSScanBuilder scanBuilder = MSMSScan.builder()
+                            .runId(run.getRunId())
+                            .scanNumber(sid)
+                            .scanTime(spec.rt)
+                            .peaks(peaks)
+                            .msLevel(msLevel)
+                            .ccs(spec.ccs)
+                            .collisionEnergy(Double.isFinite(collisionEnergy) ? new CollisionEnergy(collisionEnergy) : CollisionEnergy.none())
+                            .mzOfInterest(prec.getMass())
+                            .isolationWindow(prec.getIsolationWindow())
+                            .precursorScanId(prec.getScanId());
+                    msmsScanConsumer.consume(scanBuilder.build());
+                }
+
+                final Ms2SpectrumHeader header = new Ms2SpectrumHeader(
+                        sid,
+                        MzMLParser.parseScanNumber(sid, spec.index),
+                        polarity.charge, msLevel, spec.centroided,
+                        Double.isFinite(collisionEnergy) ? new CollisionEnergy(collisionEnergy) : CollisionEnergy.none(),
+                        prec.getIsolationWindow(),
+                        idmap.getOrDefault(prec.getScanId(), -1),
+                        prec.getMass(),
+                        prec.getMass(),
+                        spec.rt
+                );
+                storage.getSpectrumStorage().addMs2Spectrum(header, peaks);
+            }
+        }
+
+        private Fragmentation findFragmentation(List<Param> activation) {
+            for (Param p : activation) {
+                if (p.userParam()) continue;
+                Optional<Fragmentation> optType = (p.accession() != null ? Fragmentation.byHupoId(p.accession()) : Optional.<Fragmentation>empty())
+                        .or(() -> p.name() != null ? Fragmentation.byValue(p.name()) : Optional.empty());
+                if (optType.isPresent()) return optType.get();
+            }
+            for (Param p : activation) {
+                if (!p.userParam() || isParamValueNull(p)) continue;
+                Optional<Fragmentation> optType = Fragmentation.byValue(p.value());
+                if (optType.isPresent()) return optType.get();
+            }
+            return null;
+        }
+
+        private Precursor makePrecursor(RawSpectrum spec) {
+            final IsolationWindow w = spec.hasIsolationWindow ? IsolationWindow.fromOffsets(spec.lowerOffset, spec.upperOffset) : new IsolationWindow(0, Double.NaN);
+            //use isolation target m/z if available
+            //(it happens that the instrument targets the +2 isotope peak but the selected ion m/z is the monoisotopic m/z)
+            final double mz = !Double.isNaN(spec.targetMz) ? spec.targetMz : spec.selectedIonMz;
+            return new Precursor(
+                    spec.precursorRef,
+                    MzMLParser.parseScanNumber(spec.precursorRef, spec.precursorRef != null ? ms1Indizes.getInt(spec.precursorRef) : -1),
+                    mz, spec.selectedIonIntensity, spec.chargeState, w
+            );
+        }
+
+        private ProcessedSample finish() throws IOException {
+            if (scanids.isEmpty()) {
+                throw new RuntimeException("No spectra imported from " + fileName);
+            }
+
+            if (fragmentation != null) {
+                run.setFragmentation(fragmentation);
+                runUpdateConsumer.consume(run);
+            }
+
+            String[] sids = scanIdentifiers.stream().allMatch(Objects::isNull) ? null : scanIdentifiers.toArray(String[]::new);
+
+            final ScanPointMapping mapping = new ScanPointMapping(retentionTimes.toDoubleArray(), scanids.toIntArray(), sids, idmap);
+            storage.setMapping(mapping);
+            ProcessedSample sample = new ProcessedSample(mapping, storage, samplePolarity, -1);
+            sample.setRun(run);
+            return sample;
+        }
+
+        private boolean isParamValueNull(Param userParam) {
+            if (userParam.value() == null) {
+                log.warn("Parameter value for '{}' missing in file '{}'.", userParam.name(), parent.resolve(fileName));
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        return reader.getAttributeValue(null, name);
+    }
+
+    private static int parseInt(@Nullable String value, int defaultValue) {
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -102,6 +102,27 @@ public class MergeMvStorage implements MergeStorage{
         return isotopes.stream().map(x->x.toArray(ProjectedTrace[]::new)).toArray(ProjectedTrace[][]::new);
     }
 
+    @Override
+    public void removeProjectedTracesOf(int mergedTraceUid) {
+        final ArrayList<ProjectedTraceKey> keys = new ArrayList<>();
+        final Cursor<ProjectedTraceKey, ProjectedTrace> cursor = projectedTraces.cursor(new ProjectedTraceKey(mergedTraceUid, Integer.MIN_VALUE));
+        while (cursor.hasNext()) {
+            final ProjectedTraceKey key = cursor.next();
+            if (key.mergedTraceUid != mergedTraceUid) break;
+            keys.add(key);
+        }
+        keys.forEach(projectedTraces::remove);
+
+        final ArrayList<IsotopeProjKey> isotopeKeys = new ArrayList<>();
+        final Cursor<IsotopeProjKey, ProjectedTrace> isotopeCursor = projectedIsotopeTraces.cursor(new IsotopeProjKey(mergedTraceUid, Integer.MIN_VALUE, Integer.MIN_VALUE));
+        while (isotopeCursor.hasNext()) {
+            final IsotopeProjKey key = isotopeCursor.next();
+            if (key.parentTraceUiD != mergedTraceUid) break;
+            isotopeKeys.add(key);
+        }
+        isotopeKeys.forEach(projectedIsotopeTraces::remove);
+    }
+
     private static class IsotopeProjKey implements Comparable<IsotopeProjKey>, Serializable {
         private final int parentTraceUiD, isotopeId, sampleId;
 
@@ -24,5 +24,10 @@ public interface MergeStorage {
     public ProjectedTrace getIsotopeProjectedTrace(int parentTraceUiD, int isotopeId, int sampleId);
     public ProjectedTrace[][] getIsotopePatternFor(int parentTraceUiD);
 
+    /**
+     * removes all projected traces and isotope projected traces of the given merged trace
+     */
+    public void removeProjectedTracesOf(int mergedTraceUid);
+
 
 }
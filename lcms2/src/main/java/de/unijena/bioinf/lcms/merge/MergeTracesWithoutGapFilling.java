@@ -13,6 +13,7 @@ import de.unijena.bioinf.lcms.utils.Tracker;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 
 /**
  * The MergeTraceWithGapFillingStrategy is iterating over all aligned MoIs takes their
@@ -86,26 +88,7 @@ public class MergeTracesWithoutGapFilling {
         MergeStorage mergeStorage = merged.getStorage().getMergeStorage();
         TraceRectangleMap rectangleMap = mergeStorage.getRectangleMap();
         for (MoI m : merged.getStorage().getAlignmentStorage()) {
-            final AlignedMoI moi = (AlignedMoI)m;
-            Rect r = new Rect(moi.getRect());
-            r.minMz = (float)moi.getMz();
-            r.maxMz = (float)moi.getMz();
-            r.minRt = r.maxRt = (float)moi.getRetentionTime();
-            for (MoI a : moi.getAligned()) {
-                RecalibrationFunction mz = mzRecalibration.get(a.getSampleIdx());
-                r.minMz = (float)Math.min(r.minMz, mz.value(a.getMz()));
-                r.maxMz = (float)Math.max(r.maxMz, mz.value(a.getMz()));
-                RecalibrationFunction rt = rtRecalibration.get(a.getSampleIdx());
-                r.minRt = (float)Math.min(r.minRt, rt.value(a.getRect().minRt));
-                r.maxRt = (float)Math.max(r.maxRt, rt.value(a.getRect().maxRt));
-            }
-
-            // account for rounding errors due to float 32 :/
-            r.minMz = Float.intBitsToFloat(Float.floatToIntBits(r.minMz)-1);
-            r.maxMz = Float.intBitsToFloat(Float.floatToIntBits(r.maxMz)+1);
-            r.minRt = Float.intBitsToFloat(Float.floatToIntBits(r.minRt)-1);
-            r.maxRt = Float.intBitsToFloat(Float.floatToIntBits(r.maxRt)+1);
-
+            final Rect r = rectFor((AlignedMoI)m, mzRecalibration, rtRecalibration);
             for (Rect other : rectangleMap.overlappingRectangle(r)) {
                 r.upgrade(other);
                 rectangleMap.removeRect(other);
@@ -115,6 +98,113 @@ public class MergeTracesWithoutGapFilling {
         }
     }
 
+    private static Rect rectFor(AlignedMoI moi, Int2ObjectOpenHashMap<RecalibrationFunction> mzRecalibration, Int2ObjectOpenHashMap<RecalibrationFunction> rtRecalibration) {
+        Rect r = new Rect(moi.getRect());
+        r.minMz = (float)moi.getMz();
+        r.maxMz = (float)moi.getMz();
+        r.minRt = r.maxRt = (float)moi.getRetentionTime();
+        for (MoI a : moi.getAligned()) {
+            RecalibrationFunction mz = mzRecalibration.get(a.getSampleIdx());
+            r.minMz = (float)Math.min(r.minMz, mz.value(a.getMz()));
+            r.maxMz = (float)Math.max(r.maxMz, mz.value(a.getMz()));
+            RecalibrationFunction rt = rtRecalibration.get(a.getSampleIdx());
+            r.minRt = (float)Math.min(r.minRt, rt.value(a.getRect().minRt));
+            r.maxRt = (float)Math.max(r.maxRt, rt.value(a.getRect().maxRt));
+        }
+
+        // account for rounding errors due to float 32 :/
+        r.minMz = Float.intBitsToFloat(Float.floatToIntBits(r.minMz)-1);
+        r.maxMz = Float.intBitsToFloat(Float.floatToIntBits(r.maxMz)+1);
+        r.minRt = Float.intBitsToFloat(Float.floatToIntBits(r.minRt)-1);
+        r.maxRt = Float.intBitsToFloat(Float.floatToIntBits(r.maxRt)+1);
+        return r;
+    }
+
+    /**
+     * Merges the traces of new samples into an existing merged sample. Only rectangles that contain aligned MoIs
+     * of the new samples are touched: a rectangle of such an aligned MoI is either added as new rectangle or, as in
+     * {@link #merge(ProcessedSample, AlignmentBackbone, Tracker)}, united with all rectangles it overlaps with.
+     * The union keeps the smallest id of the united rectangles, all other united rectangles are removed.
+     * Within the touched rectangles, the traces of all samples are merged again, as the rectangles might have grown.
+     * @param alignment backbone containing the previous and the new samples
+     * @return ids of all rectangles that were added, changed or removed
+     */
+    public IntSet mergeIncremental(ProcessedSample merged, AlignmentBackbone alignment, List<ProcessedSample> newSamples, Tracker tracker) {
+        JobManager globalJobManager = SiriusJobs.getGlobalJobManager();
+        final IntOpenHashSet newUids = new IntOpenHashSet();
+        for (ProcessedSample s : newSamples) newUids.add(s.getUid());
+        final Int2ObjectOpenHashMap<RecalibrationFunction> mzRecalibration = new Int2ObjectOpenHashMap<>();
+        final Int2ObjectOpenHashMap<RecalibrationFunction> rtRecalibration = new Int2ObjectOpenHashMap<>();
+        for (ProcessedSample s : alignment.getSamples()) {
+            mzRecalibration.put(s.getUid(), s.getMzRecalibration());
+            rtRecalibration.put(s.getUid(), s.getRtRecalibration());
+        }
+        final MergeStorage mergeStorage = merged.getStorage().getMergeStorage();
+        final TraceRectangleMap rectangleMap = mergeStorage.getRectangleMap();
+        final IntOpenHashSet touched = new IntOpenHashSet();
+        for (MoI m : merged.getStorage().getAlignmentStorage()) {
+            final AlignedMoI moi = (AlignedMoI)m;
+            if (Arrays.stream(moi.getAligned()).noneMatch(x -> newUids.contains(x.getSampleIdx()))) continue;
+            final Rect r = rectFor(moi, mzRecalibration, rtRecalibration);
+            // the union might overlap with further rectangles, so we repeat until it does not grow anymore
+            final Rect union = new Rect(r);
+            final IntOpenHashSet united = new IntOpenHashSet();
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                for (Rect other : rectangleMap.overlappingRectangle(union)) {
+                    if (united.add(other.id)) {
+                        union.upgrade(other);
+                        grown = true;
+                    }
+                }
+            }
+            if (united.isEmpty()) {
+                rectangleMap.addRect(r);
+                tracker.createRect(merged, r);
+                touched.add(r.id);
+                continue;
+            }
+            union.id = united.intStream().min().getAsInt();
+            for (int id : united) {
+                touched.add(id);
+                if (id != union.id) rectangleMap.getRect(id).ifPresent(rectangleMap::removeRect);
+            }
+            rectangleMap.updateRect(union);
+        }
+        // projected traces of changed rectangles are computed again, those of removed rectangles are obsolete
+        for (int id : touched) mergeStorage.removeProjectedTracesOf(id);
+
+        float[] mergedNoiseLevelPerScan = merged.getStorage().getStatistics().getNoiseLevelPerScan().clone();
+        final float averageNumberOfAlignments = alignment.getStatistics().getAverageNumberOfAlignments() > 0 ? alignment.getStatistics().getAverageNumberOfAlignments() : 1f;
+        final Rect[] touchedRects = touched.intStream().mapToObj(rectangleMap::getRect).flatMap(Optional::stream).toArray(Rect[]::new);
+        List<BasicJJob<?>> jobs = new ArrayList<>();
+        for (ProcessedSample sample : alignment.getSamples()) {
+            sample.active();
+            if (newUids.contains(sample.getUid())) {
+                final ScanPointInterpolator mapper = sample.getScanPointInterpolator();
+                final SampleStats sampleStats = sample.getStorage().getStatistics();
+                for (int i=0; i < mergedNoiseLevelPerScan.length; ++i) {
+                    mergedNoiseLevelPerScan[i] += (float)sample.getNormalizer().normalize(mapper.interpolate(sampleStats.getNoiseLevelPerScan(), i)) / averageNumberOfAlignments;
+                }
+            }
+            for (final Rect r : touchedRects) {
+                jobs.add(globalJobManager.submitJob(new BasicJJob<Object>() {
+                    @Override
+                    protected Object compute() throws Exception {
+                        mergeAllMoIsForSampleWithinRect(r, merged, sample, tracker);
+                        return true;
+                    }
+                }));
+            }
+            jobs.forEach(JJob::takeResult);
+            jobs.clear();
+            sample.inactive();
+        }
+        merged.getStorage().setStatistics(merged.getStorage().getStatistics().withNoiseLevelPerScan(mergedNoiseLevelPerScan));
+        return touched;
+    }
+
 
     ////////////////////////////////////////////////////////////////
 
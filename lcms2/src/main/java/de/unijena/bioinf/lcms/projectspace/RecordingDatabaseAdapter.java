@@ -0,0 +1,199 @@
+package de.unijena.bioinf.lcms.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.lcms.align.BackboneRecord;
+import de.unijena.bioinf.ms.persistence.model.core.feature.AlignedFeatures;
+import de.unijena.bioinf.ms.persistence.model.core.run.LCMSRun;
+import de.unijena.bioinf.ms.persistence.model.core.run.MergedLCMSRun;
+import de.unijena.bioinf.ms.persistence.model.core.run.RetentionTimeAxis;
+import de.unijena.bioinf.ms.persistence.model.core.scan.MSMSScan;
+import de.unijena.bioinf.ms.persistence.model.core.scan.Scan;
+import de.unijena.bioinf.ms.persistence.model.core.trace.AbstractTrace;
+import de.unijena.bioinf.ms.persistence.model.core.trace.MergedTrace;
+import de.unijena.bioinf.ms.persistence.model.core.trace.SourceTrace;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Delegates to another adapter and records the ids of all traces and aligned features that are imported through it
+ * and not removed again, such that everything imported for a merged trace can be replaced later on.
+ * If {@link PreviousFeatures} are given, an imported feature keeps the id of the previous feature it replaces.
+ * Not thread-safe, use one instance per merged trace.
+ */
+public class RecordingDatabaseAdapter implements SiriusDatabaseAdapter {
+
+    private final SiriusDatabaseAdapter delegate;
+    @Nullable private final PreviousFeatures previousFeatures;
+    private final LongLinkedOpenHashSet featureIds = new LongLinkedOpenHashSet(),
+            mergedTraceIds = new LongLinkedOpenHashSet(), sourceTraceIds = new LongLinkedOpenHashSet();
+
+    public RecordingDatabaseAdapter(SiriusDatabaseAdapter delegate, @Nullable PreviousFeatures previousFeatures) {
+        this.delegate = delegate;
+        this.previousFeatures = previousFeatures;
+    }
+
+    /**
+     * @return ids of all aligned features and traces imported through this adapter
+     */
+    public BackboneRecord.ImportedIds getImportedIds() {
+        return new BackboneRecord.ImportedIds(featureIds.toLongArray(), mergedTraceIds.toLongArray(), sourceTraceIds.toLongArray());
+    }
+
+    @Override
+    public void importRun(LCMSRun run) throws IOException {
+        delegate.importRun(run);
+    }
+
+    @Override
+    public void updateRun(LCMSRun run) throws IOException {
+        delegate.updateRun(run);
+    }
+
+    @Override
+    public void importMergedRun(MergedLCMSRun mergedRun) throws IOException {
+        delegate.importMergedRun(mergedRun);
+    }
+
+    @Override
+    public void updateMergedRun(MergedLCMSRun mergedRun) throws IOException {
+        delegate.updateMergedRun(mergedRun);
+    }
+
+    @Override
+    public void removeMergedRun(MergedLCMSRun run) throws IOException {
+        delegate.removeMergedRun(run);
+    }
+
+    @Override
+    public void importScan(Scan scan) throws IOException {
+        delegate.importScan(scan);
+    }
+
+    @Override
+    public void importMSMSScan(MSMSScan scan) throws IOException {
+        delegate.importMSMSScan(scan);
+    }
+
+    @Override
+    public void importTrace(AbstractTrace trace) throws IOException {
+        delegate.importTrace(trace);
+        if (trace instanceof MergedTrace merged) mergedTraceIds.add(merged.getMergedTraceId());
+        else if (trace instanceof SourceTrace source) sourceTraceIds.add(source.getSourceTraceId());
+    }
+
+    @Override
+    public void removeSourceTrace(long id) throws IOException {
+        delegate.removeSourceTrace(id);
+        sourceTraceIds.remove(id);
+    }
+
+    @Override
+    public void removeMergedTrace(long id) throws IOException {
+        delegate.removeMergedTrace(id);
+        mergedTraceIds.remove(id);
+    }
+
+    @Override
+    public boolean importAlignedFeature(AlignedFeatures alignedFeatures) throws IOException {
+        final int previous = previousFeatures == null ? -1 : previousFeatures.claim(alignedFeatures);
+        if (delegate.importAlignedFeature(alignedFeatures)) {
+            featureIds.add(alignedFeatures.getAlignedFeatureId());
+            return true;
+        } else {
+            if (previous >= 0) {
+                previousFeatures.release(previous);
+                alignedFeatures.setAlignedFeatureId(0);
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void removeAlignedFeatures(long[] alignedFeatureIds) throws IOException {
+        delegate.removeAlignedFeatures(alignedFeatureIds);
+        for (long id : alignedFeatureIds) featureIds.remove(id);
+    }
+
+    @Override
+    public List<AlignedFeatures> getAlignedFeatures(long[] alignedFeatureIds) throws IOException {
+        return delegate.getAlignedFeatures(alignedFeatureIds);
+    }
+
+    @Override
+    public void importRetentionTimeAxis(RetentionTimeAxis axis, boolean update) throws IOException {
+        delegate.importRetentionTimeAxis(axis, update);
+    }
+
+    @Override
+    public Stream<AlignedFeatures> getImportedFeatureStream(long runId) throws IOException {
+        return delegate.getImportedFeatureStream(runId);
+    }
+
+    /**
+     * Features that were removed from the project to be imported again. A new feature gets the id, compound id and
+     * external id of the previous feature with the same m/z whose apex lies within the retention time range of the new
+     * feature (the closest one, if there are several). Each previous feature is used at most once. Thread-safe.
+     */
+    public static class PreviousFeatures {
+        private final AlignedFeatures[] features;
+        private final double[] masses;
+        private final BitSet claimed;
+        private final Deviation deviation;
+
+        public PreviousFeatures(List<AlignedFeatures> features, Deviation deviation) {
+            this.features = features.stream().sorted(Comparator.comparingDouble(AlignedFeatures::getAverageMass)).toArray(AlignedFeatures[]::new);
+            this.masses = Stream.of(this.features).mapToDouble(AlignedFeatures::getAverageMass).toArray();
+            this.claimed = new BitSet(this.features.length);
+            this.deviation = deviation;
+        }
+
+        /**
+         * assigns the ids of the matching previous feature to the given feature
+         * @return index of the matching previous feature or -1 if there is none
+         */
+        synchronized int claim(AlignedFeatures feature) {
+            if (feature.getRetentionTime() == null) return -1;
+            final double mz = feature.getAverageMass(), tolerance = deviation.absoluteFor(mz);
+            int i = lowerBound(mz - tolerance);
+            int best = -1;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            for (; i < masses.length && masses[i] <= mz + tolerance; ++i) {
+                if (claimed.get(i) || features[i].getRetentionTime() == null || features[i].getCharge() != feature.getCharge()) continue;
+                final double apex = features[i].getRetentionTime().getMiddleTime();
+                if (apex < feature.getRetentionTime().getStartTime() || apex > feature.getRetentionTime().getEndTime()) continue;
+                final double distance = Math.abs(apex - feature.getRetentionTime().getMiddleTime());
+                if (distance < bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+            if (best < 0) return -1;
+            claimed.set(best);
+            final AlignedFeatures previous = features[best];
+            feature.setAlignedFeatureId(previous.getAlignedFeatureId());
+            if (feature.getCompoundId() == null) feature.setCompoundId(previous.getCompoundId());
+            if (feature.getExternalFeatureId() == null) feature.setExternalFeatureId(previous.getExternalFeatureId());
+            return best;
+        }
+
+        synchronized void release(int index) {
+            claimed.clear(index);
+        }
+
+        private int lowerBound(double mz) {
+            int lo = 0, hi = masses.length;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (masses[mid] < mz) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+}
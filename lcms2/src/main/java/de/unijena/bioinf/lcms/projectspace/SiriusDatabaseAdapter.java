@@ -9,6 +9,7 @@ import de.unijena.bioinf.ms.persistence.model.core.scan.Scan;
 import de.unijena.bioinf.ms.persistence.model.core.trace.AbstractTrace;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.stream.Stream;
 
 public interface SiriusDatabaseAdapter {
@@ -35,6 +36,10 @@ public interface SiriusDatabaseAdapter {
 
     boolean importAlignedFeature(AlignedFeatures alignedFeatures) throws IOException;
 
+    void removeAlignedFeatures(long[] alignedFeatureIds) throws IOException;
+
+    List<AlignedFeatures> getAlignedFeatures(long[] alignedFeatureIds) throws IOException;
+
     void importRetentionTimeAxis(RetentionTimeAxis axis, boolean update) throws IOException;
 
     Stream<AlignedFeatures> getImportedFeatureStream(long runId) throws IOException;
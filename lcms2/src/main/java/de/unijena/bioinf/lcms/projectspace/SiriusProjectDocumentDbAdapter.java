@@ -34,6 +34,7 @@ import de.unijena.bioinf.storage.db.nosql.Filter;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -126,6 +127,18 @@ public class SiriusProjectDocumentDbAdapter implements SiriusDatabaseAdapter {
         return true;
     }
 
+    @Override
+    public void removeAlignedFeatures(long[] alignedFeatureIds) throws IOException {
+        if (alignedFeatureIds.length == 0) return;
+        store.cascadeDeleteAlignedFeatures(Arrays.stream(alignedFeatureIds).sorted().boxed().toList());
+    }
+
+    @Override
+    public List<AlignedFeatures> getAlignedFeatures(long[] alignedFeatureIds) throws IOException {
+        if (alignedFeatureIds.length == 0) return List.of();
+        return store.getStorage().findStr(Filter.where("alignedFeatureId").in(Arrays.stream(alignedFeatureIds).boxed().toArray(Long[]::new)), AlignedFeatures.class).toList();
+    }
+
     @Override
     public void importRetentionTimeAxis(RetentionTimeAxis axis, boolean update) throws IOException {
         if (update) {
@@ -0,0 +1,142 @@
+package de.unijena.bioinf.lcms.spectrum;
+
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import lombok.Getter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Byte-budgeted LRU cache of decoded spectra, shared by all spectrum storages and all processing stages.
+ * Spectra are keyed by (storage, ms level, scan id). As {@link SimpleSpectrum} is immutable, cached spectra can be
+ * handed out to several threads at the same time.
+ * <p>
+ * Spectra are loaded outside of the lock, so two threads might decode the same spectrum at the same time. This is
+ * cheaper than blocking all readers while one of them decodes a spectrum.
+ */
+public class ScanCache {
+
+    public static final long DEFAULT_SIZE_IN_BYTES = Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 16);
+
+    private static final AtomicInteger storageIds = new AtomicInteger();
+    private static volatile ScanCache global = new ScanCache(DEFAULT_SIZE_IN_BYTES);
+
+    /**
+     * @return the cache shared by all spectrum storages
+     */
+    public static ScanCache global() {
+        return global;
+    }
+
+    /**
+     * replaces the shared cache by a cache with the given budget. A budget of zero disables caching.
+     */
+    public static void configureGlobal(long sizeInBytes) {
+        global = new ScanCache(sizeInBytes);
+    }
+
+    static int nextStorageId() {
+        return storageIds.incrementAndGet();
+    }
+
+    @Getter
+    private final long maximumSizeInBytes;
+    private long sizeInBytes;
+    private final LinkedHashMap<Long, SimpleSpectrum> entries;
+
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+    public ScanCache(long maximumSizeInBytes) {
+        this.maximumSizeInBytes = maximumSizeInBytes;
+        this.entries = new LinkedHashMap<>(1024, 0.75f, true);
+    }
+
+    /**
+     * returns the cached spectrum or loads it with the given loader and adds it to the cache
+     */
+    public SimpleSpectrum get(int storageId, int msLevel, int scanId, Supplier<SimpleSpectrum> loader) {
+        if (maximumSizeInBytes <= 0) return loader.get();
+        final long key = key(storageId, msLevel, scanId);
+        synchronized (this) {
+            final SimpleSpectrum cached = entries.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+        final SimpleSpectrum spectrum = loader.get();
+        if (spectrum == null) return null;
+        final long size = sizeOf(spectrum);
+        if (size > maximumSizeInBytes) return spectrum;
+        synchronized (this) {
+            final SimpleSpectrum previous = entries.put(key, spectrum);
+            if (previous != null) sizeInBytes -= sizeOf(previous);
+            sizeInBytes += size;
+            final Iterator<Map.Entry<Long, SimpleSpectrum>> iter = entries.entrySet().iterator();
+            while (sizeInBytes > maximumSizeInBytes && iter.hasNext()) {
+                final Map.Entry<Long, SimpleSpectrum> eldest = iter.next();
+                sizeInBytes -= sizeOf(eldest.getValue());
+                iter.remove();
+                evictions.increment();
+            }
+        }
+        return spectrum;
+    }
+
+    /**
+     * removes all spectra of the given storage, e.g. because the storage is closed or moved into low memory mode
+     */
+    public synchronized void invalidate(int storageId) {
+        final Iterator<Map.Entry<Long, SimpleSpectrum>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<Long, SimpleSpectrum> entry = iter.next();
+            if ((int) (entry.getKey() >>> 33) == storageId) {
+                sizeInBytes -= sizeOf(entry.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sizeInBytes = 0;
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        final long h = getHits(), m = getMisses();
+        return String.format(Locale.US, "ScanCache(%d of %d MB, %d hits, %d misses, %.1f %% hit rate, %d evictions)",
+                getSizeInBytes() / (1024 * 1024), maximumSizeInBytes / (1024 * 1024), h, m, h + m == 0 ? 0d : 100d * h / (h + m), getEvictions());
+    }
+
+    private static long key(int storageId, int msLevel, int scanId) {
+        return (((long) storageId) << 33) | (((long) (msLevel & 1)) << 32) | (scanId & 0xffffffffL);
+    }
+
+    // two double arrays plus object headers
+    private static long sizeOf(SimpleSpectrum spectrum) {
+        return 16L * spectrum.size() + 96;
+    }
+}
@@ -20,6 +20,12 @@ public abstract class SpectrumStorage {
 
     public abstract Ms2SpectrumHeader updateMs2Header(Ms2SpectrumHeader ms2SpectrumHeader);
 
+    /**
+     * removes all spectra of this storage from the shared {@link ScanCache}
+     */
+    public void releaseCache() {
+    }
+
 
     public static class MvSpectrumStorage extends SpectrumStorage {
         private MVMap<Integer, SimpleSpectrum> spectraMap, ms2SpectraMap;
@@ -30,6 +36,8 @@ public abstract class SpectrumStorage {
 
         MVStore store;
 
+        private final int cacheId = ScanCache.nextStorageId();
+
         public MvSpectrumStorage(MVStore storage) {
             this.store = storage;
             this.spectraMap = storage.openMap("spectra",
@@ -53,7 +61,7 @@ public abstract class SpectrumStorage {
 
         @Override
         public SimpleSpectrum getSpectrum(int id) {
-            return spectraMap.get(id);
+            return ScanCache.global().get(cacheId, 1, id, () -> spectraMap.get(id));
         }
 
         @Override
@@ -91,7 +99,12 @@ public abstract class SpectrumStorage {
 
         @Override
         public SimpleSpectrum getMs2Spectrum(int id) {
-            return this.ms2SpectraMap.get(id);
+            return ScanCache.global().get(cacheId, 2, id, () -> this.ms2SpectraMap.get(id));
+        }
+
+        @Override
+        public void releaseCache() {
+            ScanCache.global().invalidate(cacheId);
         }
 
         @Override
@@ -0,0 +1,100 @@
+package de.unijena.bioinf.lcms.trace;
+
+import de.unijena.bioinf.lcms.LCMSStorageFactory;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Storage factory that keeps the storages of all samples and of the merged sample in a directory, such that an
+ * alignment can be continued later with new samples (see {@link de.unijena.bioinf.lcms.LCMSProcessing#restoreWorkspace()}).
+ * In contrast to {@link LCMSStorage#temporaryStorage(File)}, storages are not deleted on close.
+ */
+@Slf4j
+public class AlignmentWorkspace implements LCMSStorageFactory {
+
+    private static final String SAMPLE_PREFIX = "sample_", MERGED_FILE = "merged.mvstore", SUFFIX = ".mvstore";
+
+    @Getter
+    private final Path directory;
+    private final LinkedList<MVTraceStorage> storages = new LinkedList<>();
+
+    public AlignmentWorkspace(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    @Override
+    public synchronized LCMSStorage createNewStorage() throws IOException {
+        final File file = File.createTempFile(SAMPLE_PREFIX, SUFFIX, directory.toFile());
+        return open(file.toPath());
+    }
+
+    /**
+     * creates the storage for the merged sample. A previous merged storage is replaced.
+     */
+    @Override
+    public synchronized LCMSStorage createMergedStorage() throws IOException {
+        final Path file = directory.resolve(MERGED_FILE);
+        Files.deleteIfExists(file);
+        return open(file);
+    }
+
+    /**
+     * @return the storage of the merged sample of the last alignment, or empty if there is none
+     */
+    public synchronized Optional<LCMSStorage> openMergedStorage() {
+        final Path file = directory.resolve(MERGED_FILE);
+        if (!Files.exists(file)) return Optional.empty();
+        return Optional.of(open(file));
+    }
+
+    /**
+     * @return storages of all samples in this workspace, ordered by file name
+     */
+    public synchronized List<LCMSStorage> openSampleStorages() throws IOException {
+        final List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> {
+                final String name = p.getFileName().toString();
+                return name.startsWith(SAMPLE_PREFIX) && name.endsWith(SUFFIX);
+            }).sorted().toList();
+        }
+        final List<LCMSStorage> opened = new ArrayList<>(files.size());
+        for (Path file : files) opened.add(open(file));
+        return opened;
+    }
+
+    /**
+     * closes the given storage and removes it from the workspace
+     */
+    public synchronized void discard(LCMSStorage storage) throws IOException {
+        if (!(storage instanceof MVTraceStorage s) || !storages.remove(s)) return;
+        s.close();
+        Files.deleteIfExists(Path.of(s.getFile()));
+    }
+
+    private MVTraceStorage open(Path file) {
+        final MVTraceStorage store = new MVTraceStorage(file.toAbsolutePath().toString(), false);
+        storages.add(store);
+        return store;
+    }
+
+    @Override
+    public synchronized void close() {
+        while (!storages.isEmpty()) {
+            MVTraceStorage s = storages.removeFirst();
+            try {
+                s.close();
+            } catch (Exception e) {
+                log.error("Error closing MVStore storage on file '{}'", s.getFile(), e);
+            }
+        }
+    }
+}
@@ -20,6 +20,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -28,6 +30,18 @@ import java.util.*;
 public abstract class LCMSStorage implements Closeable {
 
     public static LCMSStorageFactory temporaryStorage(@Nullable File tmpDir) {
+        return temporaryStorage(tmpDir, false);
+    }
+
+    /**
+     * Like {@link #temporaryStorage(File)}, but traces are stored in memory mapped column files
+     * (see {@link MappedTraceStorage}) instead of the MVStore. All other data is still stored in the MVStore.
+     */
+    public static LCMSStorageFactory temporaryColumnarStorage(@Nullable File tmpDir) {
+        return temporaryStorage(tmpDir, true);
+    }
+
+    private static LCMSStorageFactory temporaryStorage(@Nullable File tmpDir, boolean columnarTraces) {
         return new LCMSStorageFactory() {
             final LinkedList<MVTraceStorage> storages = new LinkedList<>();
 
@@ -35,7 +49,9 @@ public abstract class LCMSStorage implements Closeable {
             public synchronized LCMSStorage createNewStorage() throws IOException {
                 final File tempFile = File.createTempFile("sirius-tmp_", ".mvstore", tmpDir);
                 tempFile.deleteOnExit();
-                MVTraceStorage store = new MVTraceStorage(tempFile.getAbsolutePath(), true);
+                MVTraceStorage store = columnarTraces
+                        ? new MappedColumnarTraceStorage(tempFile.getAbsolutePath(), tmpDir)
+                        : new MVTraceStorage(tempFile.getAbsolutePath(), true);
                 storages.add(store);
                 return store;
             }
@@ -89,12 +105,20 @@ public abstract class LCMSStorage implements Closeable {
     public abstract SpectrumStorage getSpectrumStorage();
 
     public abstract TraceStorage getTraceStorage();
+
+    /**
+     * stores a small serializable object together with the data, e.g. to restore a sample from a persistent storage
+     */
+    public abstract void setMetadata(String key, Serializable value);
+
+    public abstract <T extends Serializable> Optional<T> getMetadata(String key, Class<T> type);
 }
 
 class MVTraceStorage extends LCMSStorage {
 
     private MVStore storage;
     private MVMap<Integer, SampleStats> statisticsObj;
+    private MVMap<String, Object> metadata;
     @Setter
     @Getter
     private ScanPointMapping mapping;
@@ -115,6 +139,7 @@ class MVTraceStorage extends LCMSStorage {
         this.cacheSizeInMegabytes = getDefaultCacheSize();
         this.storage = builder.fileName(file).autoCommitDisabled().cacheSize(cacheSizeInMegabytes).open();
         this.statisticsObj = storage.openMap("statistics", new MVMap.Builder<Integer, SampleStats>().valueType(new SampleStatsDataType()));
+        this.metadata = storage.openMap("metadata");
         this.alignmentStorage = new MvBasedAlignmentStorage(storage);
     }
 
@@ -181,6 +206,16 @@ class MVTraceStorage extends LCMSStorage {
         return statisticsObj.get(0);
     }
 
+    @Override
+    public void setMetadata(String key, Serializable value) {
+        metadata.put(key, value);
+    }
+
+    @Override
+    public <T extends Serializable> Optional<T> getMetadata(String key, Class<T> type) {
+        return Optional.ofNullable(metadata.get(key)).map(type::cast);
+    }
+
     private boolean inactiveMode = false;
 
     @Override
@@ -188,6 +223,7 @@ class MVTraceStorage extends LCMSStorage {
         if (inactive == this.inactiveMode) return;
         if (inactive) {
             this.inactiveMode = true;
+            if (spectrumStorage != null) spectrumStorage.releaseCache();
             storage.setCacheSize(1); // hacky workaround for clearing the cache
         } else {
             this.inactiveMode = false;
@@ -220,10 +256,48 @@ class MVTraceStorage extends LCMSStorage {
     @Override
     public synchronized void close() throws IOException {
         if (!storage.isClosed()) {
+            if (spectrumStorage != null) spectrumStorage.releaseCache();
             commit();
             storage.close();
             if (deleteOnClose)
                 Files.deleteIfExists(Path.of(file));
         }
     }
-}
\ No newline at end of file
+}
+
+class MappedColumnarTraceStorage extends MVTraceStorage {
+
+    @Nullable
+    private final File tmpDir;
+    private volatile MappedTraceStorage mappedTraceStorage;
+
+    public MappedColumnarTraceStorage(String file, @Nullable File tmpDir) {
+        super(file, true);
+        this.tmpDir = tmpDir;
+    }
+
+    @Override
+    public TraceStorage getTraceStorage() {
+        if (mappedTraceStorage == null) {
+            synchronized (this) {
+                if (mappedTraceStorage == null) {
+                    try {
+                        mappedTraceStorage = new MappedTraceStorage(tmpDir, getMapping());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        }
+        return mappedTraceStorage;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (mappedTraceStorage != null) mappedTraceStorage.close();
+        } finally {
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package de.unijena.bioinf.lcms.trace;
+
+import de.unijena.bioinf.lcms.ScanPointMapping;
+import de.unijena.bioinf.lcms.trace.segmentation.TraceSegment;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Contiguous trace whose m/z and intensity values are views on the memory mapped columns of a
+ * {@link MappedTraceStorage}. Creating such a trace does not copy any values.
+ */
+final class MappedContiguousTrace extends ContiguousTrace {
+
+    private final DoubleBuffer mzs;
+    private final FloatBuffer intensities;
+
+    MappedContiguousTrace(ScanPointMapping mapping, int uid, int startId, int endId, int apexId, double averageMz, double minMz, double maxMz, DoubleBuffer mzs, FloatBuffer intensities, TraceSegment[] segments) {
+        super(mapping, uid, startId, endId, apexId, averageMz, minMz, maxMz, null, null, segments);
+        this.mzs = mzs;
+        this.intensities = intensities;
+    }
+
+    @Override
+    public double mz(int index) {
+        return mzs.get(index - startId);
+    }
+
+    @Override
+    public float intensity(int index) {
+        return intensities.get(index - startId);
+    }
+
+    @Override
+    public ContiguousTrace withMapping(ScanPointMapping mp) {
+        if (mapping == mp) return this;
+        return new MappedContiguousTrace(mp, uid, startId, endId, apexId, averageMz, minMz, maxMz, mzs, intensities, segments);
+    }
+
+    @Override
+    public ContiguousTrace withUID(int id) {
+        return new MappedContiguousTrace(mapping, id, startId, endId, apexId, averageMz, minMz, maxMz, mzs, intensities, segments);
+    }
+}
@@ -0,0 +1,443 @@
+package de.unijena.bioinf.lcms.trace;
+
+import de.unijena.bioinf.lcms.ScanPointMapping;
+import de.unijena.bioinf.lcms.msms.MsMsTraceReference;
+import de.unijena.bioinf.lcms.trace.segmentation.TraceSegment;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+/**
+ * Trace storage that keeps the m/z and intensity values of all traces in two append-only, memory mapped column
+ * files. The values of a trace are stored consecutively, the scan ids are given implicitly by startId...endId.
+ * All other per-trace values are kept in primitive arrays in memory. Traces returned by this storage are views on
+ * the mapped columns, so lookups and iteration do not deserialize or copy any values.
+ * <p>
+ * Lookups use an index of all traces sorted by their minimum m/z. Newly added traces are collected in a small
+ * unsorted buffer which is merged into the sorted index from time to time.
+ */
+public class MappedTraceStorage extends TraceStorage implements Closeable {
+
+    // size of a single mapped region of a column file
+    private static final int CHUNK_SIZE = 1 << 26;
+    // number of traces that are added before merging them into the sorted index
+    private static final int MAX_UNSORTED = 1024;
+
+    private final ScanPointMapping mapping;
+    private final Column mzColumn, intensityColumn;
+
+    // per trace values, indexed by uid
+    private final IntArrayList startIds = new IntArrayList(), endIds = new IntArrayList(), apexIds = new IntArrayList();
+    private final DoubleArrayList averageMzs = new DoubleArrayList(), minMzs = new DoubleArrayList(), maxMzs = new DoubleArrayList();
+    private final LongArrayList mzAddresses = new LongArrayList(), intensityAddresses = new LongArrayList();
+    private final ArrayList<int[]> segments = new ArrayList<>();
+    private final BitSet deleted = new BitSet();
+    private int numberOfDeleted = 0;
+
+    // interval index
+    private int[] sortedByMinMz = new int[0];
+    private final IntArrayList unsorted = new IntArrayList();
+    private double maximumMzWidth = 0d;
+
+    private final Int2ObjectOpenHashMap<MsMsTraceReference> ms2headers2Traces = new Int2ObjectOpenHashMap<>();
+    private final Int2ObjectOpenHashMap<int[]> trace2ms2 = new Int2ObjectOpenHashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public MappedTraceStorage(@Nullable File tmpDir, ScanPointMapping mapping) throws IOException {
+        this.mapping = mapping;
+        final Path dir = tmpDir == null ? null : tmpDir.toPath();
+        this.mzColumn = new Column(createTempFile(dir, "sirius-traces-mz_"));
+        this.intensityColumn = new Column(createTempFile(dir, "sirius-traces-intensity_"));
+    }
+
+    private static Path createTempFile(@Nullable Path dir, String prefix) throws IOException {
+        final Path file = dir == null ? Files.createTempFile(prefix, ".bin") : Files.createTempFile(dir, prefix, ".bin");
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    /*
+        TRACE
+     */
+
+    @Override
+    public ContiguousTrace addContigousTrace(ContiguousTrace trace) {
+        lock.writeLock().lock();
+        try {
+            if (trace.uid >= 0) {
+                if (trace.uid >= startIds.size())
+                    throw new IllegalArgumentException("Unknown trace uid " + trace.uid);
+                // replace the entry, the old values stay in the append-only columns
+                final boolean moved = minMzs.getDouble(trace.uid) != trace.minMz();
+                write(trace, trace.uid);
+                if (moved) rebuildIndex();
+                else maximumMzWidth = Math.max(maximumMzWidth, trace.maxMz() - trace.minMz());
+                return view(trace.uid);
+            }
+            final ContiguousTrace[] found = new ContiguousTrace[1];
+            forEachIntersecting(trace.minMz(), trace.maxMz(), trace.startId(), trace.endId(), uid -> {
+                if (found[0] != null) return;
+                if (apexIds.getInt(uid) == trace.apex()) found[0] = view(uid);
+                else LoggerFactory.getLogger(MappedTraceStorage.class).debug("Overlapping traces found!");
+            });
+            if (found[0] != null) return found[0];
+            final int uid = startIds.size();
+            write(trace, uid);
+            unsorted.add(uid);
+            maximumMzWidth = Math.max(maximumMzWidth, trace.maxMz() - trace.minMz());
+            if (unsorted.size() >= MAX_UNSORTED) mergeUnsorted();
+            return view(uid);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void write(ContiguousTrace trace, int uid) {
+        final int length = trace.endId() - trace.startId() + 1;
+        final long mzAddress = mzColumn.allocate(length * 8);
+        final long intensityAddress = intensityColumn.allocate(length * 4);
+        final ByteBuffer mzBuffer = mzColumn.view(mzAddress, length * 8), intensityBuffer = intensityColumn.view(intensityAddress, length * 4);
+        for (int i = 0; i < length; ++i) {
+            mzBuffer.putDouble(i << 3, trace.mz(trace.startId() + i));
+            intensityBuffer.putFloat(i << 2, trace.intensity(trace.startId() + i));
+        }
+        final int[] segs;
+        if (trace.getSegments() == null) segs = null;
+        else {
+            segs = new int[trace.getSegments().length * 3];
+            int k = 0;
+            for (TraceSegment s : trace.getSegments()) {
+                segs[k++] = s.apex;
+                segs[k++] = s.leftEdge;
+                segs[k++] = s.rightEdge;
+            }
+        }
+        if (uid == startIds.size()) {
+            startIds.add(trace.startId());
+            endIds.add(trace.endId());
+            apexIds.add(trace.apex());
+            averageMzs.add(trace.averagedMz());
+            minMzs.add(trace.minMz());
+            maxMzs.add(trace.maxMz());
+            mzAddresses.add(mzAddress);
+            intensityAddresses.add(intensityAddress);
+            segments.add(segs);
+        } else {
+            startIds.set(uid, trace.startId());
+            endIds.set(uid, trace.endId());
+            apexIds.set(uid, trace.apex());
+            averageMzs.set(uid, trace.averagedMz());
+            minMzs.set(uid, trace.minMz());
+            maxMzs.set(uid, trace.maxMz());
+            mzAddresses.set(uid, mzAddress);
+            intensityAddresses.set(uid, intensityAddress);
+            segments.set(uid, segs);
+            if (deleted.get(uid)) {
+                deleted.clear(uid);
+                --numberOfDeleted;
+            }
+        }
+    }
+
+    private ContiguousTrace view(int uid) {
+        final int startId = startIds.getInt(uid), length = endIds.getInt(uid) - startId + 1;
+        final int[] segs = segments.get(uid);
+        TraceSegment[] traceSegments = null;
+        if (segs != null) {
+            traceSegments = new TraceSegment[segs.length / 3];
+            for (int k = 0, j = 0; k < traceSegments.length; ++k, j += 3)
+                traceSegments[k] = new TraceSegment(segs[j], segs[j + 1], segs[j + 2]);
+        }
+        return new MappedContiguousTrace(mapping, uid, startId, endIds.getInt(uid), apexIds.getInt(uid),
+                averageMzs.getDouble(uid), minMzs.getDouble(uid), maxMzs.getDouble(uid),
+                mzColumn.view(mzAddresses.getLong(uid), length * 8).asDoubleBuffer(),
+                intensityColumn.view(intensityAddresses.getLong(uid), length * 4).asFloatBuffer(),
+                traceSegments);
+    }
+
+    @Override
+    public void deleteTrace(int uid) {
+        lock.writeLock().lock();
+        try {
+            if (uid >= 0 && uid < startIds.size() && !deleted.get(uid)) {
+                deleted.set(uid);
+                ++numberOfDeleted;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ContiguousTrace getContigousTrace(int uid) {
+        lock.readLock().lock();
+        try {
+            if (uid < 0 || uid >= startIds.size() || deleted.get(uid)) return null;
+            return view(uid);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Optional<ContiguousTrace> getContigousTrace(double fromMz, double toMz, int scanId) {
+        lock.readLock().lock();
+        try {
+            final int[] found = new int[]{-1};
+            forEachIntersecting(fromMz, toMz, scanId, scanId, uid -> {
+                if (found[0] < 0) {
+                    final double avgmz = averageMzs.getDouble(uid);
+                    if (avgmz <= toMz && avgmz >= fromMz) found[0] = uid;
+                }
+            });
+            return found[0] < 0 ? Optional.empty() : Optional.of(view(found[0]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ContiguousTrace> getContigousTracesByMass(double fromMz, double toMz) {
+        return getContigousTraces(fromMz, toMz, Integer.MIN_VALUE, Integer.MAX_VALUE, false);
+    }
+
+    @Override
+    public List<ContiguousTrace> getContigousTraces(double fromMz, double toMz, int fromScanId, int toScanId) {
+        return getContigousTraces(fromMz, toMz, fromScanId, toScanId, true);
+    }
+
+    private List<ContiguousTrace> getContigousTraces(double fromMz, double toMz, int fromScanId, int toScanId, boolean filterByAverageMz) {
+        lock.readLock().lock();
+        try {
+            final List<ContiguousTrace> traces = new ArrayList<>();
+            forEachIntersecting(fromMz, toMz, fromScanId, toScanId, uid -> {
+                final double avgmz = averageMzs.getDouble(uid);
+                if (!filterByAverageMz || (avgmz <= toMz && avgmz >= fromMz)) traces.add(view(uid));
+            });
+            return traces;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int numberOfTraces() {
+        lock.readLock().lock();
+        try {
+            return startIds.size() - numberOfDeleted;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+        INDEX
+     */
+
+    /**
+     * calls the consumer for all traces whose m/z range and scan range intersect with the given ranges.
+     * Has to be called with read or write lock.
+     */
+    private void forEachIntersecting(double fromMz, double toMz, int fromScanId, int toScanId, IntConsumer consumer) {
+        // all traces with minMz >= fromMz - maximumMzWidth might intersect
+        int lo = 0, hi = sortedByMinMz.length;
+        // m/z values are compared in float precision, so we have to add some slack for the rounding
+        final double lowerBound = fromMz - maximumMzWidth - 2 * Math.ulp((float) fromMz);
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (minMzs.getDouble(sortedByMinMz[mid]) < lowerBound) lo = mid + 1;
+            else hi = mid;
+        }
+        for (int i = lo; i < sortedByMinMz.length; ++i) {
+            final int uid = sortedByMinMz[i];
+            if ((float) minMzs.getDouble(uid) > (float) toMz) break;
+            if (intersects(uid, fromMz, toMz, fromScanId, toScanId)) consumer.accept(uid);
+        }
+        for (int i = 0; i < unsorted.size(); ++i) {
+            final int uid = unsorted.getInt(i);
+            if (intersects(uid, fromMz, toMz, fromScanId, toScanId)) consumer.accept(uid);
+        }
+    }
+
+    private boolean intersects(int uid, double fromMz, double toMz, int fromScanId, int toScanId) {
+        // compare in float precision like the spatial index of the MVStore based storage
+        return !deleted.get(uid) && (float) minMzs.getDouble(uid) <= (float) toMz && (float) maxMzs.getDouble(uid) >= (float) fromMz
+                && startIds.getInt(uid) <= toScanId && endIds.getInt(uid) >= fromScanId;
+    }
+
+    private void mergeUnsorted() {
+        final IntComparator byMinMz = (a, b) -> {
+            final int c = Double.compare(minMzs.getDouble(a), minMzs.getDouble(b));
+            return c != 0 ? c : Integer.compare(a, b);
+        };
+        final int[] news = unsorted.toIntArray();
+        IntArrays.sort(news, byMinMz);
+        final int[] merged = new int[sortedByMinMz.length + news.length];
+        int i = 0, j = 0, k = 0;
+        while (i < sortedByMinMz.length && j < news.length) {
+            merged[k++] = byMinMz.compare(sortedByMinMz[i], news[j]) <= 0 ? sortedByMinMz[i++] : news[j++];
+        }
+        while (i < sortedByMinMz.length) merged[k++] = sortedByMinMz[i++];
+        while (j < news.length) merged[k++] = news[j++];
+        sortedByMinMz = merged;
+        unsorted.clear();
+    }
+
+    private void rebuildIndex() {
+        unsorted.clear();
+        maximumMzWidth = 0d;
+        for (int uid = 0; uid < startIds.size(); ++uid) {
+            unsorted.add(uid);
+            maximumMzWidth = Math.max(maximumMzWidth, maxMzs.getDouble(uid) - minMzs.getDouble(uid));
+        }
+        sortedByMinMz = new int[0];
+        mergeUnsorted();
+    }
+
+    /*
+        MS2-Spectrum TO TRACE
+     */
+
+    @Override
+    public ContiguousTrace getTraceForMs2(int ms2headerId) {
+        final MsMsTraceReference ref;
+        synchronized (ms2headers2Traces) {
+            ref = ms2headers2Traces.get(ms2headerId);
+        }
+        return ref == null ? null : getContigousTrace(ref.traceUid);
+    }
+
+    @Override
+    public void assignTraceForMs2(MsMsTraceReference reference) {
+        synchronized (ms2headers2Traces) {
+            ms2headers2Traces.put(reference.ms2Uid, reference);
+            final int[] ints = trace2ms2.get(reference.traceUid);
+            if (ints == null) trace2ms2.put(reference.traceUid, new int[]{reference.ms2Uid});
+            else {
+                final int[] extended = Arrays.copyOf(ints, ints.length + 1);
+                extended[ints.length] = reference.ms2Uid;
+                trace2ms2.put(reference.traceUid, extended);
+            }
+        }
+    }
+
+    @Override
+    public MsMsTraceReference[] getMs2ForTrace(int traceId) {
+        synchronized (ms2headers2Traces) {
+            final int[] xs = trace2ms2.get(traceId);
+            if (xs == null) return new MsMsTraceReference[0];
+            final MsMsTraceReference[] ys = new MsMsTraceReference[xs.length];
+            for (int i = 0; i < xs.length; ++i) ys[i] = ms2headers2Traces.get(xs[i]);
+            return ys;
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<ContiguousTrace> iterator() {
+        return new Iterator<>() {
+            private int next = nextUid(0);
+
+            private int nextUid(int from) {
+                lock.readLock().lock();
+                try {
+                    int uid = deleted.nextClearBit(from);
+                    return uid < startIds.size() ? uid : -1;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public ContiguousTrace next() {
+                if (next < 0) throw new NoSuchElementException();
+                final ContiguousTrace trace = getContigousTrace(next);
+                next = nextUid(next + 1);
+                return trace;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            mzColumn.close();
+            intensityColumn.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * append-only column file, mapped in chunks of {@link #CHUNK_SIZE} bytes. Values of a single trace never span
+     * two chunks.
+     */
+    private static final class Column implements Closeable {
+        private final Path file;
+        private final FileChannel channel;
+        private final ArrayList<MappedByteBuffer> chunks = new ArrayList<>();
+        private long end = 0;
+
+        private Column(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        private long allocate(int bytes) {
+            if (bytes > CHUNK_SIZE)
+                throw new IllegalArgumentException("Trace is too long to be stored: " + bytes + " bytes");
+            long address = end;
+            if ((address % CHUNK_SIZE) + bytes > CHUNK_SIZE) address = (address / CHUNK_SIZE + 1) * CHUNK_SIZE;
+            end = address + bytes;
+            try {
+                while ((long) chunks.size() * CHUNK_SIZE < end) {
+                    chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) chunks.size() * CHUNK_SIZE, CHUNK_SIZE));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return address;
+        }
+
+        private ByteBuffer view(long address, int bytes) {
+            final MappedByteBuffer chunk = chunks.get((int) (address / CHUNK_SIZE));
+            return chunk.slice((int) (address % CHUNK_SIZE), bytes).order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        public void close() throws IOException {
+            chunks.clear();
+            channel.close();
+            // mapped regions are released by the garbage collector, so deleting might fail on some platforms
+            if (!file.toFile().delete()) file.toFile().deleteOnExit();
+        }
+    }
+}
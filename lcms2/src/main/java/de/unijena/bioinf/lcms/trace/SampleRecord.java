@@ -0,0 +1,100 @@
+package de.unijena.bioinf.lcms.trace;
+
+import de.unijena.bioinf.lcms.ScanPointMapping;
+import de.unijena.bioinf.lcms.align.RecalibrationFunction;
+import de.unijena.bioinf.ms.persistence.model.core.run.AbstractLCMSRun;
+import de.unijena.bioinf.ms.persistence.model.core.run.LCMSRun;
+import de.unijena.bioinf.ms.persistence.model.core.run.MergedLCMSRun;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Serializable;
+import java.util.Optional;
+
+/**
+ * Everything we need to restore a {@link ProcessedSample} from its persistent {@link LCMSStorage}, i.e. all
+ * information that is not stored in the storage itself. Recalibration functions are stored as polynomial
+ * coefficients plus the knots and polynomials of their loess spline (if any), the normalizer as a single factor
+ * (all our normalizations are linear).
+ */
+public class SampleRecord implements Serializable {
+
+    public static final String KEY = "sample";
+
+    private final int uid;
+    private final long runId;
+    private final String runName;
+    @Nullable private final long[] mergedRunIds;
+    private final int polarity;
+    private final double[] retentionTimes;
+    private final int[] scanIds;
+    @Nullable private final String[] scanIdentifiers;
+    private final double normalizationFactor;
+    private final Recalibration rtRecalibration, mzRecalibration;
+
+    private SampleRecord(ProcessedSample sample) {
+        this.uid = sample.getUid();
+        this.runId = sample.getRun().getRunId();
+        this.runName = sample.getRun().getName();
+        this.mergedRunIds = (sample.getRun() instanceof MergedLCMSRun) ? ((MergedLCMSRun) sample.getRun()).getRunIds() : null;
+        this.polarity = sample.getPolarity();
+        this.retentionTimes = sample.getMapping().getRetentionTimeArray();
+        this.scanIds = sample.getMapping().getScanIdArray();
+        this.scanIdentifiers = sample.getMapping().getScanIdentifiersArray();
+        this.normalizationFactor = sample.getNormalizer() == null ? 1d : sample.getNormalizer().normalize(1d);
+        this.rtRecalibration = new Recalibration(sample.getRtRecalibration());
+        this.mzRecalibration = new Recalibration(sample.getMzRecalibration());
+    }
+
+    public static SampleRecord of(ProcessedSample sample) {
+        return new SampleRecord(sample);
+    }
+
+    /**
+     * stores the record of the sample into its own storage
+     */
+    public static void store(ProcessedSample sample) {
+        sample.getStorage().setMetadata(KEY, of(sample));
+    }
+
+    /**
+     * @return the sample stored in the given storage or empty if the storage does not contain a record
+     */
+    public static Optional<ProcessedSample> restore(LCMSStorage storage) {
+        return storage.getMetadata(KEY, SampleRecord.class).map(r -> r.restoreInto(storage));
+    }
+
+    public ProcessedSample restoreInto(LCMSStorage storage) {
+        final ScanPointMapping mapping = new ScanPointMapping(retentionTimes, scanIds, scanIdentifiers);
+        storage.setMapping(mapping);
+        final ProcessedSample sample = new ProcessedSample(mapping, storage, polarity, uid);
+        final AbstractLCMSRun run = mergedRunIds != null
+                ? MergedLCMSRun.builder().runId(runId).name(runName).runIds(mergedRunIds).build()
+                : LCMSRun.builder().runId(runId).name(runName).build();
+        sample.setRun(run);
+        final double factor = normalizationFactor;
+        sample.setNormalizer(intensity -> intensity * factor);
+        sample.setRtRecalibration(rtRecalibration.toFunction());
+        sample.setMzRecalibration(mzRecalibration.toFunction());
+        return sample;
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    private static class Recalibration implements Serializable {
+        @Nullable private final double[] polynomial;
+        @Nullable private final double[] loessKnots;
+        @Nullable private final double[][] loessCoefficients;
+
+        private Recalibration(RecalibrationFunction function) {
+            this.polynomial = function.getPolynomialCoefficients();
+            this.loessKnots = function.getLoessKnots();
+            this.loessCoefficients = function.getLoessCoefficients();
+        }
+
+        private RecalibrationFunction toFunction() {
+            return RecalibrationFunction.fromCoefficients(polynomial, loessKnots, loessCoefficients);
+        }
+    }
+}
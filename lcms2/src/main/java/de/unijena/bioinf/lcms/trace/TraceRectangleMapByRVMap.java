@@ -24,7 +24,8 @@ public class TraceRectangleMapByRVMap implements TraceRectangleMap{
         this.store = store;
         this.plane = store.openMap(prefix  + "_plane", new MVRTreeMap.Builder<>());
         this.entries = store.openMap(prefix + "_entries");
-        ids = new AtomicInteger();
+        // continue with the ids of an existing map, e.g. when a persistent storage is reopened
+        ids = new AtomicInteger(entries.isEmpty() ? 0 : entries.lastKey() + 1);
     }
 
     @Override
@@ -49,7 +49,7 @@ public abstract class TraceStorage implements Iterable<ContiguousTrace>  {
                     new MVMap.Builder<Integer,ContiguousTrace>().valueType(new ContigousTraceDatatype()));
             this.ms2headers2Traces = storage.openMap("ms2headers2Traces");
             this.trace2ms2 = storage.openMap("trace2ms");
-            this.uids = new AtomicInteger(0);
+            this.uids = new AtomicInteger(traceMap.isEmpty() ? 0 : traceMap.lastKey() + 1);
             this.spatialTraceMap = storage.openMap("contiguousTracesSpatialKey", new MVRTreeMap.Builder<>());
 
         }
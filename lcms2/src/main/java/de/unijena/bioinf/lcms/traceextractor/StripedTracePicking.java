@@ -0,0 +1,203 @@
+package de.unijena.bioinf.lcms.traceextractor;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.lcms.trace.ContiguousTrace;
+import de.unijena.bioinf.lcms.trace.ProcessedSample;
+import de.unijena.bioinf.lcms.trace.segmentation.TraceSegmentationStrategy;
+import it.unimi.dsi.fastutil.doubles.Double2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Concurrent trace extraction. The m/z axis is partitioned into stripes, each containing roughly the same number
+ * of seed peaks. Each stripe is picked by its own job with a stripe-local cache, so the workers never share or
+ * write any state. Seeds whose search window or whose picked trace crosses a stripe border are deferred.
+ * <p>
+ * Afterwards, all traces that lie completely within a stripe are added to the storage in stripe order, and the
+ * deferred seeds are picked sequentially in their original order. Since the number of stripes does not depend on
+ * the number of threads, the result is the same for every run of the same sample.
+ * <p>
+ * A trace connects peaks that are mutually closest in mass, so the trace through a peak does not depend on the
+ * seed it is picked from. Thus, the picked traces are the same as for sequential trace picking. The only exception
+ * is a seed peak with a more intensive peak within a third of the allowed mass deviation: the trace is then picked
+ * from the more intensive peak, and whether this happens depends on the traces that were picked before.
+ */
+public class StripedTracePicking {
+
+    public static final int DEFAULT_NUMBER_OF_STRIPES = 64;
+
+    private final ProcessedSample sample;
+    private final TraceCachingStrategy cachingStrategy;
+    private final TraceSegmentationStrategy segmentationStrategy;
+    private final Deviation allowedMassDeviation;
+
+    @Getter @Setter
+    private int numberOfStripes = DEFAULT_NUMBER_OF_STRIPES;
+
+    public StripedTracePicking(ProcessedSample sample, TraceCachingStrategy cachingStrategy, TraceSegmentationStrategy segmentationStrategy, Deviation allowedMassDeviation) {
+        this.sample = sample;
+        this.cachingStrategy = cachingStrategy;
+        this.segmentationStrategy = segmentationStrategy;
+        this.allowedMassDeviation = allowedMassDeviation;
+    }
+
+    /**
+     * picks traces for all peaks returned by the detection strategy and adds them to the cache of the sample
+     * @param onPicked is called (in a deterministic order) with each trace that is picked
+     * @return number of seeds that had to be picked sequentially because they are at the border of a stripe
+     */
+    public int pickTraces(TraceDetectionStrategy detectionStrategy, Consumer<ContiguousTrace> onPicked) {
+        final IntArrayList seedScans = new IntArrayList();
+        final DoubleArrayList seedMzs = new DoubleArrayList();
+        detectionStrategy.findPeaksForExtraction(sample, (s, spectrumIdx, peakIdx, spectrum) -> {
+            seedScans.add(spectrumIdx);
+            seedMzs.add(spectrum.getMzAt(peakIdx));
+        });
+        if (seedMzs.isEmpty()) return 0;
+
+        // stripe k covers [borders[k], borders[k+1])
+        final double[] borders = computeStripeBorders(seedMzs.toDoubleArray());
+        final int stripes = borders.length - 1;
+        final IntArrayList[] stripeSeeds = new IntArrayList[stripes];
+        for (int k = 0; k < stripes; ++k) stripeSeeds[k] = new IntArrayList();
+        final IntArrayList deferred = new IntArrayList();
+        for (int i = 0; i < seedMzs.size(); ++i) {
+            final double mz = seedMzs.getDouble(i), abs = allowedMassDeviation.absoluteFor(mz);
+            final int k = stripeOf(borders, mz);
+            if (mz - abs < borders[k] || mz + abs >= borders[k + 1]) deferred.add(i);
+            else stripeSeeds[k].add(i);
+        }
+
+        final List<BasicJJob<StripeResult>> jobs = new ArrayList<>(stripes);
+        for (int k = 0; k < stripes; ++k) {
+            if (stripeSeeds[k].isEmpty()) continue;
+            final IntArrayList seeds = stripeSeeds[k];
+            final double from = borders[k], to = borders[k + 1];
+            jobs.add(SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<StripeResult>(JJob.JobType.CPU) {
+                @Override
+                protected StripeResult compute() throws Exception {
+                    return pickStripe(seeds, seedScans, seedMzs, from, to, this::checkForInterruption);
+                }
+            }));
+        }
+
+        // merge: traces within stripes first, then all border seeds in their original order
+        final TraceCachingStrategy.Cache cache = cachingStrategy.getCacheFor(sample);
+        for (BasicJJob<StripeResult> job : jobs) {
+            final StripeResult result = job.takeResult();
+            for (ContiguousTrace trace : result.traces) onPicked.accept(cache.addTraceToCache(trace));
+            deferred.addAll(result.deferred);
+        }
+        final int[] deferredSeeds = deferred.toIntArray();
+        Arrays.sort(deferredSeeds);
+        final TracePicker picker = new TracePicker(sample, cache, segmentationStrategy);
+        picker.setAllowedMassDeviation(allowedMassDeviation);
+        for (int i : deferredSeeds) {
+            picker.detectMostIntensivePeak(seedScans.getInt(i), seedMzs.getDouble(i)).ifPresent(onPicked);
+        }
+        return deferredSeeds.length;
+    }
+
+    private StripeResult pickStripe(IntArrayList seeds, IntArrayList seedScans, DoubleArrayList seedMzs, double from, double to, Interruptible interruptible) throws Exception {
+        final LocalCache cache = new LocalCache();
+        final TracePicker picker = new TracePicker(sample, cache, segmentationStrategy);
+        picker.setAllowedMassDeviation(allowedMassDeviation);
+        final IntArrayList deferred = new IntArrayList();
+        for (int i = 0; i < seeds.size(); ++i) {
+            if (i % 1000 == 0) interruptible.checkForInterruption();
+            final int seed = seeds.getInt(i), scanId = seedScans.getInt(seed);
+            final double mz = seedMzs.getDouble(seed), abs = allowedMassDeviation.absoluteFor(mz);
+            // same as TracePicker.detectMostIntensivePeak, but border traces are not added to the cache
+            final SimpleSpectrum spectrum = sample.getStorage().getSpectrumStorage().getSpectrum(scanId);
+            final int index = Spectrums.mostIntensivePeakWithin(spectrum, mz - abs, mz + abs);
+            if (index < 0) continue;
+            final double peakMz = spectrum.getMzAt(index);
+            if (cache.getTraceFromCache(scanId, peakMz).isPresent()) continue;
+            final Optional<ContiguousTrace> trace = picker.pickSegmentedTrace(scanId, peakMz);
+            if (trace.isEmpty()) continue;
+            if (isWithin(trace.get(), from, to)) cache.addTraceToCache(trace.get());
+            else deferred.add(seed);
+        }
+        return new StripeResult(cache.traces, deferred);
+    }
+
+    private double[] computeStripeBorders(double[] mzs) {
+        final double[] sorted = mzs.clone();
+        Arrays.sort(sorted);
+        final DoubleArrayList borders = new DoubleArrayList();
+        borders.add(Double.NEGATIVE_INFINITY);
+        final int stripes = Math.max(1, numberOfStripes);
+        for (int k = 1; k < stripes; ++k) {
+            final double border = sorted[(int) ((long) k * sorted.length / stripes)];
+            if (border > borders.getDouble(borders.size() - 1)) borders.add(border);
+        }
+        borders.add(Double.POSITIVE_INFINITY);
+        return borders.toDoubleArray();
+    }
+
+    private static int stripeOf(double[] borders, double mz) {
+        int lo = 0, hi = borders.length - 2;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (borders[mid] <= mz) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    // minMz and maxMz of a trace ignore low intensive peaks, so we have to check all peaks
+    private static boolean isWithin(ContiguousTrace trace, double from, double to) {
+        for (int i = trace.startId(); i <= trace.endId(); ++i) {
+            final double mz = trace.mz(i);
+            if (mz < from || mz >= to) return false;
+        }
+        return true;
+    }
+
+    private interface Interruptible {
+        void checkForInterruption() throws Exception;
+    }
+
+    private record StripeResult(List<ContiguousTrace> traces, IntArrayList deferred) {
+    }
+
+    /**
+     * cache of a single stripe. Traces are identified by their exact (scan id, m/z) pairs, and two traces with the
+     * same apex peak are considered equal.
+     */
+    private static class LocalCache implements TraceCachingStrategy.Cache {
+        private final List<ContiguousTrace> traces = new ArrayList<>();
+        private final Int2ObjectOpenHashMap<Double2ObjectOpenHashMap<ContiguousTrace>> peaks = new Int2ObjectOpenHashMap<>();
+
+        @Override
+        public ContiguousTrace addTraceToCache(ContiguousTrace trace) {
+            final Optional<ContiguousTrace> existing = getTraceFromCache(trace.apex(), trace.mz(trace.apex()));
+            if (existing.isPresent()) return existing.get();
+            for (int i = trace.startId(); i <= trace.endId(); ++i) {
+                peaks.computeIfAbsent(i, x -> new Double2ObjectOpenHashMap<>()).putIfAbsent(trace.mz(i), trace);
+            }
+            traces.add(trace);
+            return trace;
+        }
+
+        @Override
+        public Optional<ContiguousTrace> getTraceFromCache(int spectrumId, double mz) {
+            final Double2ObjectOpenHashMap<ContiguousTrace> map = peaks.get(spectrumId);
+            return map == null ? Optional.empty() : Optional.ofNullable(map.get(mz));
+        }
+    }
+}
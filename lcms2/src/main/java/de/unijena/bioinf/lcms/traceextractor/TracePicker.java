@@ -33,10 +33,14 @@ public class TracePicker {
     protected ScanPointMapping mapping;
 
     public TracePicker(ProcessedSample sample, TraceCachingStrategy cachingStrategy, TraceSegmentationStrategy segmentationStrategy) {
+        this(sample, cachingStrategy.getCacheFor(sample), segmentationStrategy);
+    }
+
+    public TracePicker(ProcessedSample sample, TraceCachingStrategy.Cache cache, TraceSegmentationStrategy segmentationStrategy) {
         this.storage = sample.getStorage();
         setAllowedMassDeviation(new Deviation(12));
         this.mapping = sample.getMapping();
-        this.cache = cachingStrategy.getCacheFor(sample);
+        this.cache = cache;
         this.segmentationStrategy = segmentationStrategy;
     }
 
@@ -153,12 +157,19 @@ public class TracePicker {
     public Optional<ContiguousTrace> detectTrace(int spectrumId, double mz) {
         Optional<ContiguousTrace> traceFromCache = cache.getTraceFromCache(spectrumId, mz);
         if (traceFromCache.isPresent()) return traceFromCache;
+        return pickSegmentedTrace(spectrumId, mz).map(cache::addTraceToCache);
+    }
+
+    /**
+     * picks the trace through the given peak and detects its segments, but neither asks nor fills the cache
+     */
+    public Optional<ContiguousTrace> pickSegmentedTrace(int spectrumId, double mz) {
         Optional<ContiguousTrace> detected = pickTrace(spectrumId, mz);
         return detected.map(x->{ // TODO: evtl. hier schon points of interests einfügen
             //
             x.setSegments(segmentationStrategy.detectSegments(storage.getStatistics(), x, new int[0]).toArray(TraceSegment[]::new));
             if (x.getSegments().length==0) x.setSegments(new TraceSegment[]{new TraceSegment(x.apex(), x.startId(), x.endId())});
-            return cache.addTraceToCache(x);
+            return x;
         });
     }
 
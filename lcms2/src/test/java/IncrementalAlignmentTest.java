@@ -0,0 +1,378 @@
+import de.unijena.bioinf.lcms.LCMSProcessing;
+import de.unijena.bioinf.lcms.align.AlignmentBackbone;
+import de.unijena.bioinf.lcms.align.BackboneRecord;
+import de.unijena.bioinf.lcms.projectspace.SiriusDatabaseAdapter;
+import de.unijena.bioinf.lcms.trace.AlignmentWorkspace;
+import de.unijena.bioinf.lcms.trace.ProcessedSample;
+import de.unijena.bioinf.lcms.trace.Rect;
+import de.unijena.bioinf.ms.persistence.model.core.feature.AlignedFeatures;
+import de.unijena.bioinf.ms.persistence.model.core.run.Chromatography;
+import de.unijena.bioinf.ms.persistence.model.core.run.LCMSRun;
+import de.unijena.bioinf.ms.persistence.model.core.run.MergedLCMSRun;
+import de.unijena.bioinf.ms.persistence.model.core.run.RetentionTimeAxis;
+import de.unijena.bioinf.ms.persistence.model.core.scan.MSMSScan;
+import de.unijena.bioinf.ms.persistence.model.core.scan.Scan;
+import de.unijena.bioinf.ms.persistence.model.core.trace.AbstractTrace;
+import de.unijena.bioinf.ms.persistence.model.core.trace.MergedTrace;
+import de.unijena.bioinf.ms.persistence.model.core.trace.SourceTrace;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Adding runs to a restored alignment with {@link LCMSProcessing#updateAlignmentIncrementally(AlignmentBackbone)}
+ * has to find the same features as aligning all runs at once. Features that are found again keep their ids and the
+ * project must not contain traces or features that do not belong to the stored alignment anymore.
+ * The synthetic runs contain isotope peaks, noise, retention time shifts and compounds that only occur in the new runs.
+ */
+public class IncrementalAlignmentTest {
+
+    private static final int PREVIOUS_RUNS = 3, NEW_RUNS = 2, NUMBER_OF_SCANS = 300, NUMBER_OF_COMPOUNDS = 40, ONLY_IN_NEW_RUNS = 5;
+    private static final double SCAN_INTERVAL = 2d, PPM = 10d, RT_TOLERANCE = 10d;
+
+    @TempDir
+    Path tempDir;
+
+    private record Compound(double mz, double rt, double height, boolean onlyInNewRuns) {
+    }
+
+    private record Peak(double mz, double rt) {
+        private static Peak of(AlignedFeatures feature) {
+            return new Peak(feature.getAverageMass(), feature.getRetentionTime().getMiddleTime());
+        }
+    }
+
+    @Test
+    public void testIncrementalAlignmentFindsSameFeatures() throws IOException {
+        final List<Compound> compounds = makeCompounds(new Random(42));
+        final List<Path> previousFiles = new ArrayList<>(), newFiles = new ArrayList<>();
+        for (int run = 0; run < PREVIOUS_RUNS + NEW_RUNS; ++run) {
+            final Path file = tempDir.resolve("run_" + run + ".mzML");
+            writeRun(file, compounds, run >= PREVIOUS_RUNS, new Random(run));
+            (run < PREVIOUS_RUNS ? previousFiles : newFiles).add(file);
+        }
+        final List<Path> allFiles = Stream.concat(previousFiles.stream(), newFiles.stream()).toList();
+
+        // all runs at once
+        final InMemoryDatabase full = new InMemoryDatabase();
+        {
+            final LCMSProcessing processing = new LCMSProcessing(full, false, new AlignmentWorkspace(tempDir.resolve("full")));
+            try {
+                processing.processSamples(allFiles, false, Chromatography.LC, null);
+                final AlignmentBackbone backbone = processing.align();
+                final ProcessedSample merged = processing.merge(backbone);
+                assertTrue(processing.extractFeaturesAndExportToProjectSpace(merged, backbone) > 0);
+            } finally {
+                processing.closeStorages();
+            }
+        }
+
+        // previous runs first, new runs are added to the restored alignment
+        final InMemoryDatabase incremental = new InMemoryDatabase();
+        final Path workspace = tempDir.resolve("incremental");
+        {
+            final LCMSProcessing processing = new LCMSProcessing(incremental, false, new AlignmentWorkspace(workspace));
+            try {
+                processing.processSamples(previousFiles, false, Chromatography.LC, null);
+                final AlignmentBackbone backbone = processing.align();
+                final ProcessedSample merged = processing.merge(backbone);
+                assertTrue(processing.extractFeaturesAndExportToProjectSpace(merged, backbone) > 0);
+            } finally {
+                processing.closeStorages();
+            }
+        }
+        final Set<Long> previousFeatureIds = new HashSet<>(incremental.features.keySet());
+        {
+            final LCMSProcessing processing = new LCMSProcessing(incremental, false, new AlignmentWorkspace(workspace));
+            try {
+                final AlignmentBackbone previous = processing.restoreWorkspace().orElseThrow();
+                assertEquals(PREVIOUS_RUNS, previous.getSamples().length);
+                processing.processSamples(newFiles, false, Chromatography.LC, null);
+                final AlignmentBackbone backbone = processing.updateAlignmentIncrementally(previous);
+                assertEquals(PREVIOUS_RUNS + NEW_RUNS, backbone.getSamples().length);
+
+                // everything in the project belongs to a rectangle of the stored alignment
+                final ProcessedSample merged = processing.getRestoredMerged();
+                final BackboneRecord record = merged.getStorage().getMetadata(BackboneRecord.KEY, BackboneRecord.class).orElseThrow();
+                final LongSet featureIds = new LongOpenHashSet(), mergedTraceIds = new LongOpenHashSet(), sourceTraceIds = new LongOpenHashSet();
+                for (Rect r : merged.getStorage().getMergeStorage().getRectangleMap()) {
+                    final BackboneRecord.ImportedIds ids = record.getImportedIdsOf(r.id);
+                    for (long id : ids.featureIds()) assertTrue(featureIds.add(id), "feature imported for two rectangles");
+                    for (long id : ids.mergedTraceIds()) mergedTraceIds.add(id);
+                    for (long id : ids.sourceTraceIds()) sourceTraceIds.add(id);
+                }
+                assertEquals(featureIds, new LongOpenHashSet(incremental.features.keySet()));
+                assertEquals(mergedTraceIds, new LongOpenHashSet(incremental.mergedTraces.keySet()));
+                assertEquals(sourceTraceIds, new LongOpenHashSet(incremental.sourceTraces.keySet()));
+            } finally {
+                processing.closeStorages();
+            }
+        }
+
+        final List<Peak> expected = full.features.values().stream().map(Peak::of).toList(),
+                actual = incremental.features.values().stream().map(Peak::of).toList();
+        assertTrue(fractionFound(expected, actual) >= 0.85, "features of the full alignment missing in the incremental alignment");
+        assertTrue(fractionFound(actual, expected) >= 0.85, "features of the incremental alignment missing in the full alignment");
+
+        // compounds that only occur in the new runs are found in both alignments
+        final List<Peak> onlyInNewRuns = compounds.stream().filter(Compound::onlyInNewRuns).map(c -> new Peak(c.mz, c.rt)).toList();
+        assertTrue(fractionFound(onlyInNewRuns, expected) >= 0.8);
+        assertTrue(fractionFound(onlyInNewRuns, actual) >= 0.8);
+
+        // features that are found again keep their ids
+        final long kept = previousFeatureIds.stream().filter(incremental.features::containsKey).count();
+        assertTrue(kept >= 0.8 * previousFeatureIds.size(), kept + " of " + previousFeatureIds.size() + " feature ids kept");
+    }
+
+    /**
+     * @return fraction of the given peaks that have a peak with the same m/z and a close apex in the others
+     */
+    private static double fractionFound(List<Peak> peaks, List<Peak> others) {
+        if (peaks.isEmpty()) return 0;
+        int found = 0;
+        for (Peak p : peaks) {
+            final double tolerance = p.mz * PPM * 1e-6;
+            if (others.stream().anyMatch(o -> Math.abs(o.mz - p.mz) <= tolerance && Math.abs(o.rt - p.rt) <= RT_TOLERANCE))
+                ++found;
+        }
+        return ((double) found) / peaks.size();
+    }
+
+    private static List<Compound> makeCompounds(Random random) {
+        final List<Compound> compounds = new ArrayList<>();
+        while (compounds.size() < NUMBER_OF_COMPOUNDS) {
+            final double mz = 150 + random.nextDouble() * 450, rt = 60 + random.nextDouble() * (NUMBER_OF_SCANS * SCAN_INTERVAL - 120);
+            // keep compounds apart, such that features can be matched unambiguously
+            if (compounds.stream().anyMatch(c -> Math.abs(c.mz - mz) < 0.05 && Math.abs(c.rt - rt) < 60)) continue;
+            compounds.add(new Compound(mz, rt, 5e4 + random.nextDouble() * 1e6, compounds.size() >= NUMBER_OF_COMPOUNDS - ONLY_IN_NEW_RUNS));
+        }
+        return compounds;
+    }
+
+    /**
+     * writes a centroided MS1-only mzML file with gaussian peaks, two isotope peaks per compound, a run specific
+     * retention time shift and noise peaks
+     */
+    private static void writeRun(Path file, List<Compound> compounds, boolean newRun, Random random) throws IOException {
+        final double shift = (random.nextDouble() - 0.5) * 6, drift = 1 + (random.nextDouble() - 0.5) * 0.01, scale = 0.7 + random.nextDouble() * 0.6;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("""
+                    <?xml version="1.0" encoding="utf-8"?>
+                    <mzML xmlns="http://psi.hupo.org/ms/mzml" id="%s" version="1.1.0">
+                      <cvList count="2">
+                        <cv id="MS" fullName="Proteomics Standards Initiative Mass Spectrometry Ontology" version="4.1.30" URI="https://raw.githubusercontent.com/HUPO-PSI/psi-ms-CV/master/psi-ms.obo"/>
+                        <cv id="UO" fullName="Unit Ontology" version="09:04:2014" URI="https://raw.githubusercontent.com/bio-ontology-research-group/unit-ontology/master/unit.obo"/>
+                      </cvList>
+                      <fileDescription>
+                        <fileContent>
+                          <cvParam cvRef="MS" accession="MS:1000579" name="MS1 spectrum" value=""/>
+                        </fileContent>
+                      </fileDescription>
+                      <softwareList count="1">
+                        <software id="sirius_test" version="1.0">
+                          <cvParam cvRef="MS" accession="MS:1000799" name="custom unreleased software tool" value="synthetic"/>
+                        </software>
+                      </softwareList>
+                      <instrumentConfigurationList count="1">
+                        <instrumentConfiguration id="IC1">
+                          <componentList count="3">
+                            <source order="1">
+                              <cvParam cvRef="MS" accession="MS:1000073" name="electrospray ionization" value=""/>
+                            </source>
+                            <analyzer order="2">
+                              <cvParam cvRef="MS" accession="MS:1000484" name="orbitrap" value=""/>
+                            </analyzer>
+                            <detector order="3">
+                              <cvParam cvRef="MS" accession="MS:1000624" name="inductive detector" value=""/>
+                            </detector>
+                          </componentList>
+                        </instrumentConfiguration>
+                      </instrumentConfigurationList>
+                      <dataProcessingList count="1">
+                        <dataProcessing id="DP1">
+                          <processingMethod order="0" softwareRef="sirius_test">
+                            <cvParam cvRef="MS" accession="MS:1000035" name="peak picking" value=""/>
+                          </processingMethod>
+                        </dataProcessing>
+                      </dataProcessingList>
+                      <run id="%s" defaultInstrumentConfigurationRef="IC1">
+                        <spectrumList count="%d" defaultDataProcessingRef="DP1">""".formatted(file.getFileName(), file.getFileName(), NUMBER_OF_SCANS));
+            for (int scan = 0; scan < NUMBER_OF_SCANS; ++scan) {
+                final double time = scan * SCAN_INTERVAL;
+                final TreeMap<Double, Double> peaks = new TreeMap<>();
+                for (Compound c : compounds) {
+                    if (c.onlyInNewRuns && !newRun) continue;
+                    final double x = (time - (c.rt * drift + shift)) / 4d, intensity = c.height * scale * Math.exp(-x * x / 2);
+                    if (intensity < 500) continue;
+                    final double[] abundances = {1, 0.25, 0.04};
+                    for (int k = 0; k < abundances.length; ++k) {
+                        if (intensity * abundances[k] < 500) continue;
+                        peaks.put((c.mz + k * 1.00336) * (1 + random.nextGaussian() * 1e-6), intensity * abundances[k] * (1 + random.nextGaussian() * 0.03));
+                    }
+                }
+                for (int k = 0; k < 30; ++k) peaks.put(100 + random.nextDouble() * 600, 200 + random.nextDouble() * 800);
+                out.printf(Locale.US, """
+                              <spectrum index="%d" id="scan=%d" defaultArrayLength="%d">
+                                <cvParam cvRef="MS" accession="MS:1000511" name="ms level" value="1"/>
+                                <cvParam cvRef="MS" accession="MS:1000579" name="MS1 spectrum" value=""/>
+                                <cvParam cvRef="MS" accession="MS:1000130" name="positive scan" value=""/>
+                                <cvParam cvRef="MS" accession="MS:1000127" name="centroid spectrum" value=""/>
+                                <scanList count="1">
+                                  <cvParam cvRef="MS" accession="MS:1000795" name="no combination" value=""/>
+                                  <scan>
+                                    <cvParam cvRef="MS" accession="MS:1000016" name="scan start time" value="%.3f" unitCvRef="UO" unitAccession="UO:0000010" unitName="second"/>
+                                  </scan>
+                                </scanList>
+                                <binaryDataArrayList count="2">
+                            %s
+                            %s
+                                </binaryDataArrayList>
+                              </spectrum>
+                            """, scan, scan + 1, peaks.size(), time,
+                        binaryArray(peaks.keySet(), "MS:1000514", "m/z array"),
+                        binaryArray(peaks.values(), "MS:1000515", "intensity array"));
+            }
+            out.println("""
+                        </spectrumList>
+                      </run>
+                    </mzML>""");
+        }
+    }
+
+    private static String binaryArray(Collection<Double> values, String accession, String name) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.size() * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (double value : values) buffer.putDouble(value);
+        final String encoded = Base64.getEncoder().encodeToString(buffer.array());
+        return """
+                      <binaryDataArray encodedLength="%d">
+                        <cvParam cvRef="MS" accession="MS:1000523" name="64-bit float" value=""/>
+                        <cvParam cvRef="MS" accession="MS:1000576" name="no compression" value=""/>
+                        <cvParam cvRef="MS" accession="%s" name="%s" value=""/>
+                        <binary>%s</binary>
+                      </binaryDataArray>""".formatted(encoded.length(), accession, name, encoded);
+    }
+
+    /**
+     * keeps runs, traces and features in memory and assigns ids like the project database
+     */
+    private static class InMemoryDatabase implements SiriusDatabaseAdapter {
+        private final AtomicLong ids = new AtomicLong(1);
+        private final Map<Long, LCMSRun> runs = Collections.synchronizedMap(new HashMap<>());
+        private final Map<Long, MergedLCMSRun> mergedRuns = Collections.synchronizedMap(new HashMap<>());
+        private final Map<Long, RetentionTimeAxis> axes = Collections.synchronizedMap(new HashMap<>());
+        private final Map<Long, MergedTrace> mergedTraces = Collections.synchronizedMap(new HashMap<>());
+        private final Map<Long, SourceTrace> sourceTraces = Collections.synchronizedMap(new HashMap<>());
+        private final Map<Long, AlignedFeatures> features = Collections.synchronizedMap(new HashMap<>());
+
+        @Override
+        public void importRun(LCMSRun run) {
+            run.setRunId(ids.getAndIncrement());
+            runs.put(run.getRunId(), run);
+            run.getRetentionTimeAxis().ifPresent(axis -> axes.put(axis.getRunId(), axis));
+        }
+
+        @Override
+        public void updateRun(LCMSRun run) {
+            runs.put(run.getRunId(), run);
+            run.getRetentionTimeAxis().ifPresent(axis -> axes.put(axis.getRunId(), axis));
+        }
+
+        @Override
+        public void importMergedRun(MergedLCMSRun mergedRun) {
+            mergedRun.setRunId(ids.getAndIncrement());
+            mergedRuns.put(mergedRun.getRunId(), mergedRun);
+        }
+
+        @Override
+        public void updateMergedRun(MergedLCMSRun mergedRun) {
+            mergedRuns.put(mergedRun.getRunId(), mergedRun);
+        }
+
+        @Override
+        public void removeMergedRun(MergedLCMSRun run) {
+            for (long id : run.getRunIds()) runs.remove(id);
+            mergedRuns.remove(run.getRunId());
+        }
+
+        @Override
+        public void importScan(Scan scan) {
+            // raw scans are not imported in this test
+        }
+
+        @Override
+        public void importMSMSScan(MSMSScan scan) {
+            // raw scans are not imported in this test
+        }
+
+        @Override
+        public void importTrace(AbstractTrace trace) {
+            if (trace instanceof MergedTrace merged) {
+                merged.setMergedTraceId(ids.getAndIncrement());
+                mergedTraces.put(merged.getMergedTraceId(), merged);
+            } else if (trace instanceof SourceTrace source) {
+                source.setSourceTraceId(ids.getAndIncrement());
+                sourceTraces.put(source.getSourceTraceId(), source);
+            }
+        }
+
+        @Override
+        public void removeSourceTrace(long id) {
+            sourceTraces.remove(id);
+        }
+
+        @Override
+        public void removeMergedTrace(long id) {
+            mergedTraces.remove(id);
+        }
+
+        @Override
+        public boolean importAlignedFeature(AlignedFeatures alignedFeatures) {
+            if (Math.abs(alignedFeatures.getCharge()) > 1) return false;
+            if (alignedFeatures.getCharge() == 0) throw new IllegalArgumentException("Charge cannot be zero!");
+            // like the document database, a preset id is kept
+            if (alignedFeatures.getAlignedFeatureId() == 0) alignedFeatures.setAlignedFeatureId(ids.getAndIncrement());
+            assertNull(features.put(alignedFeatures.getAlignedFeatureId(), alignedFeatures), "feature id is already in use");
+            return true;
+        }
+
+        @Override
+        public void removeAlignedFeatures(long[] alignedFeatureIds) {
+            for (long id : alignedFeatureIds) features.remove(id);
+        }
+
+        @Override
+        public List<AlignedFeatures> getAlignedFeatures(long[] alignedFeatureIds) {
+            final List<AlignedFeatures> found = new ArrayList<>();
+            for (long id : alignedFeatureIds) {
+                final AlignedFeatures f = features.get(id);
+                if (f != null) found.add(f);
+            }
+            return found;
+        }
+
+        @Override
+        public void importRetentionTimeAxis(RetentionTimeAxis axis, boolean update) {
+            axes.put(axis.getRunId(), axis);
+        }
+
+        @Override
+        public Stream<AlignedFeatures> getImportedFeatureStream(long runId) {
+            synchronized (features) {
+                return features.values().stream().filter(f -> f.getRunId() != null && f.getRunId() == runId).toList().stream();
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import de.unijena.bioinf.lcms.ScanPointMapping;
+import de.unijena.bioinf.lcms.trace.ContiguousTrace;
+import de.unijena.bioinf.lcms.trace.MappedTraceStorage;
+import de.unijena.bioinf.lcms.trace.TraceStorage;
+import org.h2.mvstore.MVStore;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runtime of trace lookups in the MVStore trace storage compared with {@link MappedTraceStorage}.
+ * <p>
+ * Usage: MappedTraceStorageBenchmark [number of traces] [number of lookups]
+ */
+public class MappedTraceStorageBenchmark {
+
+    private static final int NUMBER_OF_SCANS = 2000;
+
+    public static void main(String[] args) throws IOException {
+        final int numberOfTraces = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int numberOfLookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        final ScanPointMapping mapping = MappedTraceStorageTest.makeMapping(NUMBER_OF_SCANS);
+        final List<ContiguousTrace> traces = MappedTraceStorageTest.makeTraces(mapping, numberOfTraces, 42);
+
+        final MVStore mvStore = new MVStore.Builder().open();
+        try (MappedTraceStorage mappedStorage = new MappedTraceStorage(null, mapping)) {
+            final TraceStorage mvStorage = new TraceStorage.MvTraceStorage(mvStore, mapping);
+            for (ContiguousTrace t : traces) mvStorage.addContigousTrace(t);
+            for (ContiguousTrace t : traces) mappedStorage.addContigousTrace(t);
+            for (int repeat = 0; repeat < 3; ++repeat) {
+                measureLookups("MVStore", mvStorage, numberOfLookups);
+                measureLookups("mapped", mappedStorage, numberOfLookups);
+            }
+        } finally {
+            mvStore.close();
+        }
+    }
+
+    private static void measureLookups(String name, TraceStorage storage, int numberOfLookups) {
+        final Random random = new Random(13);
+        final long time = System.nanoTime();
+        double sum = 0d;
+        for (int k = 0; k < numberOfLookups; ++k) {
+            final double from = 100 + random.nextDouble() * 900;
+            final int scan = random.nextInt(NUMBER_OF_SCANS);
+            for (ContiguousTrace t : storage.getContigousTraces(from, from + 0.5, scan, scan + 20)) {
+                sum += t.apexIntensity();
+            }
+        }
+        System.out.printf("%-10s %10.1f us/lookup (checksum %.1f)%n", name, (System.nanoTime() - time) / 1000d / numberOfLookups, sum);
+    }
+}
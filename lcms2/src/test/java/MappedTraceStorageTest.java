@@ -0,0 +1,140 @@
+import de.unijena.bioinf.lcms.ScanPointMapping;
+import de.unijena.bioinf.lcms.trace.ContiguousTrace;
+import de.unijena.bioinf.lcms.trace.MappedTraceStorage;
+import de.unijena.bioinf.lcms.trace.TraceStorage;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedTraceStorageTest {
+
+    private static final int NUMBER_OF_SCANS = 2000, NUMBER_OF_TRACES = 20000;
+
+    private ScanPointMapping mapping;
+    private List<ContiguousTrace> traces;
+    private MVStore mvStore;
+    private TraceStorage mvStorage;
+    private MappedTraceStorage mappedStorage;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        mapping = makeMapping(NUMBER_OF_SCANS);
+        traces = makeTraces(mapping, NUMBER_OF_TRACES, 42);
+        mvStore = new MVStore.Builder().open();
+        mvStorage = new TraceStorage.MvTraceStorage(mvStore, mapping);
+        mappedStorage = new MappedTraceStorage(null, mapping);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        mappedStorage.close();
+        mvStore.close();
+    }
+
+    @Test
+    public void testSameTracesAsMvStorage() {
+        for (ContiguousTrace t : traces) {
+            final ContiguousTrace a = mvStorage.addContigousTrace(t), b = mappedStorage.addContigousTrace(t);
+            assertEquals(a.getUid(), b.getUid());
+        }
+        assertEquals(mvStorage.numberOfTraces(), mappedStorage.numberOfTraces());
+        for (ContiguousTrace a : mvStorage) {
+            assertSameTrace(a, mappedStorage.getContigousTrace(a.getUid()));
+        }
+
+        final Random random = new Random(7);
+        for (int k = 0; k < 200; ++k) {
+            final double from = 100 + random.nextDouble() * 900, to = from + 0.01;
+            final int scanFrom = random.nextInt(NUMBER_OF_SCANS), scanTo = scanFrom + random.nextInt(100);
+            assertEquals(uids(mvStorage.getContigousTraces(from, to, scanFrom, scanTo)), uids(mappedStorage.getContigousTraces(from, to, scanFrom, scanTo)));
+            assertEquals(uids(mvStorage.getContigousTracesByMass(from, to)), uids(mappedStorage.getContigousTracesByMass(from, to)));
+        }
+
+        // single trace lookup returns a trace within the window
+        final ContiguousTrace t = traces.get(0);
+        final Optional<ContiguousTrace> found = mappedStorage.getContigousTrace(t.averagedMz() - 0.001, t.averagedMz() + 0.001, t.apex());
+        assertTrue(found.isPresent());
+        assertTrue(Math.abs(found.get().averagedMz() - t.averagedMz()) <= 0.001);
+
+        mvStorage.deleteTrace(3);
+        mappedStorage.deleteTrace(3);
+        assertNull(mappedStorage.getContigousTrace(3));
+        assertEquals(mvStorage.numberOfTraces(), mappedStorage.numberOfTraces());
+    }
+
+    @Test
+    public void testSameLookupResults() {
+        for (ContiguousTrace t : traces) mvStorage.addContigousTrace(t);
+        for (ContiguousTrace t : traces) mappedStorage.addContigousTrace(t);
+        // wide windows that return many traces, each of them has to be decoded identically
+        final Random random = new Random(13);
+        for (int k = 0; k < 500; ++k) {
+            final double from = 100 + random.nextDouble() * 900;
+            final int scan = random.nextInt(NUMBER_OF_SCANS);
+            final Map<Integer, ContiguousTrace> expected = byUid(mvStorage.getContigousTraces(from, from + 0.5, scan, scan + 20));
+            final Map<Integer, ContiguousTrace> actual = byUid(mappedStorage.getContigousTraces(from, from + 0.5, scan, scan + 20));
+            assertEquals(expected.keySet(), actual.keySet());
+            for (ContiguousTrace t : expected.values())
+                assertSameTrace(t, actual.get(t.getUid()));
+        }
+    }
+
+    static ScanPointMapping makeMapping(int numberOfScans) {
+        final double[] retentionTimes = new double[numberOfScans];
+        final int[] scanIds = new int[numberOfScans];
+        for (int i = 0; i < numberOfScans; ++i) {
+            retentionTimes[i] = 0.5 * i;
+            scanIds[i] = i;
+        }
+        return new ScanPointMapping(retentionTimes, scanIds, null);
+    }
+
+    static List<ContiguousTrace> makeTraces(ScanPointMapping mapping, int numberOfTraces, long seed) {
+        final Random random = new Random(seed);
+        final List<ContiguousTrace> traces = new ArrayList<>();
+        for (int k = 0; k < numberOfTraces; ++k) {
+            final int length = 5 + random.nextInt(60);
+            final int start = random.nextInt(mapping.length() - length);
+            final double mz = 100 + random.nextDouble() * 900;
+            final double[] mzs = new double[length];
+            final float[] intensities = new float[length];
+            for (int i = 0; i < length; ++i) {
+                mzs[i] = mz + (random.nextDouble() - 0.5) * 0.002;
+                final double x = (i - length / 2d) / (length / 6d);
+                intensities[i] = (float) (1000 * Math.exp(-x * x / 2) + random.nextDouble());
+            }
+            traces.add(new ContiguousTrace(mapping, start, start + length - 1, mzs, intensities));
+        }
+        return traces;
+    }
+
+    private static Map<Integer, ContiguousTrace> byUid(List<ContiguousTrace> traces) {
+        final Map<Integer, ContiguousTrace> map = new HashMap<>();
+        for (ContiguousTrace t : traces) map.put(t.getUid(), t);
+        return map;
+    }
+
+    private static Set<Integer> uids(List<ContiguousTrace> traces) {
+        final Set<Integer> uids = new HashSet<>();
+        for (ContiguousTrace t : traces) uids.add(t.getUid());
+        return uids;
+    }
+
+    private static void assertSameTrace(ContiguousTrace a, ContiguousTrace b) {
+        assertNotNull(b);
+        assertEquals(a.startId(), b.startId());
+        assertEquals(a.endId(), b.endId());
+        assertEquals(a.apex(), b.apex());
+        assertEquals(a.averagedMz(), b.averagedMz());
+        for (int i = a.startId(); i <= a.endId(); ++i) {
+            assertEquals(a.mz(i), b.mz(i));
+            assertEquals(a.intensity(i), b.intensity(i));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import de.unijena.bioinf.ChemistryBase.ms.IsolationWindow;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.lcms.ScanPointMapping;
+import de.unijena.bioinf.lcms.io.LCMSParser;
+import de.unijena.bioinf.lcms.io.MzMLParser;
+import de.unijena.bioinf.lcms.io.MzMLStaxParser;
+import de.unijena.bioinf.lcms.spectrum.Ms2SpectrumHeader;
+import de.unijena.bioinf.lcms.trace.LCMSStorage;
+import de.unijena.bioinf.lcms.trace.ProcessedSample;
+import de.unijena.bioinf.ms.persistence.model.core.run.Chromatography;
+import de.unijena.bioinf.ms.persistence.model.core.run.LCMSRun;
+import de.unijena.bioinf.ms.persistence.model.core.scan.MSMSScan;
+import de.unijena.bioinf.ms.persistence.model.core.scan.Scan;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The streaming {@link MzMLStaxParser} has to import exactly the same scans as the jmzml based {@link MzMLParser}.
+ * The test file mixes 32/64 bit arrays, zlib compressed and uncompressed arrays, minutes and seconds as time unit,
+ * an additional time array, a profile spectrum (skipped), a zero intensity peak and MS/MS spectra with and without
+ * isolation window.
+ */
+public class MzMLParserComparisonTest {
+
+    private static class Imported {
+        private final List<LCMSRun> runs = new ArrayList<>();
+        private final List<Scan> scans = new ArrayList<>();
+        private final List<MSMSScan> msmsScans = new ArrayList<>();
+        private ProcessedSample sample;
+    }
+
+    private static Imported parse(LCMSParser parser) throws IOException, URISyntaxException {
+        final Path file = Path.of(MzMLParserComparisonTest.class.getResource("/parser_comparison.mzML").toURI());
+        final Imported imported = new Imported();
+        final long[] ids = new long[1];
+        imported.sample = parser.parse(file, LCMSStorage.temporaryStorage(null),
+                imported.runs::add,
+                imported.runs::add,
+                scan -> {
+                    scan.setScanId(++ids[0]);
+                    imported.scans.add(scan);
+                },
+                scan -> {
+                    scan.setScanId(++ids[0]);
+                    imported.msmsScans.add(scan);
+                },
+                LCMSRun.builder().chromatography(Chromatography.LC).build());
+        return imported;
+    }
+
+    @Test
+    public void testSameScans() throws IOException, URISyntaxException {
+        final Imported expected = parse(new MzMLParser());
+        for (MzMLStaxParser parser : List.of(new MzMLStaxParser(false), new MzMLStaxParser(true))) {
+            final Imported actual = parse(parser);
+
+            // run information
+            final LCMSRun expectedRun = expected.runs.getLast(), actualRun = actual.runs.getLast();
+            assertEquals(expectedRun.getName(), actualRun.getName());
+            assertEquals(expectedRun.getIonization(), actualRun.getIonization());
+            assertEquals(expectedRun.getMassAnalyzers(), actualRun.getMassAnalyzers());
+            assertEquals(expectedRun.getFragmentation(), actualRun.getFragmentation());
+            assertEquals(expected.sample.getPolarity(), actual.sample.getPolarity());
+
+            // MS1 scans: profile spectrum is skipped, zero intensity peak is removed
+            assertEquals(3, expected.scans.size());
+            assertEquals(expected.scans.size(), actual.scans.size());
+            for (int i = 0; i < expected.scans.size(); ++i) {
+                final Scan e = expected.scans.get(i), a = actual.scans.get(i);
+                assertEquals(e.getSourceScanId(), a.getSourceScanId());
+                assertEquals(e.getScanTime(), a.getScanTime(), 1e-9);
+                assertSamePeaks(e.getPeaks(), a.getPeaks());
+            }
+
+            // MS/MS scans
+            assertEquals(2, expected.msmsScans.size());
+            assertEquals(expected.msmsScans.size(), actual.msmsScans.size());
+            for (int i = 0; i < expected.msmsScans.size(); ++i) {
+                final MSMSScan e = expected.msmsScans.get(i), a = actual.msmsScans.get(i);
+                assertEquals(e.getSourceScanId(), a.getSourceScanId());
+                assertEquals(e.getScanTime(), a.getScanTime(), 1e-9);
+                assertEquals(e.getMsLevel(), a.getMsLevel());
+                assertEquals(e.getMzOfInterest(), a.getMzOfInterest(), 1e-9);
+                assertEquals(e.getPrecursorScanId(), a.getPrecursorScanId());
+                assertEquals(e.getCollisionEnergy(), a.getCollisionEnergy());
+                assertSameWindow(e.getIsolationWindow(), a.getIsolationWindow());
+                assertSamePeaks(e.getPeaks(), a.getPeaks());
+            }
+
+            // scan point mapping and spectrum storage of the processed sample
+            final ScanPointMapping em = expected.sample.getMapping(), am = actual.sample.getMapping();
+            assertArrayEquals(em.getRetentionTimeArray(), am.getRetentionTimeArray(), 1e-9);
+            assertArrayEquals(em.getScanIdArray(), am.getScanIdArray());
+            assertArrayEquals(em.getScanIdentifiersArray(), am.getScanIdentifiersArray());
+            for (int i = 0; i < em.length(); ++i)
+                assertSamePeaks(expected.sample.getStorage().getSpectrumStorage().getSpectrum(i), actual.sample.getStorage().getSpectrumStorage().getSpectrum(i));
+
+            final List<Ms2SpectrumHeader> eh = ms2Headers(expected.sample), ah = ms2Headers(actual.sample);
+            assertEquals(eh.size(), ah.size());
+            for (int i = 0; i < eh.size(); ++i) {
+                assertEquals(eh.get(i).getScanId(), ah.get(i).getScanId());
+                assertEquals(eh.get(i).getParentId(), ah.get(i).getParentId());
+                assertEquals(eh.get(i).getMsLevel(), ah.get(i).getMsLevel());
+                assertEquals(eh.get(i).getPrecursorMz(), ah.get(i).getPrecursorMz(), 1e-9);
+                assertEquals(eh.get(i).getRetentionTime(), ah.get(i).getRetentionTime(), 1e-9);
+                assertSamePeaks(expected.sample.getStorage().getSpectrumStorage().getMs2Spectrum(eh.get(i).getUid()),
+                        actual.sample.getStorage().getSpectrumStorage().getMs2Spectrum(ah.get(i).getUid()));
+            }
+        }
+    }
+
+    private static List<Ms2SpectrumHeader> ms2Headers(ProcessedSample sample) {
+        final List<Ms2SpectrumHeader> headers = new ArrayList<>();
+        sample.getStorage().getSpectrumStorage().ms2SpectraHeader().forEach(headers::add);
+        headers.sort(Comparator.comparingInt(Ms2SpectrumHeader::getScanId));
+        return headers;
+    }
+
+    private static void assertSameWindow(IsolationWindow expected, IsolationWindow actual) {
+        assertEquals(expected.getWindowOffset(), actual.getWindowOffset(), 1e-9);
+        assertEquals(expected.getWindowWidth(), actual.getWindowWidth(), 1e-9);
+    }
+
+    private static void assertSamePeaks(SimpleSpectrum expected, SimpleSpectrum actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.getMzAt(i), actual.getMzAt(i), 0d);
+            assertEquals(expected.getIntensityAt(i), actual.getIntensityAt(i), 0d);
+        }
+    }
+}
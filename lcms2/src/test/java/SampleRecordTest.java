@@ -0,0 +1,94 @@
+import de.unijena.bioinf.lcms.ScanPointMapping;
+import de.unijena.bioinf.lcms.align.RecalibrationFunction;
+import de.unijena.bioinf.lcms.trace.LCMSStorage;
+import de.unijena.bioinf.lcms.trace.ProcessedSample;
+import de.unijena.bioinf.lcms.trace.SampleRecord;
+import de.unijena.bioinf.ms.persistence.model.core.run.LCMSRun;
+import org.apache.commons.math3.analysis.interpolation.LoessInterpolator;
+import org.apache.commons.math3.analysis.polynomials.PolynomialFunction;
+import org.apache.commons.math3.analysis.polynomials.PolynomialSplineFunction;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A sample stored with {@link SampleRecord#store(ProcessedSample)} has to be restored with the same run, mapping,
+ * normalization and recalibrations after its storage was closed and reopened.
+ */
+public class SampleRecordTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testLoessRecalibrationRoundTrip() throws IOException {
+        final Random random = new Random(7);
+        final double[] xs = new double[200], ys = new double[200];
+        for (int i = 0; i < xs.length; ++i) {
+            xs[i] = 10 + i * 2.5;
+            ys[i] = xs[i] + 3 * Math.sin(xs[i] / 60d) + random.nextGaussian() * 0.2;
+        }
+        final PolynomialSplineFunction loess = new LoessInterpolator(0.3, 2).interpolate(xs, ys);
+        final RecalibrationFunction rt = RecalibrationFunction.loess(loess, new PolynomialFunction(new double[]{1.5, 0.99}));
+        final RecalibrationFunction mz = RecalibrationFunction.linear(new PolynomialFunction(new double[]{0.001, 1.000002}));
+
+        final File file = tempDir.resolve("sample.mvstore").toFile();
+        final double[] retentionTimes = new double[50];
+        final int[] scanIds = new int[50];
+        for (int i = 0; i < retentionTimes.length; ++i) {
+            retentionTimes[i] = i * 10.5;
+            scanIds[i] = 100 + i;
+        }
+        {
+            final LCMSStorage storage = LCMSStorage.persistentStorage(file).createNewStorage();
+            final ScanPointMapping mapping = new ScanPointMapping(retentionTimes, scanIds, null);
+            storage.setMapping(mapping);
+            final ProcessedSample sample = new ProcessedSample(mapping, storage, -1, 4);
+            sample.setRun(LCMSRun.builder().runId(17L).name("run17").build());
+            sample.setNormalizer(intensity -> intensity * 2.5);
+            sample.setRtRecalibration(rt);
+            sample.setMzRecalibration(mz);
+            SampleRecord.store(sample);
+            storage.close();
+        }
+
+        final LCMSStorage storage = LCMSStorage.persistentStorage(file).createNewStorage();
+        try {
+            final ProcessedSample restored = SampleRecord.restore(storage).orElseThrow();
+            assertEquals(4, restored.getUid());
+            assertEquals(-1, restored.getPolarity());
+            assertEquals(17L, restored.getRun().getRunId());
+            assertEquals("run17", restored.getRun().getName());
+            assertEquals(5d, restored.getNormalizer().normalize(2d), 1e-12);
+            assertArrayEquals(retentionTimes, restored.getMapping().getRetentionTimeArray(), 0d);
+            assertArrayEquals(scanIds, restored.getMapping().getScanIdArray());
+
+            assertArrayEquals(loess.getKnots(), restored.getRtRecalibration().getLoessKnots(), 0d);
+            assertNull(restored.getMzRecalibration().getLoessKnots());
+            // inside the loess domain, outside of it (linear backup) and on the knots
+            for (double x = 0; x < 600; x += 0.7) {
+                assertEquals(rt.value(x), restored.getRtRecalibration().value(x), 1e-12);
+            }
+            for (double x : xs) assertEquals(rt.value(x), restored.getRtRecalibration().value(x), 1e-12);
+            for (double x = 100; x < 1000; x += 13.3) {
+                assertEquals(mz.value(x), restored.getMzRecalibration().value(x), 1e-12);
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void testIdentityRecalibration() {
+        final RecalibrationFunction identity = RecalibrationFunction.identity();
+        final RecalibrationFunction restored = RecalibrationFunction.fromCoefficients(identity.getPolynomialCoefficients(), identity.getLoessKnots(), identity.getLoessCoefficients());
+        for (double x = -10; x < 1000; x += 17.1) assertEquals(x, restored.value(x), 1e-12);
+    }
+
+}
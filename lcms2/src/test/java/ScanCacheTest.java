@@ -0,0 +1,79 @@
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.lcms.spectrum.ScanCache;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScanCacheTest {
+
+    private static SimpleSpectrum spectrum(int peaks) {
+        final double[] mz = new double[peaks], intensities = new double[peaks];
+        for (int i = 0; i < peaks; ++i) {
+            mz[i] = 100 + i;
+            intensities[i] = 1000 - i;
+        }
+        return new SimpleSpectrum(mz, intensities);
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        final ScanCache cache = new ScanCache(1024 * 1024);
+        final AtomicInteger loads = new AtomicInteger();
+        for (int repeat = 0; repeat < 3; ++repeat) {
+            for (int scan = 0; scan < 10; ++scan) {
+                final SimpleSpectrum s = cache.get(1, 1, scan, () -> {
+                    loads.incrementAndGet();
+                    return spectrum(10);
+                });
+                assertEquals(10, s.size());
+            }
+        }
+        assertEquals(10, loads.get());
+        assertEquals(10, cache.getMisses());
+        assertEquals(20, cache.getHits());
+    }
+
+    @Test
+    public void testEvictionRespectsBudget() {
+        final ScanCache cache = new ScanCache(10_000);
+        for (int scan = 0; scan < 100; ++scan) {
+            cache.get(1, 1, scan, () -> spectrum(50));
+            assertTrue(cache.getSizeInBytes() <= cache.getMaximumSizeInBytes());
+        }
+        assertTrue(cache.getEvictions() > 0);
+        // the most recently used scan is still cached, the first one is evicted
+        final AtomicInteger loads = new AtomicInteger();
+        cache.get(1, 1, 99, () -> {
+            loads.incrementAndGet();
+            return spectrum(50);
+        });
+        assertEquals(0, loads.get());
+        cache.get(1, 1, 0, () -> {
+            loads.incrementAndGet();
+            return spectrum(50);
+        });
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testInvalidateStorage() {
+        final ScanCache cache = new ScanCache(1024 * 1024);
+        cache.get(1, 1, 5, () -> spectrum(10));
+        cache.get(2, 1, 5, () -> spectrum(10));
+        cache.get(1, 2, 5, () -> spectrum(10));
+        cache.invalidate(1);
+        final AtomicInteger loads = new AtomicInteger();
+        cache.get(2, 1, 5, () -> {
+            loads.incrementAndGet();
+            return spectrum(10);
+        });
+        assertEquals(0, loads.get());
+        cache.get(1, 2, 5, () -> {
+            loads.incrementAndGet();
+            return spectrum(10);
+        });
+        assertEquals(1, loads.get());
+    }
+}
@@ -0,0 +1,179 @@
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.lcms.LCMSStorageFactory;
+import de.unijena.bioinf.lcms.ScanPointMapping;
+import de.unijena.bioinf.lcms.spectrum.Ms1SpectrumHeader;
+import de.unijena.bioinf.lcms.statistics.SampleStats;
+import de.unijena.bioinf.lcms.trace.ContiguousTrace;
+import de.unijena.bioinf.lcms.trace.LCMSStorage;
+import de.unijena.bioinf.lcms.trace.ProcessedSample;
+import de.unijena.bioinf.lcms.trace.segmentation.PersistentHomology;
+import de.unijena.bioinf.lcms.trace.segmentation.TraceSegment;
+import de.unijena.bioinf.lcms.traceextractor.RectbasedCachingStrategy;
+import de.unijena.bioinf.lcms.traceextractor.StripedTracePicking;
+import de.unijena.bioinf.lcms.traceextractor.TraceDetectionStrategy;
+import de.unijena.bioinf.lcms.traceextractor.TracePicker;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link StripedTracePicking} has to pick exactly the same traces as the sequential {@link TracePicker}, independent
+ * of the number of stripes and threads. The synthetic sample contains isotope peaks, compounds with close masses,
+ * noise and traces whose masses scatter across the stripe borders.
+ */
+public class StripedTracePickingTest {
+
+    private static final int NUMBER_OF_SCANS = 150, NUMBER_OF_COMPOUNDS = 300;
+    private static final Deviation DEVIATION = new Deviation(10);
+    private static final float SEED_INTENSITY = 1000f;
+
+    private final TraceDetectionStrategy detectionStrategy = (sample, callback) -> {
+        for (int scan = 0; scan < sample.getMapping().length(); ++scan) {
+            final SimpleSpectrum spectrum = sample.getStorage().getSpectrumStorage().getSpectrum(scan);
+            for (int peak = 0; peak < spectrum.size(); ++peak) {
+                if (spectrum.getIntensityAt(peak) >= SEED_INTENSITY) callback.extract(sample, scan, peak, spectrum);
+            }
+        }
+    };
+
+    private SimpleSpectrum[] spectra;
+    private LCMSStorageFactory storageFactory;
+    private int originalThreads;
+
+    @BeforeEach
+    public void setUp() {
+        originalThreads = SiriusJobs.getCPUThreads();
+        storageFactory = LCMSStorage.temporaryStorage(null);
+
+        final Random random = new Random(1234);
+        final List<DoubleArrayList> mzs = new ArrayList<>(), intensities = new ArrayList<>();
+        for (int scan = 0; scan < NUMBER_OF_SCANS; ++scan) {
+            mzs.add(new DoubleArrayList());
+            intensities.add(new DoubleArrayList());
+        }
+        final DoubleArrayList compoundMasses = new DoubleArrayList();
+        while (compoundMasses.size() < NUMBER_OF_COMPOUNDS) {
+            // every fifth compound is close to the previous one, but still separated by more than the allowed deviation
+            final double mz = compoundMasses.size() % 5 == 4
+                    ? compoundMasses.getDouble(compoundMasses.size() - 1) * (1 + 40e-6)
+                    : 150 + random.nextDouble() * 750;
+            if (!isSeparated(compoundMasses, mz) || !isSeparated(compoundMasses, mz + 1.00336)) continue;
+            compoundMasses.add(mz);
+            final int apex = 10 + random.nextInt(NUMBER_OF_SCANS - 20);
+            final double width = 1.5 + random.nextDouble() * 4, height = 2000 + random.nextDouble() * 1e6;
+            final boolean isotope = random.nextBoolean();
+            if (isotope) compoundMasses.add(mz + 1.00336);
+            for (int scan = 0; scan < NUMBER_OF_SCANS; ++scan) {
+                final double x = (scan - apex) / width, intensity = height * Math.exp(-x * x / 2);
+                if (intensity < 20) continue;
+                mzs.get(scan).add(mz * (1 + (random.nextDouble() - 0.5) * 6e-6));
+                intensities.get(scan).add(intensity);
+                if (isotope && intensity * 0.3 >= 20) {
+                    mzs.get(scan).add((mz + 1.00336) * (1 + (random.nextDouble() - 0.5) * 6e-6));
+                    intensities.get(scan).add(intensity * 0.3);
+                }
+            }
+        }
+        spectra = new SimpleSpectrum[NUMBER_OF_SCANS];
+        for (int scan = 0; scan < NUMBER_OF_SCANS; ++scan) {
+            // low intensive noise
+            for (int k = 0; k < 50; ++k) {
+                mzs.get(scan).add(150 + random.nextDouble() * 750);
+                intensities.get(scan).add(1 + random.nextDouble() * 10);
+            }
+            spectra[scan] = new SimpleSpectrum(mzs.get(scan).toDoubleArray(), intensities.get(scan).toDoubleArray());
+        }
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        storageFactory.close();
+        SiriusJobs.setGlobalJobManager(originalThreads);
+    }
+
+    @Test
+    public void testSameTracesAsSequentialPicking() throws IOException {
+        final ProcessedSample sequential = createSample();
+        final TracePicker picker = new TracePicker(sequential, new RectbasedCachingStrategy(), new PersistentHomology());
+        picker.setAllowedMassDeviation(DEVIATION);
+        detectionStrategy.findPeaksForExtraction(sequential, (sample, scan, peak, spectrum) -> picker.detectMostIntensivePeak(scan, spectrum.getMzAt(peak)));
+        final List<String> expected = traces(sequential);
+        Collections.sort(expected);
+        assertTrue(expected.size() >= NUMBER_OF_COMPOUNDS);
+        final int[] numberOfSeeds = new int[1];
+        detectionStrategy.findPeaksForExtraction(sequential, (sample, scan, peak, spectrum) -> ++numberOfSeeds[0]);
+
+        for (int stripes : new int[]{1, 2, 7, 64, 1000}) {
+            List<String> firstRun = null;
+            for (int threads : new int[]{1, 3, 8}) {
+                SiriusJobs.setGlobalJobManager(threads);
+                final ProcessedSample sample = createSample();
+                final StripedTracePicking striped = new StripedTracePicking(sample, new RectbasedCachingStrategy(), new PersistentHomology(), DEVIATION);
+                striped.setNumberOfStripes(stripes);
+                final int deferred = striped.pickTraces(detectionStrategy, trace -> {});
+                // both the concurrent and the sequential part have to be tested
+                if (stripes > 1) assertTrue(deferred > 0, "no seed at a stripe border");
+                if (stripes <= 64) assertTrue(deferred < numberOfSeeds[0], "no seed within a stripe");
+
+                final List<String> actual = traces(sample);
+                // same order of traces in the storage for every number of threads
+                if (firstRun == null) firstRun = actual;
+                else assertEquals(firstRun, actual, stripes + " stripes, " + threads + " threads");
+                // same traces as sequential picking
+                final List<String> sorted = new ArrayList<>(actual);
+                Collections.sort(sorted);
+                assertEquals(expected, sorted, stripes + " stripes, " + threads + " threads");
+            }
+        }
+    }
+
+    private static boolean isSeparated(DoubleArrayList masses, double mz) {
+        for (int i = 0; i < masses.size(); ++i) {
+            if (Math.abs(masses.getDouble(i) - mz) < 30e-6 * mz) return false;
+        }
+        return true;
+    }
+
+    private ProcessedSample createSample() throws IOException {
+        final double[] retentionTimes = new double[NUMBER_OF_SCANS];
+        final int[] scanIds = new int[NUMBER_OF_SCANS];
+        for (int i = 0; i < NUMBER_OF_SCANS; ++i) {
+            retentionTimes[i] = 2d * i;
+            scanIds[i] = i;
+        }
+        final ScanPointMapping mapping = new ScanPointMapping(retentionTimes, scanIds, null);
+        final LCMSStorage storage = storageFactory.createNewStorage();
+        for (int i = 0; i < NUMBER_OF_SCANS; ++i)
+            storage.getSpectrumStorage().addSpectrum(new Ms1SpectrumHeader(i, i, null, 1, true), spectra[i]);
+        storage.setMapping(mapping);
+        storage.setStatistics(SampleStats.builder().noiseLevelPerScan(new float[NUMBER_OF_SCANS]).ms2NoiseLevel(0f)
+                .ms1MassDeviationWithinTraces(DEVIATION).minimumMs1MassDeviationBetweenTraces(DEVIATION).expectedPeakWidth(-1).build());
+        return new ProcessedSample(mapping, storage, 1, 0);
+    }
+
+    /**
+     * all traces in the storage of the sample in the order of their ids, each one described by its peaks and segments
+     */
+    private static List<String> traces(ProcessedSample sample) {
+        final List<String> traces = new ArrayList<>();
+        for (ContiguousTrace trace : sample.getStorage().getTraceStorage()) {
+            final StringBuilder buf = new StringBuilder();
+            for (int i = trace.startId(); i <= trace.endId(); ++i)
+                buf.append(i).append(':').append(trace.mz(i)).append(':').append(trace.intensity(i)).append(' ');
+            if (trace.getSegments() != null) {
+                for (TraceSegment s : trace.getSegments())
+                    buf.append('[').append(s.leftEdge).append(',').append(s.apex).append(',').append(s.rightEdge).append(']');
+            }
+            traces.add(buf.toString());
+        }
+        return traces;
+    }
+}
@@ -25,6 +25,7 @@ import de.unijena.bioinf.ChemistryBase.chem.*;
 import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaFilterList;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 import de.unijena.bioinf.MassDecomposer.DecompIterator;
+import de.unijena.bioinf.MassDecomposer.DecompositionBatch;
 import de.unijena.bioinf.MassDecomposer.Interval;
 import de.unijena.bioinf.MassDecomposer.RangeMassDecomposer;
 import de.unijena.bioinf.MassDecomposer.ValencyAlphabet;
@@ -218,6 +219,37 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
         return formulas;
     }
 
+    /**
+     * Decomposes all given measured masses at once, see {@link RangeMassDecomposer#decompose(double[], double[], Map)}.
+     * The masses should be sorted.
+     * @return for each measured mass the list of molecular formulas, as returned by {@link #decomposeToFormulas(double, Ionization, double, FormulaConstraints)}
+     */
+    public List<List<MolecularFormula>> decomposeToFormulas(double[] measuredMasses, Ionization ionization, double[] massTolerances, FormulaConstraints constraints) {
+        final double[] from = new double[measuredMasses.length], to = new double[measuredMasses.length];
+        for (int i = 0; i < measuredMasses.length; ++i) {
+            if (measuredMasses[i] < 0d)
+                throw new IllegalArgumentException("Expect positive mass for decomposition: " + measuredMasses[i]);
+            final double neutralMass = ionization.subtractFromMass(measuredMasses[i]);
+            from[i] = Math.max(0, neutralMass - massTolerances[i]);
+            to[i] = Math.max(0, neutralMass + massTolerances[i]); // nothing to decompose below zero
+        }
+        final FormulaFilter filter = FormulaFilterList.create(constraints.getFilters());
+        final DecompositionBatch decompositions = super.decompose(from, to, getBoundaries(constraints));
+        final List<List<MolecularFormula>> formulasPerMass = new ArrayList<>(measuredMasses.length);
+        final int[] buffer = new int[decompositions.getNumberOfCharacters()];
+        for (int i = 0; i < measuredMasses.length; ++i) {
+            final int n = decompositions.numberOfDecompositions(i);
+            final ArrayList<MolecularFormula> formulas = new ArrayList<MolecularFormula>(n);
+            for (int k = 0; k < n; ++k) {
+                final MolecularFormula formula = alphabet.decompositionToFormula(decompositions.getDecomposition(i, k, buffer));
+                if (filter!=null && !filter.isValid(formula, ionization)) continue;
+                formulas.add(formula);
+            }
+            formulasPerMass.add(formulas);
+        }
+        return formulasPerMass;
+    }
+
     /**
      *
      * @param measuredMass
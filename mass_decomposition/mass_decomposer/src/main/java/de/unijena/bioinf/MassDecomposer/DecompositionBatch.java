@@ -0,0 +1,111 @@
+
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.MassDecomposer;
+
+import java.util.Arrays;
+
+/**
+ * Decompositions of several masses stored in a single flat buffer. The decompositions of mass i are the compomers
+ * with index {@code offsets[i]} (inclusive) to {@code offsets[i+1]} (exclusive), each compomer occupies
+ * {@link #getNumberOfCharacters()} consecutive entries of the buffer. As for {@link MassDecomposer#decompose(double, double, java.util.Map)}
+ * the amounts are ordered by the weights of the characters.
+ */
+public class DecompositionBatch {
+
+    protected final int numberOfCharacters;
+    protected final int[] offsets;
+    protected int[] compomers;
+    protected int size, numberOfClosedMasses;
+
+    protected DecompositionBatch(int numberOfCharacters, int numberOfMasses) {
+        this.numberOfCharacters = numberOfCharacters;
+        this.offsets = new int[numberOfMasses + 1];
+        this.compomers = new int[Math.max(16, numberOfCharacters * numberOfMasses)];
+        this.size = 0;
+        this.numberOfClosedMasses = 0;
+    }
+
+    /**
+     * appends a decomposition to the mass that is currently filled
+     */
+    protected void add(int[] compomer) {
+        if (size + numberOfCharacters > compomers.length)
+            compomers = Arrays.copyOf(compomers, Math.max(compomers.length * 2, size + numberOfCharacters));
+        System.arraycopy(compomer, 0, compomers, size, numberOfCharacters);
+        size += numberOfCharacters;
+    }
+
+    /**
+     * finishes the decompositions of the current mass, all following decompositions belong to the next mass
+     */
+    protected void closeMass() {
+        offsets[++numberOfClosedMasses] = size / numberOfCharacters;
+    }
+
+    public int getNumberOfCharacters() {
+        return numberOfCharacters;
+    }
+
+    public int numberOfMasses() {
+        return offsets.length - 1;
+    }
+
+    public int numberOfDecompositions() {
+        return offsets[offsets.length - 1];
+    }
+
+    public int numberOfDecompositions(int massIndex) {
+        return offsets[massIndex + 1] - offsets[massIndex];
+    }
+
+    /**
+     * @return amount of the given character in the k-th decomposition of the given mass
+     */
+    public int getAmount(int massIndex, int k, int character) {
+        return compomers[(offsets[massIndex] + k) * numberOfCharacters + character];
+    }
+
+    /**
+     * copies the k-th decomposition of the given mass into the given buffer
+     *
+     * @return the buffer
+     */
+    public int[] getDecomposition(int massIndex, int k, int[] buffer) {
+        System.arraycopy(compomers, (offsets[massIndex] + k) * numberOfCharacters, buffer, 0, numberOfCharacters);
+        return buffer;
+    }
+
+    public int[] getDecomposition(int massIndex, int k) {
+        return getDecomposition(massIndex, k, new int[numberOfCharacters]);
+    }
+
+    /**
+     * @return the underlying buffer, decomposition k of mass i starts at {@code (getOffsets()[i] + k) * getNumberOfCharacters()}
+     */
+    public int[] getCompomers() {
+        return compomers;
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+}
@@ -0,0 +1,223 @@
+
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.MassDecomposer;
+
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+
+/**
+ * Directory of extended residue tables (ERTs) that were computed by a {@link RangeMassDecomposer}. A table is
+ * determined by the discretized masses of the alphabet, the precision and the deviation level, so it has to be
+ * computed only once and can be shared by all decomposers, threads and processes using the same directory.
+ * <p>
+ * Tables are written once into a temporary file which is atomically moved into the store. Loading maps the file
+ * read-only. IO errors are never fatal, the decomposer just computes the table itself.
+ * <p>
+ * The store is bounded in size: after storing a table, the least recently used tables are deleted until the store
+ * fits into its maximum size again.
+ */
+public final class ExtendedResidueTableStore {
+
+    /**
+     * directory of the default store. If not set, the store is placed in the SIRIUS workspace
+     */
+    public static final String DIRECTORY_PROPERTY = "de.unijena.bioinf.sirius.decomposer.ertStore";
+
+    /**
+     * maximum size of the default store in megabytes
+     */
+    public static final String MAX_SIZE_PROPERTY = "de.unijena.bioinf.sirius.decomposer.ertStore.maxSize";
+
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    // temporary files of crashed writers are deleted after this time
+    private static final long STALE_TMP_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final int MAGIC = 0x45525431; // "ERT1"
+
+    private static volatile ExtendedResidueTableStore defaultStore;
+
+    private final Path directory;
+    private final long maxSizeInBytes;
+
+    public ExtendedResidueTableStore(Path directory) {
+        this(directory, DEFAULT_MAX_SIZE);
+    }
+
+    public ExtendedResidueTableStore(Path directory, long maxSizeInBytes) {
+        this.directory = directory;
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * @return the store configured via {@link #DIRECTORY_PROPERTY} or the SIRIUS workspace, null if none is configured
+     */
+    public static ExtendedResidueTableStore getDefault() {
+        ExtendedResidueTableStore store = defaultStore;
+        if (store == null) {
+            String dir = PropertyManager.getProperty(DIRECTORY_PROPERTY);
+            if (dir == null || dir.isBlank()) {
+                final String workspace = PropertyManager.getProperty("de.unijena.bioinf.sirius.workspace");
+                if (workspace == null || workspace.isBlank()) return null;
+                dir = Paths.get(workspace).resolve("ert_cache").toString();
+            }
+            final String maxSize = PropertyManager.getProperty(MAX_SIZE_PROPERTY);
+            final long maxSizeInBytes = maxSize == null || maxSize.isBlank() ? DEFAULT_MAX_SIZE : Long.parseLong(maxSize.strip()) * 1024 * 1024;
+            synchronized (ExtendedResidueTableStore.class) {
+                if (defaultStore == null) defaultStore = new ExtendedResidueTableStore(Paths.get(dir), maxSizeInBytes);
+                store = defaultStore;
+            }
+        }
+        return store;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    /**
+     * @param integerMasses discretized masses of the alphabet in the order used by the decomposer
+     * @return the stored table or null if it is not available
+     */
+    public long[][] load(long[] integerMasses, double precision, int level) {
+        final Path file = fileFor(integerMasses, precision, level);
+        if (!Files.isRegularFile(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getDouble() != precision || buffer.getInt() != level) return null;
+            final long[] masses = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(masses);
+            buffer.position(buffer.position() + masses.length * 8);
+            if (!Arrays.equals(masses, integerMasses)) return null;
+            final int rows = buffer.getInt(), columns = buffer.getInt();
+            if (buffer.remaining() != (long) rows * columns * 8) return null;
+            final LongBuffer values = buffer.asLongBuffer();
+            final long[][] ert = new long[rows][columns];
+            for (long[] row : ert) values.get(row);
+            touch(file);
+            return ert;
+        } catch (IOException | RuntimeException e) {
+            LoggerFactory.getLogger(ExtendedResidueTableStore.class).warn("Could not load extended residue table " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void store(long[] integerMasses, double precision, int level, long[][] ert) {
+        final Path file = fileFor(integerMasses, precision, level);
+        if (Files.exists(file)) return;
+        Path tmp = null;
+        try {
+            Files.createDirectories(directory);
+            tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                final ByteBuffer buffer = ByteBuffer.allocate(8 * (ert.length == 0 ? 0 : ert[0].length) + 64);
+                out.writeInt(MAGIC);
+                out.writeDouble(precision);
+                out.writeInt(level);
+                out.writeInt(integerMasses.length);
+                for (long m : integerMasses) out.writeLong(m);
+                out.writeInt(ert.length);
+                out.writeInt(ert.length == 0 ? 0 : ert[0].length);
+                for (long[] row : ert) {
+                    buffer.clear();
+                    buffer.asLongBuffer().put(row);
+                    out.write(buffer.array(), 0, row.length * 8);
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            evict(file);
+        } catch (IOException | RuntimeException e) {
+            LoggerFactory.getLogger(ExtendedResidueTableStore.class).warn("Could not store extended residue table " + file + ": " + e.getMessage());
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * the modification time marks when a table was used last
+     */
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * deletes the least recently used tables until the store fits into its maximum size. The given table is kept.
+     */
+    private void evict(Path keep) throws IOException {
+        final List<Path> tables = new ArrayList<>();
+        final Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path f : files) {
+                final BasicFileAttributes attr = Files.readAttributes(f, BasicFileAttributes.class);
+                final String name = f.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    if (System.currentTimeMillis() - attr.lastModifiedTime().toMillis() > STALE_TMP_MILLIS)
+                        Files.deleteIfExists(f);
+                } else if (name.startsWith("ert-") && name.endsWith(".bin")) {
+                    tables.add(f);
+                    attributes.put(f, attr);
+                    size += attr.size();
+                }
+            }
+        }
+        if (size <= maxSizeInBytes) return;
+        tables.sort(Comparator.comparing(f -> attributes.get(f).lastModifiedTime()));
+        for (Path f : tables) {
+            if (size <= maxSizeInBytes) break;
+            if (f.equals(keep)) continue;
+            if (Files.deleteIfExists(f)) size -= attributes.get(f).size();
+        }
+    }
+
+    private Path fileFor(long[] integerMasses, double precision, int level) {
+        long hash = Double.doubleToLongBits(precision);
+        for (long m : integerMasses) hash = 31 * hash + m;
+        return directory.resolve(String.format("ert-%d-%016x-%d.bin", integerMasses.length, hash, level));
+    }
+}
@@ -21,7 +21,10 @@
 
 package de.unijena.bioinf.MassDecomposer;
 
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Decomposes a given mass over an alphabet, returning all decompositions which mass equals the given mass
@@ -40,12 +43,43 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
      */
     protected volatile long[][][] ERTs;
 
+    /**
+     * ERTs are loaded from and written into this store, if not null
+     */
+    protected ExtendedResidueTableStore ertStore;
+
     /**
      * @param alphabet the alphabet the mass is decomposed over
      */
     public RangeMassDecomposer(Alphabet<T> alphabet) {
+        this(alphabet, ExtendedResidueTableStore.getDefault());
+    }
+
+    /**
+     * @param alphabet the alphabet the mass is decomposed over
+     * @param ertStore persistent store for the ERTs of this alphabet or null
+     */
+    public RangeMassDecomposer(Alphabet<T> alphabet, ExtendedResidueTableStore ertStore) {
         super(alphabet);
         this.ERTs = new long[0][][];
+        this.ertStore = ertStore;
+    }
+
+    public ExtendedResidueTableStore getErtStore() {
+        return ertStore;
+    }
+
+    /**
+     * Has to be set before the decomposer is initialized
+     */
+    public void setErtStore(ExtendedResidueTableStore ertStore) {
+        this.ertStore = ertStore;
+    }
+
+    private long[] integerMasses() {
+        final long[] masses = new long[weights.size()];
+        for (int i = 0; i < masses.length; ++i) masses[i] = weights.get(i).getIntegerMass();
+        return masses;
     }
 
     /**
@@ -173,6 +207,160 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         return results;
     }
 
+    /**
+     * computes all decompositions for each of the given masses, see {@link #decompose(double[], double[], Map)}
+     */
+    public DecompositionBatch decompose(double[] masses, Deviation deviation, Map<T, Interval> boundaries) {
+        final double[] from = new double[masses.length], to = new double[masses.length];
+        for (int i = 0; i < masses.length; ++i) {
+            final double abs = deviation.absoluteFor(masses[i]);
+            from[i] = Math.max(0, masses[i] - abs);
+            to[i] = Math.max(0, masses[i] + abs);
+        }
+        return decompose(from, to, boundaries);
+    }
+
+    /**
+     * computes all decompositions for each of the given mass intervals [from[i], to[i]]. The result is the same as
+     * calling {@link #decompose(double, double, Map)} for every interval, but the boundaries are resolved, the ERTs are
+     * computed and the loop variables are allocated only once. Intervals which overlap in integer mass space are
+     * decomposed in a single traversal. Hence, the intervals should be sorted by mass.
+     * <p>
+     * This function can be called in multiple threads in parallel, because it does not modify the decomposer
+     */
+    public DecompositionBatch decompose(double[] from, double[] to, Map<T, Interval> boundaries) {
+        init();
+        if (from.length != to.length)
+            throw new IllegalArgumentException("Expect the same number of lower and upper bounds: " + from.length + " vs. " + to.length);
+        for (int i = 0; i < from.length; ++i) {
+            if (to[i] < 0d || from[i] < 0d)
+                throw new IllegalArgumentException("Expect positive mass for decomposition: [" + from[i] + ", " + to[i] + "]");
+            if (to[i] < from[i]) throw new IllegalArgumentException("Negative range given: [" + from[i] + ", " + to[i] + "]");
+        }
+        final int n = from.length;
+        final int[] minValues = new int[weights.size()];
+        final int[] boundsarray = new int[weights.size()];
+        final double[] reduceWeightBy = new double[weights.size()];
+        boolean minAllZero = true;
+        Arrays.fill(boundsarray, Integer.MAX_VALUE);
+        if (boundaries != null && !boundaries.isEmpty()) {
+            for (int i = 0; i < boundsarray.length; i++) {
+                T el = weights.get(i).getOwner();
+                Interval range = boundaries.get(el);
+                if (range != null) {
+                    boundsarray[i] = (int) (range.getMax() - range.getMin());
+                    minValues[i] = (int) range.getMin();
+                    if (minValues[i] > 0) {
+                        minAllZero = false;
+                        reduceWeightBy[i] = weights.get(i).getMass() * range.getMin();
+                    }
+                }
+            }
+        }
+        // integer intervals of all masses, grouped into runs of overlapping intervals
+        final long a = weights.get(0).getIntegerMass();
+        final long[] minIntegerMass = new long[n], maxIntegerMass = new long[n];
+        final int[] groupEnd = new int[n];
+        long maxDeviation = 0;
+        for (int i = 0; i < n; ++i) {
+            double cfrom = from[i], cto = to[i];
+            for (int j = 0; j < reduceWeightBy.length; ++j) {
+                if (minValues[j] > 0) {
+                    cfrom -= reduceWeightBy[j];
+                    cto -= reduceWeightBy[j];
+                }
+            }
+            final Interval interval = integerBound(cfrom, cto);
+            minIntegerMass[i] = interval.getMin();
+            maxIntegerMass[i] = interval.getMax();
+        }
+        for (int i = 0; i < n; ) {
+            int end = i + 1;
+            if (to[i] > 0d) {
+                long groupMin = minIntegerMass[i], groupMax = maxIntegerMass[i];
+                while (end < n && to[end] > 0d && minIntegerMass[end] >= groupMin && minIntegerMass[end] <= groupMax + 1
+                        && Math.max(groupMax, maxIntegerMass[end]) - groupMin < a) {
+                    groupMax = Math.max(groupMax, maxIntegerMass[end]);
+                    ++end;
+                }
+                maxDeviation = Math.max(maxDeviation, groupMax - groupMin);
+            }
+            groupEnd[i] = end;
+            i = end;
+        }
+        if (weights.size() > 1 && (1 << (this.ERTs.length - 1)) <= maxDeviation) {
+            calcERT(maxDeviation);
+        }
+
+        final DecompositionBatch batch = new DecompositionBatch(weights.size(), n);
+        final Traversal state = new Traversal(weights.size());
+        final Candidates candidates = new Candidates(weights.size());
+        final boolean shift = !minAllZero;
+        final Consumer<int[]> collect = c -> {
+            final int[] decomp = candidates.append(c);
+            if (shift) {
+                for (int j = 0; j < minValues.length; ++j) {
+                    decomp[j] += minValues[j];
+                }
+            }
+            candidates.setMass(calcMass(decomp));
+        };
+        for (int start = 0; start < n; start = groupEnd[start]) {
+            final int end = groupEnd[start];
+            if (to[start] == 0d) {
+                batch.closeMass();
+                continue;
+            }
+            long groupMin = minIntegerMass[start], groupMax = maxIntegerMass[start];
+            for (int i = start + 1; i < end; ++i) groupMax = Math.max(groupMax, maxIntegerMass[i]);
+            candidates.clear();
+            if (weights.size() == 1) integerDecomposeSingleElement(groupMax, groupMax - groupMin, boundsarray[0]).forEach(collect);
+            else integerDecompose(groupMax, groupMax - groupMin, boundsarray, state, collect);
+            for (int i = start; i < end; ++i) {
+                if (!minAllZero && maxIntegerMass[i] == 0) batch.add(minValues);
+                for (int k = 0; k < candidates.size; ++k) {
+                    final double realMass = candidates.masses[k];
+                    if (realMass >= from[i] && realMass <= to[i]) batch.add(candidates.compomers[k]);
+                }
+                batch.closeMass();
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * decompositions of a group of overlapping intervals together with their masses. The compomer arrays are reused
+     * for the next group.
+     */
+    private static final class Candidates {
+        private final int k;
+        private int[][] compomers = new int[16][];
+        private double[] masses = new double[16];
+        private int size = 0;
+
+        private Candidates(int k) {
+            this.k = k;
+        }
+
+        private void clear() {
+            size = 0;
+        }
+
+        private int[] append(int[] compomer) {
+            if (size == compomers.length) {
+                compomers = Arrays.copyOf(compomers, size * 2);
+                masses = Arrays.copyOf(masses, size * 2);
+            }
+            if (compomers[size] == null) compomers[size] = new int[k];
+            System.arraycopy(compomer, 0, compomers[size], 0, k);
+            return compomers[size++];
+        }
+
+        private void setMass(double mass) {
+            masses[size - 1] = mass;
+        }
+    }
+
     /**
      * Iterator implementation of the loop
      * We do not use static classes. This gives us the possibility to make some of the variables behave thread safe
@@ -373,46 +561,37 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         if ((1 << (_ERTs_.length - 1)) <= deviation) {
             calcERT(deviation);
         }
-        final long[][][] ERTs = this.ERTs;
-
-        {
-            long largest = 0;
-            for (long[][] t : ERTs) {
-                for (long[] r : t) {
-                    for (long v : r) {
-                        if (v < Long.MAX_VALUE) {
-                            largest = Math.max(largest, v);
-                        }
-                    }
-                }
-            }
-        }
+        final ArrayList<int[]> result = new ArrayList<int[]>();
+        integerDecompose(mass, deviation, bounds, new Traversal(weights.size()), c -> result.add(c.clone()));
+        return result;
+    } // end function
 
+    /**
+     * enumerates all decompositions of the integer masses mass-deviation to mass. The ERT for the given deviation has
+     * to be computed before. The found compomers are passed to the consumer, which must not keep a reference to them.
+     */
+    private void integerDecompose(long mass, long deviation, int[] bounds, Traversal state, Consumer<int[]> consumer) {
+        final long[][][] ERTs = this.ERTs;
         //take ERT with required deviation
         long[][] currentERT;
         if (deviation == 0) currentERT = ERTs[0];
         else currentERT = ERTs[64 - Long.numberOfLeadingZeros(deviation)];
         long ERTdev = Long.highestOneBit(deviation);
-        ArrayList<int[]> result = new ArrayList<int[]>();
 
         int k = weights.size();
-        int[] c = new int[k], deepCopy;
-        long[] m = new long[k], lbound = new long[k];
-        int[] j = new int[k], r = new int[k];
+        final int[] c = state.c, j = state.j, r = state.r;
+        final long[] m = state.m, lbound = state.lbound;
+        state.reset();
         boolean flagWhile = false; // flag wether we are in the while-loop or not
         final long a = weights.get(0).getIntegerMass();
-        // Init
-        for (int i = 1; i < k; ++i) {
-            lbound[i] = Long.MAX_VALUE; // this is just to ensure, that lbound < m in the first iteration
-        }
 
         int i = k - 1;
         m[i] = mass; // m[i] corresponds to M, m[i-1] ^= m
         while (i != k) {
             if (i == 0) {
-                deepCopy = c.clone();
-                deepCopy[0] = (int) (m[i] / a);
-                if (deepCopy[0] <= bounds[0]) result.add(deepCopy);
+                // c[0] is never read by the traversal, so the compomer can be completed in place
+                c[0] = (int) (m[i] / a);
+                if (c[0] <= bounds[0]) consumer.accept(c);
                 ++i; // "return" from recursion
                 flagWhile = true; // in this recursion-depth we are in the while-loop, cause the next recursion (the one we just exited) was called
                 m[i - 1] -= weights.get(i).getLcm(); // execute the rest of the while
@@ -450,9 +629,29 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
                 }
             } // end if i == 0
         } // end while
+    }
 
-        return result;
-    } // end function
+    /**
+     * loop variables of {@link #integerDecompose(long, long, int[])}, allocated once per batch
+     */
+    private static final class Traversal {
+        private final int[] c, j, r;
+        private final long[] m, lbound;
+
+        private Traversal(int k) {
+            this.c = new int[k];
+            this.j = new int[k];
+            this.r = new int[k];
+            this.m = new long[k];
+            this.lbound = new long[k];
+        }
+
+        private void reset() {
+            Arrays.fill(c, 0);
+            Arrays.fill(j, 0);
+            Arrays.fill(lbound, Long.MAX_VALUE); // this is just to ensure, that lbound < m in the first iteration
+        }
+    }
 
     private ArrayList<int[]> integerDecomposeSingleElement(long mass, long deviation, int bound) {
         ArrayList<int[]> result = new ArrayList<>();
@@ -493,7 +692,33 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         // we have to extend the ERT table
 
         long[][] lastERT = ERTs[ERTs.length - 1];
-        long[][] nextERT = new long[lastERT.length][weights.size()];
+        long[][] nextERT = ertStore == null ? null : ertStore.load(integerMasses(), precision, currentLength);
+        if (nextERT == null) {
+            nextERT = extendERT(lastERT, currentLength);
+            if (ertStore != null) ertStore.store(integerMasses(), precision, currentLength, nextERT);
+        }
+
+        // now store newly calculated ERT
+        synchronized (this) {
+            final long[][][] tables = this.ERTs;
+            if (tables.length == currentLength) {
+                final long[][][] __tmp__ = Arrays.copyOf(this.ERTs, this.ERTs.length + 1);
+                __tmp__[__tmp__.length - 1] = nextERT;
+                this.ERTs = __tmp__;
+            } else {
+                // another background thread did already compute the ERT. So we don't have to do this again
+            }
+        }
+        // recursively calculate ERTs for higher deviations
+        // current ERT is already sufficient
+        if ((1 << (currentLength - 1)) <= deviation) calcERT(deviation);
+    }
+
+    /**
+     * computes the ERT for the next deviation level from the ERT of the previous level
+     */
+    private long[][] extendERT(long[][] lastERT, int currentLength) {
+        final long[][] nextERT = new long[lastERT.length][weights.size()];
         if (currentLength == 1) {
             //first line compares biggest residue and 0
             for (int j = 0; j < weights.size(); j++) {
@@ -518,25 +743,25 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
                 }
             }
         }
+        return nextERT;
+    }
 
-        // now store newly calculated ERT
+    @Override
+    protected void calcERT() {
+        long[][] ERT = ertStore == null ? null : ertStore.load(integerMasses(), precision, 0);
+        if (ERT == null) {
+            ERT = computeERT();
+            if (ertStore != null) ertStore.store(integerMasses(), precision, 0, ERT);
+        }
         synchronized (this) {
-            final long[][][] tables = this.ERTs;
-            if (tables.length == currentLength) {
-                final long[][][] __tmp__ = Arrays.copyOf(this.ERTs, this.ERTs.length + 1);
-                __tmp__[__tmp__.length - 1] = nextERT;
-                this.ERTs = __tmp__;
-            } else {
-                // another background thread did already compute the ERT. So we don't have to do this again
+            if (this.ERTs.length == 0) {
+                this.ERT = ERT;
+                this.ERTs = new long[][][]{ERT};
             }
         }
-        // recursively calculate ERTs for higher deviations
-        // current ERT is already sufficient
-        if ((1 << (currentLength - 1)) <= deviation) calcERT(deviation);
     }
 
-    @Override
-    protected void calcERT() {
+    private long[][] computeERT() {
         long firstLongVal = weights.get(0).getIntegerMass();
         long[][] ERT = new long[(int) firstLongVal][weights.size()];
         int r, argmin;
@@ -583,11 +808,6 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
                 }
             } // end for p
         } // end for j
-        synchronized (this) {
-            if (this.ERTs.length == 0) {
-                this.ERT = ERT;
-                this.ERTs = new long[][][]{ERT};
-            }
-        }
+        return ERT;
     }
 }
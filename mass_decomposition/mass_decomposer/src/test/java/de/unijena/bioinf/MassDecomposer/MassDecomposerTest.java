@@ -2,10 +2,14 @@ package de.unijena.bioinf.MassDecomposer;
 
 import de.unijena.bioinf.ChemistryBase.chem.*;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
 import de.unijena.bioinf.MassDecomposer.Chemistry.ChemicalAlphabetWrapper;
 import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
 import static junit.framework.Assert.*;
@@ -548,4 +552,70 @@ public class MassDecomposerTest {
 
         assertEquals(mf, formulas.get(0));
     }
+
+    @Test
+    public void testPersistedExtendedResidueTables() throws IOException {
+        final Path dir = Files.createTempDirectory("ert-store");
+        try {
+            final ExtendedResidueTableStore store = new ExtendedResidueTableStore(dir);
+            final ChemicalAlphabet alphabet = new ChemicalAlphabet(PeriodicTable.getInstance().getAllByName("C", "H", "N", "O", "P", "S"));
+            final List<int[]> computed = new RangeMassDecomposer<>(new ChemicalAlphabetWrapper(alphabet), store).decompose(308.0912, new Deviation(20), null);
+            final long numberOfTables;
+            try (var files = Files.list(dir)) {
+                numberOfTables = files.count();
+            }
+            assertTrue("ERTs of several deviation levels should be stored", numberOfTables > 1);
+
+            final List<int[]> loaded = new RangeMassDecomposer<>(new ChemicalAlphabetWrapper(alphabet), store).decompose(308.0912, new Deviation(20), null);
+            assertEquals(computed.size(), loaded.size());
+            for (int i = 0; i < computed.size(); ++i)
+                assertTrue(Arrays.equals(computed.get(i), loaded.get(i)));
+            try (var files = Files.list(dir)) {
+                assertEquals(numberOfTables, files.count());
+            }
+        } finally {
+            FileUtils.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testExtendedResidueTableStoreIsBounded() throws IOException {
+        final Path dir = Files.createTempDirectory("ert-store");
+        try {
+            // too small for all tables of one decomposer, so only the table stored last is kept
+            final ExtendedResidueTableStore store = new ExtendedResidueTableStore(dir, 1);
+            final ChemicalAlphabet alphabet = new ChemicalAlphabet(PeriodicTable.getInstance().getAllByName("C", "H", "N", "O", "P", "S"));
+            final List<int[]> expected = new RangeMassDecomposer<>(new ChemicalAlphabetWrapper(alphabet), null).decompose(308.0912, new Deviation(20), null);
+            final List<int[]> computed = new RangeMassDecomposer<>(new ChemicalAlphabetWrapper(alphabet), store).decompose(308.0912, new Deviation(20), null);
+            assertEquals(expected.size(), computed.size());
+            try (var files = Files.list(dir)) {
+                assertEquals(1, files.count());
+            }
+        } finally {
+            FileUtils.deleteRecursively(dir);
+        }
+    }
+
+    @Test
+    public void testBatchDecomposition() {
+        final ChemicalAlphabet alphabet = new ChemicalAlphabet(PeriodicTable.getInstance().getAllByName("C", "H", "N", "O", "P", "S"));
+        final RangeMassDecomposer<Element> decomposer = new RangeMassDecomposer<>(new ChemicalAlphabetWrapper(alphabet), null);
+        final Map<Element, Interval> boundaries = new HashMap<>();
+        boundaries.put(PeriodicTable.getInstance().getByName("C"), new Interval(2, 10));
+        // overlapping and distant masses, including one without any decomposition
+        final double[] masses = new double[]{0.5, 96.0211, 96.0212, 179.0582, 212.11, 212.1101, 308.0912};
+        final Deviation deviation = new Deviation(20, 1e-3);
+
+        final DecompositionBatch batch = decomposer.decompose(masses, deviation, boundaries);
+        assertEquals(masses.length, batch.numberOfMasses());
+        int total = 0;
+        for (int i = 0; i < masses.length; ++i) {
+            final List<int[]> expected = decomposer.decompose(masses[i], deviation, boundaries);
+            assertEquals(expected.size(), batch.numberOfDecompositions(i));
+            for (int k = 0; k < expected.size(); ++k)
+                assertTrue(Arrays.equals(expected.get(k), batch.getDecomposition(i, k)));
+            total += expected.size();
+        }
+        assertEquals(total, batch.numberOfDecompositions());
+    }
 }
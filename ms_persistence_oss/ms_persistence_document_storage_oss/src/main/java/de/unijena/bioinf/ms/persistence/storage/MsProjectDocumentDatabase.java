@@ -29,20 +29,26 @@ import de.unijena.bioinf.ms.persistence.model.core.networks.AdductNetwork;
 import de.unijena.bioinf.ms.persistence.model.core.run.LCMSRun;
 import de.unijena.bioinf.ms.persistence.model.core.run.MergedLCMSRun;
 import de.unijena.bioinf.ms.persistence.model.core.run.RetentionTimeAxis;
+import de.unijena.bioinf.ms.persistence.model.core.serializers.MSDataSerializers;
+import de.unijena.bioinf.ms.persistence.model.core.serializers.TraceSerializers;
 import de.unijena.bioinf.ms.persistence.model.core.scan.MSMSScan;
 import de.unijena.bioinf.ms.persistence.model.core.scan.Scan;
 import de.unijena.bioinf.ms.persistence.model.core.spectrum.MSData;
 import de.unijena.bioinf.ms.persistence.model.core.trace.MergedTrace;
 import de.unijena.bioinf.ms.persistence.model.core.trace.SourceTrace;
 import de.unijena.bioinf.storage.db.nosql.Database;
+import de.unijena.bioinf.storage.db.nosql.Filter;
 import de.unijena.bioinf.storage.db.nosql.Index;
 import de.unijena.bioinf.storage.db.nosql.Metadata;
+import it.unimi.dsi.fastutil.longs.*;
 import lombok.SneakyThrows;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -74,10 +80,19 @@ public interface MsProjectDocumentDatabase<Storage extends Database<?>> {
                 .setOptionalFields(MSMSScan.class, "peaks")
 
                 .addRepository(MergedTrace.class)
+                .addSerialization(MergedTrace.class,
+                        new TraceSerializers.MergedTraceSerializer(),
+                        new TraceSerializers.MergedTraceDeserializer())
 
                 .addRepository(SourceTrace.class)
+                .addSerialization(SourceTrace.class,
+                        new TraceSerializers.SourceTraceSerializer(),
+                        new TraceSerializers.SourceTraceDeserializer())
 
                 .addRepository(MSData.class)
+                .addSerialization(MSData.class,
+                        new MSDataSerializers.MSDataSerializer(),
+                        new MSDataSerializers.MSDataDeserializer())
 
                 .addRepository(Feature.class,
                         Index.nonUnique("alignedFeatureId")
@@ -90,6 +105,8 @@ public interface MsProjectDocumentDatabase<Storage extends Database<?>> {
                         Index.nonUnique("traceRef.traceId")
                 )
 
+                .addRepository(FeatureQuantification.class)
+
                 .addRepository(AlignedIsotopicFeatures.class,
                         Index.nonUnique("alignedFeatureId")
                 )
@@ -130,6 +147,12 @@ public interface MsProjectDocumentDatabase<Storage extends Database<?>> {
         return compound;
     }
 
+    @SneakyThrows
+    default Collection<Compound> fetchAdductFeaturesForAll(@NotNull final Collection<Compound> compounds) {
+        getStorage().fetchAllChildrenForAll(compounds, "compoundId", "compoundId", "adductFeatures", AlignedFeatures.class);
+        return compounds;
+    }
+
     @SneakyThrows
     default Compound fetchCorrelatedIonPairs(@NotNull final Compound compound) {
         getStorage().fetchAllChildren(compound, "compoundId", "correlatedIonPairs", CorrelatedIonPair.class);
@@ -158,6 +181,12 @@ public interface MsProjectDocumentDatabase<Storage extends Database<?>> {
         return alignedFeatures;
     }
 
+    @SneakyThrows
+    default <A extends AbstractAlignedFeatures> Collection<A> fetchMsDataForAll(@NotNull final Collection<A> alignedFeatures) {
+        getStorage().fetchChildForAll(alignedFeatures, "alignedFeatureId", "alignedFeatureId", "msData", MSData.class);
+        return alignedFeatures;
+    }
+
     @SneakyThrows
     default MergedLCMSRun fetchLCMSRuns(@NotNull final MergedLCMSRun run) {
         Storage storage = getStorage();
@@ -207,6 +236,56 @@ public interface MsProjectDocumentDatabase<Storage extends Database<?>> {
                 LoggerFactory.getLogger(getClass()).warn("Importing AlignedFeatures without MSData! Feature: {}| RT: {}| M/Z: {}", f.getName(), f.getRetentionTime(), f.getAverageMass());
             }
         }
+        getStorage().insertAll(featureAlignments.stream()
+                .map(f -> FeatureQuantification.of(f.getAlignedFeatureId(), f.getFeatures().orElse(List.of())))
+                .toList());
+    }
+
+    /**
+     * Stream the quantification rows of all aligned features.
+     */
+    default Stream<FeatureQuantification> getAllFeatureQuantifications() throws IOException {
+        return getStorage().findAllStr(FeatureQuantification.class);
+    }
+
+    /**
+     * Quantification row of the given aligned feature.
+     */
+    default Optional<FeatureQuantification> findFeatureQuantification(long alignedFeatureId) throws IOException {
+        return getStorage().getByPrimaryKey(alignedFeatureId, FeatureQuantification.class);
+    }
+
+    /**
+     * Create the quantification rows missing in projects created before the quantification rows were introduced.
+     * Called once when the project is opened, so that reading the rows never writes to the project.
+     */
+    default void migrateFeatureQuantifications() throws IOException {
+        if (getStorage().countAll(FeatureQuantification.class) < getStorage().countAll(AlignedFeatures.class))
+            rebuildFeatureQuantifications();
+    }
+
+    /**
+     * Create the quantification rows of all aligned features that do not have one yet. Features are fetched in
+     * batches of aligned features.
+     */
+    default void rebuildFeatureQuantifications() throws IOException {
+        LongSet existing = new LongOpenHashSet();
+        getStorage().findAllStr(FeatureQuantification.class).forEach(q -> existing.add(q.getAlignedFeatureId()));
+        LongList missing = new LongArrayList();
+        getStorage().findAllStr(AlignedFeatures.class).forEach(af -> {
+            if (!existing.contains(af.getAlignedFeatureId()))
+                missing.add(af.getAlignedFeatureId());
+        });
+
+        for (int from = 0; from < missing.size(); from += 1000) {
+            Long[] batch = missing.subList(from, Math.min(from + 1000, missing.size())).toArray(Long[]::new);
+            Long2ObjectMap<List<Feature>> features = new Long2ObjectOpenHashMap<>(batch.length);
+            getStorage().findStr(Filter.where("alignedFeatureId").in(batch), Feature.class)
+                    .forEach(f -> features.computeIfAbsent(f.getAlignedFeatureId(), k -> new ArrayList<>()).add(f));
+            getStorage().upsertAll(Arrays.stream(batch)
+                    .map(id -> FeatureQuantification.of(id, features.getOrDefault((long) id, List.of())))
+                    .toList());
+        }
     }
 
     default void importAlignedIsotopicFeatures(List<AlignedIsotopicFeatures> isotopicFeatureAlignments, long parentId) throws IOException {
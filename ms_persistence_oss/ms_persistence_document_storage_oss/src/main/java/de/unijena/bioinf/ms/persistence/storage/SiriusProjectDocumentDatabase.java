@@ -32,7 +32,9 @@ import de.unijena.bioinf.ms.persistence.model.core.feature.AlignedFeatures;
 import de.unijena.bioinf.ms.persistence.model.properties.ProjectType;
 import de.unijena.bioinf.ms.persistence.model.sirius.*;
 import de.unijena.bioinf.ms.persistence.model.sirius.serializers.CanopusPredictionDeserializer;
+import de.unijena.bioinf.ms.persistence.model.sirius.serializers.CanopusPredictionSerializer;
 import de.unijena.bioinf.ms.persistence.model.sirius.serializers.CsiPredictionDeserializer;
+import de.unijena.bioinf.ms.persistence.model.sirius.serializers.CsiPredictionSerializer;
 import de.unijena.bioinf.ms.properties.ConfigType;
 import de.unijena.bioinf.ms.properties.ParameterConfig;
 import de.unijena.bioinf.ms.properties.PropertyManager;
@@ -52,7 +54,11 @@ import java.util.Optional;
 import java.util.stream.Stream;
 
 public interface SiriusProjectDocumentDatabase<Storage extends Database<?>> extends StatsAndTaggingSupport<Storage>, NetworkingProjectDocumentDatabase<Storage>, MsProjectDocumentDatabase<Storage> {
-    int SIRIUS_PROJECT_SCHEMA_VERSION = 1;
+    /**
+     * Version 2 stores traces, MS data and predictions as binary blocks, which older versions cannot read.
+     * Version 1 projects are still readable, they are upgraded when opened.
+     */
+    int SIRIUS_PROJECT_SCHEMA_VERSION = 2;
     String SIRIUS_PROJECT_SUFFIX = ".sirius";
     String FP_DATA_COLLECTION = "FP_DATA";
     String PROJECT_PROPERTIES_COLLECTION = "PROJECT_PROPERTIES";
@@ -64,6 +70,7 @@ public interface SiriusProjectDocumentDatabase<Storage extends Database<?>> exte
     static Metadata buildMetadata(@NotNull Metadata sourceMetadata) throws IOException {
         sourceMetadata
                 .schemaVersion(SIRIUS_PROJECT_SCHEMA_VERSION)
+                .readableSchemaVersions(1) // deserializers still read the JSON layout of version 1
                 .addCollection(FP_DATA_COLLECTION, Index.unique("type", "charge"))
                 .addCollection(PROJECT_PROPERTIES_COLLECTION, Index.unique("key"))
 
@@ -76,11 +83,13 @@ public interface SiriusProjectDocumentDatabase<Storage extends Database<?>> exte
                 .addRepository(FTreeResult.class, "formulaId", Index.nonUnique("alignedFeatureId"))
 
                 .addRepository(CsiPrediction.class, "formulaId", Index.nonUnique("alignedFeatureId"))
-                .addDeserializer(CsiPrediction.class,
+                .addSerialization(CsiPrediction.class,
+                        new CsiPredictionSerializer(),
                         new CsiPredictionDeserializer())
 
                 .addRepository(CanopusPrediction.class, "formulaId", Index.nonUnique("alignedFeatureId"))
-                .addDeserializer(CanopusPrediction.class,
+                .addSerialization(CanopusPrediction.class,
+                        new CanopusPredictionSerializer(),
                         new CanopusPredictionDeserializer())
 
                 .addRepository(CsiStructureSearchResult.class, "alignedFeatureId")
@@ -63,6 +63,7 @@ public class NitriteSirirusProject extends SiriusProjectDatabaseImpl<NitriteData
         super(new NitriteDatabase(location, metadata, compression, cacheSizeMiB, commitBufferByte));
         this.metadata = metadata;
         updateSerializers();
+        migrateFeatureQuantifications();
     }
 
     private void updateSerializers() {
@@ -6,8 +6,10 @@ import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
 import de.unijena.bioinf.ChemistryBase.fp.CdkFingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
 import de.unijena.bioinf.ChemistryBase.fp.StandardFingerprintData;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.utils.ExFunctions;
 import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
 import de.unijena.bioinf.ChemistryBase.utils.IOFunctions;
@@ -24,6 +26,15 @@ import de.unijena.bioinf.ms.persistence.model.core.Compound;
 import de.unijena.bioinf.ms.persistence.model.core.feature.AlignedFeatures;
 import de.unijena.bioinf.ms.persistence.model.core.feature.DetectedAdduct;
 import de.unijena.bioinf.ms.persistence.model.core.feature.DetectedAdducts;
+import de.unijena.bioinf.ms.persistence.model.core.feature.Feature;
+import de.unijena.bioinf.ms.persistence.model.core.feature.FeatureQuantification;
+import de.unijena.bioinf.ms.persistence.model.core.spectrum.IsotopePattern;
+import de.unijena.bioinf.ms.persistence.model.core.spectrum.MSData;
+import de.unijena.bioinf.ms.persistence.model.core.spectrum.MergedMSnSpectrum;
+import de.unijena.bioinf.ms.persistence.model.core.statistics.QuantMeasure;
+import de.unijena.bioinf.ms.persistence.model.core.trace.MergedTrace;
+import de.unijena.bioinf.ms.persistence.model.core.trace.RawTraceRef;
+import de.unijena.bioinf.ms.persistence.model.core.trace.SourceTrace;
 import de.unijena.bioinf.ms.persistence.model.properties.ProjectType;
 import de.unijena.bioinf.ms.persistence.model.sirius.*;
 import de.unijena.bioinf.ms.persistence.storage.nitrite.NitriteSirirusProject;
@@ -35,7 +46,9 @@ import de.unijena.bioinf.ms.rest.model.canopus.CanopusNpcData;
 import de.unijena.bioinf.ms.rest.model.fingerid.FingerIdData;
 import de.unijena.bioinf.spectraldb.SpectralSearchResult;
 import de.unijena.bioinf.storage.blob.Compressible;
+import de.unijena.bioinf.storage.db.nosql.Filter;
 import de.unijena.bionf.spectral_alignment.SpectralSimilarity;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
 import org.dizitart.no2.exceptions.UniqueConstraintException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -100,6 +113,13 @@ public class SiriusProjectDatabaseImplTest {
         });
     }
 
+    @Test
+    public void testSchemaVersion() {
+        withDb(ps -> assertEquals(SiriusProjectDocumentDatabase.SIRIUS_PROJECT_SCHEMA_VERSION, ps.getStorage().getStoredSchemaVersion()));
+        // projects of the previous version are upgraded on open
+        withDb("/sirius-project-all-fp-data.sirius", ps -> assertEquals(SiriusProjectDocumentDatabase.SIRIUS_PROJECT_SCHEMA_VERSION, ps.getStorage().getStoredSchemaVersion()));
+    }
+
     @Test
     public void testInitWithFingerprintData() {
         withDb("/sirius-project-all-fp-data.sirius", ps -> {
@@ -291,6 +311,119 @@ public class SiriusProjectDatabaseImplTest {
         });
     }
 
+    private static Feature quantFeature(long runId, double apex, double auc) {
+        return Feature.builder().runId(runId).apexIntensity(apex).areaUnderCurve(auc)
+                .traceRef(new RawTraceRef(1, 0, 0, 1, 2, 0, 1, 2, 0)).build();
+    }
+
+    @Test
+    public void featureQuantificationTest() {
+        withDb(db -> {
+            AlignedFeatures af1 = AlignedFeatures.builder().name("f1")
+                    .features(List.of(quantFeature(1, 10, 100), quantFeature(2, 20, 200))).build();
+            AlignedFeatures af2 = AlignedFeatures.builder().name("f2")
+                    .features(List.of(quantFeature(2, 5, 50))).build();
+            db.importCompounds(List.of(Compound.builder().name("c").adductFeatures(List.of(af1, af2)).build()));
+
+            FeatureQuantification q1 = db.getStorage().getByPrimaryKey(af1.getAlignedFeatureId(), FeatureQuantification.class).orElseThrow();
+            assertArrayEquals(new long[]{1, 2}, q1.getRunIds());
+            assertArrayEquals(new double[]{10, 20}, q1.getValues(QuantMeasure.APEX_INTENSITY));
+            assertArrayEquals(new double[]{100, 200}, q1.getValues(QuantMeasure.AREA_UNDER_CURVE));
+            assertEquals(2, db.getAllFeatureQuantifications().count());
+
+            //reading does not create missing rows, the migration of old projects does
+            db.getStorage().removeByPrimaryKey(af2.getAlignedFeatureId(), FeatureQuantification.class);
+            assertEquals(1, db.getAllFeatureQuantifications().count());
+            assertTrue(db.findFeatureQuantification(af2.getAlignedFeatureId()).isEmpty());
+            assertEquals(1, db.getStorage().countAll(FeatureQuantification.class));
+            db.migrateFeatureQuantifications();
+            assertEquals(2, db.getAllFeatureQuantifications().count());
+            assertArrayEquals(new double[]{5}, db.findFeatureQuantification(af2.getAlignedFeatureId()).orElseThrow().getApexIntensities());
+
+            //rows are removed with their aligned feature
+            db.cascadeDeleteAlignedFeatures(af1.getAlignedFeatureId());
+            assertTrue(db.getStorage().getByPrimaryKey(af1.getAlignedFeatureId(), FeatureQuantification.class).isEmpty());
+            assertEquals(1, db.getStorage().countAll(FeatureQuantification.class));
+        });
+    }
+
+    @Test
+    public void featureQuantificationMigrationOnOpenTest() throws IOException {
+        Path location = FileUtils.createTmpProjectSpaceLocation(SiriusProjectDocumentDatabase.SIRIUS_PROJECT_SUFFIX);
+        try {
+            long alignedFeatureId;
+            try (NitriteSirirusProject db = new NitriteSirirusProject(location)) {
+                AlignedFeatures af = AlignedFeatures.builder().name("f")
+                        .features(List.of(quantFeature(1, 10, 100))).build();
+                db.importCompounds(List.of(Compound.builder().name("c").adductFeatures(List.of(af)).build()));
+                alignedFeatureId = af.getAlignedFeatureId();
+                //simulate a project created before the quantification rows were introduced
+                db.getStorage().removeByPrimaryKey(alignedFeatureId, FeatureQuantification.class);
+            }
+
+            try (NitriteSirirusProject db = new NitriteSirirusProject(location)) {
+                assertArrayEquals(new double[]{10}, db.findFeatureQuantification(alignedFeatureId).orElseThrow().getApexIntensities());
+            }
+        } finally {
+            Files.deleteIfExists(location);
+        }
+    }
+
+    @Test
+    public void binarySerializationTest() {
+        withDb(db -> {
+            MergedTrace merged = new MergedTrace(7, new float[]{1f, 5f, 2f}, 3, new double[]{100.001, 100.002, 100.003});
+            db.getStorage().insert(merged);
+            MergedTrace mergedOut = db.getStorage().getByPrimaryKey(merged.getMergedTraceId(), MergedTrace.class).orElseThrow();
+            assertEquals(7, mergedOut.getRunId());
+            assertEquals(3, mergedOut.getScanIndexOffset());
+            assertEquals(merged.getAverageMz(), mergedOut.getAverageMz());
+            assertArrayEquals(new float[]{1f, 5f, 2f}, mergedOut.getIntensities().toFloatArray());
+            assertArrayEquals(new double[]{100.001, 100.002, 100.003}, mergedOut.getMz().toDoubleArray());
+
+            SourceTrace source = new SourceTrace();
+            source.setRunId(8);
+            source.setIntensities(new FloatArrayList(new float[]{1f, 2f}));
+            source.setRawIntensities(new FloatArrayList(new float[]{3f, 4f, 5f}));
+            source.setRawScanIndexOffset(11);
+            db.getStorage().insert(source);
+            SourceTrace sourceOut = db.getStorage().findStr(Filter.where("sourceTraceId").eq(source.getSourceTraceId()), SourceTrace.class).findFirst().orElseThrow();
+            assertEquals(8, sourceOut.getRunId());
+            assertEquals(11, sourceOut.getRawScanIndexOffset());
+            assertArrayEquals(new float[]{1f, 2f}, sourceOut.getIntensities().toFloatArray());
+            assertArrayEquals(new float[]{3f, 4f, 5f}, sourceOut.getRawIntensities().toFloatArray());
+
+            MergedMSnSpectrum msn = MergedMSnSpectrum.builder()
+                    .msLevel(2).charge(1)
+                    .mergedCollisionEnergy(new CollisionEnergy(20, 40))
+                    .mergedPrecursorMz(300.1)
+                    .sampleIds(new long[]{1, 2})
+                    .ms2ScanIds(new int[][]{{1, 2}, {3}})
+                    .percursorMzs(new double[]{300.1, 300.2})
+                    .peaks(new SimpleSpectrum(new double[]{50, 80, 120}, new double[]{1, 10, 5}))
+                    .build();
+            MSData msData = MSData.builder().alignedFeatureId(42)
+                    .msnSpectra(List.of(msn))
+                    .isotopePattern(new IsotopePattern(new double[]{300.1, 301.1}, new double[]{1, 0.2}, IsotopePattern.Type.AVERAGE))
+                    .mergedMs1Spectrum(new SimpleSpectrum(new double[]{300.1, 301.1, 320}, new double[]{1, 0.2, 0.5}))
+                    .build();
+            db.getStorage().insert(msData);
+            MSData msDataOut = db.getStorage().findStr(Filter.where("alignedFeatureId").eq(42L), MSData.class).findFirst().orElseThrow();
+            assertEquals(msData.getMergedMs1Spectrum(), msDataOut.getMergedMs1Spectrum());
+            assertNull(msDataOut.getMergedMSnSpectrum());
+            assertEquals(msData.getIsotopePattern(), msDataOut.getIsotopePattern());
+            assertEquals(IsotopePattern.Type.AVERAGE, msDataOut.getIsotopePattern().getType());
+            MergedMSnSpectrum msnOut = msDataOut.getMsnSpectra().get(0);
+            assertEquals(2, msnOut.getMsLevel());
+            assertEquals(msn.getMergedCollisionEnergy(), msnOut.getMergedCollisionEnergy());
+            assertArrayEquals(msn.getSampleIds(), msnOut.getSampleIds());
+            assertArrayEquals(msn.getMs2ScanIds(), msnOut.getMs2ScanIds());
+            assertNull(msnOut.getRawPrecursorScanIds());
+            assertNull(msnOut.getChimericPollutionRatio());
+            assertEquals(msn.getPeaks(), msnOut.getPeaks());
+        });
+    }
+
     @Test
     public void upsertAdductOnFeatureTest() {
         withDb("/sirius-project-features.sirius", db -> {
@@ -0,0 +1,90 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+package de.unijena.bioinf.ms.persistence.model.core.feature;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import de.unijena.bioinf.ms.persistence.model.core.statistics.QuantMeasure;
+import jakarta.persistence.Id;
+import lombok.*;
+
+import java.util.Collection;
+
+/**
+ * Materialized quantification row of an aligned feature: apex intensity and area under curve of each of its
+ * {@link Feature}s as primitive columns, aligned by index with {@link #runIds}. Maintained on import and cascade
+ * delete of {@link AlignedFeatures}, such that quantification tables and fold changes can be computed from a single
+ * scan instead of one {@link Feature} query per aligned feature.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+@ToString
+public class FeatureQuantification {
+
+    /**
+     * ID of the aligned feature this row belongs to
+     */
+    @Id
+    private long alignedFeatureId;
+
+    /**
+     * run of each feature, a run might occur multiple times
+     */
+    private long[] runIds;
+
+    /**
+     * apex intensity of each feature, NaN if unknown
+     */
+    private double[] apexIntensities;
+
+    /**
+     * area under curve of each feature
+     */
+    private double[] areaUnderCurves;
+
+    public static FeatureQuantification of(long alignedFeatureId, Collection<Feature> features) {
+        final long[] runIds = new long[features.size()];
+        final double[] apex = new double[features.size()];
+        final double[] auc = new double[features.size()];
+        int i = 0;
+        for (Feature f : features) {
+            runIds[i] = f.getRunId() == null ? -1 : f.getRunId();
+            apex[i] = f.getApexIntensity() == null ? Double.NaN : f.getApexIntensity();
+            auc[i] = f.getAreaUnderCurve();
+            ++i;
+        }
+        return new FeatureQuantification(alignedFeatureId, runIds, apex, auc);
+    }
+
+    @JsonIgnore
+    public int size() {
+        return runIds == null ? 0 : runIds.length;
+    }
+
+    @JsonIgnore
+    public double[] getValues(QuantMeasure measure) {
+        return switch (measure) {
+            case APEX_INTENSITY -> apexIntensities;
+            case AREA_UNDER_CURVE -> areaUnderCurves;
+        };
+    }
+}
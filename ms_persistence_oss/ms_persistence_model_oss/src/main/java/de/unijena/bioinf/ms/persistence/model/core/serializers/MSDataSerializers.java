@@ -0,0 +1,168 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.persistence.model.core.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.IsolationWindow;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.utils.BinaryBlocks;
+import de.unijena.bioinf.ms.persistence.model.core.spectrum.IsotopePattern;
+import de.unijena.bioinf.ms.persistence.model.core.spectrum.MSData;
+import de.unijena.bioinf.ms.persistence.model.core.spectrum.MergedMSnSpectrum;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores all spectra of {@link MSData} as binary blocks. Only the primary key remains a plain field.
+ */
+public class MSDataSerializers {
+
+    public static class MSDataSerializer extends BinaryBlocks.Serializer<MSData> {
+        @Override
+        protected void writeFields(MSData value, JsonGenerator gen) throws IOException {
+            gen.writeNumberField("alignedFeatureId", value.getAlignedFeatureId());
+        }
+
+        @Override
+        protected void writeBlocks(MSData value, BinaryBlocks.Writer blocks) {
+            blocks.writeSpectrum(value.getMergedMs1Spectrum());
+            blocks.writeSpectrum(value.getMergedMSnSpectrum());
+            blocks.writeSpectrum(value.getIsotopePattern());
+            if (value.getIsotopePattern() != null)
+                blocks.writeInt(value.getIsotopePattern().getType().ordinal());
+
+            final List<MergedMSnSpectrum> msnSpectra = value.getMsnSpectra();
+            blocks.writeInt(msnSpectra == null ? -1 : msnSpectra.size());
+            if (msnSpectra != null) {
+                for (MergedMSnSpectrum spec : msnSpectra)
+                    writeMSnSpectrum(spec, blocks);
+            }
+        }
+
+        private static void writeMSnSpectrum(MergedMSnSpectrum spec, BinaryBlocks.Writer blocks) {
+            blocks.writeInt(spec.getMsLevel());
+            blocks.writeInt(spec.getCharge());
+            final CollisionEnergy ce = spec.getMergedCollisionEnergy();
+            blocks.writeDoubles(ce == null ? null : new double[]{ce.getMinEnergy(), ce.getMaxEnergy(), ce.minEnergySource(), ce.maxEnergySource()});
+            blocks.writeDouble(spec.getMergedPrecursorMz());
+
+            double[] windows = null;
+            if (spec.getIsolationWindows() != null) {
+                final IsolationWindow[] w = spec.getIsolationWindows();
+                windows = new double[w.length * 2];
+                for (int i = 0; i < w.length; ++i) {
+                    windows[2 * i] = w[i].getWindowOffset();
+                    windows[2 * i + 1] = w[i].getWindowWidth();
+                }
+            }
+            blocks.writeDoubles(windows);
+
+            blocks.writeLongs(spec.getSampleIds());
+            blocks.writeIntMatrix(spec.getMs2ScanIds());
+            blocks.writeIntMatrix(spec.getRawPrecursorScanIds());
+            blocks.writeIntMatrix(spec.getProjectedPrecursorScanIds());
+            blocks.writeDoubles(spec.getPercursorMzs());
+            blocks.writeBoolean(spec.getChimericPollutionRatio() != null);
+            if (spec.getChimericPollutionRatio() != null)
+                blocks.writeDouble(spec.getChimericPollutionRatio());
+            blocks.writeSpectrum(spec.getPeaks());
+        }
+    }
+
+    public static class MSDataDeserializer extends BinaryBlocks.Deserializer<MSData, MSData> {
+        @Override
+        protected MSData newBuilder() {
+            return new MSData();
+        }
+
+        // plain fields of documents written before the binary format are read with the default deserializers
+        @Override
+        protected boolean readField(MSData data, String name, JsonParser p, DeserializationContext ctxt) throws IOException {
+            switch (name) {
+                case "alignedFeatureId" -> data.setAlignedFeatureId(p.getLongValue());
+                case "msnSpectra" ->
+                        data.setMsnSpectra(ctxt.readValue(p, ctxt.getTypeFactory().constructCollectionType(List.class, MergedMSnSpectrum.class)));
+                case "isotopePattern" -> data.setIsotopePattern(ctxt.readValue(p, IsotopePattern.class));
+                case "mergedMs1Spectrum" -> data.setMergedMs1Spectrum(ctxt.readValue(p, SimpleSpectrum.class));
+                case "mergedMSnSpectrum" -> data.setMergedMSnSpectrum(ctxt.readValue(p, SimpleSpectrum.class));
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected void readBlocks(MSData data, BinaryBlocks.Reader blocks) {
+            data.setMergedMs1Spectrum(blocks.readSpectrum());
+            data.setMergedMSnSpectrum(blocks.readSpectrum());
+            final double[][] isotopes = blocks.readSpectrumArrays();
+            if (isotopes != null)
+                data.setIsotopePattern(new IsotopePattern(isotopes[0], isotopes[1], IsotopePattern.Type.values()[blocks.readInt()]));
+
+            final int numberOfSpectra = blocks.readInt();
+            if (numberOfSpectra >= 0) {
+                final List<MergedMSnSpectrum> msnSpectra = new ArrayList<>(numberOfSpectra);
+                for (int i = 0; i < numberOfSpectra; ++i)
+                    msnSpectra.add(readMSnSpectrum(blocks));
+                data.setMsnSpectra(msnSpectra);
+            }
+        }
+
+        private static MergedMSnSpectrum readMSnSpectrum(BinaryBlocks.Reader blocks) {
+            final MergedMSnSpectrum spec = new MergedMSnSpectrum();
+            spec.setMsLevel(blocks.readInt());
+            spec.setCharge(blocks.readInt());
+            final double[] ce = blocks.readDoubles();
+            if (ce != null)
+                spec.setMergedCollisionEnergy(new CollisionEnergy(ce[0], ce[1], ce[2], ce[3]));
+            spec.setMergedPrecursorMz(blocks.readDouble());
+
+            final double[] windows = blocks.readDoubles();
+            if (windows != null) {
+                final IsolationWindow[] w = new IsolationWindow[windows.length / 2];
+                for (int i = 0; i < w.length; ++i)
+                    w[i] = new IsolationWindow(windows[2 * i], windows[2 * i + 1]);
+                spec.setIsolationWindows(w);
+            }
+
+            spec.setSampleIds(blocks.readLongs());
+            spec.setMs2ScanIds(blocks.readIntMatrix());
+            spec.setRawPrecursorScanIds(blocks.readIntMatrix());
+            spec.setProjectedPrecursorScanIds(blocks.readIntMatrix());
+            spec.setPercursorMzs(blocks.readDoubles());
+            if (blocks.readBoolean())
+                spec.setChimericPollutionRatio(blocks.readDouble());
+            spec.setPeaks(blocks.readSpectrum());
+            return spec;
+        }
+
+        @Override
+        protected MSData build(MSData data) {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.persistence.model.core.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import de.unijena.bioinf.ChemistryBase.utils.BinaryBlocks;
+import de.unijena.bioinf.ms.persistence.model.core.trace.AbstractTrace;
+import de.unijena.bioinf.ms.persistence.model.core.trace.MergedTrace;
+import de.unijena.bioinf.ms.persistence.model.core.trace.SourceTrace;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.floats.FloatList;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * Stores the intensity and mass arrays of traces as binary blocks instead of JSON arrays.
+ */
+public class TraceSerializers {
+
+    public static class MergedTraceSerializer extends BinaryBlocks.Serializer<MergedTrace> {
+        @Override
+        protected void writeFields(MergedTrace value, JsonGenerator gen) throws IOException {
+            gen.writeNumberField("mergedTraceId", value.getMergedTraceId());
+            writeTraceFields(value, gen);
+        }
+
+        @Override
+        protected void writeBlocks(MergedTrace value, BinaryBlocks.Writer blocks) {
+            blocks.writeFloats(toArray(value.getIntensities()));
+            blocks.writeDoubles(toArray(value.getMz()));
+        }
+    }
+
+    public static class MergedTraceDeserializer extends BinaryBlocks.Deserializer<MergedTrace, MergedTrace> {
+        @Override
+        protected MergedTrace newBuilder() {
+            return new MergedTrace();
+        }
+
+        @Override
+        protected boolean readField(MergedTrace trace, String name, JsonParser p, DeserializationContext ctxt) throws IOException {
+            switch (name) {
+                case "mergedTraceId" -> trace.setMergedTraceId(p.getLongValue());
+                case "mz" -> trace.setMz(new DoubleArrayList(ctxt.readValue(p, double[].class)));
+                default -> {
+                    return readTraceField(trace, name, p, ctxt);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected void readBlocks(MergedTrace trace, BinaryBlocks.Reader blocks) {
+            trace.setIntensities(toFloatList(blocks.readFloats()));
+            trace.setMz(toDoubleList(blocks.readDoubles()));
+        }
+
+        @Override
+        protected MergedTrace build(MergedTrace trace) {
+            return trace;
+        }
+    }
+
+    public static class SourceTraceSerializer extends BinaryBlocks.Serializer<SourceTrace> {
+        @Override
+        protected void writeFields(SourceTrace value, JsonGenerator gen) throws IOException {
+            gen.writeNumberField("sourceTraceId", value.getSourceTraceId());
+            gen.writeNumberField("rawScanIndexOffset", value.getRawScanIndexOffset());
+            writeTraceFields(value, gen);
+        }
+
+        @Override
+        protected void writeBlocks(SourceTrace value, BinaryBlocks.Writer blocks) {
+            blocks.writeFloats(toArray(value.getIntensities()));
+            blocks.writeFloats(toArray(value.getRawIntensities()));
+        }
+    }
+
+    public static class SourceTraceDeserializer extends BinaryBlocks.Deserializer<SourceTrace, SourceTrace> {
+        @Override
+        protected SourceTrace newBuilder() {
+            return new SourceTrace();
+        }
+
+        @Override
+        protected boolean readField(SourceTrace trace, String name, JsonParser p, DeserializationContext ctxt) throws IOException {
+            switch (name) {
+                case "sourceTraceId" -> trace.setSourceTraceId(p.getLongValue());
+                case "rawScanIndexOffset" -> trace.setRawScanIndexOffset(p.getIntValue());
+                case "rawIntensities" -> trace.setRawIntensities(new FloatArrayList(ctxt.readValue(p, float[].class)));
+                default -> {
+                    return readTraceField(trace, name, p, ctxt);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected void readBlocks(SourceTrace trace, BinaryBlocks.Reader blocks) {
+            trace.setIntensities(toFloatList(blocks.readFloats()));
+            trace.setRawIntensities(toFloatList(blocks.readFloats()));
+        }
+
+        @Override
+        protected SourceTrace build(SourceTrace trace) {
+            return trace;
+        }
+    }
+
+    private static void writeTraceFields(AbstractTrace value, JsonGenerator gen) throws IOException {
+        gen.writeNumberField("runId", value.getRunId());
+        gen.writeNumberField("scanIndexOffset", value.getScanIndexOffset());
+        gen.writeNumberField("averageMz", value.getAverageMz());
+    }
+
+    private static boolean readTraceField(AbstractTrace trace, String name, JsonParser p, DeserializationContext ctxt) throws IOException {
+        switch (name) {
+            case "runId" -> trace.setRunId(p.getLongValue());
+            case "scanIndexOffset" -> trace.setScanIndexOffset(p.getIntValue());
+            case "averageMz" -> trace.setAverageMz(p.getDoubleValue());
+            // intensities of documents written before the binary format
+            case "intensities" -> trace.setIntensities(new FloatArrayList(ctxt.readValue(p, float[].class)));
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    private static float[] toArray(@Nullable FloatList list) {
+        return list == null ? null : list.toFloatArray();
+    }
+
+    @Nullable
+    private static double[] toArray(@Nullable DoubleList list) {
+        return list == null ? null : list.toDoubleArray();
+    }
+
+    @Nullable
+    private static FloatList toFloatList(@Nullable float[] values) {
+        return values == null ? null : FloatArrayList.wrap(values);
+    }
+
+    @Nullable
+    private static DoubleList toDoubleList(@Nullable double[] values) {
+        return values == null ? null : DoubleArrayList.wrap(values);
+    }
+}
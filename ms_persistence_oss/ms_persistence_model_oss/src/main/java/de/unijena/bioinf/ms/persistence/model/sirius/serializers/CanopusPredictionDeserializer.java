@@ -20,14 +20,12 @@
 
 package de.unijena.bioinf.ms.persistence.model.sirius.serializers;
 
-import com.fasterxml.jackson.core.JacksonException;
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonDeserializer;
 import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.ChemistryBase.utils.BinaryBlocks;
 import de.unijena.bioinf.ms.persistence.model.sirius.CanopusPrediction;
 import lombok.AllArgsConstructor;
 import lombok.NoArgsConstructor;
@@ -36,7 +34,7 @@ import java.io.IOException;
 
 @AllArgsConstructor
 @NoArgsConstructor
-public class CanopusPredictionDeserializer extends JsonDeserializer<CanopusPrediction> {
+public class CanopusPredictionDeserializer extends BinaryBlocks.Deserializer<CanopusPrediction, CanopusPredictionDeserializer.Builder> {
     private MaskedFingerprintVersion cfPos;
     private MaskedFingerprintVersion cfNeg;
     private MaskedFingerprintVersion npcPos;
@@ -67,45 +65,46 @@ public class CanopusPredictionDeserializer extends JsonDeserializer<CanopusPredi
     }
 
 
+    protected static class Builder {
+        private final CanopusPrediction prediction = CanopusPrediction.builder().build();
+        private double[] cfProbabilities;
+        private double[] npcProbabilities;
+    }
+
     @Override
-    public CanopusPrediction deserialize(JsonParser p, DeserializationContext ctxt) throws IOException, JacksonException {
-        CanopusPrediction pfp = CanopusPrediction.builder().build();
-        double[] cfProbs = null;
-        double[] npcProbs = null;
+    protected Builder newBuilder() {
+        return new Builder();
+    }
 
-        for (JsonToken jsonToken = p.nextToken(); jsonToken != null && !jsonToken.isStructEnd(); jsonToken = p.nextToken()) {
-            if (jsonToken != JsonToken.FIELD_NAME)
-                continue;
-            switch (p.currentName()) {
-                case "alignedFeatureId":
-                    p.nextToken();
-                    pfp.setAlignedFeatureId(p.getLongValue());
-                    break;
-                case "formulaId":
-                    p.nextToken();
-                    pfp.setFormulaId(p.getLongValue());
-                    break;
-                case "charge":
-                    p.nextToken();
-                    pfp.setCharge(p.getIntValue());
-                    break;
-                case "cfFingerprint":
-                    p.nextToken();
-                    cfProbs = p.readValueAs(double[].class);
-                    break;
-                case "npcFingerprint":
-                    p.nextToken();
-                    npcProbs = p.readValueAs(double[].class);
-                    break;
-                default:
-                    p.nextToken();
+    @Override
+    protected boolean readField(Builder builder, String name, JsonParser p, DeserializationContext ctxt) throws IOException {
+        switch (name) {
+            case "alignedFeatureId" -> builder.prediction.setAlignedFeatureId(p.getLongValue());
+            case "formulaId" -> builder.prediction.setFormulaId(p.getLongValue());
+            case "charge" -> builder.prediction.setCharge(p.getIntValue());
+            // fingerprints of documents written before the binary format
+            case "cfFingerprint" -> builder.cfProbabilities = ctxt.readValue(p, double[].class);
+            case "npcFingerprint" -> builder.npcProbabilities = ctxt.readValue(p, double[].class);
+            default -> {
+                return false;
             }
         }
+        return true;
+    }
 
-        if (cfProbs != null)
-            pfp.setCfFingerprint(new ProbabilityFingerprint(cfByCharge(pfp.getCharge()), cfProbs));
-        if (npcProbs != null)
-            pfp.setNpcFingerprint(new ProbabilityFingerprint(npcByCharge(pfp.getCharge()), npcProbs));
-        return pfp;
+    @Override
+    protected void readBlocks(Builder builder, BinaryBlocks.Reader blocks) {
+        builder.cfProbabilities = blocks.readDoubles();
+        builder.npcProbabilities = blocks.readDoubles();
+    }
+
+    @Override
+    protected CanopusPrediction build(Builder builder) {
+        final int charge = builder.prediction.getCharge();
+        if (builder.cfProbabilities != null)
+            builder.prediction.setCfFingerprint(new ProbabilityFingerprint(cfByCharge(charge), builder.cfProbabilities));
+        if (builder.npcProbabilities != null)
+            builder.prediction.setNpcFingerprint(new ProbabilityFingerprint(npcByCharge(charge), builder.npcProbabilities));
+        return builder.prediction;
     }
 }
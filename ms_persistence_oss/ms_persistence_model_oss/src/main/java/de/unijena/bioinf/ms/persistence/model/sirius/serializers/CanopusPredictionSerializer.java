@@ -0,0 +1,43 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.persistence.model.sirius.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import de.unijena.bioinf.ChemistryBase.utils.BinaryBlocks;
+import de.unijena.bioinf.ms.persistence.model.sirius.CanopusPrediction;
+
+import java.io.IOException;
+
+public class CanopusPredictionSerializer extends BinaryBlocks.Serializer<CanopusPrediction> {
+
+    @Override
+    protected void writeFields(CanopusPrediction value, JsonGenerator gen) throws IOException {
+        gen.writeNumberField("alignedFeatureId", value.getAlignedFeatureId());
+        gen.writeNumberField("formulaId", value.getFormulaId());
+        gen.writeNumberField("charge", value.getCharge());
+    }
+
+    @Override
+    protected void writeBlocks(CanopusPrediction value, BinaryBlocks.Writer blocks) {
+        blocks.writeDoubles(value.getCfFingerprint() == null ? null : value.getCfFingerprint().toProbabilityArray());
+        blocks.writeDoubles(value.getNpcFingerprint() == null ? null : value.getNpcFingerprint().toProbabilityArray());
+    }
+}
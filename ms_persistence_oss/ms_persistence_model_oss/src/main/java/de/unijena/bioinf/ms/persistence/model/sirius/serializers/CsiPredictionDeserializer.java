@@ -21,17 +21,16 @@
 package de.unijena.bioinf.ms.persistence.model.sirius.serializers;
 
 import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonDeserializer;
 import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.ChemistryBase.utils.BinaryBlocks;
 import de.unijena.bioinf.ms.persistence.model.sirius.CsiPrediction;
 
 import java.io.IOException;
 
-public class CsiPredictionDeserializer extends JsonDeserializer<CsiPrediction> {
+public class CsiPredictionDeserializer extends BinaryBlocks.Deserializer<CsiPrediction, CsiPredictionDeserializer.Builder> {
     private MaskedFingerprintVersion pos;
     private MaskedFingerprintVersion neg;
 
@@ -57,38 +56,40 @@ public class CsiPredictionDeserializer extends JsonDeserializer<CsiPrediction> {
     }
 
 
+    protected static class Builder {
+        private final CsiPrediction prediction = CsiPrediction.builder().build();
+        private double[] probabilities;
+    }
+
     @Override
-    public CsiPrediction deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
-        CsiPrediction pfp = CsiPrediction.builder().build();
-        double[] probs = null;
+    protected Builder newBuilder() {
+        return new Builder();
+    }
 
-        for (JsonToken jsonToken = p.nextToken(); jsonToken != null && !jsonToken.isStructEnd(); jsonToken = p.nextToken()) {
-            if (jsonToken != JsonToken.FIELD_NAME)
-                continue;
-            switch (p.currentName()) {
-                case "alignedFeatureId":
-                    p.nextToken();
-                    pfp.setAlignedFeatureId(p.getLongValue());
-                    break;
-                case "formulaId":
-                    p.nextToken();
-                    pfp.setFormulaId(p.getLongValue());
-                    break;
-                case "charge":
-                    p.nextToken();
-                    pfp.setCharge(p.getIntValue());
-                    break;
-                case "fingerprint":
-                    p.nextToken();
-                    probs = p.readValueAs(double[].class);
-                    break;
-                default:
-                    p.nextToken();
+    @Override
+    protected boolean readField(Builder builder, String name, JsonParser p, DeserializationContext ctxt) throws IOException {
+        switch (name) {
+            case "alignedFeatureId" -> builder.prediction.setAlignedFeatureId(p.getLongValue());
+            case "formulaId" -> builder.prediction.setFormulaId(p.getLongValue());
+            case "charge" -> builder.prediction.setCharge(p.getIntValue());
+            // fingerprint of documents written before the binary format
+            case "fingerprint" -> builder.probabilities = ctxt.readValue(p, double[].class);
+            default -> {
+                return false;
             }
         }
+        return true;
+    }
 
-        if (probs != null)
-            pfp.setFingerprint(new ProbabilityFingerprint(byCharge(pfp.getCharge()), probs));
-        return pfp;
+    @Override
+    protected void readBlocks(Builder builder, BinaryBlocks.Reader blocks) {
+        builder.probabilities = blocks.readDoubles();
+    }
+
+    @Override
+    protected CsiPrediction build(Builder builder) {
+        if (builder.probabilities != null)
+            builder.prediction.setFingerprint(new ProbabilityFingerprint(byCharge(builder.prediction.getCharge()), builder.probabilities));
+        return builder.prediction;
     }
 }
@@ -0,0 +1,151 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.persistence.model.core.serializers;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import de.unijena.bioinf.ChemistryBase.fp.CdkFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ms.persistence.model.core.spectrum.IsotopePattern;
+import de.unijena.bioinf.ms.persistence.model.core.spectrum.MSData;
+import de.unijena.bioinf.ms.persistence.model.core.spectrum.MergedMSnSpectrum;
+import de.unijena.bioinf.ms.persistence.model.core.trace.MergedTrace;
+import de.unijena.bioinf.ms.persistence.model.core.trace.SourceTrace;
+import de.unijena.bioinf.ms.persistence.model.sirius.CanopusPrediction;
+import de.unijena.bioinf.ms.persistence.model.sirius.CsiPrediction;
+import de.unijena.bioinf.ms.persistence.model.sirius.serializers.CanopusPredictionDeserializer;
+import de.unijena.bioinf.ms.persistence.model.sirius.serializers.CsiPredictionDeserializer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Documents written before the binary format store arrays, fingerprints and spectra as plain JSON.
+ * They have to stay readable with the binary deserializers.
+ */
+public class LegacyJsonLayoutTest {
+
+    private final MaskedFingerprintVersion posVersion = mask(0, 3);
+    private final MaskedFingerprintVersion negVersion = mask(10, 14);
+
+    private ObjectMapper mapper;
+
+    private static MaskedFingerprintVersion mask(int from, int to) {
+        return MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(from, to).toMask();
+    }
+
+    @Before
+    public void setUp() {
+        SimpleModule module = new SimpleModule();
+        module.addDeserializer(MergedTrace.class, new TraceSerializers.MergedTraceDeserializer());
+        module.addDeserializer(SourceTrace.class, new TraceSerializers.SourceTraceDeserializer());
+        module.addDeserializer(MSData.class, new MSDataSerializers.MSDataDeserializer());
+        module.addDeserializer(CsiPrediction.class, new CsiPredictionDeserializer(posVersion, negVersion));
+        module.addDeserializer(CanopusPrediction.class, new CanopusPredictionDeserializer(posVersion, negVersion, negVersion, posVersion));
+        mapper = new ObjectMapper().registerModule(module).configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    @Test
+    public void testMergedTrace() throws JsonProcessingException {
+        MergedTrace trace = mapper.readValue("""
+                {"mergedTraceId":5,"runId":7,"scanIndexOffset":3,"averageMz":100.002,
+                 "intensities":[1.0,5.0,2.0],"mz":[100.001,100.002,100.003]}""", MergedTrace.class);
+        assertEquals(5, trace.getMergedTraceId());
+        assertEquals(7, trace.getRunId());
+        assertEquals(3, trace.getScanIndexOffset());
+        assertEquals(100.002, trace.getAverageMz(), 0d);
+        assertArrayEquals(new float[]{1f, 5f, 2f}, trace.getIntensities().toFloatArray(), 0f);
+        assertArrayEquals(new double[]{100.001, 100.002, 100.003}, trace.getMz().toDoubleArray(), 0d);
+    }
+
+    @Test
+    public void testSourceTrace() throws JsonProcessingException {
+        SourceTrace trace = mapper.readValue("""
+                {"sourceTraceId":9,"runId":8,"scanIndexOffset":2,"averageMz":200.5,"rawScanIndexOffset":11,
+                 "intensities":[1.0,2.0],"rawIntensities":[3.0,4.0,5.0]}""", SourceTrace.class);
+        assertEquals(9, trace.getSourceTraceId());
+        assertEquals(8, trace.getRunId());
+        assertEquals(2, trace.getScanIndexOffset());
+        assertEquals(11, trace.getRawScanIndexOffset());
+        assertArrayEquals(new float[]{1f, 2f}, trace.getIntensities().toFloatArray(), 0f);
+        assertArrayEquals(new float[]{3f, 4f, 5f}, trace.getRawIntensities().toFloatArray(), 0f);
+    }
+
+    @Test
+    public void testMSData() throws JsonProcessingException {
+        MSData data = mapper.readValue("""
+                {"alignedFeatureId":42,
+                 "msnSpectra":[{"msLevel":2,"charge":1,"mergedPrecursorMz":300.1,
+                                "sampleIds":[1,2],"ms2ScanIds":[[1,2],[3]],"percursorMzs":[300.1,300.2],
+                                "peaks":{"masses":[50.0,80.0,120.0],"intensities":[1.0,10.0,5.0]}}],
+                 "isotopePattern":{"masses":[300.1,301.1],"intensities":[1.0,0.2],"type":"AVERAGE"},
+                 "mergedMs1Spectrum":{"masses":[300.1,301.1,320.0],"intensities":[1.0,0.2,0.5]},
+                 "mergedMSnSpectrum":null}""", MSData.class);
+        assertEquals(42, data.getAlignedFeatureId());
+        assertEquals(new SimpleSpectrum(new double[]{300.1, 301.1, 320}, new double[]{1, 0.2, 0.5}), data.getMergedMs1Spectrum());
+        assertNull(data.getMergedMSnSpectrum());
+
+        assertEquals(new IsotopePattern(new double[]{300.1, 301.1}, new double[]{1, 0.2}, IsotopePattern.Type.AVERAGE), data.getIsotopePattern());
+        assertEquals(IsotopePattern.Type.AVERAGE, data.getIsotopePattern().getType());
+
+        assertEquals(1, data.getMsnSpectra().size());
+        MergedMSnSpectrum msn = data.getMsnSpectra().get(0);
+        assertEquals(2, msn.getMsLevel());
+        assertEquals(1, msn.getCharge());
+        assertEquals(300.1, msn.getMergedPrecursorMz(), 0d);
+        assertArrayEquals(new long[]{1, 2}, msn.getSampleIds());
+        assertArrayEquals(new int[][]{{1, 2}, {3}}, msn.getMs2ScanIds());
+        assertArrayEquals(new double[]{300.1, 300.2}, msn.getPercursorMzs(), 0d);
+        assertEquals(new SimpleSpectrum(new double[]{50, 80, 120}, new double[]{1, 10, 5}), msn.getPeaks());
+    }
+
+    @Test
+    public void testCsiPrediction() throws JsonProcessingException {
+        CsiPrediction positive = mapper.readValue("""
+                {"alignedFeatureId":1,"formulaId":2,"charge":1,"fingerprint":[0.1,0.5,0.9]}""", CsiPrediction.class);
+        assertEquals(1, positive.getAlignedFeatureId());
+        assertEquals(2, positive.getFormulaId());
+        assertSame(posVersion, positive.getFingerprint().getFingerprintVersion());
+        assertArrayEquals(new double[]{0.1, 0.5, 0.9}, positive.getFingerprint().toProbabilityArray(), 0d);
+
+        CsiPrediction negative = mapper.readValue("""
+                {"alignedFeatureId":1,"formulaId":3,"charge":-1,"fingerprint":[0.2,0.4,0.6,0.8]}""", CsiPrediction.class);
+        assertSame(negVersion, negative.getFingerprint().getFingerprintVersion());
+        assertArrayEquals(new double[]{0.2, 0.4, 0.6, 0.8}, negative.getFingerprint().toProbabilityArray(), 0d);
+    }
+
+    @Test
+    public void testCanopusPrediction() throws JsonProcessingException {
+        CanopusPrediction prediction = mapper.readValue("""
+                {"alignedFeatureId":1,"formulaId":2,"charge":1,
+                 "cfFingerprint":[0.1,0.5,0.9],"npcFingerprint":[0.2,0.4,0.6,0.8]}""", CanopusPrediction.class);
+        assertEquals(1, prediction.getAlignedFeatureId());
+        assertEquals(2, prediction.getFormulaId());
+        assertSame(posVersion, prediction.getCfFingerprint().getFingerprintVersion());
+        assertArrayEquals(new double[]{0.1, 0.5, 0.9}, prediction.getCfFingerprint().toProbabilityArray(), 0d);
+        assertSame(negVersion, prediction.getNpcFingerprint().getFingerprintVersion());
+        assertArrayEquals(new double[]{0.2, 0.4, 0.6, 0.8}, prediction.getNpcFingerprint().toProbabilityArray(), 0d);
+    }
+}
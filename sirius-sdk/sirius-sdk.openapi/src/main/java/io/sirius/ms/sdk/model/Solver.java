@@ -42,7 +42,9 @@ public enum Solver {
   
   GLPK("GLPK"),
   
-  CLP("CLP");
+  CLP("CLP"),
+  
+  BNB("BNB");
 
   private String value;
 
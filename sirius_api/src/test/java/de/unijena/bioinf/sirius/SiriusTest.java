@@ -1,16 +1,22 @@
 package de.unijena.bioinf.sirius;
 
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.ms.*;
 import de.unijena.bioinf.ChemistryBase.ms.ft.*;
 import de.unijena.bioinf.ChemistryBase.ms.ft.model.AdductSettings;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.Decomposition;
 import de.unijena.bioinf.ChemistryBase.ms.ft.model.IsotopeMs2Settings;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.Whiteset;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.FasterTreeComputationInstance;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.FragmentDecompositionTable;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.LossValidator;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.SubFormulaGraphBuilder;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilderFactory;
 import de.unijena.bioinf.IsotopePatternAnalysis.ExtractedIsotopePattern;
@@ -20,6 +26,7 @@ import de.unijena.bioinf.babelms.ms.JenaMsParser;
 import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.jjobs.JobManager;
 import de.unijena.bioinf.sirius.annotations.DecompositionList;
+import de.unijena.bioinf.sirius.annotations.SpectralRecalibration;
 import de.unijena.bioinf.sirius.scores.SiriusScore;
 import org.junit.Test;
 
@@ -198,6 +205,182 @@ public class SiriusTest {
         assertEquals(MolecularFormula.parseOrThrow("C20H17NO6"), top.getRoot().getFormula());
     }
 
+    @Test
+    public void testBranchAndBoundSolverMatchesCLP() throws IOException, URISyntaxException {
+        final ProcessedInput processedInput = new Ms2Preprocessor().preprocess(getStandardExample());
+        sirius.getMs1Analyzer().computeAndScoreIsotopePattern(processedInput);
+        final FragmentationPatternAnalysis analysis = sirius.getMs2Analyzer();
+        final ProcessedInput scored = analysis.performPeakScoring(analysis.performDecomposition(processedInput));
+        final TreeBuilder clp = TreeBuilderFactory.getInstance().getTreeBuilder("clp");
+        final TreeBuilder bnb = TreeBuilderFactory.getInstance().getTreeBuilder("bnb");
+
+        final List<Decomposition> decompositions = scored.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        for (Decomposition decomposition : decompositions.subList(0, Math.min(20, decompositions.size()))) {
+            final FGraph graph = analysis.buildGraph(scored, decomposition);
+            final TreeBuilder.Result expected = clp.computeTree().solve(scored, graph);
+            final TreeBuilder.Result result = bnb.computeTree().solve(scored, graph);
+            assertTrue(result.isOptimal);
+            assertEquals(decomposition.toString(), expected.tree.getTreeWeight(), result.tree.getTreeWeight(), 1e-6);
+        }
+    }
+
+
+    @Test
+    public void testGraphsFromDecompositionTable() throws IOException, URISyntaxException {
+        final FragmentationPatternAnalysis analysis = sirius.getMs2Analyzer();
+
+        final ProcessedInput scored = scoredInput(getStandardExample());
+        assertSameGraphs(scored);
+
+        // recalibration replaces the decomposition lists, so the table stored in the input is outdated and rebuilt
+        final ProcessedInput recalibrated = scoredInput(getStandardExample());
+        final FragmentDecompositionTable outdated = recalibrated.getAnnotationOrThrow(FragmentDecompositionTable.class);
+        recalibrated.setAnnotation(SpectralRecalibration.class, new SpectralRecalibration(null, new RecalibrationFunction(new double[]{0.002, 1d - 2e-6})));
+        analysis.performDecomposition(recalibrated);
+        recalibrated.setAnnotation(FragmentDecompositionTable.class, outdated);
+        final FragmentDecompositionTable rebuilt = FragmentDecompositionTable.of(recalibrated);
+        assertNotSame(outdated, rebuilt);
+        assertSame("rebuilt table is stored in the input", rebuilt, FragmentDecompositionTable.of(recalibrated));
+        assertSameGraphs(recalibrated);
+
+        // formulas of every second peak use a different table selection, so the table cannot store element rows
+        final ProcessedInput mixed = scoredInput(getStandardExample());
+        final PeakAnnotation<DecompositionList> decompositionLists = mixed.getPeakAnnotationOrThrow(DecompositionList.class);
+        for (ProcessedPeak peak : mixed.getMergedPeaks()) {
+            final DecompositionList list = decompositionLists.get(peak);
+            if (list == null || peak == mixed.getParentPeak() || peak.getIndex() % 2 == 0) continue;
+            final List<Decomposition> copies = new ArrayList<>();
+            for (Decomposition d : list.getDecompositions()) {
+                final MolecularFormula f = d.getCandidate();
+                copies.add(new Decomposition(MolecularFormula.fromCompomer(f.getTableSelection().clone(), f.copyToBuffer()), d.getIon(), d.getScore()));
+            }
+            decompositionLists.set(peak, new DecompositionList(copies));
+        }
+        assertSameGraphs(mixed);
+    }
+
+    private ProcessedInput scoredInput(Ms2Experiment experiment) {
+        final ProcessedInput processedInput = new Ms2Preprocessor().preprocess(experiment);
+        sirius.getMs1Analyzer().computeAndScoreIsotopePattern(processedInput);
+        final FragmentationPatternAnalysis analysis = sirius.getMs2Analyzer();
+        return analysis.performPeakScoring(analysis.performDecomposition(processedInput));
+    }
+
+    private static void assertSameGraphs(ProcessedInput input) {
+        final SubFormulaGraphBuilder builder = new SubFormulaGraphBuilder();
+        final LossValidator allowAll = (in, graph, a, b) -> false;
+        final List<Decomposition> decompositions = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        assertFalse(decompositions.isEmpty());
+        for (Decomposition root : decompositions.subList(0, Math.min(10, decompositions.size()))) {
+            final FGraph expected = fillGraphPeakByPeak(input, builder.addRoot(builder.initializeEmptyGraph(input), input.getParentPeak(), List.of(root)), Set.of(root.getIon()), allowAll);
+            final FGraph actual = builder.fillGraph(input, builder.addRoot(builder.initializeEmptyGraph(input), input.getParentPeak(), List.of(root)), Set.of(root.getIon()), allowAll);
+            assertEquals(root.toString(), expected.numberOfVertices(), actual.numberOfVertices());
+            assertEquals(root.toString(), expected.numberOfEdges(), actual.numberOfEdges());
+            for (int i = 0; i < expected.numberOfVertices(); ++i) {
+                final Fragment e = expected.getFragmentAt(i), a = actual.getFragmentAt(i);
+                assertEquals(e.getFormula(), a.getFormula());
+                assertEquals(e.getIonization(), a.getIonization());
+                assertEquals(e.getColor(), a.getColor());
+                assertEquals(e.getOutDegree(), a.getOutDegree());
+                for (int k = 0; k < e.getOutDegree(); ++k)
+                    assertEquals(e.getChildren(k).getVertexId(), a.getChildren(k).getVertexId());
+            }
+        }
+    }
+
+    /**
+     * graph construction as done before the {@link FragmentDecompositionTable}: walks the decomposition lists of all
+     * peaks and compares each decomposition with every vertex already in the graph
+     */
+    private static FGraph fillGraphPeakByPeak(ProcessedInput input, FGraph graph, Set<Ionization> allowedIonModes, LossValidator validator) {
+        final FragmentAnnotation<Decomposition> decomposition = graph.getOrCreateFragmentAnnotation(Decomposition.class);
+        final PeakAnnotation<DecompositionList> decompList = input.getPeakAnnotationOrThrow(DecompositionList.class);
+        final FragmentAnnotation<Peak> peakAno = graph.getOrCreateFragmentAnnotation(Peak.class);
+
+        MolecularFormula pmd = null;
+        for (Fragment root : graph.getFragmentsWithoutRoot())
+            pmd = pmd == null ? root.getFormula() : pmd.union(root.getFormula());
+
+        final ArrayList<ProcessedPeak> peaks = new ArrayList<>(input.getMergedPeaks());
+        peaks.sort(new ProcessedPeak.MassComparator());
+        for (int i = peaks.size() - 1; i >= 0; --i) {
+            final ProcessedPeak peak = peaks.get(i);
+            final int pi = peak.getIndex();
+            final DecompositionList list = decompList.get(peak);
+            if (list == null) continue;
+            for (Decomposition decomp : list.getDecompositions()) {
+                if (!allowedIonModes.contains(decomp.getIon())) continue;
+                final MolecularFormula formula = decomp.getCandidate();
+                if (formula.getMass() >= pmd.getMass() || !pmd.isSubtractable(formula)) continue;
+                Fragment newFragment = null;
+                for (Fragment f : new ArrayList<>(graph.getFragments())) {
+                    if (f.isRoot() || f.getColor() == pi) continue;
+                    if (!f.getFormula().isEmpty() && f.getFormula().isSubtractable(formula)) {
+                        if (newFragment == null) {
+                            newFragment = graph.addFragment(formula, decomp.getIon());
+                            peakAno.set(newFragment, peak);
+                            newFragment.setColor(pi);
+                            newFragment.setPeakId(pi);
+                            decomposition.set(newFragment, decomp);
+                        }
+                        if (!validator.isForbidden(input, graph, f, newFragment))
+                            graph.addLoss(f, newFragment);
+                    }
+                }
+            }
+        }
+        return graph;
+    }
+
+    @Test
+    public void testCandidatePruningKeepsTopTrees() throws IOException, URISyntaxException {
+        final PrecursorIonType protonated = PrecursorIonType.getPrecursorIonType("[M+H]+");
+        final MutableMs2Experiment experiment = getStandardExample();
+        experiment.setPrecursorIonType(PrecursorIonType.unknown(1));
+        experiment.setAnnotation(AdductSettings.class, experiment.getAnnotationOrDefault(AdductSettings.class).withEnforced(new HashSet<>(Arrays.asList(protonated, PrecursorIonType.getPrecursorIonType("[M+Na]+")))));
+        experiment.setAnnotation(NumberOfCandidates.class, new NumberOfCandidates(5));
+        experiment.setAnnotation(NumberOfCandidatesPerIonization.class, new NumberOfCandidatesPerIonization(2));
+
+        // enforce the protonated candidate with the lowest root score, which is a likely candidate for pruning otherwise
+        final FragmentationPatternAnalysis analysis = sirius.getMs2Analyzer();
+        final ProcessedInput scored = analysis.performPeakScoring(analysis.performDecomposition(new Ms2Preprocessor().preprocess(experiment)));
+        final Decomposition worst = scored.getAnnotationOrThrow(DecompositionList.class).getDecompositions().stream()
+                .filter(d -> d.getIon().equals(protonated.getIonization()) && Double.isFinite(d.getScore()))
+                .min(Comparator.comparingDouble(Decomposition::getScore)).orElseThrow();
+        experiment.setAnnotation(Whiteset.class, Whiteset.empty().setRequiresDeNovo().addEnforedNeutral(Set.of(worst.getCandidate()), SiriusTest.class));
+
+        final FasterTreeComputationInstance.FinalResult pruned = computeTrees(experiment, true);
+        final FasterTreeComputationInstance.FinalResult exhaustive = computeTrees(experiment, false);
+        assertEquals(0, exhaustive.getNumberOfPrunedCandidates());
+        assertTrue("candidates far below the best tree are pruned", pruned.getNumberOfPrunedCandidates() > 0);
+
+        final List<FTree> expected = exhaustive.getResults(), actual = pruned.getResults();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).getRoot().getFormula(), actual.get(i).getRoot().getFormula());
+            assertEquals(expected.get(i).getAnnotationOrThrow(PrecursorIonType.class), actual.get(i).getAnnotationOrThrow(PrecursorIonType.class));
+            assertEquals(expected.get(i).getTreeWeight(), actual.get(i).getTreeWeight(), 1e-9);
+        }
+        assertTrue("enforced formula is always part of the results", actual.stream().anyMatch(t -> t.getRoot().getFormula().equals(worst.getCandidate())));
+
+        // each pruned candidate would have contributed less than 1e-6 to the normalization
+        final double[] expectedScores = normalizedScores(exhaustive), actualScores = normalizedScores(pruned);
+        for (int i = 0; i < expectedScores.length; ++i)
+            assertEquals(expectedScores[i], actualScores[i], pruned.getNumberOfPrunedCandidates() * 1e-6 + 1e-9);
+    }
+
+    private static double[] normalizedScores(FasterTreeComputationInstance.FinalResult result) {
+        final double normalization = result.getResults().stream().mapToDouble(t -> Math.exp(t.getTreeWeight() - result.maxTreeWeight)).sum() + result.remainingCandidatesTreeWeightExpSumEstimate;
+        return result.getResults().stream().mapToDouble(t -> Math.exp(t.getTreeWeight() - result.maxTreeWeight) / normalization).toArray();
+    }
+
+    private FasterTreeComputationInstance.FinalResult computeTrees(Ms2Experiment experiment, boolean candidatePruning) {
+        final ProcessedInput processedInput = new Ms2Preprocessor().preprocess(experiment);
+        sirius.getMs1Analyzer().computeAndScoreIsotopePattern(processedInput);
+        final FasterTreeComputationInstance instance = new FasterTreeComputationInstance(sirius.getMs2Analyzer(), processedInput);
+        instance.setCandidatePruning(candidatePruning);
+        return SiriusJobs.getGlobalJobManager().submitJob(instance).takeResult();
+    }
 
     @Test
     public void testTreeSerialization() throws IOException {
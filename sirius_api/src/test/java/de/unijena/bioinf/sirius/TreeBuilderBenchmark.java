@@ -0,0 +1,77 @@
+package de.unijena.bioinf.sirius;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilderFactory;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import de.unijena.bioinf.sirius.annotations.DecompositionList;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares running time and tree scores of tree builders on the graphs of all formula candidates of the test spectra.
+ * The first solver is the reference for the scores.
+ * <p>
+ * Usage: TreeBuilderBenchmark [solvers, default: clp,bnb] [rounds, default: 5]
+ */
+public class TreeBuilderBenchmark {
+
+    private static final String[] SPECTRA = {"/Bicuculline.ms", "/Kaempferol.ms"};
+
+    public static void main(String[] args) throws Exception {
+        final String[] solvers = (args.length > 0 ? args[0] : "clp,bnb").split(",");
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final Sirius sirius = new Sirius("qtof");
+        final FragmentationPatternAnalysis analysis = sirius.getMs2Analyzer();
+        final List<ProcessedInput> inputs = new ArrayList<>();
+        final List<FGraph> graphs = new ArrayList<>();
+        for (String resource : SPECTRA) {
+            final URL url = TreeBuilderBenchmark.class.getResource(resource);
+            final Ms2Experiment experiment;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()))) {
+                experiment = new JenaMsParser().parse(reader, url.toURI());
+            }
+            final ProcessedInput processedInput = new Ms2Preprocessor().preprocess(experiment);
+            sirius.getMs1Analyzer().computeAndScoreIsotopePattern(processedInput);
+            final ProcessedInput scored = analysis.performPeakScoring(analysis.performDecomposition(processedInput));
+            for (Decomposition decomposition : scored.getAnnotationOrThrow(DecompositionList.class).getDecompositions()) {
+                inputs.add(scored);
+                graphs.add(analysis.buildGraph(scored, decomposition));
+            }
+        }
+        System.out.println(graphs.size() + " graphs with up to " + graphs.stream().mapToInt(FGraph::numberOfEdges).max().orElse(0) + " edges");
+
+        final double[] reference = new double[graphs.size()];
+        for (int s = 0; s < solvers.length; ++s) {
+            final TreeBuilder builder = TreeBuilderFactory.getInstance().getTreeBuilder(solvers[s]);
+            if (builder == null) {
+                System.out.println(solvers[s] + ": not available");
+                continue;
+            }
+            final double[] millis = new double[rounds];
+            double maxDifference = 0d;
+            for (int round = 0; round <= rounds; ++round) {
+                final long start = System.nanoTime();
+                for (int i = 0; i < graphs.size(); ++i) {
+                    final double score = builder.computeTree().solve(inputs.get(i), graphs.get(i)).tree.getTreeWeight();
+                    if (s == 0) reference[i] = score;
+                    else maxDifference = Math.max(maxDifference, Math.abs(reference[i] - score));
+                }
+                // first round is warmup
+                if (round > 0) millis[round - 1] = (System.nanoTime() - start) / 1e6 / graphs.size();
+            }
+            Arrays.sort(millis);
+            System.out.printf("%-6s median %8.3f ms/graph, min %8.3f ms/graph, max score difference to %s: %.2e%n",
+                    solvers[s], millis[rounds / 2], millis[0], solvers[0], maxDifference);
+        }
+    }
+}
@@ -19,6 +19,7 @@
 
 package de.unijena.bioinf.ms.frontend.subtools.canopus;
 
+import de.unijena.bioinf.canopus.Canopus;
 import de.unijena.bioinf.ms.frontend.subtools.InstanceJob;
 import de.unijena.bioinf.ms.frontend.subtools.Provide;
 import de.unijena.bioinf.ms.frontend.subtools.ToolChainOptions;
@@ -28,6 +29,8 @@ import de.unijena.bioinf.ms.frontend.subtools.msnovelist.MsNovelistOptions;
 import de.unijena.bioinf.projectspace.Instance;
 import picocli.CommandLine;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.function.Consumer;
 
@@ -41,15 +44,22 @@ import java.util.function.Consumer;
 @CommandLine.Command(name = "classes", aliases = {"canopus", "compound-classes"}, description = "@|bold <COMPOUND TOOL>|@ Predict compound categories for each compound individually based on its predicted molecular fingerprint (CSI:FingerID) using CANOPUS. %n %n", versionProvider = Provide.Versions.class,  mixinStandardHelpOptions = true, showDefaultValues = true)
 public class CanopusOptions implements ToolChainOptions<CanopusSubToolJob, InstanceJob.Factory<CanopusSubToolJob>> {
     protected final DefaultParameterConfigLoader defaultConfigOptions;
+    protected Canopus localModel = null;
 
     public CanopusOptions(DefaultParameterConfigLoader defaultConfigOptions) {
         this.defaultConfigOptions = defaultConfigOptions;
     }
 
+    @CommandLine.Option(names = "--model", hidden = true,
+            description = "Predict compound classes locally with the given CANOPUS model file instead of using the web service. All formula candidates of a compound are predicted in one batch.")
+    public void setLocalModel(File modelFile) throws IOException {
+        localModel = Canopus.loadFromFile(modelFile);
+    }
+
     @Override
     public InstanceJob.Factory<CanopusSubToolJob> call() throws Exception {
         return new InstanceJob.Factory<>(
-                CanopusSubToolJob::new,
+                submitter -> new CanopusSubToolJob(submitter, localModel),
                 getInvalidator()
         );
     }
@@ -19,7 +19,10 @@
 
 package de.unijena.bioinf.ms.frontend.subtools.canopus;
 
+import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.canopus.Canopus;
+import de.unijena.bioinf.canopus.CanopusBatchPredictionJJob;
 import de.unijena.bioinf.canopus.CanopusResult;
 import de.unijena.bioinf.fingerid.FingerprintResult;
 import de.unijena.bioinf.jjobs.JobSubmitter;
@@ -32,17 +35,34 @@ import de.unijena.bioinf.projectspace.FCandidate;
 import de.unijena.bioinf.projectspace.Instance;
 import de.unijena.bioinf.rest.NetUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 public class CanopusSubToolJob extends InstanceJob {
     private Map<FCandidate<?>, WebJJob<CanopusJobInput, ?, CanopusResult, ?>> jobs;
+    @Nullable
+    private final Canopus localModel;
+
     public CanopusSubToolJob(JobSubmitter submitter) {
+        this(submitter, null);
+    }
+
+    /**
+     * @param localModel if not null, all formula candidates of an instance are predicted locally in one batch
+     *                   with this model instead of submitting one web job per candidate.
+     */
+    public CanopusSubToolJob(JobSubmitter submitter, @Nullable Canopus localModel) {
         super(submitter);
-        asWEBSERVICE();
+        this.localModel = localModel;
+        if (localModel == null)
+            asWEBSERVICE();
+        else
+            asCPU();
     }
 
     @Override
@@ -78,13 +98,17 @@ public class CanopusSubToolJob extends InstanceJob {
         final int specHash = Spectrums.mergeSpectra(inst.getExperiment().getMs2Spectra()).hashCode();
         updateProgress(25);
 
-        // submit canopus jobs for Identification results that contain CSI:FingerID results
-        jobs = inputData.stream().collect(Collectors.toMap(r -> r, ir -> buildAndSubmitRemote(ir, specHash)));
-        updateProgress(30);
+        if (localModel != null) {
+            predictLocally(inputData);
+        } else {
+            // submit canopus jobs for Identification results that contain CSI:FingerID results
+            jobs = inputData.stream().collect(Collectors.toMap(r -> r, ir -> buildAndSubmitRemote(ir, specHash)));
+            updateProgress(30);
 
 
-        checkForInterruption();
-        jobs.forEach((k, v) -> k.setAnnotation(CanopusResult.class, v.takeResult()));
+            checkForInterruption();
+            jobs.forEach((k, v) -> k.setAnnotation(CanopusResult.class, v.takeResult()));
+        }
         updateProgress(80);
 
         // write canopus results
@@ -92,6 +116,16 @@ public class CanopusSubToolJob extends InstanceJob {
         updateProgress(97);
     }
 
+    private void predictLocally(@NotNull final List<FCandidate<?>> inputData) throws Exception {
+        final ProbabilityFingerprint[][] predictions = submitSubJob(new CanopusBatchPredictionJJob(localModel,
+                inputData.stream().map(FCandidate::getMolecularFormula).toList(),
+                inputData.stream().map(c -> c.getAnnotationOrThrow(FingerprintResult.class).fingerprint).toList(),
+                EnumSet.of(Canopus.Predictable.ClassyFire, Canopus.Predictable.NPC))).awaitResult();
+        checkForInterruption();
+        for (int i = 0; i < predictions.length; ++i)
+            inputData.get(i).setAnnotation(CanopusResult.class, new CanopusResult(predictions[i][0], predictions[i][1]));
+    }
+
     private WebJJob<CanopusJobInput, ?, CanopusResult, ?> buildAndSubmitRemote(@NotNull final FCandidate<?> ir, int specHash)  {
         try {
             return ApplicationCore.WEB_API.submitCanopusJob(
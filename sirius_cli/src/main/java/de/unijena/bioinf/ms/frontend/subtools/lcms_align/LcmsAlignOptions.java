@@ -73,6 +73,21 @@ public class LcmsAlignOptions implements PreprocessingTool<PreprocessingJob<? ex
     @CommandLine.Option(names={"--merge"}, defaultValue = "0.8", description = "Merge neighboring features with valley less than <value> * intensity.", hidden = true)
     public double mergeCoefficient;
 
+    @CommandLine.Option(names={"--samples-in-flight"}, defaultValue = "-1", description = "Maximum number of LC/MS runs that are processed at the same time. Values smaller than 1 mean: number of CPU threads.", hidden = true)
+    public int samplesInFlight;
+
+    @CommandLine.Option(names={"--concurrent-trace-picking"}, defaultValue = "false", description = "Pick the traces of a single LC/MS run concurrently in m/z stripes.", hidden = true)
+    public boolean concurrentTracePicking;
+
+    @CommandLine.Option(names={"--scan-cache"}, defaultValue = "-1", description = "Size of the scan cache shared by all LC/MS runs in megabytes. 0 disables the cache. Negative values use the default size.", hidden = true)
+    public int scanCacheSize;
+
+    @CommandLine.Option(names={"--columnar-traces"}, defaultValue = "false", description = "Store the traces of the LC/MS runs in memory mapped column files instead of the temporary database. Not used together with --keep-alignment.", hidden = true)
+    public boolean columnarTraces;
+
+    @CommandLine.Option(names={"--keep-alignment"}, defaultValue = "false", description = "Keep the processed LC/MS runs next to the project, such that further runs can be aligned into this project later on without aligning all runs again. Note that adducts and compounds are still detected again for all features of the project.", hidden = true)
+    public boolean keepAlignment;
+
     @CommandLine.Option(names={"--statistics"}, required = false, hidden = true)
     public File statistics;
 
@@ -20,6 +20,7 @@
 package de.unijena.bioinf.ms.frontend.subtools.lcms_align;
 
 import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.DetectedAdducts;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.utils.DataQuality;
@@ -32,7 +33,10 @@ import de.unijena.bioinf.lcms.adducts.assignment.OptimalAssignmentViaBeamSearch;
 import de.unijena.bioinf.lcms.align.AlignmentBackbone;
 import de.unijena.bioinf.lcms.align.MoI;
 import de.unijena.bioinf.lcms.projectspace.SiriusProjectDocumentDbAdapter;
+import de.unijena.bioinf.lcms.spectrum.ScanCache;
 import de.unijena.bioinf.lcms.quality.*;
+import de.unijena.bioinf.lcms.trace.AlignmentWorkspace;
+import de.unijena.bioinf.lcms.trace.LCMSStorage;
 import de.unijena.bioinf.lcms.trace.ProcessedSample;
 import de.unijena.bioinf.lcms.trace.filter.GaussFilter;
 import de.unijena.bioinf.lcms.trace.filter.NoFilter;
@@ -47,6 +51,7 @@ import de.unijena.bioinf.ms.persistence.model.core.QualityReport;
 import de.unijena.bioinf.ms.persistence.model.core.feature.AbstractFeature;
 import de.unijena.bioinf.ms.persistence.model.core.feature.AlignedFeatures;
 import de.unijena.bioinf.ms.persistence.model.core.feature.CorrelatedIonPair;
+import de.unijena.bioinf.ms.persistence.model.core.run.Chromatography;
 import de.unijena.bioinf.ms.persistence.model.core.run.MergedLCMSRun;
 import de.unijena.bioinf.ms.persistence.model.core.run.RetentionTimeAxis;
 import de.unijena.bioinf.ms.persistence.model.core.spectrum.MSData;
@@ -70,6 +75,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -87,6 +93,30 @@ public class LcmsAlignSubToolJobNoSql extends PreprocessingJob<ProjectSpaceManag
 
     private final boolean alignRuns;
 
+    private final int samplesInFlight;
+
+    private final boolean concurrentTracePicking;
+
+    private final int scanCacheSize;
+
+    /**
+     * store the traces of the temporary storages in memory mapped column files
+     */
+    private final boolean columnarTraces;
+
+    /**
+     * keep the processed runs in an {@link AlignmentWorkspace} next to the project, such that further runs can be
+     * aligned into the project later on
+     */
+    private final boolean keepAlignment;
+
+    /**
+     * project property with the name of the alignment workspace directory, which lies next to the project file
+     */
+    private static final String ALIGNMENT_WORKSPACE_PROPERTY = "lcmsAlignmentWorkspace";
+
+    private static final String ALIGNMENT_WORKSPACE_SUFFIX = ".lcms";
+
     @Getter
     @Nullable
     private LongLinkedOpenHashSet importedFeatureIds = null;
@@ -120,6 +150,11 @@ public class LcmsAlignSubToolJobNoSql extends PreprocessingJob<ProjectSpaceManag
             case SAVITZKY_GOLAY -> new SavitzkyGolayFilter();
         }, options.noiseCoefficient, options.persistenceCoefficient, options.mergeCoefficient);
         this.saveImportedCompounds = false;
+        this.samplesInFlight = options.samplesInFlight;
+        this.concurrentTracePicking = options.concurrentTracePicking;
+        this.scanCacheSize = options.scanCacheSize;
+        this.columnarTraces = options.columnarTraces;
+        this.keepAlignment = options.keepAlignment;
     }
 
     public LcmsAlignSubToolJobNoSql(
@@ -146,63 +181,85 @@ public class LcmsAlignSubToolJobNoSql extends PreprocessingJob<ProjectSpaceManag
             case SAVITZKY_GOLAY -> new SavitzkyGolayFilter();
         }, noise, persistence, merge);
         this.saveImportedCompounds = saveImportedCompounds;
+        this.samplesInFlight = -1;
+        this.concurrentTracePicking = false;
+        this.scanCacheSize = -1;
+        this.columnarTraces = false;
+        this.keepAlignment = false;
     }
 
     private void compute(SiriusProjectDatabaseImpl<? extends Database<?>> ps, List<Path> files) throws IOException {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
-        setProjectTypeOrThrow(ps);
-
-        LCMSProcessing processing = new LCMSProcessing(new SiriusProjectDocumentDbAdapter(ps), saveImportedCompounds, ps.getStorage().location().getParent());
+        final boolean addToAlignment = setProjectTypeOrThrow(ps);
+
+        if (scanCacheSize >= 0)
+            ScanCache.configureGlobal(scanCacheSize * 1024L * 1024L);
+
+        final LCMSProcessing processing;
+        if (addToAlignment) {
+            processing = new LCMSProcessing(new SiriusProjectDocumentDbAdapter(ps), saveImportedCompounds, new AlignmentWorkspace(findAlignmentWorkspace(ps).orElseThrow()));
+        } else if (alignRuns && keepAlignment) {
+            final Path location = ps.getStorage().location();
+            final Path workspace = location.resolveSibling(location.getFileName() + ALIGNMENT_WORKSPACE_SUFFIX);
+            processing = new LCMSProcessing(new SiriusProjectDocumentDbAdapter(ps), saveImportedCompounds, new AlignmentWorkspace(workspace));
+            ps.upsertProjectProperty(ALIGNMENT_WORKSPACE_PROPERTY, workspace.getFileName().toString());
+        } else if (columnarTraces) {
+            processing = new LCMSProcessing(new SiriusProjectDocumentDbAdapter(ps), saveImportedCompounds, LCMSStorage.temporaryColumnarStorage(ps.getStorage().location().getParent().toFile()));
+        } else {
+            processing = new LCMSProcessing(new SiriusProjectDocumentDbAdapter(ps), saveImportedCompounds, ps.getStorage().location().getParent());
+        }
         processing.setMergedTraceSegmentationStrategy(mergedTraceSegmenter);
+        processing.setConcurrentTracePicking(concurrentTracePicking);
 
         try {
+            final AlignmentBackbone previous = addToAlignment ? processing.restoreWorkspace().orElseThrow(() ->
+                    new ProjectStateException("The stored alignment of this project is missing or incomplete. Additional data cannot be added. Please create a new project to import your data.")) : null;
             {
                 updateProgress(totalProgress, progress, "Processing Runs");
-                List<BasicJJob<ProcessedSample>> jobs = new ArrayList<>();
-                int atmost = Integer.MAX_VALUE;
-                for (Path f : files) {
-                    if (--atmost < 0) break;
-                    jobs.add(SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<ProcessedSample>() {
-                        @Override
-                        protected ProcessedSample compute() throws Exception {
-                            ProcessedSample sample = processing.processSample(f);
-                            int hasIsotopes = 0, hasNoIsotopes = 0;
-                            for (MoI m : sample.getStorage().getAlignmentStorage()) {
-                                if (m.hasIsotopes()) ++hasIsotopes;
-                                else ++hasNoIsotopes;
-                            }
-                            sample.inactive();
-                            System.out.println(sample.getUid() + " with " + hasIsotopes + " / " + (hasIsotopes + hasNoIsotopes) + " isotope features");
-                            return sample;
-                        }
-                    }));
-                }
-
-                int count = 0;
-                for (BasicJJob<ProcessedSample> job : jobs) {
-                    System.out.println(job.takeResult().getUid() + " (" + ++count + " / " + jobs.size() + ")");
-                    updateProgress(totalProgress, ++progress, "Processing Runs");
-                }
+                processing.setSamplesInFlight(samplesInFlight);
+                final int[] count = new int[1];
+                processing.processSamples(files, false, Chromatography.LC, sample -> {
+                    int hasIsotopes = 0, hasNoIsotopes = 0;
+                    for (MoI m : sample.getStorage().getAlignmentStorage()) {
+                        if (m.hasIsotopes()) ++hasIsotopes;
+                        else ++hasNoIsotopes;
+                    }
+                    synchronized (count) {
+                        log.info("{} with {} / {} isotope features ({} / {})", sample.getUid(), hasIsotopes, hasIsotopes + hasNoIsotopes, ++count[0], files.size());
+                        updateProgress(totalProgress, ++progress, "Processing Runs");
+                    }
+                });
             }
 
             updateProgress(totalProgress, progress, "Aligning runs");
-            AlignmentBackbone bac = processing.align();
+            final AlignmentBackbone bac;
+            final ProcessedSample merged;
             HashMap<DataQuality, Integer> countMap;
-
-            updateProgress(totalProgress, ++progress, "Merging runs");
-            ProcessedSample merged = processing.merge(bac);
-            DoubleArrayList avgAl = new DoubleArrayList();
-            System.out.println("AVERAGE = " + avgAl.doubleStream().sum() / avgAl.size());
-            System.out.println("Good Traces = " + avgAl.doubleStream().filter(x -> x >= 5).sum());
-
-            updateProgress(totalProgress, ++progress, "Importing features");
-            if (processing.extractFeaturesAndExportToProjectSpace(merged, bac) == 0) {
-                System.err.println("No features found.");
+            if (previous != null) {
+                // only the merged traces containing the new runs are merged and imported again
+                bac = processing.updateAlignmentIncrementally(previous);
+                merged = processing.getRestoredMerged();
                 progress += 2;
-                updateProgress(totalProgress, progress, "No features");
-                return;
+                updateProgress(totalProgress, progress, "Importing features");
+                removeAdductNetworks(ps);
+            } else {
+                bac = processing.align();
+
+                updateProgress(totalProgress, ++progress, "Merging runs");
+                merged = processing.merge(bac);
+                DoubleArrayList avgAl = new DoubleArrayList();
+                System.out.println("AVERAGE = " + avgAl.doubleStream().sum() / avgAl.size());
+                System.out.println("Good Traces = " + avgAl.doubleStream().filter(x -> x >= 5).sum());
+
+                updateProgress(totalProgress, ++progress, "Importing features");
+                if (processing.extractFeaturesAndExportToProjectSpace(merged, bac) == 0) {
+                    System.err.println("No features found.");
+                    progress += 2;
+                    updateProgress(totalProgress, progress, "No features");
+                    return;
+                }
             }
             importedFeatureIds.addAll(processing.getImportedFeatureIds());
 
@@ -320,7 +377,10 @@ public class LcmsAlignSubToolJobNoSql extends PreprocessingJob<ProjectSpaceManag
         }
     }
 
-    private void setProjectTypeOrThrow(SiriusProjectDatabaseImpl<? extends Database<?>> ps) {
+    /**
+     * @return true if the runs have to be added to the alignment stored with the project
+     */
+    private boolean setProjectTypeOrThrow(SiriusProjectDatabaseImpl<? extends Database<?>> ps) {
         Optional<ProjectType> psType = ps.findProjectType();
         if (psType.isPresent()) {
             switch (psType.get()) {
@@ -331,11 +391,42 @@ public class LcmsAlignSubToolJobNoSql extends PreprocessingJob<ProjectSpaceManag
                 case UNALIGNED_RUNS -> {
                     if (alignRuns) throw new ProjectStateException("Project already contains preprocessed features from aligning MS runs. Additional data cannot be added. Please create a new project to import your data.");
                 }
-                default ->
-                        throw new ProjectStateException("Project already contains preprocessed features. It is currently not supported to add additional data after preprocessing has been performed. Please create a new project to import your data.");
+                default -> {
+                    if (alignRuns && findAlignmentWorkspace(ps).isPresent()) return true;
+                    throw new ProjectStateException("Project already contains preprocessed features. It is currently not supported to add additional data after preprocessing has been performed. Please create a new project to import your data.");
+                }
             }
         } else {
-            ps.upsertProjectType(alignRuns && inputFiles.size() > 1 ? ProjectType.ALIGNED_RUNS : ProjectType.UNALIGNED_RUNS);
+            ps.upsertProjectType(alignRuns && (inputFiles.size() > 1 || keepAlignment) ? ProjectType.ALIGNED_RUNS : ProjectType.UNALIGNED_RUNS);
+        }
+        return false;
+    }
+
+    /**
+     * @return directory of the alignment workspace stored with the project, or empty if the runs were aligned without keeping it
+     */
+    private static Optional<Path> findAlignmentWorkspace(SiriusProjectDatabaseImpl<? extends Database<?>> ps) {
+        return ps.findProjectPropertyAsString(ALIGNMENT_WORKSPACE_PROPERTY)
+                .map(name -> ps.getStorage().location().resolveSibling(name))
+                .filter(Files::isDirectory);
+    }
+
+    /**
+     * The adduct network is built from all features of the project. Before it is built again for an updated alignment,
+     * compounds, networks and adducts of the previous network are removed.
+     * <p>
+     * Known limitation: this touches every feature of the project, not only the features whose alignment changed, so
+     * adduct detection of an incremental run takes time proportional to the project size. Restricting it would require
+     * rebuilding only the networks that are connected to the re-imported features.
+     */
+    private static void removeAdductNetworks(SiriusProjectDatabaseImpl<? extends Database<?>> ps) throws IOException {
+        ps.getStorage().removeAll(ps.getStorage().findAll(Compound.class));
+        ps.getStorage().removeAll(ps.getStorage().findAll(de.unijena.bioinf.ms.persistence.model.core.networks.AdductNetwork.class));
+        for (AlignedFeatures feature : ps.getStorage().findAllStr(AlignedFeatures.class).toList()) {
+            if (feature.getDetectedAdducts() != null)
+                feature.getDetectedAdducts().removeAllWithSource(DetectedAdducts.Source.LCMS_ALIGN);
+            feature.setAdductNetworkId(null);
+            ps.getStorage().upsert(feature);
         }
     }
 
@@ -352,7 +443,8 @@ public class LcmsAlignSubToolJobNoSql extends PreprocessingJob<ProjectSpaceManag
             totalProgress = inputFiles.size() + 5L;
             compute(ps, inputFiles);
         } else {
-            // TODO parallelize
+            // runs are imported one after another, each of them into the same project and with its own adduct network.
+            // Within a run, traces can be picked concurrently (--concurrent-trace-picking)
             totalProgress = inputFiles.size() * 5L + 1;
             int atmost = Integer.MAX_VALUE;
             for (Path f : inputFiles) {
@@ -0,0 +1,156 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.subtools.similarity;
+
+import de.unijena.bioinf.ChemistryBase.utils.FileUtils;
+import org.apache.commons.text.StringEscapeUtils;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Streams the edges of a similarity network to disk. Edges reference nodes by their position in the node list the
+ * writer was created with.
+ */
+public abstract class SimilarityEdgeWriter implements Closeable {
+
+    public record Node(String id, String name, double ionMass) {
+    }
+
+    protected final BufferedWriter writer;
+    protected final List<Node> nodes;
+    private final int digits;
+
+    protected SimilarityEdgeWriter(Path file, List<Node> nodes, int digits) throws IOException {
+        this.writer = FileUtils.getWriter(file.toFile());
+        this.nodes = nodes;
+        this.digits = digits;
+    }
+
+    /**
+     * Tab separated edge list with one edge per line. Nodes are referenced by their id.
+     */
+    public static SimilarityEdgeWriter tsv(Path file, List<Node> nodes, int digits) throws IOException {
+        return new Tsv(file, nodes, digits);
+    }
+
+    /**
+     * GraphML document containing all nodes and the edges of a single similarity measure.
+     */
+    public static SimilarityEdgeWriter graphml(Path file, List<Node> nodes, int digits) throws IOException {
+        return new GraphML(file, nodes, digits);
+    }
+
+    /**
+     * writes all nodes as tab separated table, used as node table for {@link #tsv(Path, List, int)} edge lists.
+     */
+    public static void writeNodeTable(Path file, List<Node> nodes) throws IOException {
+        try (BufferedWriter bw = FileUtils.getWriter(file.toFile())) {
+            bw.write("id\tname\tionMass");
+            bw.newLine();
+            for (Node node : nodes) {
+                bw.write(node.id());
+                bw.write('\t');
+                bw.write(node.name() == null ? "" : node.name());
+                bw.write('\t');
+                bw.write(String.valueOf(node.ionMass()));
+                bw.newLine();
+            }
+        }
+    }
+
+    public abstract void writeEdge(int source, int target, double similarity, int sharedPeaks) throws IOException;
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    protected String format(double value) {
+        if (digits < 0)
+            return String.valueOf(value);
+        return BigDecimal.valueOf(value).setScale(digits, RoundingMode.HALF_UP).toString();
+    }
+
+    private static class Tsv extends SimilarityEdgeWriter {
+        private Tsv(Path file, List<Node> nodes, int digits) throws IOException {
+            super(file, nodes, digits);
+            writer.write("source\ttarget\tsimilarity\tsharedPeaks");
+            writer.newLine();
+        }
+
+        @Override
+        public void writeEdge(int source, int target, double similarity, int sharedPeaks) throws IOException {
+            writer.write(nodes.get(source).id());
+            writer.write('\t');
+            writer.write(nodes.get(target).id());
+            writer.write('\t');
+            writer.write(format(similarity));
+            writer.write('\t');
+            writer.write(String.valueOf(sharedPeaks));
+            writer.newLine();
+        }
+    }
+
+    private static class GraphML extends SimilarityEdgeWriter {
+        private GraphML(Path file, List<Node> nodes, int digits) throws IOException {
+            super(file, nodes, digits);
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+            writer.write("  <key id=\"name\" for=\"node\" attr.name=\"name\" attr.type=\"string\"/>\n");
+            writer.write("  <key id=\"ionMass\" for=\"node\" attr.name=\"ionMass\" attr.type=\"double\"/>\n");
+            writer.write("  <key id=\"similarity\" for=\"edge\" attr.name=\"similarity\" attr.type=\"double\"/>\n");
+            writer.write("  <key id=\"sharedPeaks\" for=\"edge\" attr.name=\"sharedPeaks\" attr.type=\"int\"/>\n");
+            writer.write("  <graph edgedefault=\"undirected\">\n");
+            for (Node node : nodes) {
+                writer.write("    <node id=\"" + escape(node.id()) + "\">");
+                if (node.name() != null)
+                    writer.write("<data key=\"name\">" + escape(node.name()) + "</data>");
+                writer.write("<data key=\"ionMass\">" + node.ionMass() + "</data></node>\n");
+            }
+        }
+
+        @Override
+        public void writeEdge(int source, int target, double similarity, int sharedPeaks) throws IOException {
+            writer.write("    <edge source=\"" + escape(nodes.get(source).id()) + "\" target=\"" + escape(nodes.get(target).id()) + "\">");
+            writer.write("<data key=\"similarity\">" + format(similarity) + "</data>");
+            writer.write("<data key=\"sharedPeaks\">" + sharedPeaks + "</data></edge>\n");
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.write("  </graph>\n</graphml>\n");
+            super.close();
+        }
+
+        private static String escape(String value) {
+            return StringEscapeUtils.escapeXml10(value);
+        }
+    }
+}
@@ -25,25 +25,16 @@ import de.unijena.bioinf.ms.frontend.subtools.RootOptions;
 import de.unijena.bioinf.ms.frontend.subtools.StandaloneTool;
 import de.unijena.bioinf.ms.properties.ParameterConfig;
 import de.unijena.bioinf.projectspace.ProjectSpaceManager;
-import de.unijena.bioinf.projectspace.ProjectSpaceManagerFactory;
 import picocli.CommandLine;
 
 import java.io.File;
 
-@CommandLine.Command(name = "similarity",  description = "<STANDALONE> Computes the similarity between all compounds in the dataset and outputs a matrix of similarities. %n %n",  versionProvider = Provide.Versions.class, mixinStandardHelpOptions = true, showDefaultValues = true)
+@CommandLine.Command(name = "similarity",  description = "<STANDALONE> Computes the similarity between all compounds in the dataset and outputs a sparse similarity network containing all pairs above the similarity threshold. %n %n",  versionProvider = Provide.Versions.class, mixinStandardHelpOptions = true, showDefaultValues = true)
 public class SimilarityMatrixOptions implements StandaloneTool<SimilarityMatrixWorkflow> {
     @CommandLine.Option(names = {"--digits","--precision","-p"},
-            description = {"Specify number of digits used for values in the distance matrix. -1 -> full length Double value."}, defaultValue="-1")
+            description = {"Specify number of digits used for similarity values. -1 -> full length Double value."}, defaultValue="-1")
     protected int digits;
 
-    @CommandLine.Option(names = "--ftalign",
-            description = {"Compute fragmentation tree alignments between all compounds in the dataset."})
-    protected boolean useAlignment;
-
-    @CommandLine.Option(names = "--ftblast",
-            description = {"Compute fragmentation tree alignments between all compounds in the dataset, incorporating the given fragmentation tree library. The similarity is not the raw alignment score, but the correlation of the scores."})
-    protected File useFtblast;
-
     @CommandLine.Option(names = "--tanimoto",
             description = {"compute fingerprint similarity between all compounds in the dataset"})
     protected boolean useTanimoto;
@@ -57,30 +48,30 @@ public class SimilarityMatrixOptions implements StandaloneTool<SimilarityMatrixW
     protected boolean useCosine;
 
     @CommandLine.Option(names = "--modified-cosine",
-            description = {"Compute spectral cosine similarity between all compounds in the dataset"})
+            description = {"Compute modified spectral cosine similarity (matching fragments and neutral losses) between all compounds in the dataset"})
     protected boolean useModifiedCosine;
 
     @CommandLine.Option(names = "--minpeaks",defaultValue = "0",
-            description = {"For cosine: when less than K peaks are matching, set cosine to zero."})
+            description = {"For cosine: when less than K peaks are matching, the pair is not reported."})
     protected int useMinPeaks;
 
+    @CommandLine.Option(names = {"--threshold", "-t"}, defaultValue = "0.7",
+            description = {"Minimum similarity of a pair of compounds to be reported as edge of the network."})
+    protected double threshold;
 
+    @CommandLine.Option(names = "--max-mz-difference", defaultValue = "-1",
+            description = {"For cosine: maximum precursor m/z difference of a pair of compounds. -1 -> no restriction."})
+    protected double maxMzDifference;
 
-    @CommandLine.Option(names = {"--directory", "-d"}, defaultValue = ".", description = "Directory to store the matrices.")
+    @CommandLine.Option(names = {"--directory", "-d"}, defaultValue = ".", description = "Directory to store the networks.")
     protected File outputDirectory;
 
-    @CommandLine.Option(names = {"--numpy", "--matrix"},
-            description = "Write as tab separated file with a comment line containing the row/col names (numpy compatible). Otherwise, write as tab separated file with row and column names.")
-    public boolean numpy;
-
-    private final ProjectSpaceManagerFactory<?> projectSpaceManagerFactory;
-
-    public SimilarityMatrixOptions(ProjectSpaceManagerFactory<?> projectSpaceManagerFactory) {
-        this.projectSpaceManagerFactory = projectSpaceManagerFactory;
-    }
+    @CommandLine.Option(names = "--graphml",
+            description = "Write each network as GraphML file. Otherwise, write a tab separated edge list per network and a tab separated node table.")
+    public boolean graphml;
 
     @Override
     public SimilarityMatrixWorkflow makeWorkflow(RootOptions<?> rootOptions, ParameterConfig config) {
-        return new SimilarityMatrixWorkflow((PreprocessingJob<? extends ProjectSpaceManager>) rootOptions.makeDefaultPreprocessingJob(), projectSpaceManagerFactory, this, config);
+        return new SimilarityMatrixWorkflow((PreprocessingJob<? extends ProjectSpaceManager>) rootOptions.makeDefaultPreprocessingJob(), this, config);
     }
 }
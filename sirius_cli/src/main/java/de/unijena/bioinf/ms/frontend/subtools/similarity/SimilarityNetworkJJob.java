@@ -0,0 +1,141 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.subtools.similarity;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Computes a sparse similarity network between a set of nodes. The rows of the (virtual) similarity matrix are split
+ * into blocks that are scored in parallel by a {@link RowBlockScorer}. A scorer only reports pairs that reach its
+ * similarity threshold, so the dense matrix is never kept in memory. Finished blocks are streamed to a
+ * {@link SimilarityEdgeWriter} in row order, only a bounded number of blocks is in flight at any time.
+ */
+public class SimilarityNetworkJJob extends BasicMasterJJob<Long> {
+
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    @FunctionalInterface
+    public interface RowBlockScorer {
+        /**
+         * Scores all pairs (i, j) with {@code from <= i < to} and {@code i < j} and adds the pairs reaching the
+         * threshold to the given buffer. Called concurrently for different blocks.
+         */
+        void score(int from, int to, EdgeBuffer edges) throws Exception;
+    }
+
+    public static class EdgeBuffer {
+        private final IntArrayList sources = new IntArrayList(), targets = new IntArrayList(), sharedPeaks = new IntArrayList();
+        private final DoubleArrayList similarities = new DoubleArrayList();
+
+        public void add(int source, int target, double similarity, int numberOfSharedPeaks) {
+            sources.add(source);
+            targets.add(target);
+            similarities.add(similarity);
+            sharedPeaks.add(numberOfSharedPeaks);
+        }
+
+        public int size() {
+            return sources.size();
+        }
+
+        public int getSource(int k) {
+            return sources.getInt(k);
+        }
+
+        public int getTarget(int k) {
+            return targets.getInt(k);
+        }
+
+        public double getSimilarity(int k) {
+            return similarities.getDouble(k);
+        }
+
+        private void writeTo(SimilarityEdgeWriter writer) throws IOException {
+            for (int k = 0; k < sources.size(); ++k)
+                writer.writeEdge(sources.getInt(k), targets.getInt(k), similarities.getDouble(k), sharedPeaks.getInt(k));
+        }
+    }
+
+    private final int numberOfRows;
+    private final int blockSize;
+    private final RowBlockScorer scorer;
+    private final SimilarityEdgeWriter writer;
+
+    public SimilarityNetworkJJob(int numberOfRows, RowBlockScorer scorer, SimilarityEdgeWriter writer) {
+        this(numberOfRows, DEFAULT_BLOCK_SIZE, scorer, writer);
+    }
+
+    public SimilarityNetworkJJob(int numberOfRows, int blockSize, RowBlockScorer scorer, SimilarityEdgeWriter writer) {
+        super(JobType.SCHEDULER);
+        this.numberOfRows = numberOfRows;
+        this.blockSize = Math.max(1, blockSize);
+        this.scorer = scorer;
+        this.writer = writer;
+    }
+
+    /**
+     * @return number of edges written
+     */
+    @Override
+    protected Long compute() throws Exception {
+        final int numberOfBlocks = (numberOfRows + blockSize - 1) / blockSize;
+        final int maxBlocksInFlight = Math.max(2, 2 * SiriusJobs.getCPUThreads());
+        final ArrayDeque<BasicJJob<EdgeBuffer>> inFlight = new ArrayDeque<>(maxBlocksInFlight);
+        long numberOfEdges = 0;
+        int written = 0;
+        for (int from = 0; from < numberOfRows; from += blockSize) {
+            checkForInterruption();
+            inFlight.add(submitSubJob(scoreBlock(from, Math.min(numberOfRows, from + blockSize))));
+            while (inFlight.size() >= maxBlocksInFlight) {
+                numberOfEdges += write(inFlight.poll().takeResult());
+                updateProgress(0, numberOfBlocks, ++written);
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            numberOfEdges += write(inFlight.poll().takeResult());
+            updateProgress(0, numberOfBlocks, ++written);
+        }
+        writer.flush();
+        return numberOfEdges;
+    }
+
+    private int write(EdgeBuffer edges) throws IOException {
+        edges.writeTo(writer);
+        return edges.size();
+    }
+
+    private BasicJJob<EdgeBuffer> scoreBlock(int from, int to) {
+        return new BasicJJob<>(JobType.CPU) {
+            @Override
+            protected EdgeBuffer compute() throws Exception {
+                final EdgeBuffer edges = new EdgeBuffer();
+                scorer.score(from, to, edges);
+                return edges;
+            }
+        };
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.subtools.similarity;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bionf.fastcosine.FastCosine;
+import de.unijena.bionf.fastcosine.FastCosineLibraryIndex;
+import de.unijena.bionf.fastcosine.ReferenceLibrarySpectrum;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Scores spectra against each other with a {@link FastCosineLibraryIndex} over all spectra. Only pairs within the
+ * precursor window that share at least one fragment (or neutral loss for the modified cosine) are scored.
+ */
+public class SpectralSimilarityScorer implements SimilarityNetworkJJob.RowBlockScorer {
+
+    private final int[] nodeIds;
+    private final List<ReferenceLibrarySpectrum> spectra;
+    private final FastCosineLibraryIndex index;
+    private final FastCosineLibraryIndex.Scoring scoring;
+    @Nullable
+    private final Deviation precursorDeviation;
+    private final double minSimilarity;
+    private final int minSharedPeaks;
+
+    /**
+     * @param nodeIds            node id of each spectrum
+     * @param precursorDeviation maximum precursor difference of two spectra or null for no restriction
+     */
+    public SpectralSimilarityScorer(int[] nodeIds, List<ReferenceLibrarySpectrum> spectra, FastCosine fastCosine, FastCosineLibraryIndex.Scoring scoring,
+                                    @Nullable Deviation precursorDeviation, double minSimilarity, int minSharedPeaks) {
+        this.nodeIds = nodeIds;
+        this.spectra = spectra;
+        this.index = new FastCosineLibraryIndex(fastCosine, spectra);
+        this.scoring = scoring;
+        this.precursorDeviation = precursorDeviation;
+        this.minSimilarity = minSimilarity;
+        this.minSharedPeaks = minSharedPeaks;
+    }
+
+    public int size() {
+        return spectra.size();
+    }
+
+    @Override
+    public void score(int from, int to, SimilarityNetworkJJob.EdgeBuffer edges) {
+        final FastCosineLibraryIndex.Searcher searcher = index.newSearcher();
+        for (int i = from; i < to; ++i) {
+            for (FastCosineLibraryIndex.Hit hit : searcher.searchAll(spectra.get(i), scoring, precursorDeviation, minSimilarity, minSharedPeaks, i + 1))
+                edges.add(nodeIds[i], nodeIds[hit.spectrumIndex()], hit.similarity().similarity, hit.similarity().sharedPeaks);
+        }
+    }
+}
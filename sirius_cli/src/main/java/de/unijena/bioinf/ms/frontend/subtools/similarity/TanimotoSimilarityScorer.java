@@ -0,0 +1,113 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.subtools.similarity;
+
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Tanimoto similarity between binary fingerprints. Fingerprints are packed into bit sets and sorted by cardinality.
+ * As the tanimoto of two fingerprints is at most the ratio of their cardinalities, a row stops as soon as the
+ * cardinality of the column exceeds what can still reach the threshold. Columns are processed in tiles so that the
+ * bit sets of a tile stay in cache while all rows of a block are compared against it.
+ */
+public class TanimotoSimilarityScorer implements SimilarityNetworkJJob.RowBlockScorer {
+
+    private final int[] nodeIds;
+    private final long[][] bits;
+    private final int[] cardinalities;
+    private final double minSimilarity;
+    private final int tileSize;
+
+    /**
+     * @param nodeIds node id of each fingerprint
+     */
+    public TanimotoSimilarityScorer(int[] nodeIds, List<? extends Fingerprint> fingerprints, double minSimilarity) {
+        this(nodeIds, fingerprints, minSimilarity, SimilarityNetworkJJob.DEFAULT_BLOCK_SIZE);
+    }
+
+    public TanimotoSimilarityScorer(int[] nodeIds, List<? extends Fingerprint> fingerprints, double minSimilarity, int tileSize) {
+        final int n = fingerprints.size();
+        final long[][] packed = new long[n][];
+        final int[] cards = new int[n];
+        for (int k = 0; k < n; ++k) {
+            final short[] indizes = fingerprints.get(k).toIndizesArray();
+            final long[] words = new long[indizes.length == 0 ? 0 : (indizes[indizes.length - 1] >> 6) + 1];
+            for (short index : indizes)
+                words[index >> 6] |= 1L << index;
+            packed[k] = words;
+            cards[k] = indizes.length;
+        }
+        final int[] order = IntStream.range(0, n).boxed().sorted(Comparator.comparingInt(k -> cards[k])).mapToInt(Integer::intValue).toArray();
+        this.nodeIds = new int[n];
+        this.bits = new long[n][];
+        this.cardinalities = new int[n];
+        for (int k = 0; k < n; ++k) {
+            this.nodeIds[k] = nodeIds[order[k]];
+            this.bits[k] = packed[order[k]];
+            this.cardinalities[k] = cards[order[k]];
+        }
+        this.minSimilarity = minSimilarity;
+        this.tileSize = Math.max(1, tileSize);
+    }
+
+    public int size() {
+        return bits.length;
+    }
+
+    @Override
+    public void score(int from, int to, SimilarityNetworkJJob.EdgeBuffer edges) {
+        final int n = bits.length;
+        // cardinality bound: tanimoto(a, b) <= |a| / |b| for |a| <= |b|
+        final double[] maxCardinality = new double[to - from];
+        for (int i = from; i < to; ++i)
+            maxCardinality[i - from] = minSimilarity > 0 ? cardinalities[i] / minSimilarity : Double.POSITIVE_INFINITY;
+
+        for (int tileFrom = from; tileFrom < n; tileFrom += tileSize) {
+            final int tileTo = Math.min(n, tileFrom + tileSize);
+            boolean scored = false;
+            for (int i = from; i < to; ++i) {
+                if (cardinalities[i] == 0) continue;
+                final long[] row = bits[i];
+                for (int j = Math.max(tileFrom, i + 1); j < tileTo; ++j) {
+                    if (cardinalities[j] > maxCardinality[i - from]) break;
+                    scored = true;
+                    final int intersection = intersection(row, bits[j]);
+                    final double tanimoto = (double) intersection / (cardinalities[i] + cardinalities[j] - intersection);
+                    if (tanimoto >= minSimilarity)
+                        edges.add(nodeIds[i], nodeIds[j], tanimoto, intersection);
+                }
+            }
+            // all rows of this block are beyond their cardinality bound, the remaining tiles cannot contain any edge
+            if (!scored && tileFrom >= to) break;
+        }
+    }
+
+    private static int intersection(long[] a, long[] b) {
+        final int n = Math.min(a.length, b.length);
+        int count = 0;
+        for (int k = 0; k < n; ++k)
+            count += Long.bitCount(a[k] & b[k]);
+        return count;
+    }
+}
@@ -172,7 +172,7 @@ public class SiriusOptions implements ToolChainOptions<SiriusSubToolJob, Instanc
 
 
     //ILP solver from the command Line
-    @Option(names = {"--solver", "--ilp-solver"}, description = {"Set ILP solver to be used for fragmentation computation. Valid values: 'CLP' (included), 'CPLEX', 'GUROBI'.", "For GUROBI and CPLEX environment variables need to be configure (see Manual)."})
+    @Option(names = {"--solver", "--ilp-solver"}, description = {"Set ILP solver to be used for fragmentation computation. Valid values: 'CLP' (included), 'BNB' (included, pure Java), 'CPLEX', 'GUROBI'.", "For GUROBI and CPLEX environment variables need to be configure (see Manual)."})
     public void setSolver(TreeBuilderFactory.DefaultBuilder solver) {
         SiriusProperties.SIRIUS_PROPERTIES_FILE().setProperty("de.unijena.bioinf.sirius.treebuilder.solvers", solver.name());
         LoggerFactory.getLogger(getClass()).info("ILP solver changed to '" + solver + "' by command line.");
@@ -0,0 +1,78 @@
+/*
+ *  This file is part of the SIRIUS Software for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer, Marvin Meusel and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schiller University.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Affero General Public License
+ *  as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License along with SIRIUS.  If not, see <https://www.gnu.org/licenses/agpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ms.frontend.subtools.similarity;
+
+import de.unijena.bioinf.ChemistryBase.fp.ArrayFingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.CdkFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TanimotoSimilarityScorerTest {
+
+    @Test
+    public void testNetworkMatchesPairwiseTanimoto() {
+        final CdkFingerprintVersion version = CdkFingerprintVersion.getDefault();
+        final Random r = new Random(7);
+        final List<Fingerprint> fingerprints = new ArrayList<>();
+        for (int k = 0; k < 600; ++k) {
+            final TreeSet<Short> indizes = new TreeSet<>();
+            final int bits = k % 50 == 0 ? 0 : 20 + r.nextInt(300);
+            // bits from a small common range make some pairs similar
+            for (int i = 0; i < bits; ++i)
+                indizes.add((short) (r.nextBoolean() ? r.nextInt(400) : r.nextInt(version.size())));
+            final short[] array = new short[indizes.size()];
+            int i = 0;
+            for (short index : indizes) array[i++] = index;
+            fingerprints.add(new ArrayFingerprint(version, array));
+        }
+        final int[] nodeIds = new int[fingerprints.size()];
+        for (int k = 0; k < nodeIds.length; ++k) nodeIds[k] = 1000 + k;
+
+        for (double threshold : new double[]{0d, 0.3, 0.6}) {
+            final Map<Long, Double> expected = new HashMap<>();
+            for (int i = 0; i < fingerprints.size(); ++i)
+                for (int j = i + 1; j < fingerprints.size(); ++j) {
+                    if (fingerprints.get(i).cardinality() == 0 || fingerprints.get(j).cardinality() == 0) continue;
+                    final double t = fingerprints.get(i).tanimoto(fingerprints.get(j));
+                    if (t >= threshold) expected.put(key(nodeIds[i], nodeIds[j]), t);
+                }
+
+            final TanimotoSimilarityScorer scorer = new TanimotoSimilarityScorer(nodeIds, fingerprints, threshold, 64);
+            final Map<Long, Double> edges = new HashMap<>();
+            for (int from = 0; from < scorer.size(); from += 100) {
+                final SimilarityNetworkJJob.EdgeBuffer buffer = new SimilarityNetworkJJob.EdgeBuffer();
+                scorer.score(from, Math.min(scorer.size(), from + 100), buffer);
+                for (int k = 0; k < buffer.size(); ++k)
+                    edges.put(key(buffer.getSource(k), buffer.getTarget(k)), buffer.getSimilarity(k));
+            }
+
+            assertEquals(expected.size(), edges.size(), "threshold " + threshold);
+            expected.forEach((key, t) -> assertEquals(t, edges.get(key), 1e-9));
+        }
+    }
+
+    private static long key(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+}
@@ -26,8 +26,7 @@ import de.unijena.bioinf.ms.frontend.workflow.Workflow;
 import de.unijena.bioinf.ms.middleware.model.features.AlignedFeature;
 import de.unijena.bioinf.ms.middleware.service.lucene.LuceneUtils;
 import de.unijena.bioinf.ms.persistence.model.core.Compound;
-import de.unijena.bioinf.ms.persistence.model.core.feature.AlignedFeatures;
-import de.unijena.bioinf.ms.persistence.model.core.feature.Feature;
+import de.unijena.bioinf.ms.persistence.model.core.feature.FeatureQuantification;
 import de.unijena.bioinf.ms.persistence.model.core.run.LCMSRun;
 import de.unijena.bioinf.ms.persistence.model.core.statistics.AggregationType;
 import de.unijena.bioinf.ms.persistence.model.core.statistics.FoldChange;
@@ -167,25 +166,34 @@ public class FoldChangeWorkflow implements Workflow, ProgressSupport {
                     if (AlignedFeature.class.equals(target)) {
                         cleanupFoldChanges(FoldChange.AlignedFeaturesFoldChange.class);
 
-                        AtomicReference<LongSet> features = new AtomicReference<>(new LongArraySet());
-                        psm.getProject().getAllAlignedFeatures().forEach(af -> {
+                        AtomicReference<List<FeatureQuantification>> features = new AtomicReference<>(new ArrayList<>());
+                        psm.getProject().getAllFeatureQuantifications().forEach(quant -> {
                             if (features.get().size() == 100) {
-                                jobs.get().add(submitAlignedFeaturesComputation(new LongArraySet(features.get()), leftRuns, rightRuns));
+                                jobs.get().add(submitAlignedFeaturesComputation(new ArrayList<>(features.get()), leftRuns, rightRuns));
                                 features.get().clear();
                             }
-                            features.getAndUpdate(aflist -> {
-                                aflist.add(af.getAlignedFeatureId());
-                                return aflist;
-                            });
+                            features.get().add(quant);
                         });
-                        jobs.get().add(submitAlignedFeaturesComputation(new LongArraySet(features.get()), leftRuns, rightRuns));
+                        jobs.get().add(submitAlignedFeaturesComputation(features.get(), leftRuns, rightRuns));
                     } else if (Compound.class.equals(target)) {
                         cleanupFoldChanges(FoldChange.CompoundFoldChange.class);
 
+                        // group quantification rows by compound with one scan over aligned features and quantifications
+                        Long2LongMap compoundIds = new Long2LongOpenHashMap();
+                        psm.getProject().getAllAlignedFeatures().forEach(af -> {
+                            if (af.getCompoundId() != null)
+                                compoundIds.put(af.getAlignedFeatureId(), (long) af.getCompoundId());
+                        });
+                        Long2ObjectMap<List<FeatureQuantification>> quantsPerCompound = new Long2ObjectOpenHashMap<>();
+                        psm.getProject().getAllFeatureQuantifications().forEach(quant -> {
+                            if (compoundIds.containsKey(quant.getAlignedFeatureId()))
+                                quantsPerCompound.computeIfAbsent(compoundIds.get(quant.getAlignedFeatureId()), k -> new ArrayList<>()).add(quant);
+                        });
+
                         AtomicReference<List<Compound>> compounds = new AtomicReference<>(new ArrayList<>());
                         psm.getProject().getAllCompounds().forEach(c -> {
                             if (compounds.get().size() == 100) {
-                                jobs.get().add(submitCompoundComputation(new ArrayList<>(compounds.get()), leftRuns, rightRuns));
+                                jobs.get().add(submitCompoundComputation(new ArrayList<>(compounds.get()), quantsPerCompound, leftRuns, rightRuns));
                                 compounds.get().clear();
                             }
                             compounds.getAndUpdate(clist -> {
@@ -193,7 +201,7 @@ public class FoldChangeWorkflow implements Workflow, ProgressSupport {
                                 return clist;
                             });
                         });
-                        jobs.get().add(submitCompoundComputation(compounds.get(), leftRuns, rightRuns));
+                        jobs.get().add(submitCompoundComputation(compounds.get(), quantsPerCompound, leftRuns, rightRuns));
                     } else {
                         throw new IllegalArgumentException("Invalid target: " + target);
                     }
@@ -204,36 +212,24 @@ public class FoldChangeWorkflow implements Workflow, ProgressSupport {
                     return true;
                 }
 
-                private BasicJJob<Boolean> submitCompoundComputation(List<Compound> compounds, LongSet leftRuns, LongSet rightRuns) {
+                private BasicJJob<Boolean> submitCompoundComputation(List<Compound> compounds, Long2ObjectMap<List<FeatureQuantification>> quantsPerCompound, LongSet leftRuns, LongSet rightRuns) {
                     BasicJJob<Boolean> job = new BasicJJob<>() {
                         @Override
                         protected Boolean compute() throws Exception {
                             List<FoldChange.CompoundFoldChange> foldChanges = new ArrayList<>();
                             for (Compound c : compounds) {
-                                Long2ObjectMap<List<Feature>> leftFeatures = new Long2ObjectOpenHashMap<>(leftRuns.size());
-                                Long2ObjectMap<List<Feature>> rightFeatures = new Long2ObjectOpenHashMap<>(rightRuns.size());
-                                psm.getProject().fetchAdductFeatures(c);
-                                if (c.getAdductFeatures().isPresent()) {
-                                    for (AlignedFeatures af : c.getAdductFeatures().get()) {
-                                        psm.getProject().fetchFeatures(af);
-                                        if (af.getFeatures().isPresent()) {
-                                            for (Feature f : af.getFeatures().get()) {
-                                                if (leftRuns.contains((long) f.getRunId())) {
-                                                    leftFeatures.computeIfAbsent(f.getRunId(), k -> new ArrayList<>()).add(f);
-                                                } else if (rightRuns.contains((long) f.getRunId())) {
-                                                    rightFeatures.computeIfAbsent(f.getRunId(), k -> new ArrayList<>()).add(f);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
+                                Long2DoubleMap leftValues = new Long2DoubleOpenHashMap(leftRuns.size());
+                                Long2DoubleMap rightValues = new Long2DoubleOpenHashMap(rightRuns.size());
+                                for (FeatureQuantification quant : quantsPerCompound.getOrDefault(c.getCompoundId(), List.of()))
+                                    collect(quant, leftRuns, rightRuns, leftValues, rightValues, true);
+
                                 updateProgress(total.get(), progress.addAndGet(1));
-                                if (leftFeatures.isEmpty() || rightFeatures.isEmpty()) {
+                                if (leftValues.isEmpty() || rightValues.isEmpty()) {
                                     continue;
                                 }
 
-                                double leftval = aggregate(quantify(leftFeatures));
-                                double rightval = aggregate(quantify(rightFeatures));
+                                double leftval = aggregate(leftValues.values().doubleStream());
+                                double rightval = aggregate(rightValues.values().doubleStream());
                                 double foldChange = rightval > 0 ? leftval / rightval : 0.0;
 
                                 foldChanges.add(FoldChange.CompoundFoldChange
@@ -256,34 +252,28 @@ public class FoldChangeWorkflow implements Workflow, ProgressSupport {
                     return job;
                 }
 
-                private BasicJJob<Boolean> submitAlignedFeaturesComputation(LongSet alignedFeatures, LongSet leftRuns, LongSet rightRuns) {
+                private BasicJJob<Boolean> submitAlignedFeaturesComputation(List<FeatureQuantification> alignedFeatures, LongSet leftRuns, LongSet rightRuns) {
                     BasicJJob<Boolean> job = new BasicJJob<>() {
                         @Override
                         protected Boolean compute() throws Exception {
                             List<FoldChange.AlignedFeaturesFoldChange> foldChanges = new ArrayList<>();
-                            for (long af : alignedFeatures) {
-                                Long2ObjectMap<List<Feature>> leftFeatures = new Long2ObjectOpenHashMap<>(leftRuns.size());
-                                Long2ObjectMap<List<Feature>> rightFeatures = new Long2ObjectOpenHashMap<>(rightRuns.size());
-
-                                psm.getProject().getStorage().findStr(Filter.where("alignedFeatureId").eq(af), Feature.class).forEach(f -> {
-                                    if (leftRuns.contains((long)f.getRunId())) {
-                                        leftFeatures.put((long) f.getRunId(), List.of(f));
-                                    } else if (rightRuns.contains((long)f.getRunId())) {
-                                        rightFeatures.put((long) f.getRunId(), List.of(f));
-                                    }
-                                });
+                            for (FeatureQuantification quant : alignedFeatures) {
+                                Long2DoubleMap leftValues = new Long2DoubleOpenHashMap(leftRuns.size());
+                                Long2DoubleMap rightValues = new Long2DoubleOpenHashMap(rightRuns.size());
+                                collect(quant, leftRuns, rightRuns, leftValues, rightValues, false);
+
                                 updateProgress(total.get(), progress.addAndGet(1));
-                                if (leftFeatures.isEmpty() || rightFeatures.isEmpty()) {
+                                if (leftValues.isEmpty() || rightValues.isEmpty()) {
                                     continue;
                                 }
 
-                                double leftval = aggregate(quantify(leftFeatures));
-                                double rightval = aggregate(quantify(rightFeatures));
+                                double leftval = aggregate(leftValues.values().doubleStream());
+                                double rightval = aggregate(rightValues.values().doubleStream());
                                 double foldChange = Double.isFinite(rightval) ? leftval / rightval : 0.0;
 
                                 foldChanges.add(FoldChange.AlignedFeaturesFoldChange
                                         .builder()
-                                        .alignedFeatureId(af)
+                                        .alignedFeatureId(quant.getAlignedFeatureId())
                                         .foldChange(foldChange)
                                         .leftGroup(left)
                                         .rightGroup(right)
@@ -301,11 +291,28 @@ public class FoldChangeWorkflow implements Workflow, ProgressSupport {
                     return job;
                 }
 
-                private DoubleStream quantify(Long2ObjectMap<List<Feature>> features) {
-                    return features.values().stream().mapToDouble(featuresPerRun -> switch (quantification) {
-                        case APEX_INTENSITY -> featuresPerRun.stream().mapToDouble(Feature::getApexIntensity).sum();
-                        case AREA_UNDER_CURVE -> featuresPerRun.stream().mapToDouble(Feature::getAreaUnderCurve).sum();
-                    });
+                /**
+                 * adds the quantities of the given row to the run values of the left and right group. Features of
+                 * the same run are summed up if sumPerRun is set, otherwise the last feature of a run wins.
+                 */
+                private void collect(FeatureQuantification quant, LongSet leftRuns, LongSet rightRuns, Long2DoubleMap leftValues, Long2DoubleMap rightValues, boolean sumPerRun) {
+                    double[] values = quant.getValues(quantification);
+                    for (int k = 0; k < quant.size(); k++) {
+                        long runId = quant.getRunIds()[k];
+                        Long2DoubleMap target;
+                        if (leftRuns.contains(runId)) {
+                            target = leftValues;
+                        } else if (rightRuns.contains(runId)) {
+                            target = rightValues;
+                        } else {
+                            continue;
+                        }
+                        if (sumPerRun) {
+                            target.mergeDouble(runId, values[k], Double::sum);
+                        } else {
+                            target.put(runId, values[k]);
+                        }
+                    }
                 }
 
                 private double aggregate(DoubleStream values) {
@@ -172,17 +172,44 @@ public class NoSQLProjectImpl implements Project<NoSQLProjectSpaceManager> {
         if (table.isEmpty())
             return Optional.empty();
 
-        List<double[]> values = new ArrayList<>();
         LongList rowIds = new LongArrayList();
         List<String> rowNames = new ArrayList<>();
+        // aligned feature id -> row index
+        Long2IntMap rowIndex = new Long2IntOpenHashMap();
+        rowIndex.defaultReturnValue(-1);
 
         if (rowType == QuantRowType.FEATURES) {
-            storage().findAllStr(AlignedFeatures.class).forEach(alignedFeatures -> addToTable(alignedFeatures, values, rowIds, rowNames, table.get()));
+            storage().findAllStr(AlignedFeatures.class).forEach(alignedFeatures -> {
+                rowIndex.put(alignedFeatures.getAlignedFeatureId(), rowIds.size());
+                rowIds.add(alignedFeatures.getAlignedFeatureId());
+                rowNames.add(alignedFeatures.getName());
+            });
         } else {
-            storage().findAllStr(de.unijena.bioinf.ms.persistence.model.core.Compound.class).forEach(compound -> addToTable(compound, values, rowIds, rowNames, table.get()));
+            Long2IntMap compoundIndex = new Long2IntOpenHashMap();
+            storage().findAllStr(de.unijena.bioinf.ms.persistence.model.core.Compound.class).forEach(compound -> {
+                compoundIndex.put(compound.getCompoundId(), rowIds.size());
+                rowIds.add(compound.getCompoundId());
+                rowNames.add(compound.getName());
+            });
+            storage().findAllStr(AlignedFeatures.class).forEach(alignedFeatures -> {
+                if (alignedFeatures.getCompoundId() != null && compoundIndex.containsKey((long) alignedFeatures.getCompoundId()))
+                    rowIndex.put(alignedFeatures.getAlignedFeatureId(), compoundIndex.get((long) alignedFeatures.getCompoundId()));
+            });
+        }
+
+        double[][] values = new double[rowIds.size()][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new double[table.get().getColumnIds().length];
+            Arrays.fill(values[i], Double.NaN);
         }
+        Long2IntMap columnIndex = columnIndex(table.get());
+        project().getAllFeatureQuantifications().forEach(quant -> {
+            int row = rowIndex.get(quant.getAlignedFeatureId());
+            if (row >= 0)
+                addToQuantTableRow(values[row], quant, columnIndex, table.get(), rowType == QuantRowType.COMPOUNDS);
+        });
 
-        table.get().setValues(values.toArray(double[][]::new));
+        table.get().setValues(values);
         table.get().setRowIds(rowIds.toLongArray());
         table.get().setRowNames(rowNames.toArray(String[]::new));
 
@@ -196,27 +223,32 @@ public class NoSQLProjectImpl implements Project<NoSQLProjectSpaceManager> {
         if (table.isEmpty())
             return Optional.empty();
 
-        List<double[]> values = new ArrayList<>();
-        LongList rowIds = new LongArrayList();
-        List<String> rowNames = new ArrayList<>();
+        double[] row = new double[table.get().getColumnIds().length];
+        Arrays.fill(row, Double.NaN);
+        Long2IntMap columnIndex = columnIndex(table.get());
 
         if (rowType == QuantRowType.FEATURES) {
             Optional<AlignedFeatures> alignedFeature = storage().getByPrimaryKey(Long.parseLong(objectId), AlignedFeatures.class);
             if (alignedFeature.isEmpty())
                 return Optional.empty();
 
-            addToTable(alignedFeature.get(), values, rowIds, rowNames, table.get());
+            project().findFeatureQuantification(alignedFeature.get().getAlignedFeatureId())
+                    .ifPresent(quant -> addToQuantTableRow(row, quant, columnIndex, table.get(), false));
+            table.get().setRowIds(new long[]{alignedFeature.get().getAlignedFeatureId()});
+            table.get().setRowNames(new String[]{alignedFeature.get().getName()});
         } else { //must be COMPOUND
             Optional<de.unijena.bioinf.ms.persistence.model.core.Compound> compound = storage().getByPrimaryKey(Long.parseLong(objectId), de.unijena.bioinf.ms.persistence.model.core.Compound.class);
             if (compound.isEmpty())
                 return Optional.empty();
 
-            addToTable(compound.get(), values, rowIds, rowNames, table.get());
+            for (AlignedFeatures alignedFeature : storage().findStr(Filter.where("compoundId").eq(compound.get().getCompoundId()), AlignedFeatures.class).toList())
+                project().findFeatureQuantification(alignedFeature.getAlignedFeatureId())
+                        .ifPresent(quant -> addToQuantTableRow(row, quant, columnIndex, table.get(), true));
+            table.get().setRowIds(new long[]{compound.get().getCompoundId()});
+            table.get().setRowNames(new String[]{compound.get().getName()});
         }
 
-        table.get().setValues(values.toArray(double[][]::new));
-        table.get().setRowIds(rowIds.toLongArray());
-        table.get().setRowNames(rowNames.toArray(String[]::new));
+        table.get().setValues(new double[][]{row});
 
         return table;
     }
@@ -244,46 +276,26 @@ public class NoSQLProjectImpl implements Project<NoSQLProjectSpaceManager> {
         );
     }
 
-    @SneakyThrows
-    private <T> void addToTable(T parent, List<double[]> values, LongList rowIds, List<String> rowNames, QuantTable table) {
-        Long2ObjectMap<List<Feature>> features = new Long2ObjectOpenHashMap<>();
-        if (parent instanceof AlignedFeatures alignedFeature) {
-            rowIds.add(alignedFeature.getAlignedFeatureId());
-            rowNames.add(alignedFeature.getName());
-
-            storage().findStr(Filter.where("alignedFeatureId").eq(alignedFeature.getAlignedFeatureId()), Feature.class)
-                    .forEach(feature -> features.put((long) feature.getRunId(), List.of(feature)));
-        } else if (parent instanceof de.unijena.bioinf.ms.persistence.model.core.Compound compound) {
-            rowIds.add(compound.getCompoundId());
-            rowNames.add(compound.getName());
-
-            storage().findStr(Filter.where("compoundId").eq(compound.getCompoundId()), AlignedFeature.class).forEach(alignedFeature -> {
-                try {
-                    storage().findStr(Filter.where("alignedFeatureId").eq(alignedFeature.getAlignedFeatureId()), Feature.class)
-                            .forEach(feature -> features.computeIfAbsent((long) feature.getRunId(), k -> new ArrayList<>()).add(feature));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-        }
-        values.add(getQuantTableRow(features, table));
-    }
-
-    private double[] getQuantTableRow(Long2ObjectMap<List<Feature>> features, QuantTable table) {
-        double[] row = new double[table.getColumnIds().length];
-        for (int i = 0; i < row.length; i++) {
-            if (features.containsKey(table.getColumnIds()[i])) {
-                row[i] = switch (table.getQuantificationMeasure()) {
-                    case APEX_INTENSITY ->
-                            features.get(table.getColumnIds()[i]).stream().mapToDouble(Feature::getApexIntensity).sum();
-                    case AREA_UNDER_CURVE ->
-                            features.get(table.getColumnIds()[i]).stream().mapToDouble(Feature::getAreaUnderCurve).sum();
-                };
-            } else {
-                row[i] = Double.NaN;
-            }
+    private static Long2IntMap columnIndex(QuantTable table) {
+        Long2IntMap columnIndex = new Long2IntOpenHashMap(table.getColumnIds().length);
+        columnIndex.defaultReturnValue(-1);
+        for (int i = 0; i < table.getColumnIds().length; i++)
+            columnIndex.put(table.getColumnIds()[i], i);
+        return columnIndex;
+    }
+
+    /**
+     * Adds the features of the given quantification row to the table row. Features of the same run are summed up
+     * for compounds, whereas for aligned features the last feature of a run wins.
+     */
+    private static void addToQuantTableRow(double[] row, FeatureQuantification quant, Long2IntMap columnIndex, QuantTable table, boolean sumPerRun) {
+        double[] values = quant.getValues(table.getQuantificationMeasure());
+        for (int k = 0; k < quant.size(); k++) {
+            int column = columnIndex.get(quant.getRunIds()[k]);
+            if (column < 0)
+                continue;
+            row[column] = sumPerRun && !Double.isNaN(row[column]) ? row[column] + values[k] : values[k];
         }
-        return row;
     }
 
     @Override
@@ -1058,7 +1070,8 @@ public class NoSQLProjectImpl implements Project<NoSQLProjectSpaceManager> {
         }
 
         if (optFields.contains(AlignedFeature.OptField.msData)) {
-            project().fetchMsData(features);
+            if (features.getMSData().isEmpty())
+                project().fetchMsData(features);
             features.getMSData().map(this::convertMSData).ifPresent(builder::msData);
         }
         if (optFields.contains(AlignedFeature.OptField.topAnnotations))
@@ -1329,14 +1342,14 @@ public class NoSQLProjectImpl implements Project<NoSQLProjectSpaceManager> {
     public Page<Compound> findCompounds(Pageable pageable,
                                         @NotNull EnumSet<Compound.OptField> optFields,
                                         @NotNull EnumSet<AlignedFeature.OptField> optFeatureFields) {
-        Stream<de.unijena.bioinf.ms.persistence.model.core.Compound> stream =
-                findPageStr(de.unijena.bioinf.ms.persistence.model.core.Compound.class, pageable, this::sortCompound)
-                        .peek(project()::fetchAdductFeatures);
+        List<de.unijena.bioinf.ms.persistence.model.core.Compound> page =
+                findPageStr(de.unijena.bioinf.ms.persistence.model.core.Compound.class, pageable, this::sortCompound).toList();
+        project().fetchAdductFeaturesForAll(page);
 
         if (optFeatureFields.contains(AlignedFeature.OptField.msData))
-            stream = stream.peek(c -> c.getAdductFeatures().ifPresent(features -> features.forEach(project()::fetchMsData)));
+            project().fetchMsDataForAll(page.stream().flatMap(c -> c.getAdductFeatures().stream().flatMap(List::stream)).toList());
 
-        List<Compound> compounds = stream.map(c -> convertToApiCompound(c, optFields, optFeatureFields)).toList();
+        List<Compound> compounds = page.stream().map(c -> convertToApiCompound(c, optFields, optFeatureFields)).toList();
 
         long total = storage().countAll(de.unijena.bioinf.ms.persistence.model.core.Compound.class);
 
@@ -1425,8 +1438,11 @@ public class NoSQLProjectImpl implements Project<NoSQLProjectSpaceManager> {
     @SneakyThrows
     @Override
     public Page<AlignedFeature> findAlignedFeatures(Pageable pageable, @NotNull EnumSet<AlignedFeature.OptField> optFields) {
-        List<AlignedFeature> features = findPageStr(AlignedFeatures.class, pageable, this::sortFeature)
-                .map(alf -> convertToApiFeature(alf, optFields)).toList();
+        List<AlignedFeatures> page = findPageStr(AlignedFeatures.class, pageable, this::sortFeature).toList();
+        if (optFields.contains(AlignedFeature.OptField.msData))
+            project().fetchMsDataForAll(page);
+
+        List<AlignedFeature> features = page.stream().map(alf -> convertToApiFeature(alf, optFields)).toList();
 
         long total = storage().countAll(AlignedFeatures.class);
 
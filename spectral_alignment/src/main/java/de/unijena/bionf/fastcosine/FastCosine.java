@@ -22,10 +22,16 @@ public class FastCosine {
     private final boolean useSquareRootTransform;
     private final NoiseThresholdSettings noiseThresholdSettings;
 
+    private final ModifiedCosine modifiedCosine;
+    // FastCosine instances are shared between threads, the scorer buffers are not
+    private final ThreadLocal<ModifiedCosine.Scorer> modifiedCosineScorers;
+
     public FastCosine(Deviation maxDeviation, boolean useSquareRootTransform, NoiseThresholdSettings noiseThresholdSettings) {
         this.maxDeviation = maxDeviation;
         this.useSquareRootTransform = useSquareRootTransform;
         this.noiseThresholdSettings = noiseThresholdSettings;
+        this.modifiedCosine = new ModifiedCosine(maxDeviation);
+        this.modifiedCosineScorers = ThreadLocal.withInitial(modifiedCosine::newScorer);
     }
 
     public FastCosine() {
@@ -154,7 +160,14 @@ public class FastCosine {
 
     public SpectralSimilarity fastModifiedCosine(ReferenceLibrarySpectrum left, ReferenceLibrarySpectrum right) {
         if (maxDeviation.inErrorWindow(left.getParentMass(),right.getParentMass())) return fastCosine(left,right); // use faster cosine if both have same mass
-        return new ModifiedCosine(maxDeviation).score(left, right, left.getParentMass(), right.getParentMass(), 1d);
+        return modifiedCosineScorers.get().score(left, right, left.getParentMass(), right.getParentMass());
+    }
+
+    /**
+     * @return a new thread-confined modified cosine scorer with the deviation of this instance.
+     */
+    public ModifiedCosine.Scorer newModifiedCosineScorer() {
+        return modifiedCosine.newScorer();
     }
 
     private ReferenceLibraryMergedSpectrum performPeakMerging(List<ReferenceLibrarySpectrum> spectra) {
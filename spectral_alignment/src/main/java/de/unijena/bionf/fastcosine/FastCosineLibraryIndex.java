@@ -0,0 +1,459 @@
+package de.unijena.bionf.fastcosine;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.utils.OrderedSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.SimplePeak;
+import de.unijena.bionf.spectral_alignment.ModifiedCosine;
+import de.unijena.bionf.spectral_alignment.SpectralSimilarity;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Search index over a complete spectral library of {@link ReferenceLibrarySpectrum}s.
+ * All spectra are sorted by precursor mass and stored in flat primitive arrays. In addition, there is an inverted
+ * index from binned fragment m/z (and binned neutral losses) to the spectra containing a peak in this bin. A query only
+ * touches library spectra within its precursor window that share at least one peak (or loss) with it. These
+ * candidates are then scored exactly the same way as {@link FastCosine#fastCosine(ReferenceLibrarySpectrum, ReferenceLibrarySpectrum)}
+ * and {@link FastCosine#fastReverseCosine(ReferenceLibrarySpectrum, ReferenceLibrarySpectrum)} do.
+ * <p>
+ * The index is immutable and can be shared between threads. All mutable search state lives in a {@link Searcher},
+ * which is thread-confined and should be reused for many queries.
+ */
+public class FastCosineLibraryIndex {
+
+    public enum Scoring {
+        COSINE, REVERSE_COSINE, MODIFIED_COSINE
+    }
+
+    /**
+     * @param spectrumIndex index of the library spectrum in the list the index was built from
+     */
+    public record Hit(int spectrumIndex, SpectralSimilarity similarity) {
+    }
+
+    private static final double DEFAULT_BIN_WIDTH = 0.01d;
+    // same thresholds as used in FastCosine to exclude the parent peak
+    private static final double PARENT_THRESHOLD = 0.1d;
+
+    private final FastCosine fastCosine;
+    private final Deviation maxDeviation;
+    private final double binWidth;
+
+    // library spectra sorted by precursor mass. Peaks of spectrum k are in [peakOffsets[k], peakOffsets[k+1])
+    private final int[] originalIndex;
+    private final int[] sortedIndex;
+    private final double[] parentMasses;
+    private final float[] parentIntensities;
+    private final int[] peakOffsets;
+    private final double[] mz;
+    private final float[] intensities;
+
+    // inverted fragment index: spectra with a peak in bin b are postings[binOffsets[b]..binOffsets[b+1]), sorted ascending
+    private final int[] fragmentBinOffsets;
+    private final int[] fragmentPostings;
+    // inverted neutral loss index, same layout
+    private final int[] lossBinOffsets;
+    private final int[] lossPostings;
+
+    public FastCosineLibraryIndex(FastCosine fastCosine, List<? extends ReferenceLibrarySpectrum> library) {
+        this(fastCosine, library, DEFAULT_BIN_WIDTH);
+    }
+
+    public FastCosineLibraryIndex(FastCosine fastCosine, List<? extends ReferenceLibrarySpectrum> library, double binWidth) {
+        this.fastCosine = fastCosine;
+        this.maxDeviation = fastCosine.getMaxDeviation();
+        this.binWidth = binWidth;
+
+        final int n = library.size();
+        this.originalIndex = new int[n];
+        this.sortedIndex = new int[n];
+        // sort by precursor mass
+        final Integer[] order = new Integer[n];
+        for (int k = 0; k < n; ++k) order[k] = k;
+        Arrays.sort(order, Comparator.comparingDouble(k -> library.get(k).getParentMass()));
+
+        this.parentMasses = new double[n];
+        this.parentIntensities = new float[n];
+        this.peakOffsets = new int[n + 1];
+        int numberOfPeaks = 0;
+        for (int k = 0; k < n; ++k) {
+            final ReferenceLibrarySpectrum spec = library.get(order[k]);
+            originalIndex[k] = order[k];
+            sortedIndex[order[k]] = k;
+            parentMasses[k] = spec.getParentMass();
+            parentIntensities[k] = spec.getParentIntensity();
+            peakOffsets[k] = numberOfPeaks;
+            numberOfPeaks += spec.size();
+        }
+        peakOffsets[n] = numberOfPeaks;
+        this.mz = new double[numberOfPeaks];
+        this.intensities = new float[numberOfPeaks];
+        double maxMz = 0d, maxLoss = 0d;
+        for (int k = 0; k < n; ++k) {
+            final ReferenceLibrarySpectrum spec = library.get(order[k]);
+            System.arraycopy(spec.mz, 0, mz, peakOffsets[k], spec.size());
+            System.arraycopy(spec.intensities, 0, intensities, peakOffsets[k], spec.size());
+            if (spec.size() > 0) {
+                maxMz = Math.max(maxMz, spec.mz[spec.size() - 1]);
+                maxLoss = Math.max(maxLoss, spec.getParentMass() - spec.mz[0]);
+            }
+        }
+
+        final int numberOfFragmentBins = bin(maxMz) + 2;
+        final int numberOfLossBins = bin(Math.max(0d, maxLoss)) + 2;
+        this.fragmentBinOffsets = new int[numberOfFragmentBins + 1];
+        this.lossBinOffsets = new int[numberOfLossBins + 1];
+        // count postings per bin. A spectrum is only added once per bin
+        for (int k = 0; k < n; ++k) {
+            int lastBin = -1;
+            for (int p = peakOffsets[k]; p < peakOffsets[k + 1]; ++p) {
+                final int b = bin(mz[p]);
+                if (b != lastBin) ++fragmentBinOffsets[b + 1];
+                lastBin = b;
+            }
+            lastBin = -1;
+            for (int p = peakOffsets[k + 1] - 1; p >= peakOffsets[k]; --p) {
+                final double loss = parentMasses[k] - mz[p];
+                if (loss <= 0d) continue;
+                final int b = bin(loss);
+                if (b != lastBin) ++lossBinOffsets[b + 1];
+                lastBin = b;
+            }
+        }
+        for (int b = 0; b < numberOfFragmentBins; ++b) fragmentBinOffsets[b + 1] += fragmentBinOffsets[b];
+        for (int b = 0; b < numberOfLossBins; ++b) lossBinOffsets[b + 1] += lossBinOffsets[b];
+        this.fragmentPostings = new int[fragmentBinOffsets[numberOfFragmentBins]];
+        this.lossPostings = new int[lossBinOffsets[numberOfLossBins]];
+        final int[] fragmentFill = Arrays.copyOf(fragmentBinOffsets, numberOfFragmentBins);
+        final int[] lossFill = Arrays.copyOf(lossBinOffsets, numberOfLossBins);
+        // spectra are inserted in ascending order, so each posting list is sorted by precursor mass
+        for (int k = 0; k < n; ++k) {
+            int lastBin = -1;
+            for (int p = peakOffsets[k]; p < peakOffsets[k + 1]; ++p) {
+                final int b = bin(mz[p]);
+                if (b != lastBin) fragmentPostings[fragmentFill[b]++] = k;
+                lastBin = b;
+            }
+            lastBin = -1;
+            for (int p = peakOffsets[k + 1] - 1; p >= peakOffsets[k]; --p) {
+                final double loss = parentMasses[k] - mz[p];
+                if (loss <= 0d) continue;
+                final int b = bin(loss);
+                if (b != lastBin) lossPostings[lossFill[b]++] = k;
+                lastBin = b;
+            }
+        }
+    }
+
+    private int bin(double mass) {
+        return (int) (mass / binWidth);
+    }
+
+    public int size() {
+        return parentMasses.length;
+    }
+
+    public FastCosine getFastCosine() {
+        return fastCosine;
+    }
+
+    /**
+     * @return a new searcher. Searchers are not thread-safe, use one searcher per thread.
+     */
+    public Searcher newSearcher() {
+        return new Searcher();
+    }
+
+    /**
+     * Convenience method for a single query. Use {@link #newSearcher()} when searching many queries.
+     */
+    public List<Hit> search(ReferenceLibrarySpectrum query, Scoring scoring, @Nullable Deviation precursorDeviation, int k) {
+        return newSearcher().search(query, scoring, precursorDeviation, k);
+    }
+
+    /**
+     * Returns a view of the i-th library spectrum (in the order the index was built from). Peak arrays are copied.
+     */
+    public ReferenceLibrarySpectrum getSpectrum(int spectrumIndex) {
+        return spectrumAt(sortedIndex[spectrumIndex]);
+    }
+
+    private ReferenceLibrarySpectrum spectrumAt(int k) {
+        return new ReferenceLibrarySpectrum(parentMasses[k], parentIntensities[k],
+                Arrays.copyOfRange(mz, peakOffsets[k], peakOffsets[k + 1]),
+                Arrays.copyOfRange(intensities, peakOffsets[k], peakOffsets[k + 1]));
+    }
+
+    private int lowerBound(double mass) {
+        int lo = 0, hi = parentMasses.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (parentMasses[mid] < mass) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int upperBound(double mass) {
+        int lo = 0, hi = parentMasses.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (parentMasses[mid] <= mass) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Thread-confined search state. Reuses all buffers between queries.
+     */
+    public class Searcher {
+        private final int[] stamps = new int[parentMasses.length];
+        private int epoch = 0;
+        private final IntArrayList candidates = new IntArrayList();
+        private final ModifiedCosine.Scorer modifiedCosine = fastCosine.newModifiedCosineScorer();
+        private final LibrarySpectrumView view = new LibrarySpectrumView();
+
+        private Searcher() {
+        }
+
+        /**
+         * Search the library for the top-k hits of the given query.
+         *
+         * @param precursorDeviation if not null, only library spectra with a precursor mass within this deviation
+         *                           of the query precursor mass are scored.
+         * @return hits sorted by descending similarity. Library spectra without any shared peak are never reported.
+         */
+        public List<Hit> search(ReferenceLibrarySpectrum query, Scoring scoring, @Nullable Deviation precursorDeviation, int k) {
+            final int from, to;
+            if (precursorDeviation != null) {
+                final double dev = precursorDeviation.absoluteFor(query.getParentMass());
+                from = lowerBound(query.getParentMass() - dev);
+                to = upperBound(query.getParentMass() + dev);
+            } else {
+                from = 0;
+                to = parentMasses.length;
+            }
+            if (from >= to || k <= 0) return List.of();
+            collectCandidates(query, scoring, from, to);
+
+            final PriorityQueue<Hit> heap = new PriorityQueue<>(Math.min(k, candidates.size()) + 1, Comparator.comparing(Hit::similarity));
+            for (int c = 0; c < candidates.size(); ++c) {
+                final int spec = candidates.getInt(c);
+                final SpectralSimilarity sim = score(query, spec, scoring);
+                if (sim.sharedPeaks <= 0) continue;
+                if (heap.size() < k) {
+                    heap.add(new Hit(originalIndex[spec], sim));
+                } else if (sim.compareTo(heap.peek().similarity()) > 0) {
+                    heap.poll();
+                    heap.add(new Hit(originalIndex[spec], sim));
+                }
+            }
+            final Hit[] hits = new Hit[heap.size()];
+            for (int i = hits.length - 1; i >= 0; --i) hits[i] = heap.poll();
+            return Arrays.asList(hits);
+        }
+
+        /**
+         * Search the library for all hits reaching the given thresholds.
+         *
+         * @param minSpectrumIndex only library spectra with an index of at least this value are scored, e.g. to
+         *                         score each pair of an all-vs-all search only once.
+         * @return hits in no particular order
+         */
+        public List<Hit> searchAll(ReferenceLibrarySpectrum query, Scoring scoring, @Nullable Deviation precursorDeviation,
+                                   double minSimilarity, int minSharedPeaks, int minSpectrumIndex) {
+            final int from, to;
+            if (precursorDeviation != null) {
+                final double dev = precursorDeviation.absoluteFor(query.getParentMass());
+                from = lowerBound(query.getParentMass() - dev);
+                to = upperBound(query.getParentMass() + dev);
+            } else {
+                from = 0;
+                to = parentMasses.length;
+            }
+            if (from >= to) return List.of();
+            collectCandidates(query, scoring, from, to);
+
+            final List<Hit> hits = new ArrayList<>();
+            for (int c = 0; c < candidates.size(); ++c) {
+                final int spec = candidates.getInt(c);
+                if (originalIndex[spec] < minSpectrumIndex) continue;
+                final SpectralSimilarity sim = score(query, spec, scoring);
+                if (sim.sharedPeaks > 0 && sim.sharedPeaks >= minSharedPeaks && sim.similarity >= minSimilarity)
+                    hits.add(new Hit(originalIndex[spec], sim));
+            }
+            return hits;
+        }
+
+        private void collectCandidates(ReferenceLibrarySpectrum query, Scoring scoring, int from, int to) {
+            candidates.clear();
+            if (++epoch == 0) {
+                Arrays.fill(stamps, 0);
+                epoch = 1;
+            }
+            if (scoring != Scoring.REVERSE_COSINE) {
+                for (int i = 0; i < query.size(); ++i) {
+                    final double q = query.getMzAt(i);
+                    final double dev = allowedDeviation(q);
+                    collectFromBins(fragmentBinOffsets, fragmentPostings, q - dev, q + dev, from, to);
+                }
+            }
+            if (scoring != Scoring.COSINE) {
+                for (int i = 0; i < query.size(); ++i) {
+                    final double q = query.getParentMass() - query.getMzAt(i);
+                    if (q <= PARENT_THRESHOLD) continue;
+                    final double dev = allowedDeviation(q);
+                    collectFromBins(lossBinOffsets, lossPostings, q - dev, q + dev, from, to);
+                }
+            }
+        }
+
+        // ModifiedCosine checks the deviation relative to the larger of both masses, so we widen the window accordingly
+        private double allowedDeviation(double mass) {
+            return maxDeviation.absoluteFor(mass + maxDeviation.absoluteFor(mass));
+        }
+
+        private void collectFromBins(int[] binOffsets, int[] postings, double minMass, double maxMass, int from, int to) {
+            final int firstBin = Math.max(0, bin(minMass));
+            final int lastBin = Math.min(binOffsets.length - 2, bin(maxMass));
+            for (int b = firstBin; b <= lastBin; ++b) {
+                int p = binOffsets[b];
+                final int end = binOffsets[b + 1];
+                if (from > 0) {
+                    // posting lists are sorted by precursor mass, so we can jump directly into the precursor window
+                    final int i = Arrays.binarySearch(postings, p, end, from);
+                    p = i >= 0 ? i : -(i + 1);
+                }
+                for (; p < end; ++p) {
+                    final int spec = postings[p];
+                    if (spec >= to) break;
+                    if (stamps[spec] != epoch) {
+                        stamps[spec] = epoch;
+                        candidates.add(spec);
+                    }
+                }
+            }
+        }
+
+        private SpectralSimilarity score(ReferenceLibrarySpectrum query, int spec, Scoring scoring) {
+            return switch (scoring) {
+                case COSINE -> cosine(query, spec);
+                case REVERSE_COSINE -> reverseCosine(query, spec);
+                case MODIFIED_COSINE -> maxDeviation.inErrorWindow(query.getParentMass(), parentMasses[spec])
+                        ? cosine(query, spec)
+                        : modifiedCosine.score(query, view.of(spec), query.getParentMass(), parentMasses[spec]);
+            };
+        }
+
+        // same as FastCosine.fastCosine, but on the flat library arrays
+        private SpectralSimilarity cosine(ReferenceLibrarySpectrum left, int spec) {
+            int i = 0, j = peakOffsets[spec];
+            final int end = peakOffsets[spec + 1];
+            double similarity = 0d;
+            int matchedPeaks = 0;
+            final double thresholdLeft = left.getParentMass() - PARENT_THRESHOLD;
+            final double thresholdRight = parentMasses[spec] - PARENT_THRESHOLD;
+            while (i < left.size() && j < end) {
+                final double l = left.mz[i];
+                final double r = mz[j];
+                if (l >= thresholdLeft || r >= thresholdRight) break; // do not count the parent peak
+                final double delta = l - r;
+                final double allowedMassDeviation = maxDeviation.absoluteFor(Math.min(l, r));
+                if (Math.abs(delta) < allowedMassDeviation) {
+                    similarity += left.intensities[i] * intensities[j];
+                    ++matchedPeaks;
+                    ++i;
+                    ++j;
+                } else if (delta < 0) {
+                    ++i;
+                } else if (delta > 0) {
+                    ++j;
+                }
+            }
+            return new SpectralSimilarity(similarity, matchedPeaks);
+        }
+
+        // same as FastCosine.fastReverseCosine, but on the flat library arrays
+        private SpectralSimilarity reverseCosine(ReferenceLibrarySpectrum left, int spec) {
+            int i = 0, j = peakOffsets[spec];
+            final int end = peakOffsets[spec + 1];
+            final double rightParent = parentMasses[spec];
+            double similarity = 0d;
+            int matchedPeaks = 0;
+            while (i < left.size() && j < end) {
+                final double l = left.getParentMass() - left.mz[i];
+                final double r = rightParent - mz[j];
+                if (l <= PARENT_THRESHOLD || r <= PARENT_THRESHOLD) break; // hit parent peak
+                final double delta = l - r;
+                final double allowedMassDeviation = maxDeviation.absoluteFor(Math.min(l, r));
+                if (Math.abs(delta) < allowedMassDeviation) {
+                    similarity += left.intensities[i] * intensities[j];
+                    ++matchedPeaks;
+                    ++i;
+                    ++j;
+                } else if (delta < 0) {
+                    ++j;
+                } else if (delta > 0) {
+                    ++i;
+                }
+            }
+            return new SpectralSimilarity(similarity, matchedPeaks);
+        }
+    }
+
+    /**
+     * Reusable view of a library spectrum on the flat peak arrays, avoids copying peaks for every comparison.
+     */
+    private class LibrarySpectrumView implements OrderedSpectrum<Peak> {
+        private int offset, size;
+
+        private LibrarySpectrumView of(int spec) {
+            offset = peakOffsets[spec];
+            size = peakOffsets[spec + 1] - offset;
+            return this;
+        }
+
+        @Override
+        public double getMzAt(int index) {
+            return mz[offset + index];
+        }
+
+        @Override
+        public double getIntensityAt(int index) {
+            return intensities[offset + index];
+        }
+
+        @Override
+        public Peak getPeakAt(int index) {
+            return new SimplePeak(getMzAt(index), getIntensityAt(index));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Peak> iterator() {
+            return new Iterator<>() {
+                int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public Peak next() {
+                    return getPeakAt(index++);
+                }
+            };
+        }
+    }
+}
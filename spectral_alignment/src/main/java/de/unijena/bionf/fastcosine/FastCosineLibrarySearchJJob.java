@@ -0,0 +1,61 @@
+package de.unijena.bionf.fastcosine;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Searches a batch of queries against a {@link FastCosineLibraryIndex}. Queries are split into one chunk per CPU
+ * thread, each chunk is processed with its own {@link FastCosineLibraryIndex.Searcher}.
+ * The result list contains the top-k hits for each query, in the same order as the queries.
+ */
+public class FastCosineLibrarySearchJJob extends BasicMasterJJob<List<List<FastCosineLibraryIndex.Hit>>> {
+
+    private final FastCosineLibraryIndex index;
+    private final FastCosineLibraryIndex.Scoring scoring;
+    @Nullable
+    private final Deviation precursorDeviation;
+    private final int k;
+    private List<? extends ReferenceLibrarySpectrum> queries;
+
+    public FastCosineLibrarySearchJJob(FastCosineLibraryIndex index, List<? extends ReferenceLibrarySpectrum> queries, FastCosineLibraryIndex.Scoring scoring, @Nullable Deviation precursorDeviation, int k) {
+        super(JobType.CPU);
+        this.index = index;
+        this.queries = queries;
+        this.scoring = scoring;
+        this.precursorDeviation = precursorDeviation;
+        this.k = k;
+    }
+
+    @Override
+    protected List<List<FastCosineLibraryIndex.Hit>> compute() throws Exception {
+        @SuppressWarnings("unchecked") final List<FastCosineLibraryIndex.Hit>[] results = new List[queries.size()];
+        final int numberOfChunks = Math.max(1, Math.min(queries.size(), jobManager.getCPUThreads()));
+        final int chunkSize = (queries.size() + numberOfChunks - 1) / numberOfChunks;
+        final List<BasicJJob<Boolean>> jobs = new ArrayList<>(numberOfChunks);
+        for (int start = 0; start < queries.size(); start += chunkSize) {
+            final int from = start, to = Math.min(queries.size(), start + chunkSize);
+            jobs.add(new BasicJJob<Boolean>(JobType.CPU) {
+                @Override
+                protected Boolean compute() throws Exception {
+                    final FastCosineLibraryIndex.Searcher searcher = index.newSearcher();
+                    for (int i = from; i < to; ++i) {
+                        checkForInterruption();
+                        results[i] = searcher.search(queries.get(i), scoring, precursorDeviation, k);
+                    }
+                    return true;
+                }
+            });
+        }
+        jobs.forEach(this::submitSubJob);
+        jobs.forEach(JJob::takeResult);
+        queries = null;
+        return Arrays.asList(results);
+    }
+}
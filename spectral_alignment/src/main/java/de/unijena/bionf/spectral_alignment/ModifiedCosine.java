@@ -10,11 +10,12 @@ import lombok.Getter;
 
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.List;
 
 /**
  * This algorithm requires that there is at most one pair of peaks (u,v) where the m/z of u
  * and v are within the allowed mass tolerance.
- * TREAD-SAFE
+ * TREAD-SAFE. Use {@link #newScorer()} to score many pairs without allocating new buffers for every pair.
  */
 public class ModifiedCosine extends AbstractSpectralMatching {
 
@@ -31,6 +32,20 @@ public class ModifiedCosine extends AbstractSpectralMatching {
         return scoreWithResult(left, right, precursorLeft, precursorRight,powerIntensity).getSimilarity();
     }
 
+    /**
+     * @return a new scorer. Scorers are not thread-safe, use one scorer per thread.
+     */
+    public Scorer newScorer() {
+        return newScorer(1d, 0);
+    }
+
+    /**
+     * @param maxNumberOfPeaks buffers are preallocated for spectra of up to this size and grow if necessary
+     */
+    public Scorer newScorer(double powerIntensity, int maxNumberOfPeaks) {
+        return new Scorer(new DP(deviation, powerIntensity, maxNumberOfPeaks));
+    }
+
     public Result scoreWithResult(OrderedSpectrum<Peak> left, OrderedSpectrum<Peak> right, double precursorLeft, double precursorRight, double powerIntensity) {
         int[] assignment;
         double score;
@@ -56,37 +71,59 @@ public class ModifiedCosine extends AbstractSpectralMatching {
     protected static class DP {
         OrderedSpectrum<Peak> left, right;
         double precursorLeft, precursorRight;
-        Deviation dev;
+        final Deviation dev;
         final BitSet visited;
-        IntArrayList assignments;
+        final IntArrayList assignments;
         double score;
-        final double delta;
+        double delta;
         final double powerIntensity;
 
-        final short[] matches, reverseMatches, backref;
+        int leftSize, rightSize;
+        short[] matches, reverseMatches, backref;
         final DoubleArrayList dp;
         final IntArrayList dpi;
 
 
         public DP(OrderedSpectrum<Peak> left, OrderedSpectrum<Peak> right, double precursorLeft, double precursorRight, Deviation dev, double powerIntensity) {
+            this(dev, powerIntensity, Math.max(left.size(), right.size()));
+            init(left, right, precursorLeft, precursorRight);
+        }
+
+        DP(Deviation dev, double powerIntensity, int maxNumberOfPeaks) {
             this.dev = dev;
+            this.powerIntensity = powerIntensity;
+            this.visited = new BitSet(maxNumberOfPeaks);
+            this.assignments = new IntArrayList();
+            this.matches = new short[maxNumberOfPeaks];
+            this.reverseMatches = new short[maxNumberOfPeaks];
+            this.backref = new short[maxNumberOfPeaks];
+            dp = new DoubleArrayList();
+            dpi = new IntArrayList();
+        }
+
+        /**
+         * resets all buffers for scoring the given pair of spectra
+         */
+        void init(OrderedSpectrum<Peak> left, OrderedSpectrum<Peak> right, double precursorLeft, double precursorRight) {
             this.left = left;
             this.right = right;
             this.precursorLeft = precursorLeft;
             this.precursorRight = precursorRight;
-            this.visited = new BitSet(left.size());
-            this.assignments = new IntArrayList();
-            delta = precursorRight - precursorLeft;
-
-            this.matches = new short[left.size()];
-            Arrays.fill(matches, (short) -1);
-            this.reverseMatches = matches.clone();
-            this.backref = new short[right.size()];
-            Arrays.fill(backref, (short) -1);
-
-            dp = new DoubleArrayList();
-            dpi = new IntArrayList();
-            this.powerIntensity = powerIntensity;
+            this.delta = precursorRight - precursorLeft;
+            this.score = 0d;
+            this.leftSize = left.size();
+            this.rightSize = right.size();
+            visited.clear();
+            assignments.clear();
+            if (matches.length < leftSize) {
+                matches = new short[leftSize];
+                reverseMatches = new short[leftSize];
+            }
+            if (backref.length < rightSize)
+                backref = new short[rightSize];
+            Arrays.fill(matches, 0, leftSize, (short) -1);
+            Arrays.fill(reverseMatches, 0, leftSize, (short) -1);
+            Arrays.fill(backref, 0, rightSize, (short) -1);
         }
 
         public double compute() {
@@ -102,7 +139,7 @@ public class ModifiedCosine extends AbstractSpectralMatching {
 
         // when two spectra have the same precursor, we do only match peaks directly
         private void simpleAssignment() {
-            for (int i=0; i < matches.length; ++i) {
+            for (int i=0; i < leftSize; ++i) {
                 if (matches[i]>=0) {
                     this.score += scoreFor(i, matches[i]);
                     this.assignments.add(i);
@@ -114,7 +151,7 @@ public class ModifiedCosine extends AbstractSpectralMatching {
         // match peak from left to right
         public void peakMatching() {
             int i = 0, j = 0;
-            while (i < matches.length && j < backref.length) {
+            while (i < leftSize && j < rightSize) {
                 final double mzl = left.getMzAt(i), mzr = right.getMzAt(j);
                 if (dev.inErrorWindow(mzl, mzr)) {
                     matches[i] = (short) j;
@@ -130,7 +167,7 @@ public class ModifiedCosine extends AbstractSpectralMatching {
         }
 
         public void reversePeakMatching() {
-            int i = reverseMatches.length - 1, j = backref.length - 1;
+            int i = leftSize - 1, j = rightSize - 1;
             while (i >= 0 && j >= 0) {
                 final double mzl = precursorLeft - left.getMzAt(i), mzr = precursorRight - right.getMzAt(j);
                 if (dev.inErrorWindow(mzl, mzr) && backref[j]!=i /* this is the degenerated case when mass delta is too small */) {
@@ -147,7 +184,7 @@ public class ModifiedCosine extends AbstractSpectralMatching {
 
         public void optimalAssignment() {
             score = 0d;
-            for (int k = 0; k < matches.length; ++k) {
+            for (int k = 0; k < leftSize; ++k) {
                 if (visited.get(k)) continue;
                 final int directMatch = matches[k];
                 final int reverseMatch = reverseMatches[k];
@@ -274,7 +311,54 @@ public class ModifiedCosine extends AbstractSpectralMatching {
 
         private double scoreFor(int a, int b) {
             if (a < 0 || b < 0) return Double.NEGATIVE_INFINITY;
-            return Math.pow(left.getIntensityAt(a) * right.getIntensityAt(b), powerIntensity);
+            final double product = left.getIntensityAt(a) * right.getIntensityAt(b);
+            return powerIntensity == 1d ? product : Math.pow(product, powerIntensity);
+        }
+    }
+
+    /**
+     * Thread-confined scorer that reuses its matching and dynamic programming buffers for all comparisons.
+     * Apart from the returned {@link SpectralSimilarity} scoring a pair does not allocate.
+     */
+    public static final class Scorer {
+        private final DP dp;
+
+        private Scorer(DP dp) {
+            this.dp = dp;
+        }
+
+        public SpectralSimilarity score(OrderedSpectrum<Peak> left, OrderedSpectrum<Peak> right, double precursorLeft, double precursorRight) {
+            final double score = similarity(left, right, precursorLeft, precursorRight);
+            return new SpectralSimilarity(score, getSharedPeaks());
+        }
+
+        /**
+         * @return the modified cosine of the given pair. The number of matched peaks is available via {@link #getSharedPeaks()}.
+         */
+        public double similarity(OrderedSpectrum<Peak> left, OrderedSpectrum<Peak> right, double precursorLeft, double precursorRight) {
+            if (precursorLeft <= precursorRight) dp.init(left, right, precursorLeft, precursorRight);
+            else dp.init(right, left, precursorRight, precursorLeft);
+            return dp.compute();
+        }
+
+        /**
+         * @return number of matched peaks of the last comparison
+         */
+        public int getSharedPeaks() {
+            return dp.assignments.size() >> 1;
+        }
+
+        /**
+         * Scores the query against all references and writes the results into the given arrays.
+         *
+         * @param referencePrecursors precursor mass of each reference
+         */
+        public void scoreAll(OrderedSpectrum<Peak> query, double queryPrecursor, List<? extends OrderedSpectrum<Peak>> references,
+                             double[] referencePrecursors, double[] similarities, int[] sharedPeaks) {
+            for (int k = 0; k < references.size(); ++k) {
+                similarities[k] = similarity(query, references.get(k), queryPrecursor, referencePrecursors[k]);
+                sharedPeaks[k] = getSharedPeaks();
+            }
         }
     }
 
@@ -0,0 +1,65 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bionf.spectral_alignment;
+
+import de.unijena.bionf.fastcosine.FastCosine;
+import de.unijena.bionf.fastcosine.FastCosineLibraryIndex;
+import de.unijena.bionf.fastcosine.ReferenceLibrarySpectrum;
+
+import java.util.List;
+
+/**
+ * Runtime of a top-k library search with {@link FastCosineLibraryIndex} compared with scoring every library spectrum.
+ * <p>
+ * Usage: FastCosineLibraryIndexBenchmark [library size] [number of queries]
+ */
+public class FastCosineLibraryIndexBenchmark {
+
+    public static void main(String[] args) {
+        final int librarySize = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final int numberOfQueries = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        final FastCosine fastCosine = new FastCosine();
+        final List<ReferenceLibrarySpectrum> library = FastCosineLibraryIndexTest.makeLibrary(fastCosine, librarySize, 3);
+        final List<ReferenceLibrarySpectrum> queries = library.subList(0, Math.min(numberOfQueries, library.size()));
+
+        long time = System.nanoTime();
+        double sum = 0d;
+        for (ReferenceLibrarySpectrum query : queries) {
+            for (SpectralSimilarity s : FastCosineLibraryIndexTest.bruteForce(query, library, null, 10, fastCosine::fastCosine))
+                sum += s.similarity;
+        }
+        report("pairwise", queries.size(), System.nanoTime() - time, sum);
+
+        final FastCosineLibraryIndex.Searcher searcher = new FastCosineLibraryIndex(fastCosine, library).newSearcher();
+        time = System.nanoTime();
+        sum = 0d;
+        for (ReferenceLibrarySpectrum query : queries) {
+            for (FastCosineLibraryIndex.Hit h : searcher.search(query, FastCosineLibraryIndex.Scoring.COSINE, null, 10))
+                sum += h.similarity().similarity;
+        }
+        report("index", queries.size(), System.nanoTime() - time, sum);
+    }
+
+    private static void report(String name, int queries, long nanos, double checksum) {
+        System.out.printf("%-10s %10.1f us/query (checksum %.4f)%n", name, nanos / 1000d / queries, checksum);
+    }
+}
@@ -0,0 +1,125 @@
+package de.unijena.bionf.spectral_alignment;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bionf.fastcosine.FastCosine;
+import de.unijena.bionf.fastcosine.FastCosineLibraryIndex;
+import de.unijena.bionf.fastcosine.ReferenceLibrarySpectrum;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FastCosineLibraryIndexTest {
+
+    private static final double PARENT_MASS = 432.10556;
+
+    private static SimpleSpectrum makeRandomSpectrum(Random r, double parentMass) {
+        final SimpleMutableSpectrum buf = new SimpleMutableSpectrum();
+        final int n = 5 + r.nextInt(40);
+        for (int i = 0; i < n; ++i) {
+            buf.addPeak(50 + r.nextDouble() * (parentMass - 51), Math.pow(r.nextDouble(), 3) * 10000);
+        }
+        buf.addPeak(parentMass, 5000);
+        return new SimpleSpectrum(buf);
+    }
+
+    static List<ReferenceLibrarySpectrum> makeLibrary(FastCosine fastCosine, int size, int seed) {
+        final Random r = new Random(seed);
+        final List<ReferenceLibrarySpectrum> library = new ArrayList<>();
+        for (int i = 0; i < size; ++i) {
+            if (i % 20 == 0) {
+                library.add(fastCosine.prepareQuery(PARENT_MASS, FastCosineTest.makeTestSpectrumSameCompound(seed + i, 1000)));
+            } else {
+                final double parentMass = 100 + r.nextDouble() * 700;
+                library.add(fastCosine.prepareQuery(parentMass, makeRandomSpectrum(r, parentMass)));
+            }
+        }
+        return library;
+    }
+
+    static List<SpectralSimilarity> bruteForce(ReferenceLibrarySpectrum query, List<ReferenceLibrarySpectrum> library, Deviation precursorDeviation, int k,
+                                                        BiFunction<ReferenceLibrarySpectrum, ReferenceLibrarySpectrum, SpectralSimilarity> scorer) {
+        final List<SpectralSimilarity> scores = new ArrayList<>();
+        for (ReferenceLibrarySpectrum ref : library) {
+            if (precursorDeviation != null && !precursorDeviation.inErrorWindow(query.getParentMass(), ref.getParentMass()))
+                continue;
+            final SpectralSimilarity sim = scorer.apply(query, ref);
+            if (sim.sharedPeaks > 0) scores.add(sim);
+        }
+        scores.sort(Comparator.reverseOrder());
+        return scores.subList(0, Math.min(k, scores.size()));
+    }
+
+    private static void assertSameHits(List<SpectralSimilarity> expected, List<FastCosineLibraryIndex.Hit> hits) {
+        assertEquals(expected.size(), hits.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).similarity, hits.get(i).similarity().similarity, 1e-9);
+        }
+    }
+
+    @Test
+    public void testIndexMatchesPairwiseSearch() {
+        final FastCosine fastCosine = new FastCosine();
+        final List<ReferenceLibrarySpectrum> library = makeLibrary(fastCosine, 1000, 17);
+        final FastCosineLibraryIndex index = new FastCosineLibraryIndex(fastCosine, library);
+        final FastCosineLibraryIndex.Searcher searcher = index.newSearcher();
+        final Random r = new Random(42);
+        for (int q = 0; q < 20; ++q) {
+            final ReferenceLibrarySpectrum query = q % 2 == 0
+                    ? fastCosine.prepareQuery(PARENT_MASS, FastCosineTest.makeTestSpectrumSameCompound(1000 + q, 2000))
+                    : library.get(r.nextInt(library.size()));
+            for (Deviation precursorDeviation : new Deviation[]{new Deviation(10), null}) {
+                assertSameHits(bruteForce(query, library, precursorDeviation, 10, fastCosine::fastCosine),
+                        searcher.search(query, FastCosineLibraryIndex.Scoring.COSINE, precursorDeviation, 10));
+                assertSameHits(bruteForce(query, library, precursorDeviation, 10, fastCosine::fastReverseCosine),
+                        searcher.search(query, FastCosineLibraryIndex.Scoring.REVERSE_COSINE, precursorDeviation, 10));
+            }
+            assertSameHits(bruteForce(query, library, null, 10, fastCosine::fastModifiedCosine),
+                    searcher.search(query, FastCosineLibraryIndex.Scoring.MODIFIED_COSINE, null, 10));
+        }
+    }
+
+    @Test
+    public void testSearchAllMatchesPairwiseNetwork() {
+        final FastCosine fastCosine = new FastCosine();
+        final List<ReferenceLibrarySpectrum> library = makeLibrary(fastCosine, 500, 5);
+        final FastCosineLibraryIndex index = new FastCosineLibraryIndex(fastCosine, library);
+        final FastCosineLibraryIndex.Searcher searcher = index.newSearcher();
+        final double threshold = 0.3;
+        for (FastCosineLibraryIndex.Scoring scoring : new FastCosineLibraryIndex.Scoring[]{FastCosineLibraryIndex.Scoring.COSINE, FastCosineLibraryIndex.Scoring.MODIFIED_COSINE}) {
+            int expectedEdges = 0, edges = 0;
+            for (int i = 0; i < library.size(); ++i) {
+                for (int j = i + 1; j < library.size(); ++j) {
+                    final SpectralSimilarity sim = scoring == FastCosineLibraryIndex.Scoring.COSINE
+                            ? fastCosine.fastCosine(library.get(i), library.get(j))
+                            : fastCosine.fastModifiedCosine(library.get(i), library.get(j));
+                    if (sim.sharedPeaks > 0 && sim.similarity >= threshold) ++expectedEdges;
+                }
+                for (FastCosineLibraryIndex.Hit hit : searcher.searchAll(library.get(i), scoring, null, threshold, 1, i + 1)) {
+                    assertTrue(hit.spectrumIndex() > i);
+                    assertTrue(hit.similarity().similarity >= threshold);
+                    ++edges;
+                }
+            }
+            assertEquals(expectedEdges, edges);
+        }
+    }
+
+    @Test
+    public void testUnboundedTopK() {
+        final FastCosine fastCosine = new FastCosine();
+        final List<ReferenceLibrarySpectrum> library = makeLibrary(fastCosine, 300, 11);
+        final FastCosineLibraryIndex.Searcher searcher = new FastCosineLibraryIndex(fastCosine, library).newSearcher();
+        final ReferenceLibrarySpectrum query = library.get(0);
+        assertSameHits(bruteForce(query, library, null, Integer.MAX_VALUE, fastCosine::fastCosine),
+                searcher.search(query, FastCosineLibraryIndex.Scoring.COSINE, null, Integer.MAX_VALUE));
+    }
+}
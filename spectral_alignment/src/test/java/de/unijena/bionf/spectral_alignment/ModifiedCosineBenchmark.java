@@ -0,0 +1,97 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2023 Bright Giant GmbH
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.
+ *  If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bionf.spectral_alignment;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Time and allocated bytes per modified cosine comparison, comparing a new alignment per pair with a reused
+ * {@link ModifiedCosine.Scorer} and its batch API.
+ * <p>
+ * Usage: ModifiedCosineBenchmark [number of spectra] [rounds]
+ */
+public class ModifiedCosineBenchmark {
+
+    public static void main(String[] args) {
+        final int numberOfSpectra = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final Random r = new Random(1);
+        final List<SimpleSpectrum> spectra = new ArrayList<>();
+        final double[] precursors = new double[numberOfSpectra];
+        for (int k = 0; k < numberOfSpectra; ++k) {
+            precursors[k] = 150 + r.nextDouble() * 650;
+            final SimpleMutableSpectrum buf = new SimpleMutableSpectrum();
+            final int n = 10 + r.nextInt(80);
+            for (int i = 0; i < n; ++i)
+                buf.addPeak(50 + r.nextDouble() * (precursors[k] - 51), r.nextDouble());
+            spectra.add(new SimpleSpectrum(buf));
+        }
+
+        final ModifiedCosine modifiedCosine = new ModifiedCosine(new Deviation(10));
+        final ModifiedCosine.Scorer scorer = modifiedCosine.newScorer(1d, 100);
+        final double[] similarities = new double[numberOfSpectra];
+        final int[] sharedPeaks = new int[numberOfSpectra];
+        final long comparisons = (long) numberOfSpectra * numberOfSpectra;
+
+        for (int round = 0; round < rounds; ++round) {
+            long bytes = allocatedBytes(), time = System.nanoTime();
+            double sum = 0d;
+            for (int i = 0; i < numberOfSpectra; ++i)
+                for (int j = 0; j < numberOfSpectra; ++j)
+                    sum += modifiedCosine.score(spectra.get(i), spectra.get(j), precursors[i], precursors[j], 1d).similarity;
+            report("new alignment per pair", comparisons, System.nanoTime() - time, allocatedBytes() - bytes, sum);
+
+            bytes = allocatedBytes();
+            time = System.nanoTime();
+            sum = 0d;
+            for (int i = 0; i < numberOfSpectra; ++i)
+                for (int j = 0; j < numberOfSpectra; ++j)
+                    sum += scorer.similarity(spectra.get(i), spectra.get(j), precursors[i], precursors[j]);
+            report("reused scorer", comparisons, System.nanoTime() - time, allocatedBytes() - bytes, sum);
+
+            bytes = allocatedBytes();
+            time = System.nanoTime();
+            sum = 0d;
+            for (int i = 0; i < numberOfSpectra; ++i) {
+                scorer.scoreAll(spectra.get(i), precursors[i], spectra, precursors, similarities, sharedPeaks);
+                for (double s : similarities) sum += s;
+            }
+            report("batch", comparisons, System.nanoTime() - time, allocatedBytes() - bytes, sum);
+        }
+    }
+
+    private static void report(String name, long comparisons, long nanos, long bytes, double checksum) {
+        System.out.printf("%-24s %8.1f ns/comparison %8.1f bytes/comparison (checksum %.4f)%n",
+                name, (double) nanos / comparisons, (double) bytes / comparisons, checksum);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -26,8 +26,7 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -89,6 +88,42 @@ public class SpectralAlignmentTest {
         assertEquals(expectedAssignment, actualAssignment);
     }
 
+    @Test
+    public void testReusedScorerMatchesAlignment() {
+        final ModifiedCosine modifiedCosine = new ModifiedCosine(new Deviation(10));
+        // start with tiny buffers to check that they grow and are reset between comparisons
+        final ModifiedCosine.Scorer scorer = modifiedCosine.newScorer(1d, 2);
+        final Random r = new Random(3);
+        final List<SimpleSpectrum> spectra = new ArrayList<>();
+        final double[] precursors = new double[40];
+        for (int k = 0; k < precursors.length; ++k) {
+            precursors[k] = 100 + r.nextInt(5) * 14.01565 + (k % 3 == 0 ? 0 : r.nextDouble() * 300);
+            final SimpleMutableSpectrum buf = new SimpleMutableSpectrum();
+            final int n = 1 + r.nextInt(60);
+            for (int i = 0; i < n; ++i)
+                buf.addPeak(50 + r.nextInt((int) precursors[k] - 51) + (r.nextInt(3) * 0.001), r.nextDouble());
+            spectra.add(new SimpleSpectrum(buf));
+        }
+
+        for (int i = 0; i < spectra.size(); ++i) {
+            for (int j = 0; j < spectra.size(); ++j) {
+                final SpectralSimilarity expected = modifiedCosine.score(spectra.get(i), spectra.get(j), precursors[i], precursors[j], 1d);
+                final SpectralSimilarity actual = scorer.score(spectra.get(i), spectra.get(j), precursors[i], precursors[j]);
+                assertEquals(expected.similarity, actual.similarity, 1e-9);
+                assertEquals(expected.sharedPeaks, actual.sharedPeaks);
+            }
+        }
+
+        final double[] similarities = new double[spectra.size()];
+        final int[] sharedPeaks = new int[spectra.size()];
+        scorer.scoreAll(spectra.get(0), precursors[0], spectra, precursors, similarities, sharedPeaks);
+        for (int j = 0; j < spectra.size(); ++j) {
+            final SpectralSimilarity expected = modifiedCosine.score(spectra.get(0), spectra.get(j), precursors[0], precursors[j], 1d);
+            assertEquals(expected.similarity, similarities[j], 1e-9);
+            assertEquals(expected.sharedPeaks, sharedPeaks[j]);
+        }
+    }
+
     @Test
     public void testGaussian() {
         GaussianSpectralMatching gaussianAlignment = new GaussianSpectralMatching(new Deviation(10));
@@ -24,6 +24,7 @@ import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.fp.CdkFingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.babelms.CloseableIterator;
 import de.unijena.bioinf.chemdb.custom.CustomDataSources;
 import de.unijena.bioinf.chemdb.custom.CustomDatabase;
 import de.unijena.bioinf.chemdb.custom.CustomDatabases;
@@ -99,6 +100,7 @@ public class WebWithCustomDatabase {
         Files.createDirectories(directory);
 
         restCache.clear();
+        api.clearStructureDBMemoryCache(restCache);
 
         try (BufferedWriter bw = Files.newBufferedWriter(directory.resolve("version"), StandardCharsets.UTF_8)) {
             bw.write(api.getChemDbDate());
@@ -162,13 +164,17 @@ public class WebWithCustomDatabase {
             final long requestFilter = extractFilterBits(dbs).orElse(-1);
             if (requestFilter >= 0 || includeRestAllDb) {
                 final long searchFilter = includeRestAllDb ? 0 : requestFilter;
-                result = api.applyStructureDB(searchFilter, restCache, restDb -> new CandidateResult(
-                        restDb.lookupStructuresAndFingerprintsByFormula(formula)
-                                .stream()
-                                .filter(s -> DataSource.isInAll(s.getBitset()))
-                                .peek(CompoundCandidate::ensureSelfContainedLinks)
-                                .toList(),
-                        searchFilter, requestFilter));
+                result = api.applyStructureDB(searchFilter, restCache, restDb -> {
+                    // candidates are merged while they are read instead of collecting them into a list first
+                    try (CloseableIterator<FingerprintCandidate> candidates = restDb.iterateStructuresAndFingerprintsByFormula(formula)) {
+                        return new CandidateResult(
+                                StreamSupport.stream(Spliterators.spliteratorUnknownSize(candidates, Spliterator.ORDERED), false)
+                                        .filter(s -> DataSource.isInAll(s.getBitset()))
+                                        .peek(CompoundCandidate::ensureSelfContainedLinks)
+                                        .iterator(),
+                                searchFilter, requestFilter);
+                    }
+                });
             } else {
                 logger.warn("No filter for Rest DBs found bits in DB list: '" + dbs.stream().map(CustomDataSources.Source::name).collect(Collectors.joining(",")) + "'. Returning empty search list from REST DB");
                 result = new CandidateResult();
@@ -176,11 +182,15 @@ public class WebWithCustomDatabase {
 
             // add candidates from requested custom dbs
             for (AbstractChemicalDatabase cdb : extractReqCustomStructureDBs(dbs))
-                result.addRequestedCustom(cdb.getName(), cdb.lookupStructuresAndFingerprintsByFormula(formula));
+                try (CloseableIterator<FingerprintCandidate> candidates = cdb.iterateStructuresAndFingerprintsByFormula(formula)) {
+                    result.addRequestedCustom(cdb.getName(), candidates);
+                }
 
             // add tags from non-requested custom dbs for compounds that are also part of the requested dbs
             for (AbstractChemicalDatabase custom : extractNonReqCustomStructureDBs(dbs))
-                result.addAdditionalCustom(custom.getName(), custom.lookupStructuresAndFingerprintsByFormula(formula));
+                try (CloseableIterator<FingerprintCandidate> candidates = custom.iterateStructuresAndFingerprintsByFormula(formula)) {
+                    result.addAdditionalCustom(custom.getName(), candidates);
+                }
 
             return result;
         } catch (ChemicalDatabaseException e) {
@@ -413,8 +423,13 @@ public class WebWithCustomDatabase {
     }
 
     private static Set<FingerprintCandidate> mergeCompounds(Collection<FingerprintCandidate> compounds, final HashMap<String, FingerprintCandidate> mergeMap, Set<String> customNames, boolean onlyContained, boolean fromCustomDB) {
-        final Set<FingerprintCandidate> mergedCandidates = new HashSet<>(compounds.size());
-        for (FingerprintCandidate c : compounds) {
+        return mergeCompounds(compounds.iterator(), mergeMap, customNames, onlyContained, fromCustomDB);
+    }
+
+    private static Set<FingerprintCandidate> mergeCompounds(Iterator<FingerprintCandidate> compounds, final HashMap<String, FingerprintCandidate> mergeMap, Set<String> customNames, boolean onlyContained, boolean fromCustomDB) {
+        final Set<FingerprintCandidate> mergedCandidates = new HashSet<>();
+        while (compounds.hasNext()) {
+            final FingerprintCandidate c = compounds.next();
             final String key = c.getInchiKey2D();
             FingerprintCandidate x = mergeMap.get(key);
 
@@ -480,19 +495,19 @@ public class WebWithCustomDatabase {
             requestFilter = -1;
         }
 
-        private CandidateResult(List<FingerprintCandidate> compounds, long appliedFilter, long requestFilter) {
+        private CandidateResult(Iterator<FingerprintCandidate> compounds, long appliedFilter, long requestFilter) {
             restFilter = appliedFilter;
             this.requestFilter = requestFilter;
-            restDbInChIs = mergeCompounds(compounds, cs, customNames);
+            restDbInChIs = mergeCompounds(compounds, cs, customNames, false, false);
         }
 
-        private void addRequestedCustom(String name, List<FingerprintCandidate> compounds) {
+        private void addRequestedCustom(String name, Iterator<FingerprintCandidate> compounds) {
             if (customInChIs.containsKey(name))
                 throw new IllegalArgumentException("Custom db already exists: '" + name + "'");
             customInChIs.put(name, mergeCompounds(compounds, cs, customNames, false, true));
         }
 
-        private void addAdditionalCustom(String name, List<FingerprintCandidate> compounds) {
+        private void addAdditionalCustom(String name, Iterator<FingerprintCandidate> compounds) {
             if (customInChIs.containsKey(name))
                 throw new IllegalArgumentException("Custom db already exists: '" + name + "'");
             HashMap<String, FingerprintCandidate> candidates = new HashMap<>(cs);
@@ -31,6 +31,8 @@ import de.unijena.bioinf.elgordo.LipidStructureMatcher;
 import de.unijena.bioinf.fingerid.blast.BayesnetScoring;
 import de.unijena.bioinf.fingerid.blast.Fingerblast;
 import de.unijena.bioinf.fingerid.blast.FingerblastResult;
+import de.unijena.bioinf.fingerid.blast.FingerblastScoring;
+import de.unijena.bioinf.fingerid.blast.TopKScoredCandidates;
 import de.unijena.bioinf.fingerid.blast.parameters.ParameterStore;
 import de.unijena.bioinf.jjobs.BasicJJob;
 import de.unijena.bioinf.jjobs.JJob;
@@ -42,7 +44,6 @@ import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.smiles.SmilesParser;
 
 import java.io.File;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -55,6 +56,7 @@ public class FingerblastSearchJJob extends FingerprintDependentJJob<FingerblastR
     protected BayesnetScoring bayesnetScoring = null;
     private WebWithCustomDatabase.CandidateResult candidates = null;
     private List<Scored<FingerprintCandidate>> scoredCandidates = null;
+    private int numberOfCandidatesToKeep = 0;
 
     public FingerblastSearchJJob(@NotNull CSIPredictor predictor) {
         this(predictor, null, null, null);
@@ -86,6 +88,19 @@ public class FingerblastSearchJJob extends FingerprintDependentJJob<FingerblastR
         }
     }
 
+    /**
+     * Only keep the given number of best scoring candidates of the requested databases. Candidates of other databases
+     * are not scored at all. Values <= 0 (default) score and keep all candidates, which is required if the candidates
+     * of additional databases are needed later on, e.g. for the expansive search.
+     */
+    public void setNumberOfCandidatesToKeep(int numberOfCandidatesToKeep) {
+        this.numberOfCandidatesToKeep = numberOfCandidatesToKeep;
+    }
+
+    /**
+     * @return all scored candidates or only the top candidates of the requested databases if
+     * {@link #setNumberOfCandidatesToKeep(int)} is set.
+     */
     public List<Scored<FingerprintCandidate>> getAllScoredCandidates() {
         return scoredCandidates;
     }
@@ -97,27 +112,41 @@ public class FingerblastSearchJJob extends FingerprintDependentJJob<FingerblastR
     @Override
     protected FingerblastResult compute() throws Exception {
         checkInput();
-        //we want to score all available candidates and may create subsets later.
-        final Set<FingerprintCandidate> combinedCandidates = candidates.getCombCandidates();
-        checkForInterruption();
-
         // to get a prepared FingerblastScorer, an object of BayesnetScoring that is specific to the molecular formula has to be initialized
-        List<JJob<List<Scored<FingerprintCandidate>>>> scoreJobs = Fingerblast.makeScoringJobs(
-                predictor.getPreparedFingerblastScorer(ParameterStore.of(fp, bayesnetScoring)), combinedCandidates, fp);
-        checkForInterruption();
-        scoreJobs.forEach(this::submitSubJob);
-        checkForInterruption();
-        //This sorting here needs to be consistent with the sorting everywhere else
-        scoredCandidates = scoreJobs.stream().flatMap(r -> r.takeResult().stream()).sorted(Comparator.<Scored<FingerprintCandidate>>reverseOrder().thenComparing((Scored<FingerprintCandidate> s) -> s.getCandidate().getInchiKey2D())).map(fpc -> new Scored<>(fpc.getCandidate(), fpc.getScore())).collect(Collectors.toList());
-        checkForInterruption();
-        scoredCandidates.forEach(sc -> postprocessCandidate(sc.getCandidate()));
+        final FingerblastScoring<?> scorer = predictor.getPreparedFingerblastScorer(ParameterStore.of(fp, bayesnetScoring));
         checkForInterruption();
 
-        //create filtered result for FingerblastResult result
-        Set<String> requestedCandidatesInChIs = candidates.getReqCandidatesInChIs();
-        checkForInterruption();
-        final List<Scored<FingerprintCandidate>> cds = scoredCandidates.stream().
-                filter(sc -> requestedCandidatesInChIs.contains(sc.getCandidate().getInchiKey2D())).collect(Collectors.toList());
+        final List<Scored<FingerprintCandidate>> cds;
+        if (numberOfCandidatesToKeep > 0) {
+            // only the requested candidates are scored and only the best of them are kept
+            final List<JJob<TopKScoredCandidates>> scoreJobs = Fingerblast.makeTopKScoringJobs(
+                    scorer, candidates.getReqCandidates().iterator(), fp, numberOfCandidatesToKeep);
+            checkForInterruption();
+            scoreJobs.forEach(this::submitSubJob);
+            checkForInterruption();
+            //TopKScoredCandidates sorts consistent with the sorting everywhere else
+            scoredCandidates = Fingerblast.mergeTopK(scoreJobs).toSortedList();
+            checkForInterruption();
+            scoredCandidates.forEach(sc -> postprocessCandidate(sc.getCandidate()));
+            cds = scoredCandidates;
+        } else {
+            //we want to score all available candidates and may create subsets later.
+            final List<JJob<List<Scored<FingerprintCandidate>>>> scoreJobs = Fingerblast.makeScoringJobs(scorer, candidates.getCombCandidates(), fp);
+            checkForInterruption();
+            scoreJobs.forEach(this::submitSubJob);
+            checkForInterruption();
+            //This sorting here needs to be consistent with the sorting everywhere else
+            scoredCandidates = scoreJobs.stream().flatMap(r -> r.takeResult().stream()).sorted(TopKScoredCandidates.BEST_FIRST).collect(Collectors.toList());
+            checkForInterruption();
+            scoredCandidates.forEach(sc -> postprocessCandidate(sc.getCandidate()));
+            checkForInterruption();
+
+            //create filtered result for FingerblastResult result
+            Set<String> requestedCandidatesInChIs = candidates.getReqCandidatesInChIs();
+            checkForInterruption();
+            cds = scoredCandidates.stream().
+                    filter(sc -> requestedCandidatesInChIs.contains(sc.getCandidate().getInchiKey2D())).collect(Collectors.toList());
+        }
         checkForInterruption();
 
         if (this.ftree != null) {
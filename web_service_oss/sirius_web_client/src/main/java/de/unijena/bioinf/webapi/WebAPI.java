@@ -154,6 +154,12 @@ public interface WebAPI<D extends AbstractChemicalDatabase> {
 
     <T> T applyStructureDB(long filter, @Nullable BlobStorage cache, IOFunctions.IOFunction<D, T> doWithClient) throws IOException;
 
+    /**
+     * Drops the structure candidates of the given cache storage that are held in memory across requests.
+     * Has to be called whenever the cache storage itself is cleared.
+     */
+    void clearStructureDBMemoryCache(@Nullable BlobStorage cache);
+
     default <T> T applyStructureDB(long filter, IOFunctions.IOFunction<D, T> doWithClient) throws IOException {
         return applyStructureDB(filter, getWebDatabaseCacheStorage(), doWithClient);
     }
@@ -32,8 +32,13 @@ import de.unijena.bioinf.ChemistryBase.utils.IOFunctions;
 import de.unijena.bioinf.auth.AuthService;
 import de.unijena.bioinf.auth.LoginException;
 import de.unijena.bioinf.canopus.CanopusResult;
+import de.unijena.bioinf.chemdb.ChemDBFileCache;
+import de.unijena.bioinf.chemdb.ChemicalDatabaseException;
+import de.unijena.bioinf.chemdb.DataSource;
 import de.unijena.bioinf.chemdb.FilteredChemicalDB;
+import de.unijena.bioinf.chemdb.FingerprintCandidate;
 import de.unijena.bioinf.chemdb.RESTDatabase;
+import de.unijena.bioinf.chemdb.SearchStructureByFormula;
 import de.unijena.bioinf.chemdb.WebWithCustomDatabase;
 import de.unijena.bioinf.confidence_score.svm.TrainedSVM;
 import de.unijena.bioinf.fingerid.CanopusWebResultConverter;
@@ -84,6 +89,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 import static de.unijena.bioinf.chemdb.custom.CustomDataSources.getWebDatabaseCacheDirectory;
@@ -106,6 +112,7 @@ public final class RestAPI extends AbstractWebAPI<FilteredChemicalDB<RESTDatabas
     private final StructureSearchClient chemDBClient;
     private final FingerIdClient fingerprintClient;
     private final CanopusClient canopusClient;
+    private final ConcurrentHashMap<String, ChemDBFileCache> structureDBCaches = new ConcurrentHashMap<>();
 
     private Subscription activeSubscription;
 
@@ -370,17 +377,49 @@ public final class RestAPI extends AbstractWebAPI<FilteredChemicalDB<RESTDatabas
     //endregion
 
     //region ChemDB
+    /**
+     * One cache per cache location that is shared by all structure db requests, so that its in-memory candidates and
+     * the coalescing of concurrent loads of the same formula outlive a single request.
+     */
+    private ChemDBFileCache getStructureDBCache(@Nullable BlobStorage cacheDir) {
+        final BlobStorage storage = cacheDir != null ? cacheDir : RESTDatabase.defaultCache();
+        return structureDBCaches.computeIfAbsent(storage.getBucketLocation(), location -> new ChemDBFileCache(storage, new SearchStructureByFormula() {
+            @Override
+            public <T extends Collection<FingerprintCandidate>> T lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, T fingerprintCandidates) throws ChemicalDatabaseException {
+                try {
+                    //get unfiltered list from server to write cache.
+                    fingerprintCandidates.addAll(ProxyManager.applyClient(client -> chemDBClient.getCompounds(formula, DataSource.ALL.flag(), client)));
+                    return fingerprintCandidates;
+                } catch (IOException e) {
+                    throw new ChemicalDatabaseException(e);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Removes the candidates of the given cache location from memory, e.g. after its blob storage has been cleared.
+     */
+    @Override
+    public void clearStructureDBMemoryCache(@Nullable BlobStorage cacheDir) {
+        final ChemDBFileCache cache = structureDBCaches.get((cacheDir != null ? cacheDir : RESTDatabase.defaultCache()).getBucketLocation());
+        if (cache != null)
+            cache.clearMemoryCache();
+    }
+
     public void consumeStructureDB(long filter, @Nullable BlobStorage cacheDir, IOFunctions.IOConsumer<FilteredChemicalDB<RESTDatabase>> doWithClient) throws IOException {
+        final ChemDBFileCache cache = getStructureDBCache(cacheDir);
         ProxyManager.consumeClient(client -> {
-            try (FilteredChemicalDB<RESTDatabase> restDB = new FilteredChemicalDB<>(new RESTDatabase(cacheDir, chemDBClient, client), filter)) {
+            try (FilteredChemicalDB<RESTDatabase> restDB = new FilteredChemicalDB<>(new RESTDatabase(cache, chemDBClient, client), filter)) {
                 doWithClient.accept(restDB);
             }
         });
     }
 
     public <T> T applyStructureDB(long filter, @Nullable BlobStorage cacheDir, IOFunctions.IOFunction<FilteredChemicalDB<RESTDatabase>, T> doWithClient) throws IOException {
+        final ChemDBFileCache cache = getStructureDBCache(cacheDir);
         return ProxyManager.applyClient(client -> {
-            try (FilteredChemicalDB<RESTDatabase> restDB = new FilteredChemicalDB<>(new RESTDatabase(cacheDir, chemDBClient, client), filter)) {
+            try (FilteredChemicalDB<RESTDatabase> restDB = new FilteredChemicalDB<>(new RESTDatabase(cache, chemDBClient, client), filter)) {
                 return doWithClient.apply(restDB);
             }
         });